@@ -0,0 +1,131 @@
+package com.otaliastudios.transcoder.benchmarks;
+
+import com.otaliastudios.transcoder.remix.AudioRemixer;
+import com.otaliastudios.transcoder.remix.MatrixAudioRemixer;
+import com.otaliastudios.transcoder.resample.DefaultAudioResampler;
+import com.otaliastudios.transcoder.stretch.DefaultAudioStretcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the same chain as the audio engine (stretch, remix from mono to stereo,
+ * resample from 44100 to 48000) over one decoder buffer, with heap buffers,
+ * direct buffers and float arrays. The output is always a 16 bit buffer,
+ * as the encoder would expect.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AudioChainBenchmark {
+
+    private static final int INPUT_RATE = 44100;
+    private static final int OUTPUT_RATE = 48000;
+
+    @Param({"1.0", "1.25"})
+    public float speed;
+
+    private int mStretchedSize;
+
+    private ShortBuffer mHeapInput;
+    private ShortBuffer mHeapStretched;
+    private ShortBuffer mHeapRemixed;
+    private ShortBuffer mDirectInput;
+    private ShortBuffer mDirectStretched;
+    private ShortBuffer mDirectRemixed;
+    private ShortBuffer mOutput;
+
+    private float[] mFloatInput;
+    private float[] mFloatStretched;
+    private float[] mFloatRemixed;
+    private float[] mFloatOutput;
+    private short[] mFloatShorts;
+
+    private final DefaultAudioStretcher mStretcher = new DefaultAudioStretcher();
+    private final DefaultAudioResampler mResampler = new DefaultAudioResampler();
+    private final MatrixAudioRemixer mFloatRemixer = new MatrixAudioRemixer(1, 2, new float[]{1F, 1F});
+
+    @Setup
+    public void setUp() {
+        Signals.silenceLogs();
+        short[] input = Signals.shorts(Signals.FRAMES, 1, INPUT_RATE);
+        mStretchedSize = (int) (Signals.FRAMES / speed);
+        int outputSize = 2 * 2 * mStretchedSize;
+        mHeapInput = ShortBuffer.wrap(input);
+        mHeapStretched = ShortBuffer.allocate(mStretchedSize);
+        mHeapRemixed = ShortBuffer.allocate(2 * mStretchedSize);
+        mDirectInput = direct(input.length);
+        mDirectInput.put(input).flip();
+        mDirectStretched = direct(mStretchedSize);
+        mDirectRemixed = direct(2 * mStretchedSize);
+        mOutput = ShortBuffer.allocate(outputSize);
+        mFloatInput = Signals.floats(Signals.FRAMES, 1, INPUT_RATE);
+        mFloatStretched = new float[mStretchedSize];
+        mFloatRemixed = new float[2 * mStretchedSize];
+        mFloatOutput = new float[outputSize];
+        mFloatShorts = new short[outputSize];
+        mStretcher.reset();
+        mResampler.reset();
+    }
+
+    private static ShortBuffer direct(int size) {
+        return ByteBuffer.allocateDirect(size * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+    }
+
+    private ShortBuffer run(ShortBuffer input, ShortBuffer stretched, ShortBuffer remixed) {
+        input.rewind();
+        stretched.clear();
+        mStretcher.stretch(input, stretched, 1);
+        stretched.flip();
+        remixed.clear();
+        AudioRemixer.UPMIX.remix(stretched, remixed);
+        remixed.flip();
+        mOutput.clear();
+        mResampler.resample(remixed, INPUT_RATE, mOutput, OUTPUT_RATE, 2);
+        return mOutput;
+    }
+
+    @Benchmark
+    public ShortBuffer heap() {
+        return run(mHeapInput, mHeapStretched, mHeapRemixed);
+    }
+
+    @Benchmark
+    public ShortBuffer direct() {
+        return run(mDirectInput, mDirectStretched, mDirectRemixed);
+    }
+
+    @Benchmark
+    public ShortBuffer floats() {
+        mStretcher.stretch(mFloatInput, 0, mFloatInput.length, mFloatStretched, 0, mStretchedSize, 1);
+        mFloatRemixer.remix(mFloatStretched, 0, mStretchedSize, mFloatRemixed, 0);
+        int outputSize = mResampler.resample(mFloatRemixed, 0, 2 * mStretchedSize, INPUT_RATE,
+                mFloatOutput, 0, mFloatOutput.length, OUTPUT_RATE, 2);
+        for (int i = 0; i < outputSize; i++) {
+            int value = Math.round(mFloatOutput[i] * Short.MAX_VALUE);
+            if (value > Short.MAX_VALUE) value = Short.MAX_VALUE;
+            if (value < Short.MIN_VALUE) value = Short.MIN_VALUE;
+            mFloatShorts[i] = (short) value;
+        }
+        mOutput.clear();
+        mOutput.put(mFloatShorts, 0, outputSize);
+        return mOutput;
+    }
+}
@@ -0,0 +1,83 @@
+package com.otaliastudios.transcoder.benchmarks;
+
+import com.otaliastudios.transcoder.remix.AudioRemixer;
+import com.otaliastudios.transcoder.remix.MatrixAudioRemixer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remixes one decoder buffer of {@link Signals#FRAMES} frames with each {@link AudioRemixer}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AudioRemixerBenchmark {
+
+    private ShortBuffer mMono;
+    private ShortBuffer mStereo;
+    private ShortBuffer mSurround;
+    private ShortBuffer mOutput;
+    private float[] mFloatSurround;
+    private float[] mFloatOutput;
+
+    private final MatrixAudioRemixer mMatrix = new MatrixAudioRemixer(6, 2);
+
+    @Setup
+    public void setUp() {
+        Signals.silenceLogs();
+        mMono = ShortBuffer.wrap(Signals.shorts(Signals.FRAMES, 1, 44100));
+        mStereo = ShortBuffer.wrap(Signals.shorts(Signals.FRAMES, 2, 44100));
+        mSurround = ShortBuffer.wrap(Signals.shorts(Signals.FRAMES, 6, 44100));
+        mOutput = ShortBuffer.allocate(6 * Signals.FRAMES);
+        mFloatSurround = Signals.floats(Signals.FRAMES, 6, 44100);
+        mFloatOutput = new float[2 * Signals.FRAMES];
+    }
+
+    private ShortBuffer run(AudioRemixer remixer, ShortBuffer input) {
+        input.rewind();
+        mOutput.clear();
+        remixer.remix(input, mOutput);
+        return mOutput;
+    }
+
+    @Benchmark
+    public ShortBuffer downMix() {
+        return run(AudioRemixer.DOWNMIX, mStereo);
+    }
+
+    @Benchmark
+    public ShortBuffer upMix() {
+        return run(AudioRemixer.UPMIX, mMono);
+    }
+
+    @Benchmark
+    public ShortBuffer passThrough() {
+        return run(AudioRemixer.PASSTHROUGH, mStereo);
+    }
+
+    @Benchmark
+    public ShortBuffer matrixSurroundToStereo() {
+        return run(mMatrix, mSurround);
+    }
+
+    @Benchmark
+    public float[] matrixSurroundToStereoFloat() {
+        mMatrix.remix(mFloatSurround, 0, mFloatSurround.length, mFloatOutput, 0);
+        return mFloatOutput;
+    }
+}
@@ -0,0 +1,100 @@
+package com.otaliastudios.transcoder.benchmarks;
+
+import com.otaliastudios.transcoder.resample.AudioResampler;
+import com.otaliastudios.transcoder.resample.DefaultAudioResampler;
+import com.otaliastudios.transcoder.resample.PolyphaseAudioResampler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resamples one decoder buffer of {@link Signals#FRAMES} frames with each {@link AudioResampler}.
+ * The polyphase resamplers keep their state across invocations, as they would in a stream.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AudioResamplerBenchmark {
+
+    @Param({"1", "2"})
+    public int channels;
+
+    private ShortBuffer mInput44;
+    private ShortBuffer mInput48;
+    private ShortBuffer mOutput;
+    private float[] mFloatInput48;
+    private float[] mFloatOutput;
+
+    private final PolyphaseAudioResampler mPolyphase = new PolyphaseAudioResampler();
+    private final DefaultAudioResampler mDefault = new DefaultAudioResampler();
+
+    @Setup
+    public void setUp() {
+        Signals.silenceLogs();
+        mInput44 = ShortBuffer.wrap(Signals.shorts(Signals.FRAMES, channels, 44100));
+        mInput48 = ShortBuffer.wrap(Signals.shorts(Signals.FRAMES, channels, 48000));
+        mOutput = ShortBuffer.allocate(2 * Signals.FRAMES * channels);
+        mFloatInput48 = Signals.floats(Signals.FRAMES, channels, 48000);
+        mFloatOutput = new float[2 * Signals.FRAMES * channels];
+        mPolyphase.reset();
+        mDefault.reset();
+    }
+
+    private ShortBuffer run(AudioResampler resampler, ShortBuffer input, int inputRate, int outputRate) {
+        input.rewind();
+        mOutput.clear();
+        resampler.resample(input, inputRate, mOutput, outputRate, channels);
+        return mOutput;
+    }
+
+    @Benchmark
+    public ShortBuffer polyphaseUp() {
+        return run(mPolyphase, mInput44, 44100, 48000);
+    }
+
+    @Benchmark
+    public ShortBuffer polyphaseDown() {
+        return run(mPolyphase, mInput48, 48000, 44100);
+    }
+
+    @Benchmark
+    public int polyphaseDownFloat() {
+        return mPolyphase.resample(mFloatInput48, 0, mFloatInput48.length, 48000,
+                mFloatOutput, 0, mFloatOutput.length, 44100, channels);
+    }
+
+    @Benchmark
+    public ShortBuffer defaultDown() {
+        return run(mDefault, mInput48, 48000, 44100);
+    }
+
+    @Benchmark
+    public ShortBuffer downsample() {
+        return run(AudioResampler.DOWNSAMPLE, mInput48, 48000, 44100);
+    }
+
+    @Benchmark
+    public ShortBuffer upsample() {
+        return run(AudioResampler.UPSAMPLE, mInput44, 44100, 48000);
+    }
+
+    @Benchmark
+    public ShortBuffer passThrough() {
+        return run(AudioResampler.PASSTHROUGH, mInput48, 48000, 48000);
+    }
+}
@@ -0,0 +1,104 @@
+package com.otaliastudios.transcoder.benchmarks;
+
+import com.otaliastudios.transcoder.stretch.AudioStretcher;
+import com.otaliastudios.transcoder.stretch.DefaultAudioStretcher;
+import com.otaliastudios.transcoder.stretch.WsolaAudioStretcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stretches one stereo decoder buffer of {@link Signals#FRAMES} frames with each
+ * {@link AudioStretcher}. The speed is the ratio between input and output size.
+ * Cut and insert only support one direction, so they use a fixed speed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AudioStretcherBenchmark {
+
+    private static final int CHANNELS = 2;
+
+    @Param({"0.5", "0.8", "1.25", "2.0"})
+    public float speed;
+
+    private ShortBuffer mInput;
+    private ShortBuffer mOutput;
+    private ShortBuffer mCutOutput;
+    private ShortBuffer mInsertOutput;
+    private ShortBuffer mSameOutput;
+    private float[] mFloatInput;
+    private float[] mFloatOutput;
+
+    private final WsolaAudioStretcher mWsola = new WsolaAudioStretcher();
+    private final DefaultAudioStretcher mDefault = new DefaultAudioStretcher();
+
+    @Setup
+    public void setUp() {
+        Signals.silenceLogs();
+        int inputSize = Signals.FRAMES * CHANNELS;
+        int outputSize = (int) (Signals.FRAMES / speed) * CHANNELS;
+        mInput = ShortBuffer.wrap(Signals.shorts(Signals.FRAMES, CHANNELS, 44100));
+        mOutput = ShortBuffer.allocate(outputSize);
+        mCutOutput = ShortBuffer.allocate(inputSize / 2);
+        mInsertOutput = ShortBuffer.allocate(inputSize * 2);
+        mSameOutput = ShortBuffer.allocate(inputSize);
+        mFloatInput = Signals.floats(Signals.FRAMES, CHANNELS, 44100);
+        mFloatOutput = new float[outputSize];
+        mWsola.reset();
+        mDefault.reset();
+    }
+
+    private ShortBuffer run(AudioStretcher stretcher, ShortBuffer output) {
+        mInput.rewind();
+        output.clear();
+        stretcher.stretch(mInput, output, CHANNELS);
+        return output;
+    }
+
+    @Benchmark
+    public ShortBuffer wsola() {
+        return run(mWsola, mOutput);
+    }
+
+    @Benchmark
+    public float[] wsolaFloat() {
+        mWsola.stretch(mFloatInput, 0, mFloatInput.length, mFloatOutput, 0, mFloatOutput.length, CHANNELS);
+        return mFloatOutput;
+    }
+
+    @Benchmark
+    public ShortBuffer defaultStretcher() {
+        return run(mDefault, mOutput);
+    }
+
+    @Benchmark
+    public ShortBuffer cut() {
+        return run(AudioStretcher.CUT, mCutOutput);
+    }
+
+    @Benchmark
+    public ShortBuffer insert() {
+        return run(AudioStretcher.INSERT, mInsertOutput);
+    }
+
+    @Benchmark
+    public ShortBuffer passThrough() {
+        return run(AudioStretcher.PASSTHROUGH, mSameOutput);
+    }
+}
@@ -0,0 +1,63 @@
+package com.otaliastudios.transcoder.benchmarks;
+
+import android.media.MediaFormat;
+
+import com.otaliastudios.transcoder.internal.AvcCsdUtils;
+import com.otaliastudios.transcoder.internal.MediaFormatConstants;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extracts the SPS from a format whose csd-0 uses a 3 or 4 bytes start code.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AvcCsdUtilsBenchmark {
+
+    // A 1280x720 High profile SPS, without start code.
+    private static final byte[] SPS = {
+            0x67, 0x64, 0x00, 0x1f, (byte) 0xac, (byte) 0xd9, 0x40, 0x50,
+            0x05, (byte) 0xbb, 0x01, 0x10, 0x00, 0x00, 0x03, 0x00,
+            0x10, 0x00, 0x00, 0x03, 0x03, (byte) 0xc0, (byte) 0xf1, (byte) 0x83,
+            0x19, 0x60
+    };
+
+    @Param({"3", "4"})
+    public int startCodeLength;
+
+    private MediaFormat mFormat;
+
+    @Setup
+    public void setUp() {
+        Signals.silenceLogs();
+        ByteBuffer csd = ByteBuffer.allocateDirect(startCodeLength + SPS.length);
+        for (int i = 0; i < startCodeLength - 1; i++) csd.put((byte) 0);
+        csd.put((byte) 1);
+        csd.put(SPS);
+        csd.flip();
+        mFormat = new MediaFormat();
+        mFormat.setByteBuffer(MediaFormatConstants.KEY_AVC_SPS, csd);
+    }
+
+    @Benchmark
+    public ByteBuffer getSpsBuffer() {
+        return AvcCsdUtils.getSpsBuffer(mFormat);
+    }
+}
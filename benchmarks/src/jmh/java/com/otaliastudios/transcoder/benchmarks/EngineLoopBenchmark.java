@@ -0,0 +1,186 @@
+package com.otaliastudios.transcoder.benchmarks;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.otaliastudios.transcoder.internal.WorkSignal;
+import com.otaliastudios.transcoder.transcode.TrackTranscoder;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the engine loop over two fake {@link TrackTranscoder}s, whose codecs take some time
+ * to output each frame and are polled, like synchronous MediaCodecs. Each invocation is a
+ * whole job, so the score is its wall time. The wakeups counter is the number of times
+ * that the loop waited because no track could step. JMH sums counters over the iterations,
+ * so the waits of each job are wakeups / jobs.
+ *
+ * When idle, the loop either:
+ * - sleeps for a fixed time, like the engine used to do (sleep)
+ * - waits on a {@link WorkSignal} from 1 ms up to the same time, doubling it at each
+ *   wait (backoff). Nobody signals, since codecs are polled.
+ * - waits on a {@link WorkSignal} for the same time, blocking on the codec that should
+ *   output next, like the engine does now (wait)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EngineLoopBenchmark {
+
+    private static final long WAIT_MILLIS = 10;
+    private static final int FRAMES = 60;
+    private static final int CODEC_BUFFERS = 4;
+
+    @Param({"sleep", "backoff", "wait"})
+    public String mode;
+
+    /**
+     * The time that the video codec takes for each frame.
+     * Audio frames take a quarter of it.
+     */
+    @Param({"1000", "5000", "20000"})
+    public int latencyUs;
+
+    private final WorkSignal mSignal = new WorkSignal();
+
+    /**
+     * Counts the jobs and the waits in each iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long jobs;
+        public long wakeups;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            jobs = 0;
+            wakeups = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        Signals.silenceLogs();
+    }
+
+    @Benchmark
+    public boolean transcode(Counters counters) throws InterruptedException {
+        FakeTrackTranscoder video = new FakeTrackTranscoder(latencyUs * 1000L);
+        FakeTrackTranscoder audio = new FakeTrackTranscoder(latencyUs * 1000L / 4);
+        long waitMillis = 1;
+        while (!video.isFinished() || !audio.isFinished()) {
+            boolean stepped = false;
+            if (!video.isFinished()) stepped = video.transcode(false);
+            if (!audio.isFinished()) stepped |= audio.transcode(false);
+            if (stepped) {
+                waitMillis = 1;
+                continue;
+            }
+            counters.wakeups++;
+            if (mode.equals("sleep")) {
+                Thread.sleep(WAIT_MILLIS);
+            } else if (mode.equals("backoff")) {
+                mSignal.await(waitMillis);
+                waitMillis = Math.min(waitMillis * 2, WAIT_MILLIS);
+            } else {
+                WorkSignal.Waitable waitable = getWaitable(video);
+                if (waitable == null) waitable = getWaitable(audio);
+                mSignal.await(WAIT_MILLIS, waitable);
+            }
+        }
+        counters.jobs++;
+        return true;
+    }
+
+    @Nullable
+    private static WorkSignal.Waitable getWaitable(@NonNull FakeTrackTranscoder transcoder) {
+        return transcoder.canAwaitWork() ? transcoder : null;
+    }
+
+    /**
+     * A transcoder whose codec holds up to {@link #CODEC_BUFFERS} frames and outputs them
+     * one after the other, each one taking the given time. Each step takes the output
+     * that is ready, then fills the codec again.
+     */
+    private static class FakeTrackTranscoder implements TrackTranscoder, WorkSignal.Waitable {
+
+        private final long mLatencyNanos;
+        private final long[] mReadyNanos = new long[CODEC_BUFFERS];
+        private long mLastReadyNanos;
+        private int mQueued;
+        private int mOutput;
+
+        private FakeTrackTranscoder(long latencyNanos) {
+            mLatencyNanos = latencyNanos;
+        }
+
+        @Override
+        public void setUp(@NonNull MediaFormat desiredOutputFormat) {}
+
+        @Override
+        public boolean transcode(boolean forceInputEos) {
+            boolean stepped = false;
+            long now = System.nanoTime();
+            while (mOutput < mQueued && mReadyNanos[mOutput % CODEC_BUFFERS] <= now) {
+                mOutput++;
+                stepped = true;
+            }
+            while (mQueued < FRAMES && mQueued - mOutput < CODEC_BUFFERS) {
+                mLastReadyNanos = Math.max(now, mLastReadyNanos) + mLatencyNanos;
+                mReadyNanos[mQueued % CODEC_BUFFERS] = mLastReadyNanos;
+                mQueued++;
+                stepped = true;
+            }
+            return stepped;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return mOutput == FRAMES;
+        }
+
+        @Override
+        public void release() {}
+
+        @Override
+        public boolean canAwaitWork() {
+            return mOutput < mQueued;
+        }
+
+        /**
+         * Blocks like MediaCodec.dequeueOutputBuffer() with a timeout.
+         */
+        @Override
+        public boolean awaitWork(long timeoutMillis) {
+            long readyNanos = mReadyNanos[mOutput % CODEC_BUFFERS];
+            long deadlineNanos = System.nanoTime() + timeoutMillis * 1000000L;
+            long untilNanos = Math.min(readyNanos, deadlineNanos);
+            long remainingNanos;
+            while ((remainingNanos = untilNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remainingNanos);
+            }
+            return readyNanos <= deadlineNanos;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.otaliastudios.transcoder.benchmarks;
+
+import com.otaliastudios.transcoder.internal.ISO6709LocationParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses valid and invalid ISO 6709 strings, as found in the location metadata.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ISO6709LocationParserBenchmark {
+
+    @Param({"+37.7858-122.4064/", "+35.6895+139.6917+040.000/", "invalid"})
+    public String location;
+
+    private ISO6709LocationParser mParser;
+
+    @Setup
+    public void setUp() {
+        Signals.silenceLogs();
+        mParser = new ISO6709LocationParser();
+    }
+
+    @Benchmark
+    public float[] parse() {
+        return mParser.parse(location);
+    }
+
+    @Benchmark
+    public float[] createAndParse() {
+        return new ISO6709LocationParser().parse(location);
+    }
+}
@@ -0,0 +1,64 @@
+package com.otaliastudios.transcoder.benchmarks;
+
+import com.otaliastudios.transcoder.internal.Logger;
+
+/**
+ * Test signals shared by the audio benchmarks.
+ */
+final class Signals {
+
+    /**
+     * Frames in a typical AAC decoder output buffer.
+     */
+    static final int FRAMES = 1024;
+
+    private Signals() {}
+
+    /**
+     * Silences the library logs, which would otherwise be measured.
+     */
+    static void silenceLogs() {
+        Logger.setLogLevel(Logger.LEVEL_ERROR);
+    }
+
+    /**
+     * Returns interleaved 16 bit samples: a mix of two tones and some noise,
+     * so that the content is not trivially periodic.
+     *
+     * @param frames number of frames
+     * @param channels number of channels
+     * @param sampleRate the sample rate
+     * @return interleaved samples
+     */
+    static short[] shorts(int frames, int channels, int sampleRate) {
+        short[] samples = new short[frames * channels];
+        long seed = 1234;
+        for (int i = 0; i < frames; i++) {
+            double t = (double) i / sampleRate;
+            for (int c = 0; c < channels; c++) {
+                seed = seed * 6364136223846793005L + 1442695040888963407L;
+                double noise = ((seed >>> 40) / (double) (1L << 24)) - 0.5;
+                double value = 0.5 * Math.sin(2 * Math.PI * 440 * (c + 1) * t)
+                        + 0.3 * Math.sin(2 * Math.PI * 1250 * t)
+                        + 0.05 * noise;
+                samples[i * channels + c] = (short) (value * Short.MAX_VALUE * 0.8);
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Same as {@link #shorts(int, int, int)}, but in the [-1, 1] float range.
+     *
+     * @param frames number of frames
+     * @param channels number of channels
+     * @param sampleRate the sample rate
+     * @return interleaved samples
+     */
+    static float[] floats(int frames, int channels, int sampleRate) {
+        short[] shorts = shorts(frames, channels, sampleRate);
+        float[] floats = new float[shorts.length];
+        for (int i = 0; i < shorts.length; i++) floats[i] = shorts[i] / 32768F;
+        return floats;
+    }
+}
@@ -0,0 +1,73 @@
+package com.otaliastudios.transcoder.benchmarks;
+
+import com.otaliastudios.transcoder.engine.TrackType;
+import com.otaliastudios.transcoder.time.SpeedTimeInterpolator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interpolates the timestamps of interleaved audio and video samples with a new
+ * {@link SpeedTimeInterpolator}. Interpolators are stateful, so a new one is
+ * created for each invocation. Scores are per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpeedTimeInterpolatorBenchmark {
+
+    private static final int SAMPLES = 1000;
+
+    @Param({"0.5", "2.0"})
+    public float factor;
+
+    private long[] mTimestamps;
+    private TrackType[] mTypes;
+
+    @Setup
+    public void setUp() {
+        Signals.silenceLogs();
+        mTimestamps = new long[SAMPLES];
+        mTypes = new TrackType[SAMPLES];
+        long audio = 0;
+        long video = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            // Roughly two AAC frames for every 30fps video frame.
+            if (i % 3 == 0) {
+                mTypes[i] = TrackType.VIDEO;
+                mTimestamps[i] = video;
+                video += 33333;
+            } else {
+                mTypes[i] = TrackType.AUDIO;
+                mTimestamps[i] = audio;
+                audio += 23219;
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long interpolate() {
+        SpeedTimeInterpolator interpolator = new SpeedTimeInterpolator(factor);
+        long sum = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            sum += interpolator.interpolate(mTypes[i], mTimestamps[i]);
+        }
+        return sum;
+    }
+}
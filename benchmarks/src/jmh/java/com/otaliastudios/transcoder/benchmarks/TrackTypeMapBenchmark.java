@@ -0,0 +1,63 @@
+package com.otaliastudios.transcoder.benchmarks;
+
+import com.otaliastudios.transcoder.engine.TrackType;
+import com.otaliastudios.transcoder.internal.TrackTypeMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the map lookups that the engine does for each sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrackTypeMapBenchmark {
+
+    private TrackTypeMap<Long> mMap;
+    private TrackType mType = TrackType.AUDIO;
+
+    @Setup
+    public void setUp() {
+        Signals.silenceLogs();
+        mMap = new TrackTypeMap<>(1L, 2L);
+    }
+
+    @Benchmark
+    public Long get() {
+        mType = mType == TrackType.AUDIO ? TrackType.VIDEO : TrackType.AUDIO;
+        return mMap.get(mType);
+    }
+
+    @Benchmark
+    public boolean has() {
+        mType = mType == TrackType.AUDIO ? TrackType.VIDEO : TrackType.AUDIO;
+        return mMap.has(mType);
+    }
+
+    @Benchmark
+    public Long require() {
+        mType = mType == TrackType.AUDIO ? TrackType.VIDEO : TrackType.AUDIO;
+        return mMap.require(mType);
+    }
+
+    @Benchmark
+    public TrackTypeMap<Long> set() {
+        mType = mType == TrackType.AUDIO ? TrackType.VIDEO : TrackType.AUDIO;
+        mMap.set(mType, 3L);
+        return mMap;
+    }
+}
@@ -0,0 +1,64 @@
+package com.otaliastudios.transcoder.benchmarks;
+
+import com.otaliastudios.transcoder.transcode.internal.VideoFrameDropper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds ten seconds of frames to a new {@link VideoFrameDropper}.
+ * Droppers are stateful, so a new one is created for each invocation.
+ * Scores are per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VideoFrameDropperBenchmark {
+
+    private static final int FRAMES = 600;
+
+    @Param({"30", "60"})
+    public int inputFrameRate;
+
+    @Param({"24", "30"})
+    public int outputFrameRate;
+
+    private long[] mTimestamps;
+
+    @Setup
+    public void setUp() {
+        Signals.silenceLogs();
+        mTimestamps = new long[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            // Slightly irregular timestamps, like a variable frame rate source.
+            long jitter = (i % 7 == 0) ? 1000 : 0;
+            mTimestamps[i] = i * 1000000L / inputFrameRate + jitter;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int drop() {
+        VideoFrameDropper dropper = VideoFrameDropper.newDropper(inputFrameRate, outputFrameRate);
+        int rendered = 0;
+        for (long timestamp : mTimestamps) {
+            if (dropper.shouldRenderFrame(timestamp)) rendered++;
+        }
+        return rendered;
+    }
+}
@@ -0,0 +1,71 @@
+package android.media;
+
+import android.os.Handler;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Stub of the Android class, so that library code can run on the JVM.
+ * Methods do nothing. Unlike the real class, this can be extended, so that
+ * tests can use fake codecs.
+ */
+@SuppressWarnings("unused")
+public class MediaCodec {
+
+    public static final int BUFFER_FLAG_SYNC_FRAME = 1;
+    public static final int BUFFER_FLAG_KEY_FRAME = 1;
+    public static final int BUFFER_FLAG_CODEC_CONFIG = 2;
+    public static final int BUFFER_FLAG_END_OF_STREAM = 4;
+    public static final int CONFIGURE_FLAG_ENCODE = 1;
+    public static final int INFO_TRY_AGAIN_LATER = -1;
+    public static final int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    public static final int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+    public static final class BufferInfo {
+        public int offset;
+        public int size;
+        public long presentationTimeUs;
+        public int flags;
+
+        public void set(int newOffset, int newSize, long newTimeUs, int newFlags) {
+            offset = newOffset;
+            size = newSize;
+            presentationTimeUs = newTimeUs;
+            flags = newFlags;
+        }
+    }
+
+    public static class CodecException extends IllegalStateException {
+        public CodecException(String message) { super(message); }
+    }
+
+    public abstract static class Callback {
+        public abstract void onInputBufferAvailable(MediaCodec codec, int index);
+        public abstract void onOutputBufferAvailable(MediaCodec codec, int index, BufferInfo info);
+        public abstract void onError(MediaCodec codec, CodecException e);
+        public abstract void onOutputFormatChanged(MediaCodec codec, MediaFormat format);
+    }
+
+    public static MediaCodec createDecoderByType(String type) throws IOException { return new MediaCodec(); }
+    public static MediaCodec createEncoderByType(String type) throws IOException { return new MediaCodec(); }
+
+    public void configure(MediaFormat format, Surface surface, MediaCrypto crypto, int flags) {}
+    public void setCallback(Callback callback, Handler handler) {}
+    public void start() {}
+    public void stop() {}
+    public void flush() {}
+    public void release() {}
+    public Surface createInputSurface() { return null; }
+    public void signalEndOfInputStream() {}
+    public int dequeueInputBuffer(long timeoutUs) { return INFO_TRY_AGAIN_LATER; }
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) { return INFO_TRY_AGAIN_LATER; }
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {}
+    public void releaseOutputBuffer(int index, boolean render) {}
+    public ByteBuffer getInputBuffer(int index) { return null; }
+    public ByteBuffer getOutputBuffer(int index) { return null; }
+    public ByteBuffer[] getInputBuffers() { return null; }
+    public ByteBuffer[] getOutputBuffers() { return null; }
+    public MediaFormat getOutputFormat() { return null; }
+}
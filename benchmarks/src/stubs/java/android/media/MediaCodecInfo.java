@@ -0,0 +1,54 @@
+package android.media;
+
+/**
+ * Stub of the Android class, so that library code can run on the JVM.
+ * Unlike the real class, this can be created, so that tests can register codecs
+ * with {@link MediaCodecList#addCodecInfo(MediaCodecInfo)}.
+ */
+@SuppressWarnings("unused")
+public final class MediaCodecInfo {
+
+    private final String mName;
+    private final boolean mEncoder;
+    private final String[] mTypes;
+    private final CodecCapabilities mCapabilities;
+
+    public MediaCodecInfo(String name, boolean encoder, String[] types, int maxSupportedInstances) {
+        mName = name;
+        mEncoder = encoder;
+        mTypes = types;
+        mCapabilities = new CodecCapabilities(maxSupportedInstances);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public boolean isEncoder() {
+        return mEncoder;
+    }
+
+    public String[] getSupportedTypes() {
+        return mTypes.clone();
+    }
+
+    public CodecCapabilities getCapabilitiesForType(String type) {
+        for (String supported : mTypes) {
+            if (supported.equalsIgnoreCase(type)) return mCapabilities;
+        }
+        throw new IllegalArgumentException("Unsupported type: " + type);
+    }
+
+    public static final class CodecCapabilities {
+
+        private final int mMaxSupportedInstances;
+
+        private CodecCapabilities(int maxSupportedInstances) {
+            mMaxSupportedInstances = maxSupportedInstances;
+        }
+
+        public int getMaxSupportedInstances() {
+            return mMaxSupportedInstances;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package android.media;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stub of the Android class, so that library code can run on the JVM.
+ * There are no codecs, unless tests register them with {@link #addCodecInfo(MediaCodecInfo)}.
+ */
+@SuppressWarnings("unused")
+public final class MediaCodecList {
+
+    public static final int REGULAR_CODECS = 0;
+    public static final int ALL_CODECS = 1;
+
+    private static final List<MediaCodecInfo> sCodecInfos = new ArrayList<>();
+
+    public MediaCodecList(int kind) {}
+
+    public MediaCodecInfo[] getCodecInfos() {
+        synchronized (sCodecInfos) {
+            return sCodecInfos.toArray(new MediaCodecInfo[0]);
+        }
+    }
+
+    /**
+     * Not part of the real class. Adds a codec to the list of all instances.
+     *
+     * @param info the codec
+     */
+    public static void addCodecInfo(MediaCodecInfo info) {
+        synchronized (sCodecInfos) {
+            sCodecInfos.add(info);
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package android.media;
+
+/**
+ * Stub of the Android class, so that library code can run on the JVM.
+ */
+@SuppressWarnings("unused")
+public final class MediaCrypto {
+}
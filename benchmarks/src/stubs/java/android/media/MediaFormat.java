@@ -0,0 +1,62 @@
+package android.media;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stub of the Android class, so that library code can run on the JVM.
+ * Only keeps values in a map.
+ */
+@SuppressWarnings("unused")
+public final class MediaFormat {
+
+    public static final String KEY_MIME = "mime";
+    public static final String KEY_WIDTH = "width";
+    public static final String KEY_HEIGHT = "height";
+    public static final String KEY_FRAME_RATE = "frame-rate";
+    public static final String KEY_SAMPLE_RATE = "sample-rate";
+    public static final String KEY_CHANNEL_COUNT = "channel-count";
+    public static final String KEY_DURATION = "durationUs";
+    public static final String KEY_MAX_INPUT_SIZE = "max-input-size";
+    public static final String KEY_BIT_RATE = "bitrate";
+    public static final String KEY_LANGUAGE = "language";
+
+    private final Map<String, Object> mMap = new HashMap<>();
+
+    public boolean containsKey(String name) {
+        return mMap.containsKey(name);
+    }
+
+    public int getInteger(String name) {
+        return (Integer) mMap.get(name);
+    }
+
+    public long getLong(String name) {
+        return (Long) mMap.get(name);
+    }
+
+    public String getString(String name) {
+        return (String) mMap.get(name);
+    }
+
+    public ByteBuffer getByteBuffer(String name) {
+        return (ByteBuffer) mMap.get(name);
+    }
+
+    public void setInteger(String name, int value) {
+        mMap.put(name, value);
+    }
+
+    public void setLong(String name, long value) {
+        mMap.put(name, value);
+    }
+
+    public void setString(String name, String value) {
+        mMap.put(name, value);
+    }
+
+    public void setByteBuffer(String name, ByteBuffer bytes) {
+        mMap.put(name, bytes);
+    }
+}
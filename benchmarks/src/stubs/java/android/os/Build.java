@@ -0,0 +1,19 @@
+package android.os;
+
+/**
+ * Stub of the Android class, so that library code can run on the JVM.
+ * Reports a recent API level, so that the newest code paths are used.
+ */
+@SuppressWarnings("unused")
+public final class Build {
+
+    private Build() {}
+
+    public static class VERSION {
+        public static final int SDK_INT = 28;
+    }
+
+    public static class VERSION_CODES {
+        public static final int LOLLIPOP = 21;
+    }
+}
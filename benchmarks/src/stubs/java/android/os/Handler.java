@@ -0,0 +1,10 @@
+package android.os;
+
+/**
+ * Stub of the Android class, so that library code can run on the JVM.
+ */
+@SuppressWarnings("unused")
+public class Handler {
+
+    public Handler(Looper looper) {}
+}
@@ -0,0 +1,15 @@
+package android.os;
+
+/**
+ * Stub of the Android class, so that library code can run on the JVM.
+ */
+@SuppressWarnings("unused")
+public class HandlerThread extends Thread {
+
+    public HandlerThread(String name) {
+        super(name);
+    }
+
+    public Looper getLooper() { return null; }
+    public boolean quit() { return true; }
+}
@@ -0,0 +1,11 @@
+package android.os;
+
+/**
+ * Stub of the Android class, so that library code can run on the JVM.
+ */
+@SuppressWarnings("unused")
+public final class Looper {
+
+    public static Looper myLooper() { return null; }
+    public static Looper getMainLooper() { return null; }
+}
@@ -0,0 +1,15 @@
+package android.util;
+
+/**
+ * Stub of the Android class, so that library code can run on the JVM. Does nothing.
+ */
+@SuppressWarnings("unused")
+public final class Log {
+
+    private Log() {}
+
+    public static int v(String tag, String msg, Throwable tr) { return 0; }
+    public static int i(String tag, String msg, Throwable tr) { return 0; }
+    public static int w(String tag, String msg, Throwable tr) { return 0; }
+    public static int e(String tag, String msg, Throwable tr) { return 0; }
+}
@@ -0,0 +1,10 @@
+package android.view;
+
+/**
+ * Stub of the Android class, so that library code can run on the JVM.
+ */
+@SuppressWarnings("unused")
+public class Surface {
+
+    public void release() {}
+}
@@ -16,23 +16,36 @@
 package com.otaliastudios.transcoder;
 
 import android.os.Handler;
+import android.os.Looper;
 
 import com.otaliastudios.transcoder.engine.Engine;
+import com.otaliastudios.transcoder.engine.SegmentedEngine;
 import com.otaliastudios.transcoder.sink.DataSink;
 import com.otaliastudios.transcoder.source.DataSource;
+import com.otaliastudios.transcoder.internal.CodecPool;
+import com.otaliastudios.transcoder.internal.CodecScheduler;
+import com.otaliastudios.transcoder.internal.JobControl;
 import com.otaliastudios.transcoder.internal.Logger;
+import com.otaliastudios.transcoder.internal.MetricsCollector;
 import com.otaliastudios.transcoder.validator.Validator;
 import com.otaliastudios.transcoder.internal.ValidatorException;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 public class Transcoder {
     private static final String TAG = Transcoder.class.getSimpleName();
@@ -62,16 +75,104 @@ public class Transcoder {
         }
     }
 
+    /**
+     * A transcoding operation, queued according to {@link TranscoderOptions#getPriority()}.
+     */
+    private abstract static class Job implements Callable<Void> {
+        private final int mPriority;
+
+        private Job(int priority) {
+            mPriority = priority;
+        }
+    }
+
+    /**
+     * A task that is queued by priority and then by submission order.
+     * Tasks that are not {@link Job}s, like segments, have priority 0.
+     */
+    private static class PriorityTask<T> extends FutureTask<T> implements Comparable<PriorityTask<?>> {
+        private static final AtomicLong SEQUENCE = new AtomicLong();
+        private final int mPriority;
+        private final long mSequence = SEQUENCE.getAndIncrement();
+
+        private PriorityTask(@NonNull Callable<T> callable) {
+            super(callable);
+            mPriority = callable instanceof Job ? ((Job) callable).mPriority : 0;
+        }
+
+        private PriorityTask(@NonNull Runnable runnable, T result) {
+            super(runnable, result);
+            mPriority = 0;
+        }
+
+        @Override
+        public int compareTo(@NonNull PriorityTask<?> other) {
+            if (mPriority != other.mPriority) return mPriority > other.mPriority ? -1 : 1;
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Runs at most 'pool' tasks at a time, not counting the tasks that wait for codecs
+     * in {@link CodecScheduler}: while a worker is parked there, the pool grows by one,
+     * so that queued tasks which can run are not stuck behind it.
+     */
+    private static class PriorityExecutor extends ThreadPoolExecutor implements CodecScheduler.WaitListener {
+        private final int mPool;
+        private int mParked;
+
+        private PriorityExecutor(int pool, @NonNull ThreadFactory factory) {
+            super(pool, pool, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), factory);
+            mPool = pool;
+        }
+
+        @Override
+        protected void beforeExecute(Thread thread, Runnable runnable) {
+            super.beforeExecute(thread, runnable);
+            CodecScheduler.setWaitListener(this);
+        }
+
+        @Override
+        protected void afterExecute(Runnable runnable, Throwable throwable) {
+            CodecScheduler.setWaitListener(null);
+            super.afterExecute(runnable, throwable);
+        }
+
+        @Override
+        public synchronized void onWaitStarted() {
+            mParked++;
+            // Raise the maximum first, the core size can not exceed it.
+            setMaximumPoolSize(mPool + mParked);
+            setCorePoolSize(mPool + mParked);
+        }
+
+        @Override
+        public synchronized void onWaitEnded() {
+            mParked--;
+            // Extra threads terminate once they are idle.
+            setCorePoolSize(mPool + mParked);
+            setMaximumPoolSize(mPool + mParked);
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+            return new PriorityTask<>(callable);
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+            return new PriorityTask<>(runnable, value);
+        }
+    }
+
     private ThreadPoolExecutor mExecutor;
 
     private Transcoder() {
         // This executor will execute at most 'pool' tasks concurrently,
-        // then queue all the others. CPU + 1 is used by AsyncTask.
+        // then queue all the others by priority. CPU + 1 is used by AsyncTask.
+        // Operations that wait for codecs do not count, see PriorityExecutor.
         int pool = Runtime.getRuntime().availableProcessors() + 1;
-        mExecutor = new ThreadPoolExecutor(pool, pool,
-                60, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>(),
-                new Factory());
+        mExecutor = new PriorityExecutor(pool, new Factory());
     }
 
     @SuppressWarnings("WeakerAccess")
@@ -115,72 +216,252 @@ public class Transcoder {
      * Transcodes video file asynchronously.
      *
      * @param options The transcoder options.
-     * @return a Future that completes when transcoding is completed
+     * @return a job that completes when transcoding is completed, and can pause it
      */
     @NonNull
-    public Future<Void> transcode(@NonNull final TranscoderOptions options) {
+    public TranscoderJob transcode(@NonNull final TranscoderOptions options) {
+        final MetricsCollector metrics = options.listener instanceof TranscoderMetricsListener
+                ? new MetricsCollector() : null;
         final TranscoderListener listenerWrapper = new ListenerWrapper(options.listenerHandler,
-                options.listener);
-        return mExecutor.submit(new Callable<Void>() {
+                options.listener, metrics);
+        final JobControl control = new JobControl();
+        Future<Void> future = mExecutor.submit(new Job(options.getPriority()) {
             @Override
             public Void call() throws Exception {
+                transcode(options, listenerWrapper, metrics, null, control);
+                return null;
+            }
+        });
+        return new TranscoderJob(future, control);
+    }
+
+    /**
+     * Transcodes a list of video files asynchronously, one after the other.
+     * Codecs and the EGL context are kept alive between operations, and reused when
+     * the next operation needs the same kind of codec, which saves the setup time of each
+     * operation. This works best when operations have the same output formats.
+     * Codecs are released instead after an operation fails.
+     *
+     * Each operation notifies the listener in its options, and the batch listener.
+     * A failed operation does not stop the batch. Batch events are posted on the thread
+     * that called this method, if it has a looper, or on the UI thread.
+     *
+     * @param options the options of each operation
+     * @param listener a listener for the whole batch
+     * @return a job that completes when all operations are over, and can pause them
+     */
+    @SuppressWarnings("unused")
+    @NonNull
+    public TranscoderJob transcodeBatch(@NonNull final List<TranscoderOptions> options,
+                                  @NonNull final TranscoderBatchListener listener) {
+        if (options.isEmpty()) {
+            throw new IllegalArgumentException("we need at least one operation");
+        }
+        Looper looper = Looper.myLooper();
+        if (looper == null) looper = Looper.getMainLooper();
+        final Handler handler = new Handler(looper);
+        int priority = Integer.MIN_VALUE;
+        for (TranscoderOptions option : options) {
+            priority = Math.max(priority, option.getPriority());
+        }
+        final List<TranscoderOptions> jobs = new ArrayList<>(options);
+        final JobControl control = new JobControl();
+        Future<Void> future = mExecutor.submit(new Job(priority) {
+            @Override
+            public Void call() {
+                // Created here so that the EGL context can be shared on this thread.
+                CodecPool codecPool = new CodecPool();
+                int completed = 0;
+                int failed = 0;
                 try {
-                    Engine engine = new Engine(new Engine.ProgressCallback() {
-                        @Override
-                        public void onProgress(final double progress) {
-                            listenerWrapper.onTranscodeProgress(progress);
+                    for (int i = 0; i < jobs.size(); i++) {
+                        if (Thread.currentThread().isInterrupted() || control.isCanceled()) {
+                            LOG.info("Batch canceled before operation %d.", i);
+                            postBatchCanceled(handler, listener);
+                            return null;
+                        }
+                        TranscoderOptions job = jobs.get(i);
+                        MetricsCollector metrics = job.listener instanceof TranscoderMetricsListener
+                                ? new MetricsCollector() : null;
+                        BatchListenerWrapper jobListener = new BatchListenerWrapper(handler, listener, i,
+                                new ListenerWrapper(job.listenerHandler, job.listener, metrics));
+                        try {
+                            // Segments run on several threads and would not reuse much.
+                            transcode(job, jobListener, metrics,
+                                    job.getSegmentSourceFactory() == null ? codecPool : null,
+                                    control);
+                        } catch (Throwable ignore) {
+                            // Already passed to the listeners.
+                        }
+                        if (jobListener.mCanceled) {
+                            postBatchCanceled(handler, listener);
+                            return null;
+                        } else if (jobListener.mFailed) {
+                            failed++;
+                            // The codecs that the failed operation recycled might be
+                            // in a bad state. Do not pass them to the next operation.
+                            codecPool.release();
+                            codecPool = new CodecPool();
+                        } else {
+                            completed++;
                         }
-                    });
-                    engine.transcode(options);
-                    listenerWrapper.onTranscodeCompleted(SUCCESS_TRANSCODED);
-
-                } catch (ValidatorException e) {
-                    LOG.i("Validator has decided that the input is fine and transcoding is not necessary.");
-                    listenerWrapper.onTranscodeCompleted(SUCCESS_NOT_NEEDED);
-
-                } catch (Throwable e) {
-                    // Check InterruptedException in e and in its causes.
-                    Throwable current = e;
-                    boolean isInterrupted = e instanceof InterruptedException;
-                    while (!isInterrupted && current.getCause() != null && !current.getCause().equals(current)) {
-                        current = current.getCause();
-                        if (current instanceof InterruptedException) isInterrupted = true;
-                    }
-                    if (isInterrupted) {
-                        LOG.i("Transcode canceled.", current);
-                        listenerWrapper.onTranscodeCanceled();
-
-                    } else if (e instanceof RuntimeException) {
-                        LOG.e("Fatal error while transcoding, this might be invalid format or bug in engine or Android.", e);
-                        listenerWrapper.onTranscodeFailed(e);
-                        throw e;
-
-                    } else {
-                        LOG.e("Unexpected error while transcoding", e);
-                        listenerWrapper.onTranscodeFailed(e);
-                        throw e;
                     }
+                } finally {
+                    codecPool.release();
                 }
+                LOG.info("Batch completed. Completed: %d, failed: %d.", completed, failed);
+                final int finalCompleted = completed;
+                final int finalFailed = failed;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onTranscodeBatchCompleted(finalCompleted, finalFailed);
+                    }
+                });
                 return null;
             }
         });
+        return new TranscoderJob(future, control);
+    }
+
+    private static void postBatchCanceled(@NonNull Handler handler,
+                                     @NonNull final TranscoderBatchListener listener) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onTranscodeBatchCanceled();
+            }
+        });
+    }
+
+    /**
+     * Runs a single operation on the current thread, passing the outcome to the listener.
+     * Cancellation is not thrown, while failures are thrown after being passed to the listener.
+     */
+    private void transcode(@NonNull TranscoderOptions options,
+                           @NonNull final TranscoderListener listener,
+                           @Nullable MetricsCollector metrics,
+                           @Nullable CodecPool codecPool,
+                           @NonNull JobControl control) throws Exception {
+        try {
+            Engine.ProgressCallback progressCallback = new Engine.ProgressCallback() {
+                @Override
+                public void onProgress(final double progress) {
+                    listener.onTranscodeProgress(progress);
+                }
+            };
+            if (options.getSegmentSourceFactory() != null) {
+                SegmentedEngine engine = new SegmentedEngine(mExecutor, progressCallback, metrics);
+                engine.setControl(control);
+                engine.transcode(options);
+            } else {
+                Engine engine = new Engine(progressCallback, metrics);
+                engine.setControl(control);
+                if (codecPool != null) engine.setCodecPool(codecPool);
+                engine.transcode(options);
+            }
+            listener.onTranscodeCompleted(SUCCESS_TRANSCODED);
+
+        } catch (ValidatorException e) {
+            LOG.i("Validator has decided that the input is fine and transcoding is not necessary.");
+            listener.onTranscodeCompleted(SUCCESS_NOT_NEEDED);
+
+        } catch (Throwable e) {
+            // Check InterruptedException in e and in its causes.
+            Throwable current = e;
+            boolean isInterrupted = e instanceof InterruptedException;
+            while (!isInterrupted && current.getCause() != null && !current.getCause().equals(current)) {
+                current = current.getCause();
+                if (current instanceof InterruptedException) isInterrupted = true;
+            }
+            if (isInterrupted) {
+                LOG.i("Transcode canceled.", current);
+                listener.onTranscodeCanceled();
+
+            } else if (e instanceof RuntimeException) {
+                LOG.e("Fatal error while transcoding, this might be invalid format or bug in engine or Android.", e);
+                listener.onTranscodeFailed(e);
+                throw e;
+
+            } else {
+                LOG.e("Unexpected error while transcoding", e);
+                listener.onTranscodeFailed(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Posts progress to a handler without allocating. Only the latest value is kept,
+     * and the runnable is posted again only after the previous post was executed,
+     * so that progress is coalesced when the handler thread is busy.
+     */
+    private abstract static class ProgressPoster implements Runnable {
+        private final Handler mHandler;
+        private final AtomicLong mProgress = new AtomicLong();
+        private final AtomicBoolean mPending = new AtomicBoolean();
+
+        private ProgressPoster(@NonNull Handler handler) {
+            mHandler = handler;
+        }
+
+        private void post(double progress) {
+            mProgress.set(Double.doubleToRawLongBits(progress));
+            if (mPending.compareAndSet(false, true)) {
+                mHandler.post(this);
+            }
+        }
+
+        @Override
+        public final void run() {
+            // Clear first, so that values set while dispatching are posted again.
+            mPending.set(false);
+            onProgress(Double.longBitsToDouble(mProgress.get()));
+        }
+
+        abstract void onProgress(double progress);
     }
 
     /**
      * Wraps a TranscoderListener and posts events on the given handler.
+     * If metrics are collected, they are posted right before the final event.
      */
     private static class ListenerWrapper implements TranscoderListener {
 
         private Handler mHandler;
         private TranscoderListener mListener;
+        private MetricsCollector mMetrics;
+        private ProgressPoster mProgressPoster;
 
-        private ListenerWrapper(@NonNull Handler handler, @NonNull TranscoderListener listener) {
+        private ListenerWrapper(@NonNull Handler handler,
+                                @NonNull TranscoderListener listener,
+                                @Nullable MetricsCollector metrics) {
             mHandler = handler;
             mListener = listener;
+            mMetrics = metrics;
+            mProgressPoster = new ProgressPoster(handler) {
+                @Override
+                void onProgress(double progress) {
+                    mListener.onTranscodeProgress(progress);
+                }
+            };
+        }
+
+        private void postMetrics() {
+            if (mMetrics == null) return;
+            final TranscoderMetrics metrics = mMetrics.snapshot();
+            LOG.info("Metrics: %s", metrics);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    ((TranscoderMetricsListener) mListener).onTranscodeMetrics(metrics);
+                }
+            });
         }
 
         @Override
         public void onTranscodeCanceled() {
+            postMetrics();
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
@@ -191,6 +472,7 @@ public class Transcoder {
 
         @Override
         public void onTranscodeCompleted(final int successCode) {
+            postMetrics();
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
@@ -201,6 +483,7 @@ public class Transcoder {
 
         @Override
         public void onTranscodeFailed(@NonNull final Throwable exception) {
+            postMetrics();
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
@@ -210,15 +493,75 @@ public class Transcoder {
         }
 
         @Override
-        public void onTranscodeProgress(final double progress) {
-            // Don't think there's a safe way to avoid this allocation?
-            // Other than creating a pool of runnables.
+        public void onTranscodeProgress(double progress) {
+            mProgressPoster.post(progress);
+        }
+    }
+
+    /**
+     * Forwards the events of one operation of a batch to the operation listener,
+     * and posts them to the batch listener with the operation index.
+     * Also records the outcome, which is read by the batch after the operation.
+     */
+    private static class BatchListenerWrapper implements TranscoderListener {
+
+        private Handler mHandler;
+        private TranscoderBatchListener mListener;
+        private int mIndex;
+        private TranscoderListener mJobListener;
+        private ProgressPoster mProgressPoster;
+        private boolean mCanceled;
+        private boolean mFailed;
+
+        private BatchListenerWrapper(@NonNull Handler handler,
+                                     @NonNull TranscoderBatchListener listener,
+                                     int index,
+                                     @NonNull TranscoderListener jobListener) {
+            mHandler = handler;
+            mListener = listener;
+            mIndex = index;
+            mJobListener = jobListener;
+            mProgressPoster = new ProgressPoster(handler) {
+                @Override
+                void onProgress(double progress) {
+                    mListener.onTranscodeProgress(mIndex, progress);
+                }
+            };
+        }
+
+        @Override
+        public void onTranscodeCanceled() {
+            mCanceled = true;
+            mJobListener.onTranscodeCanceled();
+        }
+
+        @Override
+        public void onTranscodeCompleted(final int successCode) {
+            mJobListener.onTranscodeCompleted(successCode);
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    mListener.onTranscodeProgress(progress);
+                    mListener.onTranscodeCompleted(mIndex, successCode);
+                }
+            });
+        }
+
+        @Override
+        public void onTranscodeFailed(@NonNull final Throwable exception) {
+            mFailed = true;
+            mJobListener.onTranscodeFailed(exception);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onTranscodeFailed(mIndex, exception);
                 }
             });
         }
+
+        @Override
+        public void onTranscodeProgress(double progress) {
+            mJobListener.onTranscodeProgress(progress);
+            mProgressPoster.post(progress);
+        }
     }
 }
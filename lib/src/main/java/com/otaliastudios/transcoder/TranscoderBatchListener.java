@@ -0,0 +1,49 @@
+package com.otaliastudios.transcoder;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Receives the events of a batch started with
+ * {@link Transcoder#transcodeBatch(java.util.List, TranscoderBatchListener)}.
+ * Each operation is identified by its index in the list of options.
+ */
+public interface TranscoderBatchListener {
+
+    /**
+     * Called to notify the progress of an operation.
+     *
+     * @param index the operation index
+     * @param progress Progress in [0.0, 1.0] range, or negative value if progress is unknown.
+     */
+    void onTranscodeProgress(int index, double progress);
+
+    /**
+     * Called when an operation completed. The success code can be either
+     * {@link Transcoder#SUCCESS_TRANSCODED} or {@link Transcoder#SUCCESS_NOT_NEEDED}.
+     *
+     * @param index the operation index
+     * @param successCode the success code
+     */
+    void onTranscodeCompleted(int index, int successCode);
+
+    /**
+     * Called when an operation failed. The batch goes on with the next operation.
+     *
+     * @param index the operation index
+     * @param exception the failure exception
+     */
+    void onTranscodeFailed(int index, @NonNull Throwable exception);
+
+    /**
+     * Called when all operations are over.
+     *
+     * @param completed the number of operations that completed
+     * @param failed the number of operations that failed
+     */
+    void onTranscodeBatchCompleted(int completed, int failed);
+
+    /**
+     * Called when the batch was canceled. Operations that were not started are skipped.
+     */
+    void onTranscodeBatchCanceled();
+}
@@ -0,0 +1,106 @@
+package com.otaliastudios.transcoder;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.transcoder.internal.JobControl;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A handle to a transcoding operation, returned by {@link Transcoder#transcode(TranscoderOptions)}.
+ * Besides being a {@link Future}, it can pause, resume and cancel the operation.
+ *
+ * Requests are cooperative: the engine notices them at its next loop, without waiting
+ * for the codecs or for its idle timeout, and stops feeding the codecs right away.
+ */
+public class TranscoderJob implements Future<Void> {
+
+    private final Future<Void> mFuture;
+    private final JobControl mControl;
+
+    TranscoderJob(@NonNull Future<Void> future, @NonNull JobControl control) {
+        mFuture = future;
+        mControl = control;
+    }
+
+    /**
+     * Pauses the operation, keeping the codecs configured.
+     * This is the cheapest option for short pauses.
+     */
+    public void pause() {
+        pause(false);
+    }
+
+    /**
+     * Pauses the operation. If checkpoint is true, the input that was already read is
+     * completely processed, the position in the sources is saved, and the decoders are
+     * released while paused. When resumed, the sources are moved back to the saved position,
+     * and the output goes on without gaps or duplicates. The encoders keep running, since
+     * the output file is still open. Released decoders can be used by other operations
+     * while paused, so resuming might have to wait for them.
+     *
+     * Checkpoints are only possible when all tracks are being compressed and
+     * {@link TranscoderOptions.Builder#setTrackThreads(boolean)} is not used.
+     * Otherwise, this behaves like {@link #pause()}.
+     *
+     * @param checkpoint true to release decoders and save the position
+     */
+    public void pause(boolean checkpoint) {
+        mControl.pause(checkpoint);
+    }
+
+    /**
+     * Resumes an operation paused with {@link #pause()} or {@link #pause(boolean)}.
+     */
+    public void resume() {
+        mControl.resume();
+    }
+
+    /**
+     * Returns true if the operation was paused and not resumed yet.
+     * @return true if paused
+     */
+    public boolean isPaused() {
+        return mControl.isPaused();
+    }
+
+    /**
+     * Cancels the operation. The engine stops feeding the codecs at its next loop,
+     * and the listener receives {@link TranscoderListener#onTranscodeCanceled()}.
+     *
+     * @return false if the operation could not be canceled, typically because it is over
+     */
+    public boolean cancel() {
+        return cancel(true);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        mControl.cancel();
+        return mFuture.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mFuture.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+        return mFuture.isDone();
+    }
+
+    @Override
+    public Void get() throws ExecutionException, InterruptedException {
+        return mFuture.get();
+    }
+
+    @Override
+    public Void get(long timeout, @NonNull TimeUnit unit)
+            throws ExecutionException, InterruptedException, TimeoutException {
+        return mFuture.get(timeout, unit);
+    }
+}
@@ -0,0 +1,236 @@
+package com.otaliastudios.transcoder;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.transcoder.engine.TrackType;
+
+import java.util.Locale;
+
+/**
+ * Metrics about a transcoding operation, passed to {@link TranscoderMetricsListener}
+ * once the operation is over.
+ *
+ * Stage times are measured around each codec operation of the track transcoders:
+ * - feed decoder: reading from the {@link com.otaliastudios.transcoder.source.DataSource}
+ *   and queuing the samples into the decoder
+ * - drain decoder: dequeuing decoded frames and, for video, rendering them
+ * - feed encoder: processing raw audio and queuing it into the encoder
+ * - drain encoder: dequeuing encoded samples and writing them to the
+ *   {@link com.otaliastudios.transcoder.sink.DataSink}
+ *
+ * When tracks are transcoded on the same thread, the time that is not spent in these stages
+ * is mostly spent waiting for the codecs, see {@link #getIdleTimeUs()}.
+ * For segmented transcoding, the values of all segments are added together, and written
+ * bytes also include the temporary segment files.
+ */
+public class TranscoderMetrics {
+
+    private static final int STAGES = 4;
+
+    private final long mElapsedUs;
+    private final long[] mStageUs;
+    private final long[] mDecoderStalls;
+    private final long[] mEncoderStalls;
+    private final long[] mDecodedFrames;
+    private final long[] mWrittenBytes;
+    private final long[] mWrittenSamples;
+    private final long mRenderedVideoFrames;
+    private final long mDroppedVideoFrames;
+    private final long mAudioOverflows;
+    private final long mIdleSleeps;
+    private final long mIdleUs;
+
+    /**
+     * Created by the engine, see {@link com.otaliastudios.transcoder.internal.MetricsCollector}.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public TranscoderMetrics(long elapsedUs,
+                             @NonNull long[] stageUs,
+                             @NonNull long[] decoderStalls,
+                             @NonNull long[] encoderStalls,
+                             @NonNull long[] decodedFrames,
+                             @NonNull long[] writtenBytes,
+                             @NonNull long[] writtenSamples,
+                             long renderedVideoFrames,
+                             long droppedVideoFrames,
+                             long audioOverflows,
+                             long idleSleeps,
+                             long idleUs) {
+        mElapsedUs = elapsedUs;
+        mStageUs = stageUs;
+        mDecoderStalls = decoderStalls;
+        mEncoderStalls = encoderStalls;
+        mDecodedFrames = decodedFrames;
+        mWrittenBytes = writtenBytes;
+        mWrittenSamples = writtenSamples;
+        mRenderedVideoFrames = renderedVideoFrames;
+        mDroppedVideoFrames = droppedVideoFrames;
+        mAudioOverflows = audioOverflows;
+        mIdleSleeps = idleSleeps;
+        mIdleUs = idleUs;
+    }
+
+    /**
+     * Returns the wall time of the whole operation.
+     * @return elapsed time in microseconds
+     */
+    public long getElapsedUs() {
+        return mElapsedUs;
+    }
+
+    /**
+     * Returns the time spent reading samples and feeding them to the decoder.
+     * @param type the track type
+     * @return time in microseconds
+     */
+    public long getFeedDecoderTimeUs(@NonNull TrackType type) {
+        return mStageUs[type.ordinal() * STAGES];
+    }
+
+    /**
+     * Returns the time spent draining and handling decoded frames.
+     * @param type the track type
+     * @return time in microseconds
+     */
+    public long getDrainDecoderTimeUs(@NonNull TrackType type) {
+        return mStageUs[type.ordinal() * STAGES + 1];
+    }
+
+    /**
+     * Returns the time spent processing raw data and feeding it to the encoder.
+     * @param type the track type
+     * @return time in microseconds
+     */
+    public long getFeedEncoderTimeUs(@NonNull TrackType type) {
+        return mStageUs[type.ordinal() * STAGES + 2];
+    }
+
+    /**
+     * Returns the time spent draining the encoder and writing to the sink.
+     * @param type the track type
+     * @return time in microseconds
+     */
+    public long getDrainEncoderTimeUs(@NonNull TrackType type) {
+        return mStageUs[type.ordinal() * STAGES + 3];
+    }
+
+    /**
+     * Returns the number of times that a sample was available, but the decoder
+     * had no input buffer to receive it.
+     * @param type the track type
+     * @return stall count
+     */
+    public long getDecoderStallCount(@NonNull TrackType type) {
+        return mDecoderStalls[type.ordinal()];
+    }
+
+    /**
+     * Returns the number of times that raw data was available, but the encoder
+     * had no input buffer to receive it. This is only measured for audio, since
+     * video frames are passed to the encoder through a surface.
+     * @param type the track type
+     * @return stall count
+     */
+    public long getEncoderStallCount(@NonNull TrackType type) {
+        return mEncoderStalls[type.ordinal()];
+    }
+
+    /**
+     * Returns the number of non-empty buffers that were output by the decoders.
+     * @param type the track type
+     * @return decoded frames
+     */
+    public long getDecodedFrameCount(@NonNull TrackType type) {
+        return mDecodedFrames[type.ordinal()];
+    }
+
+    /**
+     * Returns the number of video frames that were rendered into the encoder.
+     * @return rendered frames
+     */
+    public long getRenderedVideoFrameCount() {
+        return mRenderedVideoFrames;
+    }
+
+    /**
+     * Returns the number of video frames that were dropped to reduce the frame rate.
+     * @return dropped frames
+     */
+    public long getDroppedVideoFrameCount() {
+        return mDroppedVideoFrames;
+    }
+
+    /**
+     * Returns the number of times that a decoded audio buffer did not fit into
+     * an encoder buffer, and had to be processed again in the next cycle.
+     * @return overflow count
+     */
+    public long getAudioOverflowCount() {
+        return mAudioOverflows;
+    }
+
+    /**
+     * Returns the number of times the engine waited, because no codec could make progress.
+     * @return idle sleeps
+     */
+    public long getIdleSleepCount() {
+        return mIdleSleeps;
+    }
+
+    /**
+     * Returns the time the engine spent waiting, because no codec could make progress.
+     * When tracks are transcoded on separate threads, the time of both threads is added.
+     * @return time in microseconds
+     */
+    public long getIdleTimeUs() {
+        return mIdleUs;
+    }
+
+    /**
+     * Returns the number of bytes written to the sink.
+     * @param type the track type
+     * @return written bytes
+     */
+    public long getWrittenBytes(@NonNull TrackType type) {
+        return mWrittenBytes[type.ordinal()];
+    }
+
+    /**
+     * Returns the number of samples written to the sink.
+     * @param type the track type
+     * @return written samples
+     */
+    public long getWrittenSampleCount(@NonNull TrackType type) {
+        return mWrittenSamples[type.ordinal()];
+    }
+
+    /**
+     * Returns the average number of bytes written to the sink per second.
+     * @return throughput in bytes per second
+     */
+    public double getWriteThroughput() {
+        long bytes = 0;
+        for (long trackBytes : mWrittenBytes) bytes += trackBytes;
+        return mElapsedUs > 0 ? bytes * 1000000D / mElapsedUs : 0D;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.US, "TranscoderMetrics{elapsedUs:%d idleSleeps:%d idleUs:%d"
+                        + " rendered:%d dropped:%d audioOverflows:%d throughput:%.0f",
+                mElapsedUs, mIdleSleeps, mIdleUs, mRenderedVideoFrames, mDroppedVideoFrames,
+                mAudioOverflows, getWriteThroughput()));
+        for (TrackType type : TrackType.values()) {
+            builder.append(String.format(Locale.US, " %s{feedDecoderUs:%d drainDecoderUs:%d"
+                            + " feedEncoderUs:%d drainEncoderUs:%d decoderStalls:%d encoderStalls:%d"
+                            + " decoded:%d writtenBytes:%d writtenSamples:%d}",
+                    type, getFeedDecoderTimeUs(type), getDrainDecoderTimeUs(type),
+                    getFeedEncoderTimeUs(type), getDrainEncoderTimeUs(type),
+                    getDecoderStallCount(type), getEncoderStallCount(type),
+                    getDecodedFrameCount(type), getWrittenBytes(type), getWrittenSampleCount(type)));
+        }
+        return builder.append("}").toString();
+    }
+}
@@ -0,0 +1,18 @@
+package com.otaliastudios.transcoder;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A {@link TranscoderListener} that also receives {@link TranscoderMetrics}.
+ * Metrics are only collected when the listener implements this interface.
+ */
+public interface TranscoderMetricsListener extends TranscoderListener {
+
+    /**
+     * Called once the operation is over, right before the completion, cancellation
+     * or failure callback.
+     *
+     * @param metrics the operation metrics
+     */
+    void onTranscodeMetrics(@NonNull TranscoderMetrics metrics);
+}
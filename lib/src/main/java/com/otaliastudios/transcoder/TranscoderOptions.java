@@ -11,6 +11,7 @@ import com.otaliastudios.transcoder.resample.DefaultAudioResampler;
 import com.otaliastudios.transcoder.sink.DataSink;
 import com.otaliastudios.transcoder.sink.DefaultDataSink;
 import com.otaliastudios.transcoder.source.DataSource;
+import com.otaliastudios.transcoder.source.DataSourceFactory;
 import com.otaliastudios.transcoder.source.FileDescriptorDataSource;
 import com.otaliastudios.transcoder.source.FilePathDataSource;
 import com.otaliastudios.transcoder.source.BlankAudioDataSource;
@@ -29,7 +30,6 @@ import com.otaliastudios.transcoder.validator.Validator;
 import java.io.FileDescriptor;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Future;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -51,6 +51,12 @@ public class TranscoderOptions {
     private TimeInterpolator timeInterpolator;
     private AudioStretcher audioStretcher;
     private AudioResampler audioResampler;
+    private boolean asynchronousCodecs;
+    private boolean floatAudio;
+    private boolean trackThreads;
+    private DataSourceFactory segmentSourceFactory;
+    private int segmentConcurrency;
+    private int priority;
 
     TranscoderListener listener;
     Handler listenerHandler;
@@ -104,6 +110,31 @@ public class TranscoderOptions {
         return audioResampler;
     }
 
+    public boolean isAsynchronousCodecs() {
+        return asynchronousCodecs;
+    }
+
+    public boolean isFloatAudio() {
+        return floatAudio;
+    }
+
+    public boolean isTrackThreads() {
+        return trackThreads;
+    }
+
+    @Nullable
+    public DataSourceFactory getSegmentSourceFactory() {
+        return segmentSourceFactory;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public int getSegmentConcurrency() {
+        return segmentConcurrency;
+    }
+
     public static class Builder {
         private DataSink dataSink;
         private final List<DataSource> audioDataSources = new ArrayList<>();
@@ -117,6 +148,12 @@ public class TranscoderOptions {
         private TimeInterpolator timeInterpolator;
         private AudioStretcher audioStretcher;
         private AudioResampler audioResampler;
+        private boolean asynchronousCodecs;
+        private boolean floatAudio;
+        private boolean trackThreads;
+        private DataSourceFactory segmentSourceFactory;
+        private int segmentConcurrency;
+        private int priority;
 
         Builder(@NonNull String outPath) {
             this.dataSink = new DefaultDataSink(outPath);
@@ -318,6 +355,100 @@ public class TranscoderOptions {
             return this;
         }
 
+        /**
+         * Whether codecs should be run in asynchronous mode, using {@link android.media.MediaCodec.Callback}
+         * instead of polling. This lets codecs work while the engine is busy with something else,
+         * and lets the engine sleep until codecs have new buffers.
+         * This is only supported on API 23+ and is ignored on older devices.
+         * Defaults to false.
+         *
+         * @param asynchronousCodecs true to use asynchronous codecs
+         * @return this for chaining
+         */
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder setAsynchronousCodecs(boolean asynchronousCodecs) {
+            this.asynchronousCodecs = asynchronousCodecs;
+            return this;
+        }
+
+        /**
+         * Whether audio decoders should output float samples instead of 16-bit ones.
+         * When the default {@link AudioStretcher} and {@link AudioResampler} are used, audio is then
+         * processed as floats and only converted to 16-bit samples once, before the encoder.
+         * This avoids rounding errors at each step. Custom stretchers and resamplers still receive
+         * 16-bit samples. This is only supported on API 24+ and is ignored on older devices.
+         * Defaults to false.
+         *
+         * @param floatAudio true to decode audio as floats
+         * @return this for chaining
+         */
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder setFloatAudio(boolean floatAudio) {
+            this.floatAudio = floatAudio;
+            return this;
+        }
+
+        /**
+         * Whether audio and video should be transcoded on two separate threads,
+         * so that the work done on one track does not stall the other.
+         * The output sink and the input sources are then accessed by both threads,
+         * and calls to them are serialized.
+         * This has no effect if only one track is being transcoded. Defaults to false.
+         *
+         * Checkpoints are not supported with track threads: when they are used,
+         * {@link TranscoderJob#pause(boolean)} behaves like a plain pause and codecs are kept.
+         *
+         * @param trackThreads true to use one thread per track
+         * @return this for chaining
+         */
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder setTrackThreads(boolean trackThreads) {
+            this.trackThreads = trackThreads;
+            return this;
+        }
+
+        /**
+         * Enables segmented transcoding, which can speed up the transcoding of long inputs.
+         * The input is split into segments at sync frames, segments are transcoded in parallel
+         * into temporary files, and the results are joined into the output without re-encoding.
+         *
+         * The factory must return a new {@link DataSource} for the same input at each call,
+         * since each segment needs its own source. When using this option, no other
+         * data source should be added, and no time interpolator can be used.
+         * The actual concurrency might be lower than requested if the device codecs
+         * do not support as many instances.
+         *
+         * @param factory creates sources for the input
+         * @param concurrency the maximum number of segments to be transcoded at the same time
+         * @return this for chaining
+         */
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder setSegmentedTranscoding(@NonNull DataSourceFactory factory, int concurrency) {
+            this.segmentSourceFactory = factory;
+            this.segmentConcurrency = concurrency;
+            return this;
+        }
+
+        /**
+         * Sets the priority of this operation. When the device codecs are all in use,
+         * operations wait until they are available, and the ones with a higher priority
+         * are started first. Operations with the same priority start in submission order.
+         * Defaults to 0.
+         *
+         * @param priority the priority, higher values start first
+         * @return this for chaining
+         */
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder setPriority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
         /**
          * Generates muted audio data sources if needed
          * @return The list of audio data sources including the muted sources
@@ -360,7 +491,17 @@ public class TranscoderOptions {
             if (listener == null) {
                 throw new IllegalStateException("listener can't be null");
             }
-            if (audioDataSources.isEmpty() && videoDataSources.isEmpty()) {
+            if (segmentSourceFactory != null) {
+                if (!audioDataSources.isEmpty() || !videoDataSources.isEmpty()) {
+                    throw new IllegalStateException("data sources can't be added when using segmented transcoding");
+                }
+                if (timeInterpolator != null && !(timeInterpolator instanceof DefaultTimeInterpolator)) {
+                    throw new IllegalStateException("time interpolators are not supported by segmented transcoding");
+                }
+                if (segmentConcurrency < 1) {
+                    throw new IllegalArgumentException("segment concurrency should be at least 1");
+                }
+            } else if (audioDataSources.isEmpty() && videoDataSources.isEmpty()) {
                 throw new IllegalStateException("we need at least one data source");
             }
             if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
@@ -402,11 +543,17 @@ public class TranscoderOptions {
             options.timeInterpolator = timeInterpolator;
             options.audioStretcher = audioStretcher;
             options.audioResampler = audioResampler;
+            options.asynchronousCodecs = asynchronousCodecs;
+            options.floatAudio = floatAudio;
+            options.trackThreads = trackThreads;
+            options.segmentSourceFactory = segmentSourceFactory;
+            options.segmentConcurrency = segmentConcurrency;
+            options.priority = priority;
             return options;
         }
 
         @NonNull
-        public Future<Void> transcode() {
+        public TranscoderJob transcode() {
             return Transcoder.getInstance().transcode(build());
         }
     }
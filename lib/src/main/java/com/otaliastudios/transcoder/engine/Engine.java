@@ -18,16 +18,26 @@ package com.otaliastudios.transcoder.engine;
 import android.media.MediaFormat;
 
 import com.otaliastudios.transcoder.TranscoderOptions;
+import com.otaliastudios.transcoder.internal.CodecPool;
+import com.otaliastudios.transcoder.internal.CodecScheduler;
+import com.otaliastudios.transcoder.internal.JobControl;
+import com.otaliastudios.transcoder.internal.MetricsCollector;
+import com.otaliastudios.transcoder.internal.StepTimeInterpolator;
 import com.otaliastudios.transcoder.internal.TrackTypeMap;
 import com.otaliastudios.transcoder.internal.ValidatorException;
+import com.otaliastudios.transcoder.internal.WorkSignal;
 import com.otaliastudios.transcoder.sink.DataSink;
 import com.otaliastudios.transcoder.sink.InvalidOutputFormatException;
 import com.otaliastudios.transcoder.source.DataSource;
+import com.otaliastudios.transcoder.source.ReadAheadDataSource;
+import com.otaliastudios.transcoder.source.internal.CheckpointSeeker;
+import com.otaliastudios.transcoder.source.TrimDataSource;
 import com.otaliastudios.transcoder.strategy.TrackStrategy;
-import com.otaliastudios.transcoder.time.TimeInterpolator;
 import com.otaliastudios.transcoder.transcode.AudioTrackTranscoder;
+import com.otaliastudios.transcoder.transcode.BaseTrackTranscoder;
 import com.otaliastudios.transcoder.transcode.NoOpTrackTranscoder;
 import com.otaliastudios.transcoder.transcode.PassThroughTrackTranscoder;
+import com.otaliastudios.transcoder.transcode.SmartCutTrackTranscoder;
 import com.otaliastudios.transcoder.transcode.TrackTranscoder;
 import com.otaliastudios.transcoder.transcode.VideoTrackTranscoder;
 import com.otaliastudios.transcoder.internal.Logger;
@@ -36,9 +46,12 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Internal engine, do not use this directly.
@@ -48,8 +61,10 @@ public class Engine {
     private static final String TAG = Engine.class.getSimpleName();
     private static final Logger LOG = new Logger(TAG);
 
-    private static final long SLEEP_TO_WAIT_TRACK_TRANSCODERS = 10;
+    private static final long WAIT_TRACK_TRANSCODERS = 10;
     private static final long PROGRESS_INTERVAL_STEPS = 10;
+    private static final long CHECKPOINT_SEEK_MARGIN_US = 1000 * 1000;
+    private static final long PROGRESS_INTERVAL_MILLIS = 50;
 
 
     public interface ProgressCallback {
@@ -64,15 +79,74 @@ public class Engine {
     private DataSink mDataSink;
     private final TrackTypeMap<List<DataSource>> mDataSources = new TrackTypeMap<>();
     private final TrackTypeMap<ArrayList<TrackTranscoder>> mTranscoders = new TrackTypeMap<>(new ArrayList<TrackTranscoder>(), new ArrayList<TrackTranscoder>());
-    private final TrackTypeMap<ArrayList<TimeInterpolator>> mInterpolators = new TrackTypeMap<>(new ArrayList<TimeInterpolator>(), new ArrayList<TimeInterpolator>());
+    private final TrackTypeMap<ArrayList<StepTimeInterpolator>> mInterpolators = new TrackTypeMap<>(new ArrayList<StepTimeInterpolator>(), new ArrayList<StepTimeInterpolator>());
     private final TrackTypeMap<Integer> mCurrentStep = new TrackTypeMap<>(0, 0);
     private final TrackTypeMap<TrackStatus> mStatuses = new TrackTypeMap<>();
     private final TrackTypeMap<MediaFormat> mOutputFormats = new TrackTypeMap<>();
+    private final List<CodecScheduler.Resource> mCodecResources = new ArrayList<>();
+    private final List<CodecScheduler.Resource> mDecoderResources = new ArrayList<>();
+    // The codecs of each track, to report setup failures. Decoders are listed by step.
+    private final TrackTypeMap<CodecScheduler.Resource> mEncoderResources = new TrackTypeMap<>();
+    private final TrackTypeMap<ArrayList<CodecScheduler.Resource>> mStepDecoderResources
+            = new TrackTypeMap<>(new ArrayList<CodecScheduler.Resource>(), new ArrayList<CodecScheduler.Resource>());
+    private CodecScheduler.Ticket mCodecTicket;
+    private boolean mSmartCut;
     private volatile double mProgress;
+    // The progress when the last checkpoint was taken. After resuming, sources are read again
+    // from before the checkpoint, and progress should not move backwards.
+    private double mCheckpointProgress;
     private final ProgressCallback mProgressCallback;
+    private final MetricsCollector mMetrics;
+    private CodecPool mCodecPool;
+    private boolean mOwnsCodecPool;
+    private JobControl mControl;
+    // Where each track should restart after a checkpoint, see pauseOnCurrentThread().
+    private final TrackTypeMap<Long> mResumeUs = new TrackTypeMap<>();
+    // The first timestamp read from each source, which seek positions are relative to.
+    private final Map<DataSource, Long> mSourceFirstUs = new HashMap<>();
+    private final TrackTypeMap<BaseTrackTranscoder.ActiveEncoder> mActiveEncoders = new TrackTypeMap<>();
+    // Progress state of the steps that are completed, and the duration of the others.
+    // Updated when a step is closed, so that progress does not need to walk all sources.
+    private final TrackTypeMap<Long> mCompletedReadUs = new TrackTypeMap<>(0L, 0L);
+    private final TrackTypeMap<Long> mRemainingDurationUs = new TrackTypeMap<>(0L, 0L);
+    private final WorkSignal mWorkSignal = new WorkSignal();
+    private final TrackTypeMap<WorkSignal> mWorkSignals = new TrackTypeMap<>(mWorkSignal, mWorkSignal);
+    // Guards the steps state when tracks are transcoded on different threads.
+    private final Object mLock = new Object();
 
     public Engine(@Nullable ProgressCallback progressCallback) {
+        this(progressCallback, null);
+    }
+
+    /**
+     * Creates a new engine.
+     *
+     * @param progressCallback a progress callback
+     * @param metrics a collector for metrics, or null to skip collection
+     */
+    public Engine(@Nullable ProgressCallback progressCallback, @Nullable MetricsCollector metrics) {
         mProgressCallback = progressCallback;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Sets a pool that codecs are taken from and returned to, so that they can be
+     * reused by other operations. This must be called before transcoding.
+     *
+     * @param codecPool a pool
+     */
+    public void setCodecPool(@NonNull CodecPool codecPool) {
+        mCodecPool = codecPool;
+    }
+
+    /**
+     * Sets the control that can pause, resume and cancel this engine.
+     * This must be called before transcoding.
+     *
+     * @param control a control
+     */
+    public void setControl(@NonNull JobControl control) {
+        mControl = control;
     }
 
     /**
@@ -85,7 +159,19 @@ public class Engine {
         return mProgress;
     }
 
+    /**
+     * Wakes up the engine thread if it is currently waiting for the track
+     * transcoders to be able to make progress.
+     * Note: This method is thread safe.
+     */
+    public void signal() {
+        mWorkSignal.signal();
+        mWorkSignals.requireVideo().signal();
+        mWorkSignals.requireAudio().signal();
+    }
+
     private void setProgress(double progress) {
+        if (progress >= 0 && progress < mCheckpointProgress) progress = mCheckpointProgress;
         mProgress = progress;
         if (mProgressCallback != null) {
             mProgressCallback.onProgress(progress);
@@ -124,6 +210,30 @@ public class Engine {
 
             if (inputFormats.size() == sources.size()) {
                 status = strategy.createOutputFormat(inputFormats, outputFormat);
+                if (status == TrackStatus.COMPRESSING) {
+                    CodecScheduler.Resource encoder = CodecScheduler.createResource(outputFormat, true);
+                    mCodecResources.add(encoder);
+                    mEncoderResources.set(type, encoder);
+                    for (MediaFormat inputFormat : inputFormats) {
+                        CodecScheduler.Resource resource = CodecScheduler.createResource(inputFormat, false);
+                        mCodecResources.add(resource);
+                        mDecoderResources.add(resource);
+                        mStepDecoderResources.require(type).add(resource);
+                    }
+                } else if (status == TrackStatus.PASS_THROUGH && type == TrackType.VIDEO) {
+                    // Smart cut sources re-encode the boundary GOPs with a codec pair
+                    // that matches the input, so these codecs must be counted too.
+                    MediaFormat smartCutFormat = null;
+                    for (int i = 0; i < sources.size(); i++) {
+                        if (getSmartCutSource(sources.get(i)) == null) continue;
+                        smartCutFormat = inputFormats.get(i);
+                        mCodecResources.add(CodecScheduler.createResource(smartCutFormat, false));
+                    }
+                    if (smartCutFormat != null) {
+                        mCodecResources.add(CodecScheduler.createResource(smartCutFormat, true));
+                        mSmartCut = true;
+                    }
+                }
             } else if (!inputFormats.isEmpty()) {
                 throw new IllegalArgumentException("getTrackFormat returned null for " +
                         (sources.size()-inputFormats.size()) + "/"  + sources.size() +
@@ -144,6 +254,17 @@ public class Engine {
     }
 
     private void openCurrentStep(@NonNull TrackType type, @NonNull TranscoderOptions options) {
+        TrackTranscoder transcoder = createCurrentStep(type, options);
+        setUpStep(type, transcoder);
+        mTranscoders.require(type).add(transcoder);
+    }
+
+    /**
+     * Creates the transcoder of the current step, without setting it up.
+     * The step is open once the transcoder is added to {@link #mTranscoders}.
+     */
+    @NonNull
+    private TrackTranscoder createCurrentStep(@NonNull TrackType type, @NonNull TranscoderOptions options) {
         int current = mCurrentStep.require(type);
         TrackStatus status = mStatuses.require(type);
 
@@ -154,34 +275,90 @@ public class Engine {
         }
 
         // Create a TimeInterpolator, wrapping the external one.
-        TimeInterpolator interpolator = createStepTimeInterpolator(type, current,
-                options.getTimeInterpolator());
-        mInterpolators.require(type).add(interpolator);
+        // When resuming after a checkpoint, the step is opened again and keeps its interpolator.
+        List<StepTimeInterpolator> interpolators = mInterpolators.require(type);
+        StepTimeInterpolator interpolator;
+        if (current < interpolators.size()) {
+            interpolator = interpolators.get(current);
+        } else {
+            StepTimeInterpolator previous = current > 0 ? interpolators.get(current - 1) : null;
+            interpolator = new StepTimeInterpolator(options.getTimeInterpolator(), previous);
+            interpolators.add(interpolator);
+        }
 
         // Create a Transcoder for this track.
+        TrimDataSource smartCutSource = type == TrackType.VIDEO ? getSmartCutSource(dataSource) : null;
         TrackTranscoder transcoder;
         switch (status) {
             case PASS_THROUGH: {
-                transcoder = new PassThroughTrackTranscoder(dataSource,
-                        mDataSink, type, interpolator);
+                if (smartCutSource != null) {
+                    SmartCutTrackTranscoder smartCut = new SmartCutTrackTranscoder(dataSource,
+                            mDataSink, interpolator, smartCutSource.getCutStartUs());
+                    if (options.isAsynchronousCodecs()) {
+                        smartCut.setAsynchronous(mWorkSignals.require(type));
+                    }
+                    if (mMetrics != null) {
+                        smartCut.setMetrics(mMetrics);
+                    }
+                    if (mCodecPool != null) {
+                        smartCut.setCodecPool(mCodecPool);
+                    }
+                    transcoder = smartCut;
+                } else {
+                    transcoder = new PassThroughTrackTranscoder(dataSource,
+                            mDataSink, type, interpolator);
+                }
                 break;
             }
             case COMPRESSING: {
+                BaseTrackTranscoder compressing;
                 switch (type) {
                     case VIDEO:
-                        transcoder = new VideoTrackTranscoder(dataSource, mDataSink,
+                        VideoTrackTranscoder video = new VideoTrackTranscoder(dataSource, mDataSink,
                                 interpolator,
                                 options.getVideoRotation());
+                        if (smartCutSource != null) {
+                            video.setRenderStartUs(smartCutSource.getCutStartUs());
+                        }
+                        compressing = video;
                         break;
                     case AUDIO:
-                        transcoder = new AudioTrackTranscoder(dataSource, mDataSink,
+                        AudioTrackTranscoder audio = new AudioTrackTranscoder(dataSource, mDataSink,
                                 interpolator,
                                 options.getAudioStretcher(),
                                 options.getAudioResampler());
+                        if (options.isFloatAudio()) {
+                            audio.setFloatDecoding(true);
+                        }
+                        compressing = audio;
                         break;
                     default:
                         throw new RuntimeException("Unknown type: " + type);
                 }
+                if (options.isAsynchronousCodecs()) {
+                    compressing.setAsynchronous(mWorkSignals.require(type));
+                }
+                if (mMetrics != null) {
+                    compressing.setMetrics(mMetrics);
+                }
+                if (mCodecPool != null) {
+                    compressing.setCodecPool(mCodecPool);
+                }
+                // The output format is the same for all steps, so the encoder can be kept.
+                if (current < mDataSources.require(type).size() - 1) {
+                    compressing.setEncoderHandOff(true);
+                }
+                BaseTrackTranscoder.ActiveEncoder encoder = mActiveEncoders.get(type);
+                if (encoder != null) {
+                    mActiveEncoders.set(type, null);
+                    compressing.attachEncoder(encoder);
+                }
+                Long resumeUs = mResumeUs.get(type);
+                if (resumeUs != null) {
+                    mResumeUs.set(type, null);
+                    compressing.setResumeTimestampUs(resumeUs);
+                }
+                transcoder = compressing;
                 break;
             }
             case ABSENT:
@@ -191,21 +368,95 @@ public class Engine {
                 break;
             }
         }
-        transcoder.setUp(mOutputFormats.require(type));
-        mTranscoders.require(type).add(transcoder);
+        return transcoder;
+    }
+
+    /**
+     * Sets up a transcoder that was returned by {@link #createCurrentStep(TrackType, TranscoderOptions)}.
+     * This creates and configures codecs, so with track threads it is called without holding
+     * {@link #mLock}, not to block the other track.
+     */
+    private void setUpStep(@NonNull TrackType type, @NonNull TrackTranscoder transcoder) {
+        TrackStatus status = mStatuses.require(type);
+        try {
+            transcoder.setUp(mOutputFormats.require(type));
+        } catch (RuntimeException e) {
+            // Might be caused by other operations using the same codecs.
+            if (status == TrackStatus.COMPRESSING && mCodecTicket != null
+                    && transcoder instanceof BaseTrackTranscoder) {
+                BaseTrackTranscoder compressing = (BaseTrackTranscoder) transcoder;
+                CodecScheduler.Resource resource = null;
+                if (compressing.hasEncoderSetUpFailed()) {
+                    resource = mEncoderResources.require(type);
+                } else if (compressing.hasDecoderSetUpFailed()) {
+                    resource = mStepDecoderResources.require(type).get(mCurrentStep.require(type));
+                }
+                if (resource != null) {
+                    CodecScheduler.reportFailure(mCodecTicket, resource, e);
+                }
+            }
+            throw e;
+        }
+    }
+
+    @Nullable
+    private static TrimDataSource getSmartCutSource(@NonNull DataSource dataSource) {
+        if (dataSource instanceof SynchronizedDataSource) {
+            dataSource = ((SynchronizedDataSource) dataSource).getWrappedSource();
+        }
+        if (dataSource instanceof TrimDataSource
+                && ((TrimDataSource) dataSource).isSmartCut()) {
+            return (TrimDataSource) dataSource;
+        }
+        return null;
     }
 
     private void closeCurrentStep(@NonNull TrackType type) {
         int current = mCurrentStep.require(type);
         TrackTranscoder transcoder = mTranscoders.require(type).get(current);
         DataSource dataSource = mDataSources.require(type).get(current);
+        // getReadUs() is a better approximation than the duration for sure.
+        mCompletedReadUs.set(type, mCompletedReadUs.require(type) + dataSource.getReadUs());
+        mRemainingDurationUs.set(type, mRemainingDurationUs.require(type) - dataSource.getDurationUs());
+        if (transcoder instanceof BaseTrackTranscoder
+                && transcoder.isFinished()
+                && current < mDataSources.require(type).size() - 1) {
+            mActiveEncoders.set(type, ((BaseTrackTranscoder) transcoder).detachEncoder());
+        }
         transcoder.release();
         dataSource.releaseTrack(type);
         mCurrentStep.set(type, current + 1);
     }
 
+    /**
+     * Releases an encoder that was detached from a step, but not attached to the next one,
+     * which can happen if the operation fails.
+     */
+    private void releaseActiveEncoder(@NonNull TrackType type) {
+        BaseTrackTranscoder.ActiveEncoder encoder = mActiveEncoders.get(type);
+        if (encoder != null) {
+            mActiveEncoders.set(type, null);
+            encoder.release();
+        }
+    }
+
     @NonNull
     private TrackTranscoder getCurrentTrackTranscoder(@NonNull TrackType type, @NonNull TranscoderOptions options) {
+        TrackTranscoder transcoder = getOpenTrackTranscoder(type);
+        if (transcoder == null) {
+            // We need to create a new step.
+            openCurrentStep(type, options);
+            transcoder = mTranscoders.require(type).get(mCurrentStep.require(type));
+        }
+        return transcoder;
+    }
+
+    /**
+     * Returns the transcoder of the current step, closing the steps that are completed,
+     * or null if the current step was not opened yet.
+     */
+    @Nullable
+    private TrackTranscoder getOpenTrackTranscoder(@NonNull TrackType type) {
         int current = mCurrentStep.require(type);
         int last = mTranscoders.require(type).size() - 1;
         if (last == current) {
@@ -214,58 +465,28 @@ public class Engine {
             TrackTranscoder transcoder = mTranscoders.require(type).get(last);
             if (transcoder.isFinished()) {
                 closeCurrentStep(type);
-                return getCurrentTrackTranscoder(type, options);
+                return getOpenTrackTranscoder(type);
             } else {
-                return mTranscoders.require(type).get(current);
+                return transcoder;
             }
         } else if (last < current) {
-            // We need to create a new step.
-            openCurrentStep(type, options);
-            return mTranscoders.require(type).get(current);
+            return null;
         } else {
             throw new IllegalStateException("This should never happen. last:" + last + ", current:" + current);
         }
     }
 
-    @NonNull
-    private TimeInterpolator createStepTimeInterpolator(@NonNull TrackType type, int step,
-                                                        final @NonNull TimeInterpolator wrap) {
-        final long timebase;
-        if (step > 0) {
-            TimeInterpolator previous = mInterpolators.require(type).get(step - 1);
-            timebase = previous.interpolate(type, Long.MAX_VALUE);
-        } else {
-            timebase = 0;
-        }
-        return new TimeInterpolator() {
-
-            private long mLastInterpolatedTime;
-            private long mFirstInputTime = Long.MAX_VALUE;
-            private long mTimeBase = timebase + 10;
-
-            @Override
-            public long interpolate(@NonNull TrackType type, long time) {
-                if (time == Long.MAX_VALUE) return mLastInterpolatedTime;
-                if (mFirstInputTime == Long.MAX_VALUE) mFirstInputTime = time;
-                mLastInterpolatedTime = mTimeBase + (time - mFirstInputTime);
-                return wrap.interpolate(type, mLastInterpolatedTime);
-            }
-        };
-    }
-
     private long getTrackDurationUs(@NonNull TrackType type) {
         if (!mStatuses.require(type).isTranscoding()) return 0L;
-        int current = mCurrentStep.require(type);
-        long totalDurationUs = 0;
-        for (int i = 0; i < mDataSources.require(type).size(); i++) {
-            DataSource source = mDataSources.require(type).get(i);
-            if (i < current) { // getReadUs() is a better approximation for sure.
-                totalDurationUs += source.getReadUs();
-            } else {
-                totalDurationUs += source.getDurationUs();
-            }
+        return mCompletedReadUs.require(type) + mRemainingDurationUs.require(type);
+    }
+
+    private static long getDurationUs(@NonNull List<DataSource> sources) {
+        long durationUs = 0;
+        for (DataSource source : sources) {
+            durationUs += source.getDurationUs();
         }
-        return totalDurationUs;
+        return durationUs;
     }
 
     private long getTotalDurationUs() {
@@ -279,21 +500,21 @@ public class Engine {
     private long getTrackReadUs(@NonNull TrackType type) {
         if (!mStatuses.require(type).isTranscoding()) return 0L;
         int current = mCurrentStep.require(type);
-        long completedDurationUs = 0;
-        for (int i = 0; i < mDataSources.require(type).size(); i++) {
-            DataSource source = mDataSources.require(type).get(i);
-            if (i <= current) {
-                completedDurationUs += source.getReadUs();
-            }
+        List<DataSource> sources = mDataSources.require(type);
+        long readUs = mCompletedReadUs.require(type);
+        if (current < sources.size()) {
+            readUs += sources.get(current).getReadUs();
         }
-        return completedDurationUs;
+        return readUs;
     }
 
     private double getTrackProgress(@NonNull TrackType type) {
         if (!mStatuses.require(type).isTranscoding()) return 0.0D;
         long readUs = getTrackReadUs(type);
         long totalUs = getTotalDurationUs();
-        LOG.v("getTrackProgress - readUs:" + readUs + ", totalUs:" + totalUs);
+        if (LOG.isEnabled(Logger.LEVEL_VERBOSE)) {
+            LOG.v("getTrackProgress - readUs:" + readUs + ", totalUs:" + totalUs);
+        }
         if (totalUs == 0) totalUs = 1; // Avoid NaN
         return (double) readUs / (double) totalUs;
     }
@@ -306,9 +527,25 @@ public class Engine {
      * @throws InterruptedException when cancel to transcode
      */
     public void transcode(@NonNull TranscoderOptions options) throws InterruptedException {
-        mDataSink = options.getDataSink();
-        mDataSources.setVideo(options.getVideoDataSources());
-        mDataSources.setAudio(options.getAudioDataSources());
+        transcode(options,
+                options.getDataSink(),
+                options.getVideoDataSources(),
+                options.getAudioDataSources());
+    }
+
+    /**
+     * Performs transcoding using the given sink and sources instead of the ones
+     * in the options. Blocks current thread.
+     */
+    void transcode(@NonNull TranscoderOptions options,
+                   @NonNull DataSink dataSink,
+                   @NonNull List<DataSource> videoDataSources,
+                   @NonNull List<DataSource> audioDataSources) throws InterruptedException {
+        mDataSink = mMetrics != null ? new MetricsDataSink(dataSink, mMetrics) : dataSink;
+        mDataSources.setVideo(videoDataSources);
+        mDataSources.setAudio(audioDataSources);
+        mRemainingDurationUs.setVideo(getDurationUs(videoDataSources));
+        mRemainingDurationUs.setAudio(getDurationUs(audioDataSources));
 
         // Pass metadata from DataSource to DataSink
         mDataSink.setOrientation(0); // Explicitly set 0 to output - we rotate the textures.
@@ -322,8 +559,8 @@ public class Engine {
 
         // Compute the TrackStatus.
         int activeTracks = 0;
-        computeTrackStatus(TrackType.AUDIO, options.getAudioTrackStrategy(), options.getAudioDataSources());
-        computeTrackStatus(TrackType.VIDEO, options.getVideoTrackStrategy(), options.getVideoDataSources());
+        computeTrackStatus(TrackType.AUDIO, options.getAudioTrackStrategy(), audioDataSources);
+        computeTrackStatus(TrackType.VIDEO, options.getVideoTrackStrategy(), videoDataSources);
         TrackStatus videoStatus = mStatuses.requireVideo();
         TrackStatus audioStatus = mStatuses.requireAudio();
         if (videoStatus.isTranscoding()) activeTracks++;
@@ -341,57 +578,419 @@ public class Engine {
             throw new ValidatorException("Validator returned false.");
         }
 
-        // Do the actual transcoding work.
+        // When concatenating, codecs can be reused from one step to the next, and smart cut
+        // can reuse them between the head and the tail. Paused operations can also
+        // return their decoders to the pool.
+        if (mCodecPool == null && (mControl != null
+                || mSmartCut
+                || isConcatenating(TrackType.VIDEO)
+                || isConcatenating(TrackType.AUDIO))) {
+            mCodecPool = new CodecPool();
+            mOwnsCodecPool = true;
+        }
+
         try {
-            long loopCount = 0;
-            boolean stepped;
-            boolean audioCompleted = false, videoCompleted = false;
-            boolean forceAudioEos, forceVideoEos;
-            double audioProgress, videoProgress;
-            TrackTranscoder audioTranscoder, videoTranscoder;
-            while (!(audioCompleted && videoCompleted)) {
+            if (mControl != null) {
+                mControl.register(mWorkSignal);
+                mControl.register(mWorkSignals.requireVideo());
+                mControl.register(mWorkSignals.requireAudio());
+            }
+            // Wait until the device has the codecs that we need. The codecs parked in our
+            // pool are ours, but those of other pools might have to be released first.
+            mCodecTicket = CodecScheduler.acquire(mCodecResources, options.getPriority(), mCodecPool);
+            // Do the actual transcoding work.
+            boolean useTrackThreads = options.isTrackThreads()
+                    && videoStatus.isTranscoding()
+                    && audioStatus.isTranscoding();
+            if (useTrackThreads) {
+                prepareTrackThreads();
+            }
+            setSourceWorkSignals(true);
+            try {
+                if (useTrackThreads) {
+                    transcodeOnTrackThreads(options, activeTracks);
+                } else {
+                    transcodeOnCurrentThread(options, activeTracks);
+                }
+                mDataSink.stop();
+            } finally {
+                setSourceWorkSignals(false);
+                if (!useTrackThreads) {
+                    try {
+                        closeCurrentStep(TrackType.VIDEO);
+                        closeCurrentStep(TrackType.AUDIO);
+                    } catch (Exception ignore) {}
+                    releaseActiveEncoder(TrackType.VIDEO);
+                    releaseActiveEncoder(TrackType.AUDIO);
+                }
+            }
+        } finally {
+            // The sink is released even if we were interrupted while waiting for codecs.
+            mDataSink.release();
+            if (mControl != null) {
+                mControl.unregister(mWorkSignal);
+                mControl.unregister(mWorkSignals.requireVideo());
+                mControl.unregister(mWorkSignals.requireAudio());
+            }
+            if (mOwnsCodecPool) {
+                mCodecPool.release();
+            }
+            if (mCodecTicket != null) {
+                CodecScheduler.release(mCodecTicket);
+                mCodecTicket = null;
+            }
+        }
+    }
+
+    private boolean isConcatenating(@NonNull TrackType type) {
+        return mStatuses.require(type) == TrackStatus.COMPRESSING
+                && mDataSources.require(type).size() > 1;
+    }
+
+    private void transcodeOnCurrentThread(@NonNull TranscoderOptions options, int activeTracks)
+            throws InterruptedException {
+        long loopCount = 0;
+        boolean stepped;
+        boolean audioCompleted = false, videoCompleted = false;
+        boolean forceAudioEos, forceVideoEos;
+        double audioProgress, videoProgress;
+        TrackTranscoder audioTranscoder, videoTranscoder;
+        while (!(audioCompleted && videoCompleted)) {
+            if (LOG.isEnabled(Logger.LEVEL_VERBOSE)) {
                 LOG.v("new step: " + loopCount);
+            }
+
+            if (Thread.interrupted() || isCanceled()) {
+                throw new InterruptedException();
+            }
+            if (mControl != null && mControl.isPaused()) {
+                pauseOnCurrentThread(options);
+                continue;
+            }
+            stepped = false;
+
+            // First, check if we have to force an input end of stream for some track.
+            // This can happen, for example, if user adds 1 minute (video only) with 20 seconds
+            // of audio. The video track must be stopped once the audio stops.
+            long totalUs = getTotalDurationUs() + 100 /* tolerance */;
+            forceAudioEos = getTrackReadUs(TrackType.AUDIO) > totalUs;
+            forceVideoEos = getTrackReadUs(TrackType.VIDEO) > totalUs;
+
+            // Now step for transcoders that are not completed.
+            audioCompleted = isCompleted(TrackType.AUDIO);
+            videoCompleted = isCompleted(TrackType.VIDEO);
+            audioTranscoder = audioCompleted ? null : getCurrentTrackTranscoder(TrackType.AUDIO, options);
+            videoTranscoder = videoCompleted ? null : getCurrentTrackTranscoder(TrackType.VIDEO, options);
+            if (!audioCompleted) {
+                stepped |= audioTranscoder.transcode(forceAudioEos);
+            }
+            if (!videoCompleted) {
+                stepped |= videoTranscoder.transcode(forceVideoEos);
+            }
+            if (++loopCount % PROGRESS_INTERVAL_STEPS == 0) {
+                audioProgress = getTrackProgress(TrackType.AUDIO);
+                videoProgress = getTrackProgress(TrackType.VIDEO);
+                if (LOG.isEnabled(Logger.LEVEL_VERBOSE)) {
+                    LOG.v("progress - video:" + videoProgress + " audio:" + audioProgress);
+                }
+                setProgress((videoProgress + audioProgress) / activeTracks);
+            }
+            awaitWork(mWorkSignal, stepped, audioTranscoder, videoTranscoder);
+        }
+    }
+
+    private boolean isCanceled() {
+        return mControl != null && mControl.isCanceled();
+    }
 
-                if (Thread.interrupted()) {
+    /**
+     * Called by the engine thread when a pause was requested. If a checkpoint was requested
+     * and is possible, the input that was read is processed, the decoders are released
+     * and the sources are moved back a bit, to be read again when resuming. The decoders are
+     * also given back to the {@link CodecScheduler}, so other operations can use them.
+     * Then we block until the operation is resumed.
+     */
+    private void pauseOnCurrentThread(@NonNull TranscoderOptions options) throws InterruptedException {
+        boolean checkpoint = mControl.isCheckpointRequested() && canCheckpoint();
+        LOG.info("pause: checkpoint=%s", checkpoint);
+        if (checkpoint) {
+            // Drain the current steps without ending the encoders.
+            BaseTrackTranscoder video = (BaseTrackTranscoder) getCurrentTrackTranscoder(TrackType.VIDEO, options);
+            BaseTrackTranscoder audio = (BaseTrackTranscoder) getCurrentTrackTranscoder(TrackType.AUDIO, options);
+            video.setEncoderHandOff(true);
+            audio.setEncoderHandOff(true);
+            while (!video.isFinished() || !audio.isFinished()) {
+                if (Thread.interrupted() || isCanceled()) {
                     throw new InterruptedException();
                 }
-                stepped = false;
-
-                // First, check if we have to force an input end of stream for some track.
-                // This can happen, for example, if user adds 1 minute (video only) with 20 seconds
-                // of audio. The video track must be stopped once the audio stops.
-                long totalUs = getTotalDurationUs() + 100 /* tolerance */;
-                forceAudioEos = getTrackReadUs(TrackType.AUDIO) > totalUs;
-                forceVideoEos = getTrackReadUs(TrackType.VIDEO) > totalUs;
-
-                // Now step for transcoders that are not completed.
-                audioCompleted = isCompleted(TrackType.AUDIO);
-                videoCompleted = isCompleted(TrackType.VIDEO);
-                audioTranscoder = audioCompleted ? null : getCurrentTrackTranscoder(TrackType.AUDIO, options);
-                videoTranscoder = videoCompleted ? null : getCurrentTrackTranscoder(TrackType.VIDEO, options);
-                if (!audioCompleted) {
-                    stepped |= audioTranscoder.transcode(forceAudioEos);
+                boolean stepped = false;
+                if (!video.isFinished()) stepped = video.transcode(true);
+                if (!audio.isFinished()) stepped |= audio.transcode(true);
+                awaitWork(mWorkSignal, stepped, video, audio);
+            }
+            // Keep the encoders and release the rest. The steps will be opened again.
+            // Resume timestamps are in the file timebase, like the samples.
+            Map<DataSource, Long> sources = new HashMap<>();
+            Map<DataSource, Long> firsts = new HashMap<>();
+            for (TrackType type : TrackType.values()) {
+                BaseTrackTranscoder transcoder = type == TrackType.VIDEO ? video : audio;
+                int current = mCurrentStep.require(type);
+                mActiveEncoders.set(type, transcoder.detachEncoder());
+                transcoder.release();
+                mTranscoders.require(type).remove(current);
+                // Never move before the previous checkpoint: after resuming, input is read
+                // again from before it, but what precedes it was already transcoded.
+                long maxInputUs = transcoder.getMaxInputTimestampUs();
+                long resumeUs = transcoder.getResumeTimestampUs();
+                if (maxInputUs != Long.MIN_VALUE) resumeUs = Math.max(resumeUs, maxInputUs + 1);
+                if (resumeUs != Long.MIN_VALUE) mResumeUs.set(type, resumeUs);
+                DataSource source = mDataSources.require(type).get(current);
+                Long otherResumeUs = sources.get(source);
+                sources.put(source, otherResumeUs == null ? resumeUs : Math.min(resumeUs, otherResumeUs));
+                // The first sample read from the source belongs to one of the tracks. Take the
+                // latest of the two, which can only move the source further back.
+                long firstUs = transcoder.getFirstInputTimestampUs();
+                Long otherFirstUs = firsts.get(source);
+                firsts.put(source, otherFirstUs == null ? firstUs : Math.max(firstUs, otherFirstUs));
+            }
+            // Tracks are interleaved, so move back a bit more than what was read.
+            // Sources seek to sync points, so we might have to go back again
+            // until no track would skip some input.
+            for (Map.Entry<DataSource, Long> entry : sources.entrySet()) {
+                DataSource source = entry.getKey();
+                long resumeUs = entry.getValue();
+                // After the first checkpoint, transcoders start reading after a seek,
+                // so we keep the first timestamp that was read in the first place.
+                Long firstUs = mSourceFirstUs.get(source);
+                if (firstUs == null && firsts.get(source) != Long.MIN_VALUE) {
+                    firstUs = firsts.get(source);
+                    mSourceFirstUs.put(source, firstUs);
+                }
+                long actualUs;
+                if (resumeUs == Long.MIN_VALUE || firstUs == null) {
+                    actualUs = source.seekTo(0);
+                } else {
+                    actualUs = CheckpointSeeker.seek(source, firstUs, resumeUs, CHECKPOINT_SEEK_MARGIN_US);
+                }
+                LOG.info("pause: moved source to %d, resume at %d.", actualUs, resumeUs);
+            }
+            mCheckpointProgress = Math.max(mCheckpointProgress, mProgress);
+            CodecScheduler.suspend(mCodecTicket, mDecoderResources);
+        }
+        mControl.awaitResume();
+        if (checkpoint) {
+            CodecScheduler.resume(mCodecTicket);
+        }
+        LOG.i("resume");
+    }
+
+    /**
+     * Checkpoints are possible if both tracks are compressing and are in the middle of a step,
+     * so that no sample is written without being transcoded.
+     */
+    private boolean canCheckpoint() {
+        for (TrackType type : TrackType.values()) {
+            if (mStatuses.require(type) != TrackStatus.COMPRESSING) return false;
+            int current = mCurrentStep.require(type);
+            List<TrackTranscoder> transcoders = mTranscoders.require(type);
+            if (current >= transcoders.size() || transcoders.get(current).isFinished()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits for some work to be available, if the last step did nothing. Asynchronous codecs,
+     * read-ahead sources and job controls signal. Synchronous codecs can not, so if one of
+     * the given transcoders expects output from them, we block on it instead.
+     * Either way, we wait {@link #WAIT_TRACK_TRANSCODERS} at most.
+     */
+    private void awaitWork(@NonNull WorkSignal signal, boolean stepped,
+                           @Nullable TrackTranscoder first, @Nullable TrackTranscoder second)
+            throws InterruptedException {
+        if (stepped) return;
+        WorkSignal.Waitable waitable = getWaitable(first);
+        if (waitable == null) waitable = getWaitable(second);
+        long startNanos = mMetrics != null ? MetricsCollector.now() : 0;
+        signal.await(WAIT_TRACK_TRANSCODERS, waitable);
+        if (mMetrics != null) mMetrics.addIdleSleep(MetricsCollector.now() - startNanos);
+    }
+
+    @Nullable
+    private static WorkSignal.Waitable getWaitable(@Nullable TrackTranscoder transcoder) {
+        if (transcoder instanceof WorkSignal.Waitable
+                && ((WorkSignal.Waitable) transcoder).canAwaitWork()) {
+            return (WorkSignal.Waitable) transcoder;
+        }
+        return null;
+    }
+
+    /**
+     * Lets read-ahead sources wake up the track that they have read a sample for,
+     * or stop them from doing so.
+     */
+    private void setSourceWorkSignals(boolean set) {
+        for (TrackType type : TrackType.values()) {
+            for (DataSource source : mDataSources.require(type)) {
+                if (source instanceof SynchronizedDataSource) {
+                    source = ((SynchronizedDataSource) source).getWrappedSource();
+                }
+                if (source instanceof ReadAheadDataSource) {
+                    ((ReadAheadDataSource) source).setWorkSignal(type, set ? mWorkSignals.require(type) : null);
                 }
-                if (!videoCompleted) {
-                    stepped |= videoTranscoder.transcode(forceVideoEos);
+            }
+        }
+    }
+
+    /**
+     * Makes sources and sink safe to be used by multiple threads, and gives each track
+     * its own {@link WorkSignal}. The engine thread keeps {@link #mWorkSignal}.
+     */
+    private void prepareTrackThreads() {
+        mDataSink = new SynchronizedDataSink(mDataSink);
+        Map<DataSource, DataSource> wrappers = new HashMap<>();
+        for (DataSource source : getUniqueSources()) {
+            wrappers.put(source, new SynchronizedDataSource(source));
+        }
+        for (TrackType type : TrackType.values()) {
+            List<DataSource> wrapped = new ArrayList<>();
+            for (DataSource source : mDataSources.require(type)) {
+                wrapped.add(wrappers.get(source));
+            }
+            mDataSources.set(type, wrapped);
+            mWorkSignals.set(type, new WorkSignal());
+        }
+    }
+
+    /**
+     * Transcodes each track on its own thread. The current thread waits for them,
+     * dispatches progress and propagates any failure or interruption.
+     */
+    private void transcodeOnTrackThreads(@NonNull final TranscoderOptions options, int activeTracks)
+            throws InterruptedException {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (final TrackType type : TrackType.values()) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        transcodeTrack(type, options);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        mWorkSignal.signal();
+                    }
                 }
-                if (++loopCount % PROGRESS_INTERVAL_STEPS == 0) {
+            }, TAG + " " + type + " Thread"));
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            while (failure.get() == null && isAnyAlive(threads)) {
+                mWorkSignal.await(PROGRESS_INTERVAL_MILLIS);
+                double audioProgress, videoProgress;
+                synchronized (mLock) {
                     audioProgress = getTrackProgress(TrackType.AUDIO);
                     videoProgress = getTrackProgress(TrackType.VIDEO);
+                }
+                if (LOG.isEnabled(Logger.LEVEL_VERBOSE)) {
                     LOG.v("progress - video:" + videoProgress + " audio:" + audioProgress);
-                    setProgress((videoProgress + audioProgress) / activeTracks);
                 }
-                if (!stepped) {
-                    Thread.sleep(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
+                setProgress((videoProgress + audioProgress) / activeTracks);
+            }
+        } finally {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            joinAll(threads);
+        }
+        Throwable error = failure.get();
+        if (error instanceof InterruptedException) {
+            throw (InterruptedException) error;
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        } else if (error != null) {
+            throw new RuntimeException(error);
+        }
+    }
+
+    /**
+     * Transcodes a single track until completion. Called on the track thread.
+     * The track transcoders are released here, because video ones hold GL contexts
+     * that are bound to this thread.
+     */
+    private void transcodeTrack(@NonNull TrackType type, @NonNull TranscoderOptions options)
+            throws InterruptedException {
+        WorkSignal signal = mWorkSignals.require(type);
+        try {
+            while (true) {
+                if (Thread.interrupted() || isCanceled()) {
+                    throw new InterruptedException();
+                }
+                if (mControl != null && mControl.isPaused()) {
+                    // Track threads do not support checkpoints, the two tracks
+                    // would have to agree on when to move the sources.
+                    mControl.awaitResume();
+                    continue;
                 }
+                TrackTranscoder transcoder;
+                boolean forceEos;
+                boolean opening = false;
+                synchronized (mLock) {
+                    if (isCompleted(type)) break;
+                    // Same as the single thread mode: stop this track if it exceeds the other.
+                    long totalUs = getTotalDurationUs() + 100 /* tolerance */;
+                    forceEos = getTrackReadUs(type) > totalUs;
+                    transcoder = getOpenTrackTranscoder(type);
+                    if (transcoder == null) {
+                        transcoder = createCurrentStep(type, options);
+                        opening = true;
+                    }
+                }
+                if (opening) {
+                    // Codec setup can take a while, so the step is published after it.
+                    setUpStep(type, transcoder);
+                    synchronized (mLock) {
+                        mTranscoders.require(type).add(transcoder);
+                    }
+                    continue;
+                }
+                boolean stepped = transcoder.transcode(forceEos);
+                awaitWork(signal, stepped, transcoder, null);
             }
-            mDataSink.stop();
         } finally {
-            try {
-                closeCurrentStep(TrackType.VIDEO);
-                closeCurrentStep(TrackType.AUDIO);
-            } catch (Exception ignore) {}
-            mDataSink.release();
+            synchronized (mLock) {
+                try {
+                    closeCurrentStep(type);
+                } catch (Exception ignore) {}
+                releaseActiveEncoder(type);
+            }
+        }
+    }
+
+    private static boolean isAnyAlive(@NonNull List<Thread> threads) {
+        for (Thread thread : threads) {
+            if (thread.isAlive()) return true;
+        }
+        return false;
+    }
+
+    private static void joinAll(@NonNull List<Thread> threads) {
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 }
@@ -7,6 +7,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.otaliastudios.transcoder.internal.MediaCodecBuffers;
+import com.otaliastudios.transcoder.internal.ProbeCache;
 import com.otaliastudios.transcoder.source.DataSource;
 
 import java.io.IOException;
@@ -19,9 +20,20 @@ import java.io.IOException;
  *
  * This class will check the completeness of the input format and if needed, provide a more
  * complete format by decoding the input file until MediaCodec computes all values.
+ * The missing values are copied into the input format and stored in the {@link ProbeCache},
+ * so that sources for the same file will not need to decode again.
  */
 class MediaFormatProvider {
 
+    private static final String[] VIDEO_KEYS = new String[]{
+            MediaFormat.KEY_WIDTH,
+            MediaFormat.KEY_HEIGHT
+    };
+    private static final String[] AUDIO_KEYS = new String[]{
+            MediaFormat.KEY_CHANNEL_COUNT,
+            MediaFormat.KEY_SAMPLE_RATE
+    };
+
     /**
      * Inspects the given format - coming from {@link DataSource#getTrackFormat(TrackType)},
      * and in case it's not complete, it returns a decoded, complete format.
@@ -39,7 +51,16 @@ class MediaFormatProvider {
         if (isComplete(type, format)) {
             return format;
         }
-        MediaFormat newFormat = decodeMediaFormat(source, type, format);
+        MediaFormat decodedFormat = decodeMediaFormat(source, type, format);
+        // Only take the missing values from the decoder output format, so that the input
+        // format keeps describing the encoded track (e.g. its mime type), and so that
+        // it is the same format that we get when these values come from the cache.
+        MediaFormat newFormat = format;
+        for (String key : type == TrackType.VIDEO ? VIDEO_KEYS : AUDIO_KEYS) {
+            if (!newFormat.containsKey(key) && decodedFormat.containsKey(key)) {
+                newFormat.setInteger(key, decodedFormat.getInteger(key));
+            }
+        }
         // If not complete, throw an exception. If we don't throw here,
         // it would likely be thrown by strategies anyway, since they expect a
         // complete format.
@@ -56,6 +77,7 @@ class MediaFormatProvider {
             }
             throw new RuntimeException(message);
         }
+        ProbeCache.putFormat(newFormat);
         return newFormat;
     }
 
@@ -159,6 +181,6 @@ class MediaFormatProvider {
                 0,
                 chunk.bytes,
                 chunk.timestampUs,
-                chunk.isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+                chunk.isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
     }
 }
@@ -0,0 +1,62 @@
+package com.otaliastudios.transcoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.transcoder.internal.MetricsCollector;
+import com.otaliastudios.transcoder.sink.DataSink;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link DataSink} wrapper that counts the samples and bytes written
+ * to the wrapped sink into a {@link MetricsCollector}.
+ */
+class MetricsDataSink implements DataSink {
+
+    private final DataSink mSink;
+    private final MetricsCollector mMetrics;
+
+    MetricsDataSink(@NonNull DataSink sink, @NonNull MetricsCollector metrics) {
+        mSink = sink;
+        mMetrics = metrics;
+    }
+
+    @Override
+    public void setOrientation(int orientation) {
+        mSink.setOrientation(orientation);
+    }
+
+    @Override
+    public void setLocation(double latitude, double longitude) {
+        mSink.setLocation(latitude, longitude);
+    }
+
+    @Override
+    public void setTrackStatus(@NonNull TrackType type, @NonNull TrackStatus status) {
+        mSink.setTrackStatus(type, status);
+    }
+
+    @Override
+    public void setTrackFormat(@NonNull TrackType type, @NonNull MediaFormat format) {
+        mSink.setTrackFormat(type, format);
+    }
+
+    @Override
+    public void writeTrack(@NonNull TrackType type, @NonNull ByteBuffer byteBuffer, @NonNull MediaCodec.BufferInfo bufferInfo) {
+        if (bufferInfo.size > 0) mMetrics.addWrittenSample(type, bufferInfo.size);
+        mSink.writeTrack(type, byteBuffer, bufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mSink.stop();
+    }
+
+    @Override
+    public void release() {
+        mSink.release();
+    }
+}
@@ -0,0 +1,477 @@
+package com.otaliastudios.transcoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.otaliastudios.transcoder.TranscoderOptions;
+import com.otaliastudios.transcoder.internal.BufferPool;
+import com.otaliastudios.transcoder.internal.CodecCapacity;
+import com.otaliastudios.transcoder.internal.FormatCompatibility;
+import com.otaliastudios.transcoder.internal.JobControl;
+import com.otaliastudios.transcoder.internal.Logger;
+import com.otaliastudios.transcoder.internal.MetricsCollector;
+import com.otaliastudios.transcoder.internal.TrackTypeMap;
+import com.otaliastudios.transcoder.sink.DataSink;
+import com.otaliastudios.transcoder.sink.DefaultDataSink;
+import com.otaliastudios.transcoder.source.DataSource;
+import com.otaliastudios.transcoder.source.DataSourceFactory;
+import com.otaliastudios.transcoder.source.FilePathDataSource;
+import com.otaliastudios.transcoder.source.TrimDataSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Internal engine for segmented transcoding, do not use this directly.
+ *
+ * The input is split into segments starting at sync frames. Segments are transcoded
+ * in parallel by different {@link Engine}s into temporary files, which are then
+ * stitched together into the output sink without re-encoding.
+ */
+public class SegmentedEngine {
+
+    private static final String TAG = SegmentedEngine.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    private static final long MIN_SEGMENT_DURATION_US = 10 * 1000 * 1000;
+    private static final int SEGMENTS_PER_THREAD = 2;
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private final ExecutorService mExecutor;
+    private final Engine.ProgressCallback mProgressCallback;
+    private final MetricsCollector mMetrics;
+    private JobControl mControl;
+    private final Object mProgressLock = new Object();
+    private double[] mSegmentProgress;
+    private double[] mSegmentWeight;
+
+    /**
+     * The track formats of the segments that were completed so far. Segments must have
+     * the same codec configuration to be stitched, so each one is checked as soon as it
+     * completes, and the operation fails early if it does not match the previous ones.
+     */
+    private static class SegmentFormats {
+        private final TrackTypeMap<MediaFormat> mFormats = new TrackTypeMap<>();
+        private boolean mHasFormats;
+        private int mMaxInputSize;
+
+        synchronized void check(int index, @NonNull File file) {
+            DataSource source = new FilePathDataSource(file.getAbsolutePath());
+            try {
+                for (TrackType type : TrackType.values()) {
+                    MediaFormat format = source.getTrackFormat(type);
+                    MediaFormat other = mFormats.get(type);
+                    boolean compatible = !mHasFormats
+                            || (format == null && other == null)
+                            || (format != null && other != null
+                            && FormatCompatibility.hasSameCodecConfig(other, format));
+                    if (!compatible) {
+                        throw new RuntimeException("Segment " + index + " has a different " + type
+                                + " format, so it can not be stitched.");
+                    }
+                    if (format != null && format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                        mMaxInputSize = Math.max(mMaxInputSize,
+                                format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+                    }
+                    if (!mHasFormats && format != null) mFormats.set(type, format);
+                }
+                mHasFormats = true;
+            } finally {
+                release(source);
+            }
+        }
+    }
+
+    public SegmentedEngine(@NonNull ExecutorService executor,
+                           @Nullable Engine.ProgressCallback progressCallback) {
+        this(executor, progressCallback, null);
+    }
+
+    /**
+     * Creates a new engine.
+     *
+     * @param executor the executor for parallel segments
+     * @param progressCallback a progress callback
+     * @param metrics a collector for metrics, or null to skip collection
+     */
+    public SegmentedEngine(@NonNull ExecutorService executor,
+                           @Nullable Engine.ProgressCallback progressCallback,
+                           @Nullable MetricsCollector metrics) {
+        mExecutor = executor;
+        mProgressCallback = progressCallback;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Sets the control that can pause, resume and cancel this engine.
+     * It is passed to the engine of each segment. This must be called before transcoding.
+     *
+     * @param control a control
+     */
+    public void setControl(@NonNull JobControl control) {
+        mControl = control;
+    }
+
+    /**
+     * Performs segmented transcoding. Blocks current thread.
+     * Segments are run on the current thread and on the executor, so even if
+     * the executor is busy, we will eventually complete.
+     *
+     * @param options Transcoding options.
+     * @throws InterruptedException when cancel to transcode
+     */
+    public void transcode(@NonNull TranscoderOptions options) throws InterruptedException {
+        DataSourceFactory factory = options.getSegmentSourceFactory();
+        if (factory == null) {
+            throw new IllegalArgumentException("Segmented transcoding requires a DataSourceFactory.");
+        }
+
+        // Inspect the input.
+        DataSource input = factory.create();
+        long durationUs;
+        double[] location;
+        MediaFormat videoFormat;
+        TrackType probeType;
+        String videoEncoderMime;
+        try {
+            durationUs = input.getDurationUs();
+            location = input.getLocation();
+            videoFormat = input.getTrackFormat(TrackType.VIDEO);
+            probeType = videoFormat != null ? TrackType.VIDEO : TrackType.AUDIO;
+            videoEncoderMime = videoFormat == null ? null
+                    : getVideoEncoderMime(options, input, videoFormat);
+        } finally {
+            release(input);
+        }
+
+        // Compute concurrency and segments.
+        int concurrency = Math.max(1, options.getSegmentConcurrency());
+        if (videoEncoderMime != null) {
+            concurrency = CodecCapacity.cap(concurrency, videoFormat.getString(MediaFormat.KEY_MIME), false);
+            concurrency = CodecCapacity.cap(concurrency, videoEncoderMime, true);
+        }
+        List<Long> starts = computeSegmentStarts(factory, probeType, durationUs,
+                concurrency * SEGMENTS_PER_THREAD);
+        int count = starts.size();
+        concurrency = Math.min(concurrency, count);
+        LOG.i("transcode - durationUs:" + durationUs + " segments:" + count + " concurrency:" + concurrency);
+
+        mSegmentProgress = new double[count];
+        mSegmentWeight = new double[count];
+        for (int i = 0; i < count; i++) {
+            long endUs = i == count - 1 ? durationUs : starts.get(i + 1);
+            mSegmentWeight[i] = durationUs > 0 ? (double) (endUs - starts.get(i)) / durationUs : 1D / count;
+        }
+
+        // If we only have one segment, there's no need for temporary files.
+        if (count == 1) {
+            runSegment(options, 0, options.getDataSink(), factory.create());
+            return;
+        }
+
+        List<File> files = new ArrayList<>();
+        DataSink sink = options.getDataSink();
+        try {
+            for (int i = 0; i < count; i++) {
+                files.add(File.createTempFile("transcoder_segment_" + i + "_", ".mp4"));
+            }
+            SegmentFormats formats = new SegmentFormats();
+            runSegments(options, factory, starts, durationUs, files, formats, concurrency);
+            stitch(sink, files, starts, formats, location);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            // The sink was created with the options, so it must be released even if
+            // segments fail or we are interrupted, like Engine does.
+            sink.release();
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Releases a source that was only used to read its metadata or to seek. Sources
+     * release their resources when the last selected track is released, so we select
+     * one, if any.
+     */
+    private static void release(@NonNull DataSource source) {
+        for (TrackType type : TrackType.values()) {
+            if (source.getTrackFormat(type) != null) {
+                source.selectTrack(type);
+                source.releaseTrack(type);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the mime type that the video strategy chooses for the given input,
+     * or null if the video track is not compressed and needs no codecs.
+     */
+    @Nullable
+    private static String getVideoEncoderMime(@NonNull TranscoderOptions options,
+                                              @NonNull DataSource input,
+                                              @NonNull MediaFormat inputFormat) {
+        MediaFormat format = new MediaFormatProvider().provideMediaFormat(input, TrackType.VIDEO, inputFormat);
+        MediaFormat outputFormat = new MediaFormat();
+        TrackStatus status = options.getVideoTrackStrategy()
+                .createOutputFormat(Collections.singletonList(format), outputFormat);
+        return status == TrackStatus.COMPRESSING ? outputFormat.getString(MediaFormat.KEY_MIME) : null;
+    }
+
+    /**
+     * Finds the segment start times by seeking to evenly spaced positions,
+     * which moves the source to the closest sync frame. Each seek uses a new source
+     * so that seeks do not depend on each other.
+     */
+    @NonNull
+    private List<Long> computeSegmentStarts(@NonNull DataSourceFactory factory,
+                                            @NonNull TrackType type,
+                                            long durationUs,
+                                            int maxSegments) {
+        List<Long> starts = new ArrayList<>();
+        starts.add(0L);
+        if (durationUs <= 0) return starts;
+        int count = (int) Math.min(maxSegments, durationUs / MIN_SEGMENT_DURATION_US);
+        for (int i = 1; i < count; i++) {
+            long targetUs = durationUs * i / count;
+            DataSource source = factory.create();
+            if (source.getTrackFormat(type) == null) {
+                release(source);
+                break;
+            }
+            long startUs;
+            source.selectTrack(type);
+            try {
+                startUs = source.seekTo(targetUs);
+            } finally {
+                source.releaseTrack(type);
+            }
+            long lastUs = starts.get(starts.size() - 1);
+            LOG.v("computeSegmentStarts - target:" + targetUs + " actual:" + startUs);
+            if (startUs - lastUs >= MIN_SEGMENT_DURATION_US
+                    && durationUs - startUs >= MIN_SEGMENT_DURATION_US) {
+                starts.add(startUs);
+            }
+        }
+        return starts;
+    }
+
+    @NonNull
+    private static DataSource createSegmentSource(@NonNull DataSourceFactory factory,
+                                                  @NonNull List<Long> starts,
+                                                  long durationUs,
+                                                  int index) {
+        long startUs = starts.get(index);
+        boolean last = index == starts.size() - 1;
+        long trimEndUs = last ? 0 : Math.max(0, durationUs - starts.get(index + 1));
+        DataSource source = factory.create();
+        if (startUs == 0 && trimEndUs == 0) return source;
+        return new TrimDataSource(source, startUs, trimEndUs);
+    }
+
+    private void runSegments(@NonNull final TranscoderOptions options,
+                             @NonNull final DataSourceFactory factory,
+                             @NonNull final List<Long> starts,
+                             final long durationUs,
+                             @NonNull final List<File> files,
+                             @NonNull final SegmentFormats formats,
+                             int concurrency) throws InterruptedException {
+        final int count = starts.size();
+        final AtomicInteger next = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(count);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int index;
+                while ((index = next.getAndIncrement()) < count) {
+                    try {
+                        if (failure.get() == null) {
+                            DataSink sink = new DefaultDataSink(files.get(index).getAbsolutePath());
+                            DataSource source = createSegmentSource(factory, starts, durationUs, index);
+                            runSegment(options, index, sink, source);
+                            formats.check(index, files.get(index));
+                        }
+                    } catch (Throwable e) {
+                        LOG.e("Segment " + index + " failed.", e);
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }
+        };
+        List<Future<?>> helpers = new ArrayList<>();
+        for (int i = 1; i < concurrency; i++) {
+            helpers.add(mExecutor.submit(worker));
+        }
+        try {
+            worker.run();
+            if (failure.get() == null) latch.await();
+        } catch (InterruptedException e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            if (failure.get() != null) {
+                for (Future<?> helper : helpers) {
+                    helper.cancel(true);
+                }
+            }
+            // Wait for running segments even if interrupted, since they use our files.
+            boolean interrupted = false;
+            while (latch.getCount() > 0) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        Throwable error = failure.get();
+        if (error instanceof InterruptedException) {
+            throw (InterruptedException) error;
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        } else if (error != null) {
+            throw new RuntimeException(error);
+        }
+    }
+
+    private void runSegment(@NonNull TranscoderOptions options,
+                            final int index,
+                            @NonNull DataSink sink,
+                            @NonNull DataSource source) throws InterruptedException {
+        // Segments run in parallel, so each one has its own collector.
+        MetricsCollector metrics = mMetrics != null ? new MetricsCollector() : null;
+        Engine engine = new Engine(new Engine.ProgressCallback() {
+            @Override
+            public void onProgress(double progress) {
+                setSegmentProgress(index, progress);
+            }
+        }, metrics);
+        if (mControl != null) engine.setControl(mControl);
+        List<DataSource> sources = Collections.singletonList(source);
+        try {
+            engine.transcode(options, sink, sources, sources);
+        } finally {
+            if (metrics != null) mMetrics.merge(metrics);
+        }
+        setSegmentProgress(index, 1D);
+    }
+
+    private void setSegmentProgress(int index, double progress) {
+        double total = 0;
+        synchronized (mProgressLock) {
+            mSegmentProgress[index] = progress;
+            for (int i = 0; i < mSegmentProgress.length; i++) {
+                total += mSegmentProgress[i] * mSegmentWeight[i];
+            }
+        }
+        if (mProgressCallback != null) {
+            mProgressCallback.onProgress(Math.min(1D, total));
+        }
+    }
+
+    /**
+     * Copies the samples of the segment files into the sink.
+     * Each segment timeline starts at the first sample, and is moved to the segment start.
+     * Samples that overlap the next segment are dropped. The leading samples of each segment
+     * that overlap the previous one are dropped too: once a sample is past the previous
+     * segment, the following ones are written as they are, since encoders can reorder
+     * frames and decode order is not presentation order.
+     */
+    private void stitch(@NonNull DataSink sink,
+                        @NonNull List<File> files,
+                        @NonNull List<Long> starts,
+                        @NonNull SegmentFormats segmentFormats,
+                        @Nullable double[] location) throws InterruptedException {
+        int count = files.size();
+
+        // Configure the sink. Formats were checked when segments completed.
+        sink.setOrientation(0); // Segments are already rotated.
+        if (location != null) sink.setLocation(location[0], location[1]);
+        TrackTypeMap<MediaFormat> formats = segmentFormats.mFormats;
+        int bufferSize = segmentFormats.mMaxInputSize;
+        for (TrackType type : TrackType.values()) {
+            sink.setTrackStatus(type, formats.has(type) ? TrackStatus.PASS_THROUGH : TrackStatus.ABSENT);
+        }
+        for (TrackType type : TrackType.values()) {
+            if (formats.has(type)) sink.setTrackFormat(type, formats.require(type));
+        }
+
+        // Copy the samples.
+        ByteBuffer buffer = BufferPool.obtain(bufferSize > 0 ? bufferSize : DEFAULT_BUFFER_SIZE, TAG);
+        try {
+            DataSource.Chunk chunk = new DataSource.Chunk();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            TrackTypeMap<Long> lastTimeUs = new TrackTypeMap<>(Long.MIN_VALUE, Long.MIN_VALUE);
+            TrackTypeMap<Long> boundaryUs = new TrackTypeMap<>(Long.MIN_VALUE, Long.MIN_VALUE);
+            TrackTypeMap<Boolean> leading = new TrackTypeMap<>(true, true);
+            for (int i = 0; i < count; i++) {
+                for (TrackType type : TrackType.values()) {
+                    boundaryUs.set(type, lastTimeUs.require(type));
+                    leading.set(type, true);
+                }
+                DataSource source = new FilePathDataSource(files.get(i).getAbsolutePath());
+                for (TrackType type : TrackType.values()) {
+                    if (formats.has(type)) source.selectTrack(type);
+                }
+                try {
+                    long offsetUs = starts.get(i);
+                    long segmentUs = i == count - 1 ? Long.MAX_VALUE : starts.get(i + 1) - starts.get(i);
+                    long firstUs = Long.MIN_VALUE;
+                    while (!source.isDrained()) {
+                        if (Thread.interrupted()) throw new InterruptedException();
+                        TrackType type = null;
+                        for (TrackType candidate : TrackType.values()) {
+                            if (formats.has(candidate) && source.canReadTrack(candidate)) {
+                                type = candidate;
+                                break;
+                            }
+                        }
+                        if (type == null) break;
+                        buffer.clear();
+                        chunk.buffer = buffer;
+                        source.readTrack(chunk);
+                        if (firstUs == Long.MIN_VALUE) firstUs = chunk.timestampUs;
+                        long segmentTimeUs = chunk.timestampUs - firstUs;
+                        if (segmentTimeUs >= segmentUs) continue; // Overlaps the next segment
+                        long timeUs = offsetUs + segmentTimeUs;
+                        if (leading.require(type)) {
+                            if (timeUs <= boundaryUs.require(type)) continue; // Overlaps the previous segment
+                            leading.set(type, false);
+                        }
+                        lastTimeUs.set(type, Math.max(timeUs, lastTimeUs.require(type)));
+                        info.set(0, chunk.bytes, timeUs, chunk.isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                        sink.writeTrack(type, buffer, info);
+                        if (mMetrics != null) mMetrics.addWrittenSample(type, chunk.bytes);
+                    }
+                } finally {
+                    for (TrackType type : TrackType.values()) {
+                        if (formats.has(type)) source.releaseTrack(type);
+                    }
+                }
+            }
+        } finally {
+            BufferPool.recycle(buffer);
+        }
+        sink.stop();
+    }
+}
@@ -0,0 +1,59 @@
+package com.otaliastudios.transcoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.transcoder.sink.DataSink;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link DataSink} wrapper that serializes all calls to the wrapped sink,
+ * so that it can be shared by track transcoders running on different threads.
+ * Samples of each track are written in the order they are received.
+ */
+class SynchronizedDataSink implements DataSink {
+
+    private final DataSink mSink;
+
+    SynchronizedDataSink(@NonNull DataSink sink) {
+        mSink = sink;
+    }
+
+    @Override
+    public synchronized void setOrientation(int orientation) {
+        mSink.setOrientation(orientation);
+    }
+
+    @Override
+    public synchronized void setLocation(double latitude, double longitude) {
+        mSink.setLocation(latitude, longitude);
+    }
+
+    @Override
+    public synchronized void setTrackStatus(@NonNull TrackType type, @NonNull TrackStatus status) {
+        mSink.setTrackStatus(type, status);
+    }
+
+    @Override
+    public synchronized void setTrackFormat(@NonNull TrackType type, @NonNull MediaFormat format) {
+        mSink.setTrackFormat(type, format);
+    }
+
+    @Override
+    public synchronized void writeTrack(@NonNull TrackType type, @NonNull ByteBuffer byteBuffer, @NonNull MediaCodec.BufferInfo bufferInfo) {
+        mSink.writeTrack(type, byteBuffer, bufferInfo);
+    }
+
+    @Override
+    public synchronized void stop() {
+        mSink.stop();
+    }
+
+    @Override
+    public synchronized void release() {
+        mSink.release();
+    }
+}
@@ -0,0 +1,87 @@
+package com.otaliastudios.transcoder.engine;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.otaliastudios.transcoder.source.DataSource;
+import com.otaliastudios.transcoder.source.DataSourceWrapper;
+
+/**
+ * A {@link DataSource} wrapper that serializes all calls to the wrapped source,
+ * so that it can be shared by track transcoders running on different threads.
+ */
+class SynchronizedDataSource extends DataSourceWrapper {
+
+    SynchronizedDataSource(@NonNull DataSource source) {
+        super(source);
+    }
+
+    @NonNull
+    DataSource getWrappedSource() {
+        return getSource();
+    }
+
+    @Override
+    public synchronized int getOrientation() {
+        return super.getOrientation();
+    }
+
+    @Nullable
+    @Override
+    public synchronized double[] getLocation() {
+        return super.getLocation();
+    }
+
+    @Override
+    public synchronized long getDurationUs() {
+        return super.getDurationUs();
+    }
+
+    @Nullable
+    @Override
+    public synchronized MediaFormat getTrackFormat(@NonNull TrackType type) {
+        return super.getTrackFormat(type);
+    }
+
+    @Override
+    public synchronized void selectTrack(@NonNull TrackType type) {
+        super.selectTrack(type);
+    }
+
+    @Override
+    public synchronized long seekTo(long desiredTimestampUs) {
+        return super.seekTo(desiredTimestampUs);
+    }
+
+    @Override
+    public synchronized boolean canReadTrack(@NonNull TrackType type) {
+        return super.canReadTrack(type);
+    }
+
+    @Override
+    public synchronized void readTrack(@NonNull Chunk chunk) {
+        super.readTrack(chunk);
+    }
+
+    @Override
+    public synchronized long getReadUs() {
+        return super.getReadUs();
+    }
+
+    @Override
+    public synchronized boolean isDrained() {
+        return super.isDrained();
+    }
+
+    @Override
+    public synchronized void releaseTrack(@NonNull TrackType type) {
+        super.releaseTrack(type);
+    }
+
+    @Override
+    public synchronized void rewind() {
+        super.rewind();
+    }
+}
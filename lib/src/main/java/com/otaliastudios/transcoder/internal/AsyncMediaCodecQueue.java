@@ -0,0 +1,218 @@
+package com.otaliastudios.transcoder.internal;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayDeque;
+
+/**
+ * A {@link MediaCodecQueue} that uses the {@link MediaCodec.Callback} API.
+ * Callbacks are received on a dedicated thread and buffer indices are stored in
+ * queues, until they are dequeued by the transcoding thread. This removes the need
+ * to poll the codec and lets it process data while we are busy doing something else.
+ *
+ * When a new index is available, the optional {@link WorkSignal} is signaled so that
+ * the engine thread can wake up immediately.
+ *
+ * The callback methods ({@link #onInputBufferAvailable(int)} and so on) are public
+ * so that this class can be driven by something other than a real codec.
+ */
+public class AsyncMediaCodecQueue implements MediaCodecQueue {
+
+    private static final String TAG = AsyncMediaCodecQueue.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    /**
+     * Whether this class can be used on this device. We need
+     * {@link MediaCodec#setCallback(MediaCodec.Callback, Handler)}, which was added in API 23.
+     * @return true if supported
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= 23;
+    }
+
+    private static class Output {
+        private int index;
+        private int offset;
+        private int size;
+        private long presentationTimeUs;
+        private int flags;
+        private MediaFormat format;
+    }
+
+    private final Object mLock = new Object();
+    private final WorkSignal mSignal;
+    private HandlerThread mThread;
+
+    @GuardedBy("mLock") private final ArrayDeque<Integer> mInputs = new ArrayDeque<>();
+    @GuardedBy("mLock") private final ArrayDeque<Output> mOutputs = new ArrayDeque<>();
+    @GuardedBy("mLock") private final ArrayDeque<Output> mOutputPool = new ArrayDeque<>();
+    @GuardedBy("mLock") private RuntimeException mError;
+    private MediaFormat mOutputFormat;
+
+    public AsyncMediaCodecQueue(@Nullable WorkSignal signal) {
+        mSignal = signal;
+    }
+
+    /**
+     * Registers this queue as the codec callback. This must be called before
+     * {@link MediaCodec#configure(MediaFormat, android.view.Surface, android.media.MediaCrypto, int)}.
+     *
+     * @param codec the codec
+     * @param name a name for the callback thread
+     */
+    @RequiresApi(23)
+    public void attach(@NonNull MediaCodec codec, @NonNull String name) {
+        if (mThread != null) throw new IllegalStateException("Already attached.");
+        mThread = new HandlerThread(name);
+        mThread.start();
+        codec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+                AsyncMediaCodecQueue.this.onInputBufferAvailable(index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+                AsyncMediaCodecQueue.this.onOutputBufferAvailable(index, info);
+            }
+
+            @Override
+            public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+                AsyncMediaCodecQueue.this.onError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+                AsyncMediaCodecQueue.this.onOutputFormatChanged(format);
+            }
+        }, new Handler(mThread.getLooper()));
+    }
+
+    public void onInputBufferAvailable(int index) {
+        synchronized (mLock) {
+            mInputs.add(index);
+            mLock.notifyAll();
+        }
+        if (mSignal != null) mSignal.signal();
+    }
+
+    public void onOutputBufferAvailable(int index, @NonNull MediaCodec.BufferInfo info) {
+        synchronized (mLock) {
+            Output output = obtainOutput();
+            output.index = index;
+            output.offset = info.offset;
+            output.size = info.size;
+            output.presentationTimeUs = info.presentationTimeUs;
+            output.flags = info.flags;
+            mOutputs.add(output);
+            mLock.notifyAll();
+        }
+        if (mSignal != null) mSignal.signal();
+    }
+
+    public void onOutputFormatChanged(@NonNull MediaFormat format) {
+        synchronized (mLock) {
+            Output output = obtainOutput();
+            output.index = MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+            output.format = format;
+            mOutputs.add(output);
+            mLock.notifyAll();
+        }
+        if (mSignal != null) mSignal.signal();
+    }
+
+    public void onError(@NonNull RuntimeException error) {
+        LOG.e("Got codec error.", error);
+        synchronized (mLock) {
+            mError = error;
+            mLock.notifyAll();
+        }
+        if (mSignal != null) mSignal.signal();
+    }
+
+    @GuardedBy("mLock")
+    @NonNull
+    private Output obtainOutput() {
+        Output output = mOutputPool.poll();
+        return output != null ? output : new Output();
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        synchronized (mLock) {
+            awaitLocked(mInputs, timeoutUs);
+            Integer index = mInputs.poll();
+            return index != null ? index : MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+    }
+
+    @Override
+    public int dequeueOutputBuffer(@NonNull MediaCodec.BufferInfo info, long timeoutUs) {
+        synchronized (mLock) {
+            awaitLocked(mOutputs, timeoutUs);
+            Output output = mOutputs.poll();
+            if (output == null) return MediaCodec.INFO_TRY_AGAIN_LATER;
+            int index = output.index;
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                mOutputFormat = output.format;
+            } else {
+                info.set(output.offset, output.size, output.presentationTimeUs, output.flags);
+            }
+            output.format = null;
+            mOutputPool.add(output);
+            return index;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void awaitLocked(@NonNull ArrayDeque<?> queue, long timeoutUs) {
+        if (mError != null) throw mError;
+        if (!queue.isEmpty() || timeoutUs == 0) return;
+        long remainingNanos = timeoutUs * 1000L;
+        long deadline = System.nanoTime() + remainingNanos;
+        try {
+            while (queue.isEmpty() && mError == null && (timeoutUs < 0 || remainingNanos > 0)) {
+                if (timeoutUs < 0) {
+                    mLock.wait();
+                } else {
+                    mLock.wait(remainingNanos / 1000000L, (int) (remainingNanos % 1000000L));
+                    remainingNanos = deadline - System.nanoTime();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mError != null) throw mError;
+    }
+
+    @NonNull
+    @Override
+    public MediaFormat getOutputFormat() {
+        if (mOutputFormat == null) {
+            throw new IllegalStateException("Output format not available yet.");
+        }
+        return mOutputFormat;
+    }
+
+    @Override
+    public void release() {
+        if (mThread != null) {
+            mThread.quit();
+            mThread = null;
+        }
+        synchronized (mLock) {
+            mInputs.clear();
+            mOutputs.clear();
+            mOutputPool.clear();
+        }
+    }
+}
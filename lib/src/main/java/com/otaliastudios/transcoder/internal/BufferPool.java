@@ -0,0 +1,240 @@
+package com.otaliastudios.transcoder.internal;
+
+import androidx.annotation.NonNull;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A process-wide pool of direct buffers, shared by all transcoding operations.
+ *
+ * Buffers are grouped in size classes (powers of two), so that a buffer recycled by one
+ * operation can be reused by another one which needs a similar size.
+ *
+ * The memory held by the pool, that is buffers in use plus buffers waiting to be reused,
+ * is capped, see {@link #setMaxPooledBytes(long)}. When a new buffer would exceed the cap,
+ * pooled buffers are released first. Buffers in use are never taken back, so if they
+ * alone exceed the cap, new buffers are still allocated and nothing is pooled until
+ * enough of them are recycled.
+ *
+ * Buffers that are obtained must be passed back to {@link #recycle(ByteBuffer)}. Buffers that
+ * are garbage collected without being recycled are reported as leaks in the logs and in
+ * {@link #getLeakCount()}.
+ */
+public class BufferPool {
+
+    private static final String TAG = BufferPool.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    private static final int MIN_CLASS = 10; // 1KB
+    private static final int MAX_CLASS = 24; // 16MB
+
+    @SuppressWarnings("WeakerAccess")
+    public static final long DEFAULT_MAX_POOLED_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * Tracks an obtained buffer without preventing it from being collected.
+     */
+    private static class Lease extends WeakReference<ByteBuffer> {
+        private final int mCapacity;
+        private final String mOwner;
+
+        private Lease(@NonNull ByteBuffer buffer, @NonNull String owner,
+                      @NonNull ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            mCapacity = buffer.capacity();
+            mOwner = owner;
+        }
+    }
+
+    private static final Object sLock = new Object();
+    private static final List<ArrayDeque<ByteBuffer>> sPool = new ArrayList<>();
+    private static final List<Lease> sLeases = new ArrayList<>();
+    private static final ReferenceQueue<ByteBuffer> sCollected = new ReferenceQueue<>();
+    private static long sMaxPooledBytes = DEFAULT_MAX_POOLED_BYTES;
+    private static long sPooledBytes;
+    private static long sOutstandingBytes;
+    private static long sHits;
+    private static long sMisses;
+    private static long sLeaks;
+
+    static {
+        for (int i = 0; i <= MAX_CLASS; i++) {
+            sPool.add(new ArrayDeque<ByteBuffer>());
+        }
+    }
+
+    private BufferPool() {}
+
+    /**
+     * Sets the maximum amount of memory held by the pool, counting both the buffers
+     * in use and the pooled ones. Pooled buffers beyond this value are released, and
+     * recycled buffers are released instead of being pooled. Buffers in use are not
+     * affected. Defaults to {@link #DEFAULT_MAX_POOLED_BYTES}.
+     *
+     * @param maxPooledBytes the maximum number of bytes, or 0 to disable pooling
+     */
+    @SuppressWarnings("unused")
+    public static void setMaxPooledBytes(long maxPooledBytes) {
+        synchronized (sLock) {
+            sMaxPooledBytes = maxPooledBytes;
+            trimLocked(0);
+        }
+    }
+
+    /**
+     * Releases pooled buffers, largest first, until the held memory plus the given
+     * amount fits the cap or the pool is empty.
+     */
+    private static void trimLocked(long neededBytes) {
+        for (int i = MAX_CLASS; i >= MIN_CLASS && sPooledBytes > 0
+                && sOutstandingBytes + sPooledBytes + neededBytes > sMaxPooledBytes; i--) {
+            ArrayDeque<ByteBuffer> pool = sPool.get(i);
+            while (!pool.isEmpty()
+                    && sOutstandingBytes + sPooledBytes + neededBytes > sMaxPooledBytes) {
+                sPooledBytes -= pool.poll().capacity();
+            }
+        }
+    }
+
+    /**
+     * Returns a direct buffer in native order, with at least the given capacity.
+     * The buffer is cleared, but its contents are not.
+     *
+     * @param size the minimum capacity
+     * @param owner a name for the caller, used to report leaks
+     * @return a buffer
+     */
+    @NonNull
+    public static ByteBuffer obtain(int size, @NonNull String owner) {
+        int sizeClass = getSizeClass(size);
+        ByteBuffer buffer = null;
+        synchronized (sLock) {
+            pollCollected();
+            if (sizeClass <= MAX_CLASS) {
+                buffer = sPool.get(sizeClass).poll();
+            }
+            if (buffer != null) {
+                sHits++;
+                sPooledBytes -= buffer.capacity();
+            } else {
+                sMisses++;
+                // Make room for the new buffer.
+                trimLocked(sizeClass <= MAX_CLASS ? 1 << sizeClass : size);
+            }
+        }
+        if (buffer == null) {
+            int capacity = sizeClass <= MAX_CLASS ? 1 << sizeClass : size;
+            buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+        buffer.clear();
+        synchronized (sLock) {
+            sLeases.add(new Lease(buffer, owner, sCollected));
+            sOutstandingBytes += buffer.capacity();
+        }
+        return buffer;
+    }
+
+    /**
+     * Passes a buffer that was returned by {@link #obtain(int, String)} back to the pool.
+     * The buffer must not be used after this call.
+     *
+     * @param buffer a buffer
+     */
+    public static void recycle(@NonNull ByteBuffer buffer) {
+        synchronized (sLock) {
+            Lease lease = null;
+            for (int i = sLeases.size() - 1; i >= 0; i--) {
+                if (sLeases.get(i).get() == buffer) {
+                    lease = sLeases.remove(i);
+                    break;
+                }
+            }
+            if (lease == null) {
+                LOG.w("recycle - buffer was not obtained from the pool, or recycled twice.");
+                return;
+            }
+            lease.clear();
+            sOutstandingBytes -= lease.mCapacity;
+            int sizeClass = getSizeClass(lease.mCapacity);
+            if (sizeClass > MAX_CLASS) return;
+            if (sOutstandingBytes + sPooledBytes + lease.mCapacity > sMaxPooledBytes) return;
+            buffer.clear();
+            sPool.get(sizeClass).add(buffer);
+            sPooledBytes += lease.mCapacity;
+        }
+    }
+
+    private static int getSizeClass(int size) {
+        int sizeClass = MIN_CLASS;
+        while (sizeClass <= MAX_CLASS && (1 << sizeClass) < size) sizeClass++;
+        return sizeClass;
+    }
+
+    private static void pollCollected() {
+        Lease lease;
+        while ((lease = (Lease) sCollected.poll()) != null) {
+            if (!sLeases.remove(lease)) continue; // Recycled in the meantime.
+            sOutstandingBytes -= lease.mCapacity;
+            sLeaks++;
+            LOG.warning("Buffer of %d bytes obtained by %s was never recycled.", lease.mCapacity, lease.mOwner);
+        }
+    }
+
+    /**
+     * Returns the number of calls to {@link #obtain(int, String)} that were served by the pool.
+     * @return pool hits
+     */
+    public static long getHitCount() {
+        synchronized (sLock) {
+            return sHits;
+        }
+    }
+
+    /**
+     * Returns the number of calls to {@link #obtain(int, String)} that allocated a new buffer.
+     * @return pool misses
+     */
+    public static long getMissCount() {
+        synchronized (sLock) {
+            return sMisses;
+        }
+    }
+
+    /**
+     * Returns the capacity of the buffers that were obtained and not recycled yet.
+     * @return outstanding bytes
+     */
+    public static long getOutstandingBytes() {
+        synchronized (sLock) {
+            pollCollected();
+            return sOutstandingBytes;
+        }
+    }
+
+    /**
+     * Returns the capacity of the buffers that are currently held by the pool.
+     * @return pooled bytes
+     */
+    public static long getPooledBytes() {
+        synchronized (sLock) {
+            return sPooledBytes;
+        }
+    }
+
+    /**
+     * Returns the number of buffers that were garbage collected without being recycled.
+     * @return leaked buffers
+     */
+    public static long getLeakCount() {
+        synchronized (sLock) {
+            pollCollected();
+            return sLeaks;
+        }
+    }
+}
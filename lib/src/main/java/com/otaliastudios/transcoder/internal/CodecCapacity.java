@@ -0,0 +1,82 @@
+package com.otaliastudios.transcoder.internal;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Utilities to understand how many codec instances can be used at the same time
+ * on this device.
+ */
+public class CodecCapacity {
+
+    private static final String TAG = CodecCapacity.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    /**
+     * Returned by {@link #getMaxInstances(String, boolean)} when the
+     * capacity can not be determined.
+     */
+    public static final int UNKNOWN = -1;
+
+    private static final Map<String, Integer> sCache = new HashMap<>();
+
+    private CodecCapacity() {}
+
+    /**
+     * Returns the maximum number of instances that the default codec for the
+     * given mime type supports, or {@link #UNKNOWN}.
+     * This information is only available on API 23+.
+     *
+     * @param mime the mime type
+     * @param encoder true to look for encoders, false for decoders
+     * @return max instances or {@link #UNKNOWN}
+     */
+    public static int getMaxInstances(@NonNull String mime, boolean encoder) {
+        if (Build.VERSION.SDK_INT < 23) return UNKNOWN;
+        String key = mime + (encoder ? ":encoder" : ":decoder");
+        synchronized (sCache) {
+            Integer cached = sCache.get(key);
+            if (cached != null) return cached;
+        }
+        int result = UNKNOWN;
+        try {
+            MediaCodecInfo[] infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+            search: for (MediaCodecInfo info : infos) {
+                if (info.isEncoder() != encoder) continue;
+                for (String type : info.getSupportedTypes()) {
+                    if (type.equalsIgnoreCase(mime)) {
+                        // The first codec is the one chosen by createEncoderByType / createDecoderByType.
+                        result = info.getCapabilitiesForType(type).getMaxSupportedInstances();
+                        break search;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            LOG.w("Could not query codec capabilities for " + key, e);
+        }
+        LOG.info("getMaxInstances - %s: %d", key, result);
+        synchronized (sCache) {
+            sCache.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Caps the given value with the capacity of the given codec, if known.
+     *
+     * @param value the value to be capped
+     * @param mime the mime type
+     * @param encoder true to look for encoders, false for decoders
+     * @return the capped value
+     */
+    public static int cap(int value, @NonNull String mime, boolean encoder) {
+        int max = getMaxInstances(mime, encoder);
+        return max > 0 ? Math.min(value, max) : value;
+    }
+}
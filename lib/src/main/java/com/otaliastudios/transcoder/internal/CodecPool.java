@@ -0,0 +1,325 @@
+package com.otaliastudios.transcoder.internal;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.opengl.EGL14;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.otaliastudios.opengl.core.EglCore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps codecs and the EGL context alive between operations that run one after the other,
+ * or between the steps of an operation that concatenates several sources,
+ * so that they can be reused instead of being created again, see
+ * {@link com.otaliastudios.transcoder.Transcoder#transcodeBatch(java.util.List,
+ * com.otaliastudios.transcoder.TranscoderBatchListener)}.
+ *
+ * Codecs are returned to the pool in the stopped state, and are configured again
+ * by the next operation. This is much cheaper than releasing them and allocating a new
+ * component, especially for hardware encoders.
+ *
+ * Decoders that do not need an output surface can also be returned with their configuration,
+ * see {@link #getConfiguration(MediaFormat)}. These are flushed instead of stopped, and can be
+ * used right away by the next operation whose input has the same configuration.
+ *
+ * Codecs can be used from any thread. The EGL context is only shared with the thread that
+ * created the pool, because it can not be current on two threads at the same time.
+ *
+ * Codecs in the pool still hold a codec instance, so they are reported to the
+ * {@link CodecScheduler}, which might ask the pool to release them through
+ * {@link #evict(Set)} when other operations need these codecs.
+ */
+public class CodecPool implements CodecScheduler.Pool {
+
+    private static final String TAG = CodecPool.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    private static final String[] CONFIGURATION_KEYS = new String[]{
+            MediaFormat.KEY_MIME,
+            MediaFormat.KEY_WIDTH,
+            MediaFormat.KEY_HEIGHT,
+            MediaFormat.KEY_SAMPLE_RATE,
+            MediaFormat.KEY_CHANNEL_COUNT,
+            "csd-0",
+            "csd-1",
+            "csd-2"
+    };
+
+    private final Map<String, List<MediaCodec>> mCodecs = new HashMap<>();
+    private final Map<String, MediaCodec> mFlushedDecoders = new HashMap<>();
+    private final Map<String, String> mFlushedGroups = new HashMap<>();
+    private final Thread mThread = Thread.currentThread();
+    private EglCore mEglCore;
+    private boolean mReleased;
+    private int mCreated;
+    private int mReused;
+
+    /**
+     * Returns a stopped encoder for the given mime type, either from the pool or a new one.
+     *
+     * @param mime the output mime type
+     * @param asynchronous whether the codec will run in asynchronous mode
+     * @return an encoder
+     * @throws IOException if the encoder can not be created
+     */
+    @NonNull
+    public synchronized MediaCodec obtainEncoder(@NonNull String mime, boolean asynchronous) throws IOException {
+        MediaCodec codec = take(getKey(mime, true, asynchronous));
+        if (codec != null) return codec;
+        mCreated++;
+        return MediaCodec.createEncoderByType(mime);
+    }
+
+    /**
+     * Returns a stopped decoder for the given mime type, either from the pool or a new one.
+     *
+     * @param mime the input mime type
+     * @param asynchronous whether the codec will run in asynchronous mode
+     * @return a decoder
+     * @throws IOException if the decoder can not be created
+     */
+    @NonNull
+    public synchronized MediaCodec obtainDecoder(@NonNull String mime, boolean asynchronous) throws IOException {
+        MediaCodec codec = take(getKey(mime, false, asynchronous));
+        if (codec != null) return codec;
+        mCreated++;
+        return MediaCodec.createDecoderByType(mime);
+    }
+
+    /**
+     * Returns a started decoder that was recycled with the given configuration,
+     * and flushed so that it can receive new input, or null if there is none.
+     * Flushed decoders are only kept in synchronous mode.
+     *
+     * @param configuration the input configuration, see {@link #getConfiguration(MediaFormat)}
+     * @return a decoder or null
+     */
+    @Nullable
+    public synchronized MediaCodec obtainFlushedDecoder(@NonNull String configuration) {
+        if (mReleased) throw new IllegalStateException("Pool was released.");
+        MediaCodec codec = mFlushedDecoders.remove(configuration);
+        if (codec != null) {
+            CodecScheduler.unpark(this, mFlushedGroups.remove(configuration));
+            mReused++;
+            LOG.verbose("obtainFlushedDecoder: reusing decoder %s.", configuration);
+        }
+        return codec;
+    }
+
+    /**
+     * Returns a started decoder to the pool, keeping its configuration, so that it can be
+     * obtained with {@link #obtainFlushedDecoder(String)}. If this is not possible, the decoder
+     * is recycled as in {@link #recycle(MediaCodec, String, boolean, boolean, boolean)}.
+     *
+     * @param codec the decoder
+     * @param mime the decoder mime type
+     * @param asynchronous whether the codec was running in asynchronous mode
+     * @param configuration the input configuration, see {@link #getConfiguration(MediaFormat)}
+     */
+    public synchronized void recycleConfigured(@NonNull MediaCodec codec,
+                                               @NonNull String mime,
+                                               boolean asynchronous,
+                                               @NonNull String configuration) {
+        // In asynchronous mode, buffers would have to be collected again after flushing.
+        if (!mReleased && !asynchronous && !mFlushedDecoders.containsKey(configuration)) {
+            try {
+                codec.flush();
+                String group = CodecScheduler.getGroup(mime, false);
+                mFlushedDecoders.put(configuration, codec);
+                mFlushedGroups.put(configuration, group);
+                CodecScheduler.park(this, group);
+                return;
+            } catch (IllegalStateException e) {
+                LOG.w("recycleConfigured: could not flush the decoder.", e);
+            }
+        }
+        recycle(codec, mime, false, asynchronous, true);
+    }
+
+    /**
+     * Returns a codec that was obtained from {@link #obtainEncoder(String, boolean)} or
+     * {@link #obtainDecoder(String, boolean)} to the pool, stopping it.
+     * Codecs that were not started might be in an unknown state, so they are released,
+     * as well as codecs that can not be stopped and codecs recycled after {@link #release()}.
+     *
+     * @param codec the codec
+     * @param mime the codec mime type
+     * @param encoder true for encoders
+     * @param asynchronous whether the codec was running in asynchronous mode
+     * @param started whether the codec was started
+     */
+    public synchronized void recycle(@NonNull MediaCodec codec,
+                                     @NonNull String mime,
+                                     boolean encoder,
+                                     boolean asynchronous,
+                                     boolean started) {
+        if (started) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                LOG.w("recycle: could not stop the codec, releasing it.", e);
+                started = false;
+            }
+        }
+        if (!started || mReleased) {
+            codec.release();
+            return;
+        }
+        String key = getKey(mime, encoder, asynchronous);
+        List<MediaCodec> codecs = mCodecs.get(key);
+        if (codecs == null) {
+            codecs = new ArrayList<>();
+            mCodecs.put(key, codecs);
+        }
+        codecs.add(codec);
+        CodecScheduler.park(this, CodecScheduler.getGroup(mime, encoder));
+    }
+
+    /**
+     * Returns an EGL context that can be shared by the video operations of this pool,
+     * or null if the current thread is not the one that created the pool.
+     * The context is released by {@link #release()}.
+     *
+     * @return the shared context, or null
+     */
+    @Nullable
+    public synchronized EglCore obtainEglCore() {
+        if (mReleased || Thread.currentThread() != mThread) return null;
+        if (mEglCore == null) {
+            mEglCore = new EglCore(EGL14.EGL_NO_CONTEXT, EglCore.FLAG_RECORDABLE);
+        }
+        return mEglCore;
+    }
+
+    /**
+     * Returns the number of codecs that were reused instead of being created.
+     * @return reused codecs
+     */
+    public synchronized int getReuseCount() {
+        return mReused;
+    }
+
+    /**
+     * Releases all the codecs in the pool and the EGL context.
+     * Codecs that are recycled later are released immediately.
+     */
+    public synchronized void release() {
+        if (mReleased) return;
+        mReleased = true;
+        LOG.info("release: created %d codecs, reused %d.", mCreated, mReused);
+        releaseCodecs(null);
+        if (mEglCore != null) {
+            mEglCore.release();
+            mEglCore = null;
+        }
+    }
+
+    /**
+     * Releases the codecs of the given groups, see {@link CodecScheduler#getGroup(String, boolean)}.
+     * Called by the {@link CodecScheduler} when other operations are waiting for these codecs.
+     * The pool can still be used after this.
+     *
+     * @param groups the codec groups
+     */
+    @Override
+    public synchronized void evict(@NonNull Set<String> groups) {
+        int evicted = releaseCodecs(groups);
+        LOG.info("evict: released %d codecs of %s.", evicted, groups);
+    }
+
+    /**
+     * Releases the codecs of the given groups, or all codecs if groups is null.
+     */
+    private int releaseCodecs(@Nullable Set<String> groups) {
+        int released = 0;
+        for (Map.Entry<String, List<MediaCodec>> entry : mCodecs.entrySet()) {
+            String group = getGroup(entry.getKey());
+            if (groups != null && !groups.contains(group)) continue;
+            for (MediaCodec codec : entry.getValue()) {
+                codec.release();
+                CodecScheduler.unpark(this, group);
+                released++;
+            }
+            entry.getValue().clear();
+        }
+        Iterator<Map.Entry<String, MediaCodec>> iterator = mFlushedDecoders.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, MediaCodec> entry = iterator.next();
+            String group = mFlushedGroups.get(entry.getKey());
+            if (groups != null && !groups.contains(group)) continue;
+            try {
+                entry.getValue().stop();
+            } catch (IllegalStateException ignore) {}
+            entry.getValue().release();
+            CodecScheduler.unpark(this, group);
+            mFlushedGroups.remove(entry.getKey());
+            iterator.remove();
+            released++;
+        }
+        return released;
+    }
+
+    @Nullable
+    private synchronized MediaCodec take(@NonNull String key) {
+        if (mReleased) throw new IllegalStateException("Pool was released.");
+        List<MediaCodec> codecs = mCodecs.get(key);
+        if (codecs == null || codecs.isEmpty()) return null;
+        mReused++;
+        LOG.verbose("take: reusing codec %s.", key);
+        CodecScheduler.unpark(this, getGroup(key));
+        return codecs.remove(codecs.size() - 1);
+    }
+
+    @NonNull
+    private static String getKey(@NonNull String mime, boolean encoder, boolean asynchronous) {
+        // The callback of asynchronous codecs can not be removed on all API levels,
+        // so they are kept apart.
+        return CodecScheduler.getGroup(mime, encoder) + (asynchronous ? ":async" : ":sync");
+    }
+
+    @NonNull
+    private static String getGroup(@NonNull String key) {
+        return key.substring(0, key.lastIndexOf(':'));
+    }
+
+    /**
+     * Returns a string that identifies the configuration of a decoder for the given input
+     * format: two formats with the same configuration can be decoded by the same decoder
+     * without configuring it again.
+     *
+     * @param format an input format
+     * @return the configuration
+     */
+    @NonNull
+    public static String getConfiguration(@NonNull MediaFormat format) {
+        StringBuilder builder = new StringBuilder();
+        for (String key : CONFIGURATION_KEYS) {
+            builder.append(key).append('=');
+            if (!format.containsKey(key)) {
+                builder.append("null");
+            } else if (key.startsWith("csd-")) {
+                ByteBuffer buffer = format.getByteBuffer(key).duplicate();
+                while (buffer.hasRemaining()) {
+                    builder.append(Integer.toHexString(buffer.get() & 0xFF)).append(' ');
+                }
+            } else if (key.equals(MediaFormat.KEY_MIME)) {
+                builder.append(format.getString(key));
+            } else {
+                builder.append(format.getInteger(key));
+            }
+            builder.append(';');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,558 @@
+package com.otaliastudios.transcoder.internal;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Admits transcoding operations according to the codec instances that they need,
+ * so that we do not run more operations than the device can handle.
+ *
+ * Codecs are grouped by role (encoder or decoder) and mime type. Each group is limited by
+ * the number of instances that the device reports, see {@link CodecCapacity}. Video codecs
+ * are further split by resolution class, and each class has a limit which adapts to failures:
+ * when a codec can not be created or configured while other operations hold the same class,
+ * the limit of that codec is lowered to what was running, and it is slowly raised again after
+ * successful operations.
+ *
+ * Operations that do not fit wait, and are admitted in priority order. An operation that
+ * does not fit reserves its codecs, so that operations with a lower priority can not take them,
+ * while operations that need other codecs can still run.
+ *
+ * Codecs that are parked in a {@link CodecPool} still hold a codec instance. They are charged
+ * against the group limits while no admitted operation uses their pool, except for the
+ * operation that brings the pool, which will reuse them. When an operation only waits because
+ * of codecs parked in other pools, these are released.
+ *
+ * Waiting operations block their thread. Executors can register a {@link WaitListener}
+ * on their worker threads, so that a worker that waits for codecs is not counted
+ * against the executor size.
+ */
+public class CodecScheduler {
+
+    private static final String TAG = CodecScheduler.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    // Successful operations needed to raise an adapted limit by one.
+    private static final int RECOVERY_SUCCESSES = 8;
+
+    private static final String CLASS_SD = "sd";
+    private static final String CLASS_HD = "hd";
+    private static final String CLASS_FHD = "fhd";
+    private static final String CLASS_UHD = "uhd";
+
+    /**
+     * A codec that an operation needs.
+     */
+    public static class Resource {
+        private final String mGroup;
+        private final String mKey;
+        private final String mMime;
+        private final boolean mEncoder;
+
+        private Resource(@NonNull String mime, boolean encoder, @NonNull String resolutionClass) {
+            mMime = mime;
+            mEncoder = encoder;
+            mGroup = getGroup(mime, encoder);
+            mKey = resolutionClass.isEmpty() ? mGroup : mGroup + ":" + resolutionClass;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Resource && ((Resource) obj).mKey.equals(mKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return mKey.hashCode();
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return mKey;
+        }
+    }
+
+    /**
+     * The codecs held by an admitted operation, to be passed to
+     * {@link #release(Ticket)} when the operation is over.
+     */
+    public static class Ticket {
+        private final List<Resource> mResources;
+        private final int mPriority;
+        private final long mSequence;
+        private final Pool mPool;
+        private final Map<Pool, Set<String>> mEvictions = new HashMap<>();
+        private Ticket mSuspended;
+        private boolean mAdmitted;
+        private boolean mFailed;
+        private boolean mReleased;
+
+        private Ticket(@NonNull List<Resource> resources, int priority, long sequence,
+                       @Nullable Pool pool) {
+            mResources = resources;
+            mPriority = priority;
+            mSequence = sequence;
+            mPool = pool;
+        }
+    }
+
+    /**
+     * Keeps codecs alive between operations, like {@link CodecPool}. Pools report the codecs
+     * that they hold with {@link #park(Pool, String)} and {@link #unpark(Pool, String)}.
+     */
+    public interface Pool {
+
+        /**
+         * Called when other operations need the codecs of the given groups,
+         * which should be released. This is called without holding the scheduler lock.
+         *
+         * @param groups the codec groups, see {@link #getGroup(String, boolean)}
+         */
+        void evict(@NonNull Set<String> groups);
+    }
+
+    /**
+     * Notified when the current thread starts and stops waiting for codecs.
+     * See {@link #setWaitListener(WaitListener)}.
+     */
+    public interface WaitListener {
+        void onWaitStarted();
+        void onWaitEnded();
+    }
+
+    private static final ThreadLocal<WaitListener> sWaitListener = new ThreadLocal<>();
+    private static final Object sLock = new Object();
+    private static final List<Ticket> sWaiting = new ArrayList<>();
+    private static final Map<String, Integer> sInUse = new HashMap<>();
+    private static final Map<String, Integer> sGroupLimits = new HashMap<>();
+    private static final Map<String, Integer> sLimits = new HashMap<>();
+    private static final Map<String, Integer> sSuccesses = new HashMap<>();
+    private static final Map<Pool, Map<String, Integer>> sParked = new HashMap<>();
+    private static final Map<Pool, Integer> sPoolTickets = new HashMap<>();
+    private static long sSequence;
+
+    private CodecScheduler() {}
+
+    /**
+     * Creates the resource for a codec that will encode into or decode from the given format.
+     *
+     * @param format the encoder output format, or the decoder input format
+     * @param encoder true for encoders
+     * @return a resource
+     */
+    @NonNull
+    public static Resource createResource(@NonNull MediaFormat format, boolean encoder) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        String resolutionClass = "";
+        if (format.containsKey(MediaFormat.KEY_WIDTH) && format.containsKey(MediaFormat.KEY_HEIGHT)) {
+            resolutionClass = getResolutionClass(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT));
+        }
+        return new Resource(mime, encoder, resolutionClass);
+    }
+
+    @NonNull
+    static String getGroup(@NonNull String mime, boolean encoder) {
+        return (encoder ? "encoder:" : "decoder:") + mime;
+    }
+
+    @NonNull
+    private static String getResolutionClass(int width, int height) {
+        long pixels = (long) width * height;
+        if (pixels <= 720 * 576) return CLASS_SD;
+        if (pixels <= 1280 * 720) return CLASS_HD;
+        if (pixels <= 1920 * 1088) return CLASS_FHD;
+        return CLASS_UHD;
+    }
+
+    /**
+     * Sets a listener for the current thread, which is notified when {@link #acquire(List, int)}
+     * or {@link #resume(Ticket)} have to wait. Executors can use this to run another task
+     * while their worker is blocked.
+     *
+     * @param listener a listener, or null to remove it
+     */
+    public static void setWaitListener(@Nullable WaitListener listener) {
+        sWaitListener.set(listener);
+    }
+
+    /**
+     * Blocks until the given codecs are available, then marks them as used.
+     * Operations with a higher priority are admitted first.
+     *
+     * @param resources the codecs needed by the operation
+     * @param priority the operation priority
+     * @return a ticket for {@link #release(Ticket)}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @NonNull
+    public static Ticket acquire(@NonNull List<Resource> resources, int priority)
+            throws InterruptedException {
+        return acquire(resources, priority, null);
+    }
+
+    /**
+     * Like {@link #acquire(List, int)}, for an operation that takes its codecs from the
+     * given pool. Codecs parked in this pool are not charged against this operation.
+     *
+     * @param resources the codecs needed by the operation
+     * @param priority the operation priority
+     * @param pool the pool used by the operation, if any
+     * @return a ticket for {@link #release(Ticket)}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @NonNull
+    public static Ticket acquire(@NonNull List<Resource> resources, int priority,
+                                 @Nullable Pool pool) throws InterruptedException {
+        // Duplicates would be counted twice, but they are only used once at a time.
+        List<Resource> unique = new ArrayList<>(new HashSet<>(resources));
+        Ticket ticket;
+        synchronized (sLock) {
+            ticket = new Ticket(unique, priority, sSequence++, pool);
+            sWaiting.add(ticket);
+            dispatch();
+            if (!ticket.mAdmitted) {
+                LOG.info("acquire: waiting for %s (priority %d).", unique, priority);
+            }
+        }
+        await(ticket);
+        return ticket;
+    }
+
+    /**
+     * Marks some of the codecs of an admitted operation as available, while the operation
+     * does not need them, for example because it is paused. They must be acquired again
+     * with {@link #resume(Ticket)} before being used. While suspended, the codecs parked in
+     * the operation pool are charged against other operations, and can be released.
+     *
+     * @param ticket the operation ticket
+     * @param resources the codecs that are not needed
+     */
+    public static void suspend(@NonNull Ticket ticket, @NonNull List<Resource> resources) {
+        synchronized (sLock) {
+            if (!ticket.mAdmitted || ticket.mReleased || ticket.mSuspended != null) return;
+            List<Resource> suspended = new ArrayList<>();
+            for (Resource resource : resources) {
+                if (ticket.mResources.remove(resource)) {
+                    use(resource, -1);
+                    suspended.add(resource);
+                }
+            }
+            ticket.mSuspended = new Ticket(suspended, ticket.mPriority, sSequence++, ticket.mPool);
+            if (ticket.mPool != null) removePoolTicket(ticket.mPool);
+            LOG.info("suspend: released %s.", suspended);
+            dispatch();
+        }
+    }
+
+    /**
+     * Blocks until the codecs passed to {@link #suspend(Ticket, List)} are available again,
+     * then marks them as used. Does nothing if the ticket was not suspended.
+     *
+     * @param ticket the operation ticket
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static void resume(@NonNull Ticket ticket) throws InterruptedException {
+        Ticket suspended;
+        synchronized (sLock) {
+            suspended = ticket.mSuspended;
+            if (suspended == null || ticket.mReleased) return;
+            sWaiting.add(suspended);
+            dispatch();
+        }
+        await(suspended);
+        synchronized (sLock) {
+            ticket.mResources.addAll(suspended.mResources);
+            ticket.mSuspended = null;
+        }
+    }
+
+    private static void await(@NonNull Ticket ticket) throws InterruptedException {
+        WaitListener listener = sWaitListener.get();
+        synchronized (sLock) {
+            if (ticket.mAdmitted) return;
+        }
+        if (listener != null) listener.onWaitStarted();
+        try {
+            while (true) {
+                Map<Pool, Set<String>> evictions;
+                synchronized (sLock) {
+                    if (ticket.mAdmitted) return;
+                    if (ticket.mEvictions.isEmpty()) {
+                        sLock.wait();
+                        continue;
+                    }
+                    evictions = new HashMap<>(ticket.mEvictions);
+                    ticket.mEvictions.clear();
+                }
+                // Pools call back into the scheduler, so we must not hold the lock here.
+                for (Map.Entry<Pool, Set<String>> entry : evictions.entrySet()) {
+                    entry.getKey().evict(entry.getValue());
+                }
+            }
+        } catch (InterruptedException e) {
+            synchronized (sLock) {
+                if (ticket.mAdmitted) {
+                    release(ticket);
+                } else {
+                    sWaiting.remove(ticket);
+                    dispatch();
+                }
+            }
+            throw e;
+        } finally {
+            if (listener != null) listener.onWaitEnded();
+        }
+    }
+
+    /**
+     * Should be called by pools when a codec is parked, which means that it keeps holding
+     * a codec instance while no operation uses it.
+     *
+     * @param pool the pool
+     * @param group the codec group, see {@link #getGroup(String, boolean)}
+     */
+    static void park(@NonNull Pool pool, @NonNull String group) {
+        synchronized (sLock) {
+            Map<String, Integer> parked = sParked.get(pool);
+            if (parked == null) {
+                parked = new HashMap<>();
+                sParked.put(pool, parked);
+            }
+            parked.put(group, get(parked, group, 0) + 1);
+        }
+    }
+
+    /**
+     * Should be called by pools when a parked codec is taken or released.
+     *
+     * @param pool the pool
+     * @param group the codec group, see {@link #getGroup(String, boolean)}
+     */
+    static void unpark(@NonNull Pool pool, @NonNull String group) {
+        synchronized (sLock) {
+            Map<String, Integer> parked = sParked.get(pool);
+            if (parked == null) return;
+            int count = get(parked, group, 0) - 1;
+            if (count > 0) {
+                parked.put(group, count);
+            } else {
+                parked.remove(group);
+                if (parked.isEmpty()) sParked.remove(pool);
+            }
+            dispatch();
+        }
+    }
+
+    /**
+     * Should be called when a codec of an admitted operation could not be set up.
+     * If the error means that the codec could not be created or configured, and other
+     * operations were using the same codec, this is likely a capacity issue and the limit
+     * of this codec is lowered. Other errors are not related to capacity and are ignored.
+     *
+     * @param ticket the operation ticket
+     * @param resource the codec that failed
+     * @param error the setup error
+     */
+    public static void reportFailure(@NonNull Ticket ticket, @NonNull Resource resource,
+                                     @NonNull Throwable error) {
+        if (!isCapacityError(error)) {
+            LOG.i("reportFailure: ignoring error, not related to capacity.", error);
+            return;
+        }
+        synchronized (sLock) {
+            if (ticket.mFailed || ticket.mReleased) return;
+            if (!ticket.mResources.contains(resource)) return;
+            ticket.mFailed = true;
+            int inUse = get(sInUse, resource.mKey, 0);
+            if (inUse <= 1) return;
+            int limit = inUse - 1;
+            sLimits.put(resource.mKey, limit);
+            sSuccesses.remove(resource.mKey);
+            LOG.warning("reportFailure: lowering the limit of %s to %d.", resource, limit);
+        }
+    }
+
+    /**
+     * Codecs that can not be created throw {@link IOException}, which transcoders wrap, and
+     * codecs that can not be configured throw {@link MediaCodec.CodecException} on API 21+.
+     */
+    private static boolean isCapacityError(@NonNull Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) return true;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                    && cause instanceof MediaCodec.CodecException) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks the codecs of an admitted operation as available again.
+     * If the operation did not report failures, adapted limits can be raised.
+     *
+     * @param ticket the operation ticket
+     */
+    public static void release(@NonNull Ticket ticket) {
+        synchronized (sLock) {
+            if (ticket.mReleased) return;
+            ticket.mReleased = true;
+            // Suspended tickets were already removed from their pool.
+            if (ticket.mPool != null && ticket.mSuspended == null) {
+                removePoolTicket(ticket.mPool);
+            }
+            for (Resource resource : ticket.mResources) {
+                use(resource, -1);
+                if (!ticket.mFailed) recover(resource);
+            }
+            dispatch();
+        }
+    }
+
+    private static void removePoolTicket(@NonNull Pool pool) {
+        int tickets = sPoolTickets.get(pool) - 1;
+        if (tickets > 0) {
+            sPoolTickets.put(pool, tickets);
+        } else {
+            sPoolTickets.remove(pool);
+        }
+    }
+
+    private static void recover(@NonNull Resource resource) {
+        Integer limit = sLimits.get(resource.mKey);
+        if (limit == null || limit >= getGroupLimit(resource)) return;
+        int successes = get(sSuccesses, resource.mKey, 0) + 1;
+        if (successes < RECOVERY_SUCCESSES) {
+            sSuccesses.put(resource.mKey, successes);
+        } else {
+            sSuccesses.remove(resource.mKey);
+            sLimits.put(resource.mKey, limit + 1);
+            LOG.info("recover: raising the limit of %s to %d.", resource, limit + 1);
+        }
+    }
+
+    private static void dispatch() {
+        if (sWaiting.isEmpty()) return;
+        List<Ticket> waiting = new ArrayList<>(sWaiting);
+        Collections.sort(waiting, new Comparator<Ticket>() {
+            @Override
+            public int compare(Ticket first, Ticket second) {
+                if (first.mPriority != second.mPriority) {
+                    return first.mPriority > second.mPriority ? -1 : 1;
+                }
+                return first.mSequence < second.mSequence ? -1 : 1;
+            }
+        });
+        Set<String> reserved = new HashSet<>();
+        boolean notify = false;
+        for (Ticket ticket : waiting) {
+            if (fits(ticket, reserved, true)) {
+                for (Resource resource : ticket.mResources) {
+                    use(resource, 1);
+                }
+                if (ticket.mPool != null) {
+                    Integer tickets = sPoolTickets.get(ticket.mPool);
+                    sPoolTickets.put(ticket.mPool, tickets == null ? 1 : tickets + 1);
+                }
+                ticket.mAdmitted = true;
+                sWaiting.remove(ticket);
+                notify = true;
+            } else {
+                // If only parked codecs are in the way, ask the ticket thread to release them.
+                if (fits(ticket, reserved, false) && addEvictions(ticket)) {
+                    notify = true;
+                }
+                for (Resource resource : ticket.mResources) {
+                    reserved.add(resource.mKey);
+                    reserved.add(resource.mGroup);
+                }
+            }
+        }
+        if (notify) sLock.notifyAll();
+    }
+
+    private static boolean fits(@NonNull Ticket ticket, @NonNull Set<String> reserved, boolean countParked) {
+        for (Resource resource : ticket.mResources) {
+            if (reserved.contains(resource.mKey) || reserved.contains(resource.mGroup)) return false;
+            // Always admit an operation when nothing else is using these codecs,
+            // or it could wait forever.
+            int keyInUse = get(sInUse, resource.mKey, 0);
+            int groupInUse = get(sInUse, resource.mGroup, 0);
+            if (countParked) groupInUse += getParked(resource.mGroup, ticket.mPool);
+            if (keyInUse > 0 && keyInUse >= get(sLimits, resource.mKey, Integer.MAX_VALUE)) return false;
+            if (groupInUse > 0 && groupInUse >= getGroupLimit(resource)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the codecs of the given group that are parked in pools that no admitted
+     * operation is using, except for the given pool.
+     */
+    private static int getParked(@NonNull String group, @Nullable Pool except) {
+        int count = 0;
+        for (Map.Entry<Pool, Map<String, Integer>> entry : sParked.entrySet()) {
+            if (entry.getKey() == except || sPoolTickets.containsKey(entry.getKey())) continue;
+            count += get(entry.getValue(), group, 0);
+        }
+        return count;
+    }
+
+    /**
+     * Collects the parked codecs that are charged against the ticket groups, so that
+     * the ticket thread releases them. Returns true if there is something to release.
+     */
+    private static boolean addEvictions(@NonNull Ticket ticket) {
+        boolean added = false;
+        for (Resource resource : ticket.mResources) {
+            for (Map.Entry<Pool, Map<String, Integer>> entry : sParked.entrySet()) {
+                Pool pool = entry.getKey();
+                if (pool == ticket.mPool || sPoolTickets.containsKey(pool)) continue;
+                if (get(entry.getValue(), resource.mGroup, 0) == 0) continue;
+                Set<String> groups = ticket.mEvictions.get(pool);
+                if (groups == null) {
+                    groups = new HashSet<>();
+                    ticket.mEvictions.put(pool, groups);
+                }
+                added |= groups.add(resource.mGroup);
+            }
+        }
+        return added;
+    }
+
+    private static void use(@NonNull Resource resource, int delta) {
+        sInUse.put(resource.mKey, get(sInUse, resource.mKey, 0) + delta);
+        if (!resource.mKey.equals(resource.mGroup)) {
+            sInUse.put(resource.mGroup, get(sInUse, resource.mGroup, 0) + delta);
+        }
+    }
+
+    private static int getGroupLimit(@NonNull Resource resource) {
+        Integer limit = sGroupLimits.get(resource.mGroup);
+        if (limit == null) {
+            int max = CodecCapacity.getMaxInstances(resource.mMime, resource.mEncoder);
+            limit = max > 0 ? max : Integer.MAX_VALUE;
+            sGroupLimits.put(resource.mGroup, limit);
+        }
+        return limit;
+    }
+
+    private static int get(@NonNull Map<String, Integer> map, @NonNull String key, int fallback) {
+        Integer value = map.get(key);
+        return value == null ? fallback : value;
+    }
+}
@@ -0,0 +1,134 @@
+package com.otaliastudios.transcoder.internal;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.transcoder.engine.TrackType;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Checks whether samples coming from different formats can be written into
+ * the same output track without being decoded, which requires them to share
+ * the codec configuration data.
+ */
+public class FormatCompatibility {
+
+    private static final String[] CSD_KEYS = new String[]{"csd-0", "csd-1", "csd-2"};
+
+    /**
+     * Returns true if all the given formats can be concatenated into a single
+     * track by copying their samples. This means same mime type, same codec specific data
+     * and same size (for video) or sample rate and channel count (for audio).
+     *
+     * @param type the track type
+     * @param formats the input formats
+     * @return true if compatible
+     */
+    public static boolean canConcatenate(@NonNull TrackType type, @NonNull List<MediaFormat> formats) {
+        if (formats.isEmpty()) return false;
+        MediaFormat first = formats.get(0);
+        for (int i = 1; i < formats.size(); i++) {
+            MediaFormat other = formats.get(i);
+            if (!hasSameCodecConfig(first, other)) return false;
+            switch (type) {
+                case VIDEO:
+                    if (!hasSameInteger(first, other, MediaFormat.KEY_WIDTH)
+                            || !hasSameInteger(first, other, MediaFormat.KEY_HEIGHT)
+                            || !hasSameInteger(first, other, MediaFormatConstants.KEY_ROTATION_DEGREES)) {
+                        return false;
+                    }
+                    break;
+                case AUDIO:
+                    if (!hasSameInteger(first, other, MediaFormat.KEY_SAMPLE_RATE)
+                            || !hasSameInteger(first, other, MediaFormat.KEY_CHANNEL_COUNT)) {
+                        return false;
+                    }
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the two formats have the same mime type and codec specific data.
+     * For AVC, the SPS and PPS are compared regardless of the start code length.
+     *
+     * @param first a format
+     * @param second another format
+     * @return true if the codec configuration is the same
+     */
+    public static boolean hasSameCodecConfig(@NonNull MediaFormat first, @NonNull MediaFormat second) {
+        String mime = first.getString(MediaFormat.KEY_MIME);
+        if (mime == null || !mime.equals(second.getString(MediaFormat.KEY_MIME))) {
+            return false;
+        }
+        if (MediaFormatConstants.MIMETYPE_VIDEO_AVC.equals(mime)
+                && first.containsKey(MediaFormatConstants.KEY_AVC_SPS)
+                && second.containsKey(MediaFormatConstants.KEY_AVC_SPS)) {
+            try {
+                ByteBuffer firstSps = AvcCsdUtils.getSpsBuffer(first);
+                ByteBuffer secondSps = AvcCsdUtils.getSpsBuffer(second);
+                if (!firstSps.equals(secondSps)) return false;
+                return hasSameNalUnit(first, second, MediaFormatConstants.KEY_AVC_PPS);
+            } catch (IllegalStateException e) {
+                // Not in Annex B format. Just compare the raw bytes.
+                return hasSameBuffers(first, second);
+            }
+        }
+        return hasSameBuffers(first, second);
+    }
+
+    private static boolean hasSameBuffers(@NonNull MediaFormat first, @NonNull MediaFormat second) {
+        for (String key : CSD_KEYS) {
+            boolean firstHas = first.containsKey(key);
+            if (firstHas != second.containsKey(key)) return false;
+            if (firstHas && !getBuffer(first, key).equals(getBuffer(second, key))) return false;
+        }
+        return true;
+    }
+
+    private static boolean hasSameNalUnit(@NonNull MediaFormat first,
+                                          @NonNull MediaFormat second,
+                                          @NonNull String key) {
+        boolean firstHas = first.containsKey(key);
+        if (firstHas != second.containsKey(key)) return false;
+        if (!firstHas) return true;
+        return skipStartCode(getBuffer(first, key)).equals(skipStartCode(getBuffer(second, key)));
+    }
+
+    private static boolean hasSameInteger(@NonNull MediaFormat first,
+                                          @NonNull MediaFormat second,
+                                          @NonNull String key) {
+        boolean firstHas = first.containsKey(key);
+        if (firstHas != second.containsKey(key)) return false;
+        return !firstHas || first.getInteger(key) == second.getInteger(key);
+    }
+
+    @NonNull
+    private static ByteBuffer getBuffer(@NonNull MediaFormat format, @NonNull String key) {
+        ByteBuffer buffer = format.getByteBuffer(key).duplicate();
+        buffer.rewind();
+        return buffer;
+    }
+
+    @NonNull
+    private static ByteBuffer skipStartCode(@NonNull ByteBuffer buffer) {
+        int zeros = 0;
+        while (buffer.remaining() > 0 && buffer.get(buffer.position()) == 0) {
+            buffer.get();
+            zeros++;
+        }
+        if (zeros >= 2 && buffer.remaining() > 0 && buffer.get(buffer.position()) == 1) {
+            buffer.get();
+        } else {
+            buffer.rewind();
+        }
+        return buffer.slice();
+    }
+
+    private FormatCompatibility() {
+    }
+}
@@ -0,0 +1,128 @@
+package com.otaliastudios.transcoder.internal;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pause, resume and cancel requests for a running operation, shared between
+ * the {@link com.otaliastudios.transcoder.TranscoderJob} and the engines.
+ *
+ * Engines check the state at each loop, and register their {@link WorkSignal}s
+ * so that they are woken up as soon as something is requested.
+ */
+public class JobControl {
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final List<WorkSignal> mSignals = new ArrayList<>();
+    private volatile boolean mPaused;
+    private volatile boolean mCheckpoint;
+    private volatile boolean mCanceled;
+
+    /**
+     * Registers a signal to be notified of any request.
+     * @param signal the signal
+     */
+    public void register(@NonNull WorkSignal signal) {
+        synchronized (mLock) {
+            mSignals.add(signal);
+        }
+    }
+
+    /**
+     * Unregisters a signal that was passed to {@link #register(WorkSignal)}.
+     * @param signal the signal
+     */
+    public void unregister(@NonNull WorkSignal signal) {
+        synchronized (mLock) {
+            mSignals.remove(signal);
+        }
+    }
+
+    /**
+     * Requests a pause.
+     * @param checkpoint true if codecs should be released while paused
+     */
+    public void pause(boolean checkpoint) {
+        synchronized (mLock) {
+            if (mCanceled) return;
+            mPaused = true;
+            mCheckpoint = checkpoint;
+            signal();
+        }
+    }
+
+    /**
+     * Resumes the operation after {@link #pause(boolean)}.
+     */
+    public void resume() {
+        synchronized (mLock) {
+            mPaused = false;
+            mCheckpoint = false;
+            mLock.notifyAll();
+            signal();
+        }
+    }
+
+    /**
+     * Requests the operation to stop as soon as possible.
+     */
+    public void cancel() {
+        synchronized (mLock) {
+            mCanceled = true;
+            mPaused = false;
+            mLock.notifyAll();
+            signal();
+        }
+    }
+
+    /**
+     * Returns true if a pause was requested and the operation was not resumed.
+     * @return true if paused
+     */
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Returns true if the current pause should release codecs,
+     * checkpointing the position in the sources.
+     * @return true if checkpointing
+     */
+    public boolean isCheckpointRequested() {
+        return mPaused && mCheckpoint;
+    }
+
+    /**
+     * Returns true if the operation was canceled.
+     * @return true if canceled
+     */
+    public boolean isCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * Blocks until the operation is resumed.
+     *
+     * @throws InterruptedException if canceled or interrupted while waiting
+     */
+    public void awaitResume() throws InterruptedException {
+        synchronized (mLock) {
+            while (mPaused && !mCanceled) {
+                mLock.wait();
+            }
+            if (mCanceled) throw new InterruptedException("Canceled.");
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void signal() {
+        for (WorkSignal signal : mSignals) {
+            signal.signal();
+        }
+    }
+}
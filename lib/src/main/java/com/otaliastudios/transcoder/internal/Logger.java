@@ -7,6 +7,7 @@ import android.util.Log;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.Locale;
 
 public class Logger {
 
@@ -58,6 +59,24 @@ public class Logger {
         return sLevel <= messageLevel;
     }
 
+    /**
+     * Returns true if messages with the given level will be logged.
+     * Hot paths should check this before building their messages, so that
+     * nothing is allocated when logging is disabled:
+     *
+     * <pre>
+     * if (LOG.isEnabled(Logger.LEVEL_VERBOSE)) {
+     *     LOG.v("value:" + value);
+     * }
+     * </pre>
+     *
+     * @param level the message level
+     * @return true if enabled
+     */
+    public boolean isEnabled(@LogLevel int level) {
+        return should(level);
+    }
+
     public void v(String message) { v(message, null); }
 
     public void i(String message) { i(message, null); }
@@ -66,6 +85,84 @@ public class Logger {
 
     public void e(String message) { e(message, null); }
 
+    /**
+     * Logs a message built with {@link String#format(Locale, String, Object...)},
+     * only if the level is enabled. Note that arguments are still boxed by the caller.
+     * Calls with one or two arguments allocate nothing when the level is disabled,
+     * while calls with more arguments allocate their varargs array.
+     *
+     * These have their own names, so that a single {@link Throwable} argument is formatted
+     * like the others instead of binding to {@link #v(String, Throwable)}.
+     *
+     * @param format the message format
+     * @param arg the format argument
+     */
+    public void verbose(String format, Object arg) {
+        if (should(LEVEL_VERBOSE)) log(LEVEL_VERBOSE, String.format(Locale.US, format, arg), null);
+    }
+
+    public void info(String format, Object arg) {
+        if (should(LEVEL_INFO)) log(LEVEL_INFO, String.format(Locale.US, format, arg), null);
+    }
+
+    public void warning(String format, Object arg) {
+        if (should(LEVEL_WARNING)) log(LEVEL_WARNING, String.format(Locale.US, format, arg), null);
+    }
+
+    public void error(String format, Object arg) {
+        if (should(LEVEL_ERROR)) log(LEVEL_ERROR, String.format(Locale.US, format, arg), null);
+    }
+
+    public void verbose(String format, Object arg1, Object arg2) {
+        if (should(LEVEL_VERBOSE)) log(LEVEL_VERBOSE, String.format(Locale.US, format, arg1, arg2), null);
+    }
+
+    public void info(String format, Object arg1, Object arg2) {
+        if (should(LEVEL_INFO)) log(LEVEL_INFO, String.format(Locale.US, format, arg1, arg2), null);
+    }
+
+    public void warning(String format, Object arg1, Object arg2) {
+        if (should(LEVEL_WARNING)) log(LEVEL_WARNING, String.format(Locale.US, format, arg1, arg2), null);
+    }
+
+    public void error(String format, Object arg1, Object arg2) {
+        if (should(LEVEL_ERROR)) log(LEVEL_ERROR, String.format(Locale.US, format, arg1, arg2), null);
+    }
+
+    /**
+     * Logs a message built with {@link String#format(Locale, String, Object...)},
+     * only if the level is enabled. See {@link #verbose(String, Object)}.
+     *
+     * @param format the message format
+     * @param arg1 the first format argument
+     * @param arg2 the second format argument
+     * @param args the other format arguments
+     */
+    public void verbose(String format, Object arg1, Object arg2, Object... args) {
+        if (should(LEVEL_VERBOSE)) log(LEVEL_VERBOSE, format(format, arg1, arg2, args), null);
+    }
+
+    public void info(String format, Object arg1, Object arg2, Object... args) {
+        if (should(LEVEL_INFO)) log(LEVEL_INFO, format(format, arg1, arg2, args), null);
+    }
+
+    public void warning(String format, Object arg1, Object arg2, Object... args) {
+        if (should(LEVEL_WARNING)) log(LEVEL_WARNING, format(format, arg1, arg2, args), null);
+    }
+
+    public void error(String format, Object arg1, Object arg2, Object... args) {
+        if (should(LEVEL_ERROR)) log(LEVEL_ERROR, format(format, arg1, arg2, args), null);
+    }
+
+    @NonNull
+    private static String format(@NonNull String format, Object arg1, Object arg2, Object[] args) {
+        Object[] all = new Object[args.length + 2];
+        all[0] = arg1;
+        all[1] = arg2;
+        System.arraycopy(args, 0, all, 2, args.length);
+        return String.format(Locale.US, format, all);
+    }
+
     @SuppressWarnings("WeakerAccess")
     public void v(String message, @Nullable Throwable error) {
         log(LEVEL_VERBOSE, message, error);
@@ -11,15 +11,24 @@ import java.nio.ByteBuffer;
 /**
  * A Wrapper to MediaCodec that facilitates the use of API-dependent get{Input/Output}Buffer methods,
  * in order to prevent: http://stackoverflow.com/q/30646885
+ *
+ * Buffer indices should be dequeued through {@link #dequeueInputBuffer(long)} so that
+ * they come from the right {@link MediaCodecQueue}.
  */
 public class MediaCodecBuffers {
 
     private final MediaCodec mMediaCodec;
+    private final MediaCodecQueue mQueue;
     private final ByteBuffer[] mInputBuffers;
     private ByteBuffer[] mOutputBuffers;
 
     public MediaCodecBuffers(@NonNull MediaCodec mediaCodec) {
+        this(mediaCodec, new SyncMediaCodecQueue(mediaCodec));
+    }
+
+    public MediaCodecBuffers(@NonNull MediaCodec mediaCodec, @NonNull MediaCodecQueue queue) {
         mMediaCodec = mediaCodec;
+        mQueue = queue;
 
         if (Build.VERSION.SDK_INT < 21) {
             mInputBuffers = mediaCodec.getInputBuffers();
@@ -29,6 +38,10 @@ public class MediaCodecBuffers {
         }
     }
 
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mQueue.dequeueInputBuffer(timeoutUs);
+    }
+
     @NonNull
     public ByteBuffer getInputBuffer(final int index) {
         if (Build.VERSION.SDK_INT >= 21) {
@@ -0,0 +1,53 @@
+package com.otaliastudios.transcoder.internal;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Abstracts the way we get hold of {@link MediaCodec} buffer indices.
+ * The contract is the same as {@link MediaCodec#dequeueInputBuffer(long)} and
+ * {@link MediaCodec#dequeueOutputBuffer(MediaCodec.BufferInfo, long)}, including the
+ * {@link MediaCodec#INFO_TRY_AGAIN_LATER} and {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED}
+ * return values, so that callers do not need to know whether the codec is being polled
+ * ({@link SyncMediaCodecQueue}) or is pushing indices through callbacks
+ * ({@link AsyncMediaCodecQueue}).
+ */
+public interface MediaCodecQueue {
+
+    /**
+     * Returns the index of an input buffer that can be filled,
+     * or {@link MediaCodec#INFO_TRY_AGAIN_LATER}.
+     *
+     * @param timeoutUs timeout in microseconds
+     * @return an index or a negative value
+     */
+    int dequeueInputBuffer(long timeoutUs);
+
+    /**
+     * Returns the index of an output buffer that can be drained, filling the
+     * given info, or one of the negative MediaCodec INFO_* constants.
+     *
+     * @param info the info to be filled
+     * @param timeoutUs timeout in microseconds
+     * @return an index or a negative value
+     */
+    int dequeueOutputBuffer(@NonNull MediaCodec.BufferInfo info, long timeoutUs);
+
+    /**
+     * Returns the current output format. Only valid after
+     * {@link #dequeueOutputBuffer(MediaCodec.BufferInfo, long)} returned
+     * {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED}.
+     *
+     * @return the output format
+     */
+    @NonNull
+    MediaFormat getOutputFormat();
+
+    /**
+     * Releases any resource held by this queue.
+     * Should be called after the codec itself has been released.
+     */
+    void release();
+}
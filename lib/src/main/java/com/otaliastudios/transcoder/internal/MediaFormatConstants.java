@@ -55,5 +55,11 @@ public class MediaFormatConstants {
     public static final String MIMETYPE_AUDIO_AAC = "audio/mp4a-latm";
     public static final String MIMETYPE_AUDIO_RAW = "audio/raw";
 
+    // from MediaFormat and AudioFormat of API level >= 24
+    /** For decoder parameter. Use value of {@link #ENCODING_PCM_16BIT} or {@link #ENCODING_PCM_FLOAT}. */
+    public static final String KEY_PCM_ENCODING = "pcm-encoding";
+    public static final int ENCODING_PCM_16BIT = 2;
+    public static final int ENCODING_PCM_FLOAT = 4;
+
     private MediaFormatConstants() { }
 }
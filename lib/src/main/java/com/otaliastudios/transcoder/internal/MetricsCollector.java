@@ -0,0 +1,138 @@
+package com.otaliastudios.transcoder.internal;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.transcoder.TranscoderMetrics;
+import com.otaliastudios.transcoder.engine.TrackType;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the counters of a {@link TranscoderMetrics} while the operation runs.
+ *
+ * Counters of each track are only updated by the thread that transcodes that track,
+ * so they are plain fields. Idle counters can be updated by more threads and are atomic.
+ * Values should only be read through {@link #snapshot()}, once the operation is over.
+ */
+public class MetricsCollector {
+
+    public static final int STAGE_FEED_DECODER = 0;
+    public static final int STAGE_DRAIN_DECODER = 1;
+    public static final int STAGE_FEED_ENCODER = 2;
+    public static final int STAGE_DRAIN_ENCODER = 3;
+    private static final int STAGES = 4;
+    private static final int TRACKS = TrackType.values().length;
+
+    private final long mStartNanos = System.nanoTime();
+    private final long[] mStageNanos = new long[TRACKS * STAGES];
+    private final long[] mDecoderStalls = new long[TRACKS];
+    private final long[] mEncoderStalls = new long[TRACKS];
+    private final long[] mDecodedFrames = new long[TRACKS];
+    private final long[] mWrittenBytes = new long[TRACKS];
+    private final long[] mWrittenSamples = new long[TRACKS];
+    private long mRenderedVideoFrames;
+    private long mDroppedVideoFrames;
+    private long mAudioOverflows;
+    private final AtomicLong mIdleSleeps = new AtomicLong();
+    private final AtomicLong mIdleNanos = new AtomicLong();
+
+    /**
+     * Returns a timestamp to be passed to {@link #addStageTime(TrackType, int, long)}.
+     * @return a timestamp
+     */
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Adds the time elapsed since the given timestamp to the given stage.
+     *
+     * @param type the track type
+     * @param stage one of the STAGE constants
+     * @param startNanos a timestamp from {@link #now()}
+     * @return the current timestamp, to be used for the next stage
+     */
+    public long addStageTime(@NonNull TrackType type, int stage, long startNanos) {
+        long now = System.nanoTime();
+        mStageNanos[type.ordinal() * STAGES + stage] += now - startNanos;
+        return now;
+    }
+
+    public void addDecoderStall(@NonNull TrackType type) {
+        mDecoderStalls[type.ordinal()]++;
+    }
+
+    public void addEncoderStall(@NonNull TrackType type) {
+        mEncoderStalls[type.ordinal()]++;
+    }
+
+    public void addDecodedFrame(@NonNull TrackType type) {
+        mDecodedFrames[type.ordinal()]++;
+    }
+
+    public void addRenderedVideoFrame() {
+        mRenderedVideoFrames++;
+    }
+
+    public void addDroppedVideoFrame() {
+        mDroppedVideoFrames++;
+    }
+
+    public void addAudioOverflow() {
+        mAudioOverflows++;
+    }
+
+    public void addWrittenSample(@NonNull TrackType type, int bytes) {
+        mWrittenSamples[type.ordinal()]++;
+        mWrittenBytes[type.ordinal()] += bytes;
+    }
+
+    public void addIdleSleep(long nanos) {
+        mIdleSleeps.incrementAndGet();
+        mIdleNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Adds the counters of another collector to this one.
+     * This is used to collect the metrics of parallel segments.
+     *
+     * @param other another collector, whose operation is over
+     */
+    public synchronized void merge(@NonNull MetricsCollector other) {
+        for (int i = 0; i < mStageNanos.length; i++) mStageNanos[i] += other.mStageNanos[i];
+        for (int i = 0; i < TRACKS; i++) {
+            mDecoderStalls[i] += other.mDecoderStalls[i];
+            mEncoderStalls[i] += other.mEncoderStalls[i];
+            mDecodedFrames[i] += other.mDecodedFrames[i];
+            mWrittenBytes[i] += other.mWrittenBytes[i];
+            mWrittenSamples[i] += other.mWrittenSamples[i];
+        }
+        mRenderedVideoFrames += other.mRenderedVideoFrames;
+        mDroppedVideoFrames += other.mDroppedVideoFrames;
+        mAudioOverflows += other.mAudioOverflows;
+        mIdleSleeps.addAndGet(other.mIdleSleeps.get());
+        mIdleNanos.addAndGet(other.mIdleNanos.get());
+    }
+
+    /**
+     * Creates the metrics object that is passed to listeners.
+     * @return metrics
+     */
+    @NonNull
+    public synchronized TranscoderMetrics snapshot() {
+        long[] stageUs = new long[mStageNanos.length];
+        for (int i = 0; i < stageUs.length; i++) stageUs[i] = mStageNanos[i] / 1000;
+        return new TranscoderMetrics((System.nanoTime() - mStartNanos) / 1000,
+                stageUs,
+                mDecoderStalls.clone(),
+                mEncoderStalls.clone(),
+                mDecodedFrames.clone(),
+                mWrittenBytes.clone(),
+                mWrittenSamples.clone(),
+                mRenderedVideoFrames,
+                mDroppedVideoFrames,
+                mAudioOverflows,
+                mIdleSleeps.get(),
+                mIdleNanos.get() / 1000);
+    }
+}
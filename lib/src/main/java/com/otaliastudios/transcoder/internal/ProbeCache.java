@@ -0,0 +1,358 @@
+package com.otaliastudios.transcoder.internal;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.otaliastudios.transcoder.engine.TrackType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A process-wide cache of the values that are expensive to read from a media file:
+ * the metadata that needs a {@link android.media.MediaMetadataRetriever}, and the format
+ * values that are missing from the extractor formats and can only be found by decoding.
+ *
+ * Entries are keyed by an identity of the file, which should change when the file
+ * changes (for example path, size and modification time), see
+ * {@link com.otaliastudios.transcoder.source.DefaultDataSource}. The cache is kept in memory
+ * and can also be persisted to a file, see {@link #setFile(File)}. The file is written on
+ * a background thread, shortly after the last change, so that callers never wait for it.
+ */
+public class ProbeCache {
+
+    private static final String TAG = ProbeCache.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    private static final int FILE_VERSION = 1;
+    private static final long SAVE_DELAY_MS = 1000;
+
+    @SuppressWarnings("WeakerAccess")
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    public static final String KEY_DURATION = "duration";
+    public static final String KEY_ORIENTATION = "orientation";
+    public static final String KEY_LOCATION = "location";
+
+    // The values that MediaFormatProvider might need to decode.
+    private static final String[] VIDEO_KEYS = new String[]{
+            MediaFormat.KEY_WIDTH,
+            MediaFormat.KEY_HEIGHT,
+            MediaFormat.KEY_FRAME_RATE
+    };
+    private static final String[] AUDIO_KEYS = new String[]{
+            MediaFormat.KEY_CHANNEL_COUNT,
+            MediaFormat.KEY_SAMPLE_RATE
+    };
+
+    private static final Object sLock = new Object();
+    private static final LinkedHashMap<String, Map<String, String>> sEntries
+            = new LinkedHashMap<String, Map<String, String>>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> eldest) {
+            return size() > sMaxEntries;
+        }
+    };
+    private static final WeakHashMap<MediaFormat, String> sFormats = new WeakHashMap<>();
+    private static int sMaxEntries = DEFAULT_MAX_ENTRIES;
+    private static File sFile;
+    private static boolean sLoaded;
+    private static boolean sSaveScheduled;
+    private static ScheduledThreadPoolExecutor sSaver;
+    private static long sHits;
+    private static long sMisses;
+
+    private ProbeCache() {}
+
+    /**
+     * Sets the maximum number of files that are kept in the cache.
+     * Least recently used entries are removed first. Defaults to {@link #DEFAULT_MAX_ENTRIES}.
+     *
+     * @param maxEntries the maximum number of entries, or 0 to disable caching
+     */
+    @SuppressWarnings("unused")
+    public static void setMaxEntries(int maxEntries) {
+        synchronized (sLock) {
+            sMaxEntries = maxEntries;
+            while (sEntries.size() > sMaxEntries) {
+                sEntries.remove(sEntries.keySet().iterator().next());
+            }
+        }
+    }
+
+    /**
+     * Sets a file where the cache is persisted, so that it survives process restarts.
+     * The file is read the first time the cache is used, and written in background
+     * after it changes. Changes that are close in time are written together.
+     * A good place is a file in {@link android.content.Context#getCacheDir()}.
+     *
+     * @param file a file, or null to only keep the cache in memory
+     */
+    @SuppressWarnings("unused")
+    public static void setFile(@Nullable File file) {
+        synchronized (sLock) {
+            sFile = file;
+            sLoaded = false;
+        }
+    }
+
+    /**
+     * Removes all entries, including the persisted ones.
+     */
+    @SuppressWarnings("unused")
+    public static void clear() {
+        synchronized (sLock) {
+            sEntries.clear();
+            sLoaded = true;
+            save();
+        }
+    }
+
+    /**
+     * Returns a cached value.
+     *
+     * @param key the file identity
+     * @param name the value name, for example {@link #KEY_DURATION}
+     * @return the value, or null if not cached
+     */
+    @Nullable
+    public static String get(@NonNull String key, @NonNull String name) {
+        synchronized (sLock) {
+            load();
+            Map<String, String> entry = sEntries.get(key);
+            String value = entry == null ? null : entry.get(name);
+            if (value != null) {
+                sHits++;
+            } else {
+                sMisses++;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Stores a value.
+     *
+     * @param key the file identity
+     * @param name the value name, for example {@link #KEY_DURATION}
+     * @param value the value
+     */
+    public static void put(@NonNull String key, @NonNull String name, @NonNull String value) {
+        synchronized (sLock) {
+            if (sMaxEntries <= 0) return;
+            load();
+            Map<String, String> entry = sEntries.get(key);
+            if (entry == null) {
+                entry = new HashMap<>();
+                sEntries.put(key, entry);
+            }
+            if (value.equals(entry.put(name, value))) return;
+            save();
+        }
+    }
+
+    /**
+     * Associates a track format with the identity of its file, so that it can be
+     * stored later with {@link #putFormat(MediaFormat)}. Format values that were cached
+     * before are copied into the format, if it lacks them.
+     *
+     * @param format a format returned by the data source
+     * @param key the file identity
+     * @param type the track type
+     */
+    public static void registerFormat(@NonNull MediaFormat format,
+                                      @NonNull String key,
+                                      @NonNull TrackType type) {
+        String prefix = type.name() + ":";
+        synchronized (sLock) {
+            sFormats.put(format, prefix + key);
+            load();
+            Map<String, String> entry = sEntries.get(key);
+            int restored = 0;
+            for (String name : getFormatKeys(type)) {
+                String value = entry == null ? null : entry.get(prefix + name);
+                if (value != null && !format.containsKey(name)) {
+                    format.setInteger(name, Integer.parseInt(value));
+                    restored++;
+                }
+            }
+            if (restored > 0) {
+                sHits++;
+                LOG.verbose("registerFormat: restored %d values for %s.", restored, type);
+            }
+        }
+    }
+
+    /**
+     * Stores the format values that were missing from a format registered with
+     * {@link #registerFormat(MediaFormat, String, TrackType)}, and are now present.
+     * Does nothing if the format was not registered.
+     *
+     * @param format a complete format
+     */
+    public static void putFormat(@NonNull MediaFormat format) {
+        String formatKey;
+        synchronized (sLock) {
+            formatKey = sFormats.get(format);
+        }
+        if (formatKey == null) return;
+        int separator = formatKey.indexOf(':');
+        TrackType type = TrackType.valueOf(formatKey.substring(0, separator));
+        String key = formatKey.substring(separator + 1);
+        String prefix = type.name() + ":";
+        for (String name : getFormatKeys(type)) {
+            if (format.containsKey(name)) {
+                put(key, prefix + name, String.valueOf(getInteger(format, name)));
+            }
+        }
+    }
+
+    @NonNull
+    private static String[] getFormatKeys(@NonNull TrackType type) {
+        return type == TrackType.VIDEO ? VIDEO_KEYS : AUDIO_KEYS;
+    }
+
+    private static int getInteger(@NonNull MediaFormat format, @NonNull String name) {
+        try {
+            return format.getInteger(name);
+        } catch (ClassCastException e) {
+            // Some decoders report the frame rate as a float.
+            return Math.round(format.getFloat(name));
+        }
+    }
+
+    /**
+     * Returns the number of values that were found in the cache.
+     * @return cache hits
+     */
+    public static long getHitCount() {
+        synchronized (sLock) {
+            return sHits;
+        }
+    }
+
+    /**
+     * Returns the number of values that were requested and not found in the cache.
+     * @return cache misses
+     */
+    public static long getMissCount() {
+        synchronized (sLock) {
+            return sMisses;
+        }
+    }
+
+    private static void load() {
+        if (sLoaded) return;
+        sLoaded = true;
+        if (sFile == null || !sFile.exists()) return;
+        DataInputStream stream = null;
+        try {
+            stream = new DataInputStream(new BufferedInputStream(new FileInputStream(sFile)));
+            if (stream.readInt() != FILE_VERSION) return;
+            int entries = stream.readInt();
+            for (int i = 0; i < entries; i++) {
+                String key = stream.readUTF();
+                int values = stream.readInt();
+                Map<String, String> entry = new HashMap<>();
+                for (int j = 0; j < values; j++) {
+                    entry.put(stream.readUTF(), stream.readUTF());
+                }
+                sEntries.put(key, entry);
+            }
+            LOG.info("load: read %d entries.", entries);
+        } catch (IOException e) {
+            LOG.w("load: could not read the cache file.", e);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignore) {}
+            }
+        }
+    }
+
+    /**
+     * Schedules a save, unless one is already pending. Should be called while holding the lock.
+     */
+    private static void save() {
+        if (sFile == null || sSaveScheduled) return;
+        sSaveScheduled = true;
+        if (sSaver == null) {
+            sSaver = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG + " Thread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            sSaver.setKeepAliveTime(SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+            sSaver.allowCoreThreadTimeOut(true);
+        }
+        sSaver.schedule(new Runnable() {
+            @Override
+            public void run() {
+                File file;
+                Map<String, Map<String, String>> snapshot = new LinkedHashMap<>();
+                synchronized (sLock) {
+                    sSaveScheduled = false;
+                    file = sFile;
+                    if (file == null) return;
+                    // The file might have changed: merge its entries before replacing it.
+                    load();
+                    for (Map.Entry<String, Map<String, String>> entry : sEntries.entrySet()) {
+                        snapshot.put(entry.getKey(), new HashMap<>(entry.getValue()));
+                    }
+                }
+                // Saves run one at a time on this thread, so we can write outside of the lock.
+                write(file, snapshot);
+            }
+        }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void write(@NonNull File file, @NonNull Map<String, Map<String, String>> entries) {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream stream = null;
+        try {
+            stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            stream.writeInt(FILE_VERSION);
+            stream.writeInt(entries.size());
+            for (Map.Entry<String, Map<String, String>> entry : entries.entrySet()) {
+                stream.writeUTF(entry.getKey());
+                stream.writeInt(entry.getValue().size());
+                for (Map.Entry<String, String> value : entry.getValue().entrySet()) {
+                    stream.writeUTF(value.getKey());
+                    stream.writeUTF(value.getValue());
+                }
+            }
+            stream.close();
+            stream = null;
+            if (!temp.renameTo(file)) {
+                LOG.w("save: could not replace the cache file.");
+            }
+        } catch (IOException e) {
+            LOG.w("save: could not write the cache file.", e);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignore) {}
+            }
+        }
+    }
+}
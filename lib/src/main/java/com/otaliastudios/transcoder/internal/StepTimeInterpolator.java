@@ -0,0 +1,67 @@
+package com.otaliastudios.transcoder.internal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.otaliastudios.transcoder.engine.TrackType;
+import com.otaliastudios.transcoder.time.TimeInterpolator;
+
+/**
+ * The {@link TimeInterpolator} of a single step of a track, when
+ * {@link com.otaliastudios.transcoder.engine.Engine} concatenates several sources.
+ * It moves the source timeline so that it starts after the previous step, then
+ * passes the result to the interpolator chosen by the user.
+ *
+ * Samples can arrive in decode order, for example when passing through video with B-frames,
+ * so the next step starts after the greatest time of this step and not after the last one.
+ * The gap between the two steps is one sample, estimated as the smallest difference
+ * between consecutive samples.
+ */
+public class StepTimeInterpolator implements TimeInterpolator {
+
+    // Gap used when the sample duration is not known.
+    private static final long DEFAULT_GAP_US = 10;
+
+    private final TimeInterpolator mWrap;
+    private final long mTimeBase;
+    private long mFirstInputTime = Long.MAX_VALUE;
+    private long mLastInputTime;
+    private long mMaxTime = Long.MIN_VALUE;
+    private long mSampleDuration = Long.MAX_VALUE;
+
+    /**
+     * Creates the interpolator for a step.
+     *
+     * @param wrap the interpolator chosen by the user
+     * @param previous the interpolator of the previous step, or null for the first step
+     */
+    public StepTimeInterpolator(@NonNull TimeInterpolator wrap, @Nullable StepTimeInterpolator previous) {
+        mWrap = wrap;
+        mTimeBase = previous == null ? DEFAULT_GAP_US : previous.getNextTimeBase();
+    }
+
+    @Override
+    public long interpolate(@NonNull TrackType type, long time) {
+        if (mFirstInputTime == Long.MAX_VALUE) {
+            mFirstInputTime = time;
+        } else {
+            long delta = Math.abs(time - mLastInputTime);
+            if (delta > 0 && delta < mSampleDuration) mSampleDuration = delta;
+        }
+        mLastInputTime = time;
+        long interpolated = mTimeBase + (time - mFirstInputTime);
+        if (interpolated > mMaxTime) mMaxTime = interpolated;
+        return mWrap.interpolate(type, interpolated);
+    }
+
+    /**
+     * Returns the time where the next step should start, before being passed
+     * to the wrapped interpolator: one sample after the greatest time of this step.
+     *
+     * @return the next step time base
+     */
+    public long getNextTimeBase() {
+        if (mMaxTime == Long.MIN_VALUE) return mTimeBase;
+        return mMaxTime + (mSampleDuration != Long.MAX_VALUE ? mSampleDuration : DEFAULT_GAP_US);
+    }
+}
@@ -0,0 +1,66 @@
+package com.otaliastudios.transcoder.internal;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A {@link MediaCodecQueue} that simply polls the codec.
+ *
+ * Callers that have nothing else to do can block until an output buffer is available
+ * with {@link #awaitOutputBuffer(long)}. The result is kept for the next
+ * {@link #dequeueOutputBuffer(MediaCodec.BufferInfo, long)} call.
+ */
+public class SyncMediaCodecQueue implements MediaCodecQueue {
+
+    private final MediaCodec mCodec;
+    private final MediaCodec.BufferInfo mAwaitedInfo = new MediaCodec.BufferInfo();
+    private int mAwaitedResult = MediaCodec.INFO_TRY_AGAIN_LATER;
+
+    public SyncMediaCodecQueue(@NonNull MediaCodec codec) {
+        mCodec = codec;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(@NonNull MediaCodec.BufferInfo info, long timeoutUs) {
+        if (mAwaitedResult != MediaCodec.INFO_TRY_AGAIN_LATER) {
+            int result = mAwaitedResult;
+            mAwaitedResult = MediaCodec.INFO_TRY_AGAIN_LATER;
+            info.set(mAwaitedInfo.offset, mAwaitedInfo.size,
+                    mAwaitedInfo.presentationTimeUs, mAwaitedInfo.flags);
+            return result;
+        }
+        return mCodec.dequeueOutputBuffer(info, timeoutUs);
+    }
+
+    /**
+     * Blocks until the codec has an output buffer or a format change,
+     * or the given timeout expires.
+     *
+     * @param timeoutUs timeout in microseconds
+     * @return true if something can be dequeued
+     */
+    public boolean awaitOutputBuffer(long timeoutUs) {
+        if (mAwaitedResult == MediaCodec.INFO_TRY_AGAIN_LATER) {
+            mAwaitedResult = mCodec.dequeueOutputBuffer(mAwaitedInfo, timeoutUs);
+        }
+        return mAwaitedResult != MediaCodec.INFO_TRY_AGAIN_LATER;
+    }
+
+    @NonNull
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+
+    @Override
+    public void release() {
+        mAwaitedResult = MediaCodec.INFO_TRY_AGAIN_LATER;
+    }
+}
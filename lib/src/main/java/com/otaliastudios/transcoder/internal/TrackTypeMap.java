@@ -81,4 +81,8 @@ public class TrackTypeMap<T> {
     public boolean hasVideo() {
         return has(TrackType.VIDEO);
     }
+
+    public void clear() {
+        map.clear();
+    }
 }
@@ -0,0 +1,105 @@
+package com.otaliastudios.transcoder.internal;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+
+/**
+ * A wait/notify primitive used by {@link com.otaliastudios.transcoder.engine.Engine}
+ * to park its thread when no track could make progress.
+ *
+ * Components that receive work from other threads (codec callbacks, reader threads,
+ * job controls) call {@link #signal()} so that the engine wakes up as soon as there is
+ * something to do, instead of sleeping for a fixed amount of time.
+ * Signals are not lost: if {@link #signal()} is called while nobody is waiting,
+ * the next {@link #await(long)} call returns immediately.
+ *
+ * Components that are polled on the waiting thread, like codecs in synchronous mode,
+ * can not signal. They can implement {@link Waitable} instead, so that the thread blocks
+ * on them until they have some work, see {@link #await(long, Waitable)}.
+ */
+public class WorkSignal {
+
+    /**
+     * Something that can block the current thread until it has some work to do.
+     */
+    public interface Waitable {
+
+        /**
+         * Returns true if {@link #awaitWork(long)} can be used now, which means that
+         * some work is expected from this object and not from the ones that signal.
+         *
+         * @return true if work can be awaited
+         */
+        boolean canAwaitWork();
+
+        /**
+         * Blocks until some work is available or the given timeout expires.
+         *
+         * @param timeoutMillis the maximum wait time in milliseconds
+         * @return true if some work is available, false if the timeout expired
+         * @throws InterruptedException if the thread is interrupted while waiting
+         */
+        boolean awaitWork(long timeoutMillis) throws InterruptedException;
+    }
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private boolean mSignaled;
+
+    /**
+     * Wakes up the thread waiting in {@link #await(long)}, if any,
+     * or makes the next call return immediately.
+     */
+    public void signal() {
+        synchronized (mLock) {
+            mSignaled = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Parks the current thread until {@link #signal()} is called or
+     * the given timeout expires, whatever happens first.
+     *
+     * @param timeoutMillis the maximum wait time in milliseconds
+     * @return true if woken up by a signal, false if the timeout expired
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean await(long timeoutMillis) throws InterruptedException {
+        synchronized (mLock) {
+            long remainingNanos = timeoutMillis * 1000000L;
+            long deadline = System.nanoTime() + remainingNanos;
+            while (!mSignaled && remainingNanos > 0) {
+                mLock.wait(remainingNanos / 1000000L, (int) (remainingNanos % 1000000L));
+                remainingNanos = deadline - System.nanoTime();
+            }
+            boolean signaled = mSignaled;
+            mSignaled = false;
+            return signaled;
+        }
+    }
+
+    /**
+     * Like {@link #await(long)}, but if the given waitable can be awaited, the current
+     * thread blocks on it instead. Signals that are sent in the meanwhile are not lost,
+     * but they are only seen by the next call.
+     *
+     * @param timeoutMillis the maximum wait time in milliseconds
+     * @param waitable an object to block on, or null
+     * @return true if there is some work, false if the timeout expired
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean await(long timeoutMillis, @Nullable Waitable waitable) throws InterruptedException {
+        if (waitable == null || !waitable.canAwaitWork()) {
+            return await(timeoutMillis);
+        }
+        synchronized (mLock) {
+            if (mSignaled) {
+                mSignaled = false;
+                return true;
+            }
+        }
+        return waitable.awaitWork(timeoutMillis);
+    }
+}
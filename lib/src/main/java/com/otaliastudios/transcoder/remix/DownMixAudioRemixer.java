@@ -22,24 +22,41 @@ public class DownMixAudioRemixer implements AudioRemixer {
         final int outSpace = outputBuffer.remaining();
 
         final int samplesToBeProcessed = Math.min(inRemaining, outSpace);
-        for (int i = 0; i < samplesToBeProcessed; ++i) {
-            // Convert to unsigned
-            final int a = inputBuffer.get() + SIGNED_SHORT_LIMIT;
-            final int b = inputBuffer.get() + SIGNED_SHORT_LIMIT;
-            int m;
-            // Pick the equation
-            if ((a < SIGNED_SHORT_LIMIT) || (b < SIGNED_SHORT_LIMIT)) {
-                // Viktor's first equation when both sources are "quiet"
-                // (i.e. less than middle of the dynamic range)
-                m = a * b / SIGNED_SHORT_LIMIT;
-            } else {
-                // Viktor's second equation when one or both sources are loud
-                m = 2 * (a + b) - (a * b) / SIGNED_SHORT_LIMIT - UNSIGNED_SHORT_MAX;
+        if (inputBuffer.hasArray() && outputBuffer.hasArray()) {
+            // Fast path for heap buffers: work on the arrays directly.
+            final short[] input = inputBuffer.array();
+            final short[] output = outputBuffer.array();
+            int inIndex = inputBuffer.arrayOffset() + inputBuffer.position();
+            int outIndex = outputBuffer.arrayOffset() + outputBuffer.position();
+            for (int i = 0; i < samplesToBeProcessed; ++i) {
+                output[outIndex++] = mix(input[inIndex++], input[inIndex++]);
             }
-            // Convert output back to signed short
-            if (m == UNSIGNED_SHORT_MAX + 1) m = UNSIGNED_SHORT_MAX;
-            outputBuffer.put((short) (m - SIGNED_SHORT_LIMIT));
+            inputBuffer.position(inputBuffer.position() + samplesToBeProcessed * 2);
+            outputBuffer.position(outputBuffer.position() + samplesToBeProcessed);
+            return;
+        }
+        for (int i = 0; i < samplesToBeProcessed; ++i) {
+            outputBuffer.put(mix(inputBuffer.get(), inputBuffer.get()));
+        }
+    }
+
+    private static short mix(short left, short right) {
+        // Convert to unsigned
+        final int a = left + SIGNED_SHORT_LIMIT;
+        final int b = right + SIGNED_SHORT_LIMIT;
+        int m;
+        // Pick the equation
+        if ((a < SIGNED_SHORT_LIMIT) || (b < SIGNED_SHORT_LIMIT)) {
+            // Viktor's first equation when both sources are "quiet"
+            // (i.e. less than middle of the dynamic range)
+            m = a * b / SIGNED_SHORT_LIMIT;
+        } else {
+            // Viktor's second equation when one or both sources are loud
+            m = 2 * (a + b) - (a * b) / SIGNED_SHORT_LIMIT - UNSIGNED_SHORT_MAX;
         }
+        // Convert output back to signed short
+        if (m == UNSIGNED_SHORT_MAX + 1) m = UNSIGNED_SHORT_MAX;
+        return (short) (m - SIGNED_SHORT_LIMIT);
     }
 
     @Override
@@ -0,0 +1,249 @@
+package com.otaliastudios.transcoder.remix;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ShortBuffer;
+
+/**
+ * An {@link AudioRemixer} that converts between any two channel counts by applying
+ * a mixing matrix: each output channel is a weighted sum of the input channels.
+ *
+ * The default matrix follows the usual channel layouts (for example, FL FR FC LFE BL BR
+ * for 5.1) and the ITU-R BS.775 downmix coefficients: center and surround channels
+ * are mixed into the front channels with a -3dB gain, and LFE is dropped. Rows are then
+ * normalized so that the output can not clip. A custom matrix can also be passed.
+ */
+public class MatrixAudioRemixer implements AudioRemixer {
+
+    private final static float MINUS_3DB = 0.7071f;
+    private final static int MAX_CHANNELS = 8;
+
+    // Speaker positions.
+    private final static int FL = 0;
+    private final static int FR = 1;
+    private final static int FC = 2;
+    private final static int LFE = 3;
+    private final static int BL = 4;
+    private final static int BR = 5;
+    private final static int SL = 6;
+    private final static int SR = 7;
+    private final static int BC = 8;
+
+    // Positions for each channel count, in the order used by the Android decoders.
+    private final static int[][] LAYOUTS = {
+            {},
+            {FC},
+            {FL, FR},
+            {FL, FR, FC},
+            {FL, FR, BL, BR},
+            {FL, FR, FC, BL, BR},
+            {FL, FR, FC, LFE, BL, BR},
+            {FL, FR, FC, LFE, BL, BR, BC},
+            {FL, FR, FC, LFE, BL, BR, SL, SR}
+    };
+
+    private final int mInputChannels;
+    private final int mOutputChannels;
+    private final float[] mMatrix;
+
+    /**
+     * Creates a remixer using the default matrix for the given channel counts.
+     *
+     * @param inputChannels input channels, 1 to 8
+     * @param outputChannels output channels, 1 to 8
+     */
+    public MatrixAudioRemixer(int inputChannels, int outputChannels) {
+        this(inputChannels, outputChannels, createMatrix(inputChannels, outputChannels));
+    }
+
+    /**
+     * Creates a remixer using the given matrix.
+     *
+     * @param inputChannels input channels
+     * @param outputChannels output channels
+     * @param matrix the coefficients, as outputChannels rows of inputChannels values each
+     */
+    @SuppressWarnings("WeakerAccess")
+    public MatrixAudioRemixer(int inputChannels, int outputChannels, @NonNull float[] matrix) {
+        if (matrix.length != inputChannels * outputChannels) {
+            throw new IllegalArgumentException("Matrix should have " + inputChannels * outputChannels
+                    + " values, but has " + matrix.length);
+        }
+        mInputChannels = inputChannels;
+        mOutputChannels = outputChannels;
+        mMatrix = matrix.clone();
+    }
+
+    @Override
+    public void remix(@NonNull ShortBuffer inputBuffer, @NonNull ShortBuffer outputBuffer) {
+        final int in = mInputChannels;
+        final int out = mOutputChannels;
+        final int frames = Math.min(inputBuffer.remaining() / in, outputBuffer.remaining() / out);
+        final float[] matrix = mMatrix;
+        if (inputBuffer.hasArray() && outputBuffer.hasArray()) {
+            final short[] input = inputBuffer.array();
+            final short[] output = outputBuffer.array();
+            int inIndex = inputBuffer.arrayOffset() + inputBuffer.position();
+            int outIndex = outputBuffer.arrayOffset() + outputBuffer.position();
+            for (int frame = 0; frame < frames; frame++) {
+                for (int o = 0; o < out; o++) {
+                    float value = 0;
+                    int row = o * in;
+                    for (int i = 0; i < in; i++) {
+                        value += matrix[row + i] * input[inIndex + i];
+                    }
+                    output[outIndex + o] = clamp(value);
+                }
+                inIndex += in;
+                outIndex += out;
+            }
+            inputBuffer.position(inputBuffer.position() + frames * in);
+            outputBuffer.position(outputBuffer.position() + frames * out);
+            return;
+        }
+        final short[] frame = new short[in];
+        for (int f = 0; f < frames; f++) {
+            inputBuffer.get(frame);
+            for (int o = 0; o < out; o++) {
+                float value = 0;
+                int row = o * in;
+                for (int i = 0; i < in; i++) {
+                    value += matrix[row + i] * frame[i];
+                }
+                outputBuffer.put(clamp(value));
+            }
+        }
+    }
+
+    /**
+     * Remixes float samples. Unlike {@link #remix(ShortBuffer, ShortBuffer)},
+     * the output is not clamped.
+     *
+     * @param input the input samples
+     * @param inputOffset the offset of the first input sample
+     * @param inputSize the number of input samples
+     * @param output the output array, with room for {@link #getRemixedSize(int)} samples
+     * @param outputOffset the offset of the first output sample
+     */
+    public void remix(@NonNull float[] input, int inputOffset, int inputSize,
+                      @NonNull float[] output, int outputOffset) {
+        final int in = mInputChannels;
+        final int out = mOutputChannels;
+        final int frames = inputSize / in;
+        final float[] matrix = mMatrix;
+        int inIndex = inputOffset;
+        int outIndex = outputOffset;
+        for (int frame = 0; frame < frames; frame++) {
+            for (int o = 0; o < out; o++) {
+                float value = 0;
+                int row = o * in;
+                for (int i = 0; i < in; i++) {
+                    value += matrix[row + i] * input[inIndex + i];
+                }
+                output[outIndex + o] = value;
+            }
+            inIndex += in;
+            outIndex += out;
+        }
+    }
+
+    @Override
+    public int getRemixedSize(int inputSize) {
+        return inputSize / mInputChannels * mOutputChannels;
+    }
+
+    private static short clamp(float value) {
+        int sample = Math.round(value);
+        if (sample > Short.MAX_VALUE) return Short.MAX_VALUE;
+        if (sample < Short.MIN_VALUE) return Short.MIN_VALUE;
+        return (short) sample;
+    }
+
+    @NonNull
+    private static float[] createMatrix(int inputChannels, int outputChannels) {
+        if (inputChannels < 1 || inputChannels > MAX_CHANNELS
+                || outputChannels < 1 || outputChannels > MAX_CHANNELS) {
+            throw new IllegalArgumentException("Unsupported channel counts: "
+                    + inputChannels + " -> " + outputChannels);
+        }
+        int[] inputLayout = LAYOUTS[inputChannels];
+        int[] outputLayout = LAYOUTS[outputChannels];
+        float[] matrix = new float[inputChannels * outputChannels];
+        for (int i = 0; i < inputChannels; i++) {
+            route(matrix, inputChannels, i, inputLayout[i], outputLayout, 1F);
+        }
+        // Normalize rows that could clip.
+        for (int o = 0; o < outputChannels; o++) {
+            float sum = 0;
+            for (int i = 0; i < inputChannels; i++) sum += matrix[o * inputChannels + i];
+            if (sum > 1F) {
+                for (int i = 0; i < inputChannels; i++) matrix[o * inputChannels + i] /= sum;
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * Adds the input channel at the given position to the output matrix, with the given gain.
+     * If the output has no speaker at this position, the input is spread on the closest ones.
+     */
+    private static void route(@NonNull float[] matrix, int inputChannels, int input,
+                              int position, @NonNull int[] outputLayout, float gain) {
+        int output = indexOf(outputLayout, position);
+        if (output >= 0) {
+            matrix[output * inputChannels + input] += gain;
+            return;
+        }
+        switch (position) {
+            case LFE: break; // Dropped.
+            case FL:
+            case FR:
+                // Only happens for mono output.
+                route(matrix, inputChannels, input, FC, outputLayout, gain * MINUS_3DB);
+                break;
+            case FC:
+                route(matrix, inputChannels, input, FL, outputLayout, gain * MINUS_3DB);
+                route(matrix, inputChannels, input, FR, outputLayout, gain * MINUS_3DB);
+                break;
+            case BL:
+                if (indexOf(outputLayout, SL) >= 0) {
+                    route(matrix, inputChannels, input, SL, outputLayout, gain);
+                } else {
+                    route(matrix, inputChannels, input, FL, outputLayout, gain * MINUS_3DB);
+                }
+                break;
+            case BR:
+                if (indexOf(outputLayout, SR) >= 0) {
+                    route(matrix, inputChannels, input, SR, outputLayout, gain);
+                } else {
+                    route(matrix, inputChannels, input, FR, outputLayout, gain * MINUS_3DB);
+                }
+                break;
+            case SL:
+                if (indexOf(outputLayout, BL) >= 0) {
+                    route(matrix, inputChannels, input, BL, outputLayout, gain);
+                } else {
+                    route(matrix, inputChannels, input, FL, outputLayout, gain * MINUS_3DB);
+                }
+                break;
+            case SR:
+                if (indexOf(outputLayout, BR) >= 0) {
+                    route(matrix, inputChannels, input, BR, outputLayout, gain);
+                } else {
+                    route(matrix, inputChannels, input, FR, outputLayout, gain * MINUS_3DB);
+                }
+                break;
+            case BC:
+                route(matrix, inputChannels, input, BL, outputLayout, gain * MINUS_3DB);
+                route(matrix, inputChannels, input, BR, outputLayout, gain * MINUS_3DB);
+                break;
+        }
+    }
+
+    private static int indexOf(@NonNull int[] layout, int position) {
+        for (int i = 0; i < layout.length; i++) {
+            if (layout[i] == position) return i;
+        }
+        return -1;
+    }
+}
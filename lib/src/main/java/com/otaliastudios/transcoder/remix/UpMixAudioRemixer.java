@@ -16,6 +16,21 @@ public class UpMixAudioRemixer implements AudioRemixer {
         final int outSpace = outputBuffer.remaining() / 2;
 
         final int samplesToBeProcessed = Math.min(inRemaining, outSpace);
+        if (inputBuffer.hasArray() && outputBuffer.hasArray()) {
+            // Fast path for heap buffers: work on the arrays directly.
+            final short[] input = inputBuffer.array();
+            final short[] output = outputBuffer.array();
+            int inIndex = inputBuffer.arrayOffset() + inputBuffer.position();
+            int outIndex = outputBuffer.arrayOffset() + outputBuffer.position();
+            for (int i = 0; i < samplesToBeProcessed; ++i) {
+                final short inSample = input[inIndex++];
+                output[outIndex++] = inSample;
+                output[outIndex++] = inSample;
+            }
+            inputBuffer.position(inputBuffer.position() + samplesToBeProcessed);
+            outputBuffer.position(outputBuffer.position() + samplesToBeProcessed * 2);
+            return;
+        }
         for (int i = 0; i < samplesToBeProcessed; ++i) {
             final short inSample = inputBuffer.get();
             outputBuffer.put(inSample);
@@ -6,7 +6,7 @@ import java.nio.Buffer;
 import java.nio.ShortBuffer;
 
 /**
- * Resamples audio data. See {@link UpsampleAudioResampler} or
+ * Resamples audio data. See {@link PolyphaseAudioResampler}, {@link UpsampleAudioResampler} or
  * {@link DownsampleAudioResampler} for concrete implementations.
  */
 public interface AudioResampler {
@@ -7,17 +7,93 @@ import java.nio.ShortBuffer;
 /**
  * An {@link AudioResampler} that delegates to appropriate classes
  * based on input and output size.
+ *
+ * Sample rate conversion is performed by a {@link PolyphaseAudioResampler}.
  */
-public class DefaultAudioResampler implements AudioResampler {
+public class DefaultAudioResampler implements FloatAudioResampler, FlushableAudioResampler,
+        StatefulAudioResampler {
+
+    private final PolyphaseAudioResampler mPolyphase = new PolyphaseAudioResampler();
+
+    @NonNull
+    @Override
+    public AudioResampler newInstance() {
+        return new DefaultAudioResampler();
+    }
+
+    /**
+     * Clears the state.
+     * See {@link PolyphaseAudioResampler#reset()}.
+     */
+    public void reset() {
+        mPolyphase.reset();
+    }
+
+    /**
+     * Whether there are samples that were not written yet.
+     * See {@link PolyphaseAudioResampler#hasPendingSamples()}.
+     *
+     * @return true if samples are pending
+     */
+    @Override
+    public boolean hasPendingSamples() {
+        return mPolyphase.hasPendingSamples();
+    }
+
+    /**
+     * Writes the pending samples at the end of the stream.
+     * See {@link PolyphaseAudioResampler#flush(ShortBuffer)}.
+     *
+     * @param outputBuffer the output buffer
+     */
+    @Override
+    public void flush(@NonNull ShortBuffer outputBuffer) {
+        mPolyphase.flush(outputBuffer);
+    }
+
+    /**
+     * Writes the pending float samples at the end of the stream.
+     * See {@link PolyphaseAudioResampler#flush(float[], int, int)}.
+     *
+     * @param output the output array
+     * @param outputOffset the offset of the first output sample
+     * @param outputCapacity the maximum number of output samples
+     * @return the number of output samples that were written
+     */
+    @Override
+    public int flush(@NonNull float[] output, int outputOffset, int outputCapacity) {
+        return mPolyphase.flush(output, outputOffset, outputCapacity);
+    }
 
     @Override
     public void resample(@NonNull ShortBuffer inputBuffer, int inputSampleRate, @NonNull ShortBuffer outputBuffer, int outputSampleRate, int channels) {
-        if (inputSampleRate < outputSampleRate) {
-            UPSAMPLE.resample(inputBuffer, inputSampleRate, outputBuffer, outputSampleRate, channels);
-        } else if (inputSampleRate > outputSampleRate) {
-            DOWNSAMPLE.resample(inputBuffer, inputSampleRate, outputBuffer, outputSampleRate, channels);
+        if (inputSampleRate != outputSampleRate) {
+            mPolyphase.resample(inputBuffer, inputSampleRate, outputBuffer, outputSampleRate, channels);
         } else {
             PASSTHROUGH.resample(inputBuffer, inputSampleRate, outputBuffer, outputSampleRate, channels);
         }
     }
+
+    /**
+     * Resamples float samples.
+     * See {@link PolyphaseAudioResampler#resample(float[], int, int, int, float[], int, int, int, int)}.
+     *
+     * @param input the input samples
+     * @param inputOffset the offset of the first input sample
+     * @param inputSize the number of input samples
+     * @param inputSampleRate the input sample rate
+     * @param output the output array
+     * @param outputOffset the offset of the first output sample
+     * @param outputCapacity the maximum number of output samples
+     * @param outputSampleRate the output sample rate
+     * @param channels the number of channels
+     * @return the number of output samples that were written
+     */
+    @Override
+    public int resample(@NonNull float[] input, int inputOffset, int inputSize, int inputSampleRate,
+                        @NonNull float[] output, int outputOffset, int outputCapacity, int outputSampleRate,
+                        int channels) {
+        return mPolyphase.resample(input, inputOffset, inputSize, inputSampleRate,
+                output, outputOffset, outputCapacity, outputSampleRate, channels);
+    }
 }
@@ -0,0 +1,29 @@
+package com.otaliastudios.transcoder.resample;
+
+import androidx.annotation.NonNull;
+
+/**
+ * An {@link AudioResampler} that can also work on float samples, so that the audio
+ * engine can skip the conversion to shorts when it is not needed.
+ */
+public interface FloatAudioResampler extends AudioResampler {
+
+    /**
+     * Resamples float samples. This follows the same rules as
+     * {@link #resample(java.nio.ShortBuffer, int, java.nio.ShortBuffer, int, int)}.
+     *
+     * @param input the input samples
+     * @param inputOffset the offset of the first input sample
+     * @param inputSize the number of input samples
+     * @param inputSampleRate the input sample rate
+     * @param output the output array
+     * @param outputOffset the offset of the first output sample
+     * @param outputCapacity the maximum number of output samples
+     * @param outputSampleRate the output sample rate
+     * @param channels the number of channels
+     * @return the number of output samples that were written
+     */
+    int resample(@NonNull float[] input, int inputOffset, int inputSize, int inputSampleRate,
+                 @NonNull float[] output, int outputOffset, int outputCapacity, int outputSampleRate,
+                 int channels);
+}
@@ -0,0 +1,38 @@
+package com.otaliastudios.transcoder.resample;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ShortBuffer;
+
+/**
+ * An {@link AudioResampler} that holds some samples between calls. When the stream ends,
+ * they should be written with one of the flush methods.
+ */
+public interface FlushableAudioResampler extends AudioResampler {
+
+    /**
+     * Returns true if input samples were received that were not written to the output yet.
+     *
+     * @return true if samples are pending
+     */
+    boolean hasPendingSamples();
+
+    /**
+     * Writes the pending samples at the end of the stream. If the output buffer is
+     * too small, this can be called again until {@link #hasPendingSamples()} returns false.
+     *
+     * @param outputBuffer the output buffer
+     */
+    void flush(@NonNull ShortBuffer outputBuffer);
+
+    /**
+     * Writes the pending float samples at the end of the stream.
+     * See {@link #flush(ShortBuffer)}.
+     *
+     * @param output the output array
+     * @param outputOffset the offset of the first output sample
+     * @param outputCapacity the maximum number of output samples
+     * @return the number of output samples that were written
+     */
+    int flush(@NonNull float[] output, int outputOffset, int outputCapacity);
+}
@@ -8,7 +8,7 @@ import java.nio.ShortBuffer;
  * An {@link AudioResampler} that does nothing, meant to be used when sample
  * rates are identical.
  */
-public class PassThroughAudioResampler implements AudioResampler {
+public class PassThroughAudioResampler implements FloatAudioResampler {
 
     @Override
     public void resample(@NonNull ShortBuffer inputBuffer, int inputSampleRate,
@@ -18,4 +18,16 @@ public class PassThroughAudioResampler implements AudioResampler {
         }
         outputBuffer.put(inputBuffer);
     }
+
+    @Override
+    public int resample(@NonNull float[] input, int inputOffset, int inputSize, int inputSampleRate,
+                        @NonNull float[] output, int outputOffset, int outputCapacity, int outputSampleRate,
+                        int channels) {
+        if (inputSampleRate != outputSampleRate) {
+            throw new IllegalArgumentException("Illegal use of PassThroughAudioResampler");
+        }
+        int size = Math.min(inputSize, outputCapacity);
+        System.arraycopy(input, inputOffset, output, outputOffset, size);
+        return size;
+    }
 }
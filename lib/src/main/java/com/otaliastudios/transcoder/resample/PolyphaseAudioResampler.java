@@ -0,0 +1,381 @@
+package com.otaliastudios.transcoder.resample;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An {@link AudioResampler} that converts between any two sample rates using a
+ * windowed-sinc interpolation filter, in its polyphase form.
+ *
+ * The ratio between sample rates is reduced to a fraction L/M, and the filter is
+ * precomputed as a table of coefficients for each of the L output phases.
+ * Tables are cached for each pair of sample rates. When downsampling, the filter cutoff
+ * is lowered to the output Nyquist frequency to avoid aliasing.
+ *
+ * The filter needs input samples on both sides of each output sample, so this resampler
+ * keeps the last input samples across calls. The state belongs to this instance, and each
+ * transcoding operation uses its own through {@link #newInstance()}. It should be cleared
+ * with {@link #reset()} when a new stream starts. When the stream ends,
+ * the samples that are still held can be written with {@link #flush(ShortBuffer)}.
+ */
+public class PolyphaseAudioResampler implements FloatAudioResampler, FlushableAudioResampler,
+        StatefulAudioResampler {
+
+    private final static int HALF_TAPS = 16;
+    private final static int MAX_HALF_TAPS = 128;
+    private final static int MAX_PHASES = 1024;
+    private final static double CUTOFF = 0.95;
+    private final static Map<Long, Filter> FILTERS = new HashMap<>();
+
+    /**
+     * Precomputed coefficients for a pair of sample rates.
+     */
+    private static class Filter {
+        private final int mUp; // L
+        private final int mDown; // M
+        private final int mPhases;
+        private final int mTaps;
+        private final float[] mCoefficients; // mPhases * mTaps
+
+        private Filter(int inputSampleRate, int outputSampleRate) {
+            int gcd = gcd(inputSampleRate, outputSampleRate);
+            mUp = outputSampleRate / gcd;
+            mDown = inputSampleRate / gcd;
+            mPhases = Math.min(mUp, MAX_PHASES);
+            double scale = Math.min(1D, (double) mUp / mDown);
+            int halfTaps = (int) Math.min(MAX_HALF_TAPS, Math.ceil(HALF_TAPS / scale));
+            mTaps = 2 * halfTaps;
+            mCoefficients = new float[mPhases * mTaps];
+            double cutoff = 0.5 * scale * CUTOFF;
+            for (int phase = 0; phase < mPhases; phase++) {
+                double offset = (double) phase / mPhases;
+                double sum = 0;
+                for (int tap = 0; tap < mTaps; tap++) {
+                    double distance = tap - halfTaps + 1 - offset;
+                    double value = 2 * cutoff * sinc(2 * cutoff * distance) * blackman(distance, halfTaps);
+                    mCoefficients[phase * mTaps + tap] = (float) value;
+                    sum += value;
+                }
+                // Normalize so that each phase has unity gain.
+                for (int tap = 0; tap < mTaps; tap++) {
+                    mCoefficients[phase * mTaps + tap] /= sum;
+                }
+            }
+        }
+
+        private static double sinc(double x) {
+            if (x == 0) return 1;
+            double pix = Math.PI * x;
+            return Math.sin(pix) / pix;
+        }
+
+        private static double blackman(double distance, int halfTaps) {
+            double x = (distance + halfTaps) / (2 * halfTaps);
+            if (x <= 0 || x >= 1) return 0;
+            return 0.42 - 0.5 * Math.cos(2 * Math.PI * x) + 0.08 * Math.cos(4 * Math.PI * x);
+        }
+
+        private static int gcd(int a, int b) {
+            while (b != 0) {
+                int t = a % b;
+                a = b;
+                b = t;
+            }
+            return a;
+        }
+    }
+
+    /**
+     * The input samples that were received but are still needed to compute output,
+     * and the position of the next output sample.
+     */
+    private static class State {
+        private final Filter mFilter;
+        private final int mInputSampleRate;
+        private final int mOutputSampleRate;
+        private final int mChannels;
+        private float[] mInput;
+        private int mFrames;
+        private int mPosition; // first frame of the next output window
+        private int mFraction; // in 1/L units
+        private long mInputFrames; // total, without padding
+        private long mOutputFrames; // total
+        private boolean mFlushing;
+        private float[] mOutput = new float[0];
+        private short[] mShorts = new short[0];
+
+        private State(@NonNull Filter filter, int inputSampleRate, int outputSampleRate, int channels) {
+            mFilter = filter;
+            mInputSampleRate = inputSampleRate;
+            mOutputSampleRate = outputSampleRate;
+            mChannels = channels;
+            // Start with half window of silence, so that the first output
+            // sample is centered on the first input sample.
+            mFrames = filter.mTaps / 2 - 1;
+            mInput = new float[Math.max(1024, filter.mTaps * 2) * channels];
+        }
+
+        private boolean matches(int inputSampleRate, int outputSampleRate, int channels) {
+            return mInputSampleRate == inputSampleRate
+                    && mOutputSampleRate == outputSampleRate
+                    && mChannels == channels;
+        }
+    }
+
+    private State mState;
+
+    @NonNull
+    @Override
+    public AudioResampler newInstance() {
+        return new PolyphaseAudioResampler();
+    }
+
+    /**
+     * Clears the state. This should be called before resampling a new stream,
+     * so that samples of the previous one are not used.
+     */
+    public void reset() {
+        mState = null;
+    }
+
+    /**
+     * Returns true if input samples were received that were not written
+     * to the output yet. These can be written with {@link #flush(ShortBuffer)}.
+     *
+     * @return true if samples are pending
+     */
+    @Override
+    public boolean hasPendingSamples() {
+        State state = mState;
+        return state != null && state.mOutputFrames < getTotalOutputFrames(state);
+    }
+
+    /**
+     * Writes the output samples that are still pending at the end of the stream,
+     * as if the input was followed by silence. The total output then matches the total
+     * input duration. If the output buffer is too small, this can be called again
+     * until {@link #hasPendingSamples()} returns false. After that, the state is cleared.
+     *
+     * @param outputBuffer the output buffer
+     */
+    @Override
+    public void flush(@NonNull ShortBuffer outputBuffer) {
+        State state = mState;
+        if (state == null) return;
+        int capacity = outputBuffer.remaining() / state.mChannels * state.mChannels;
+        if (state.mOutput.length < capacity) {
+            state.mOutput = new float[capacity];
+        }
+        int outputSize = flush(state, state.mOutput, 0, capacity);
+        short[] shorts = ensureShorts(state, outputSize);
+        float[] output = state.mOutput;
+        for (int i = 0; i < outputSize; i++) {
+            int sample = Math.round(output[i]);
+            if (sample > Short.MAX_VALUE) sample = Short.MAX_VALUE;
+            if (sample < Short.MIN_VALUE) sample = Short.MIN_VALUE;
+            shorts[i] = (short) sample;
+        }
+        outputBuffer.put(shorts, 0, outputSize);
+    }
+
+    /**
+     * Writes the pending float samples at the end of the stream.
+     * See {@link #flush(ShortBuffer)}.
+     *
+     * @param output the output array
+     * @param outputOffset the offset of the first output sample
+     * @param outputCapacity the maximum number of output samples
+     * @return the number of output samples that were written
+     */
+    @Override
+    public int flush(@NonNull float[] output, int outputOffset, int outputCapacity) {
+        State state = mState;
+        if (state == null) return 0;
+        return flush(state, output, outputOffset, outputCapacity / state.mChannels * state.mChannels);
+    }
+
+    @Override
+    public void resample(@NonNull ShortBuffer inputBuffer, int inputSampleRate, @NonNull ShortBuffer outputBuffer, int outputSampleRate, int channels) {
+        if (inputSampleRate == outputSampleRate) {
+            outputBuffer.put(inputBuffer);
+            return;
+        }
+        State state = getState(inputSampleRate, outputSampleRate, channels);
+
+        // Append the input to our own array.
+        int inputSize = inputBuffer.remaining() / channels * channels;
+        short[] shorts = ensureShorts(state, inputSize);
+        inputBuffer.get(shorts, 0, inputSize);
+        float[] input = ensureInput(state, inputSize);
+        int offset = state.mFrames * channels;
+        for (int i = 0; i < inputSize; i++) {
+            input[offset + i] = shorts[i];
+        }
+        state.mFrames += inputSize / channels;
+        state.mInputFrames += inputSize / channels;
+
+        // Filter, then convert back to shorts.
+        int maxOutputSize = outputBuffer.remaining() / channels * channels;
+        if (state.mOutput.length < maxOutputSize) {
+            state.mOutput = new float[maxOutputSize];
+        }
+        int outputSize = process(state, state.mOutput, 0, maxOutputSize);
+        shorts = ensureShorts(state, outputSize);
+        float[] output = state.mOutput;
+        for (int i = 0; i < outputSize; i++) {
+            int sample = Math.round(output[i]);
+            if (sample > Short.MAX_VALUE) sample = Short.MAX_VALUE;
+            if (sample < Short.MIN_VALUE) sample = Short.MIN_VALUE;
+            shorts[i] = (short) sample;
+        }
+        outputBuffer.put(shorts, 0, outputSize);
+    }
+
+    /**
+     * Resamples float samples, without any intermediate conversion.
+     * The same state is used as {@link #resample(ShortBuffer, int, ShortBuffer, int, int)}.
+     *
+     * @param input the input samples
+     * @param inputOffset the offset of the first input sample
+     * @param inputSize the number of input samples
+     * @param inputSampleRate the input sample rate
+     * @param output the output array
+     * @param outputOffset the offset of the first output sample
+     * @param outputCapacity the maximum number of output samples
+     * @param outputSampleRate the output sample rate
+     * @param channels the number of channels
+     * @return the number of output samples that were written
+     */
+    @Override
+    public int resample(@NonNull float[] input, int inputOffset, int inputSize, int inputSampleRate,
+                        @NonNull float[] output, int outputOffset, int outputCapacity, int outputSampleRate,
+                        int channels) {
+        if (inputSampleRate == outputSampleRate) {
+            int size = Math.min(inputSize, outputCapacity);
+            System.arraycopy(input, inputOffset, output, outputOffset, size);
+            return size;
+        }
+        State state = getState(inputSampleRate, outputSampleRate, channels);
+        inputSize = inputSize / channels * channels;
+        float[] array = ensureInput(state, inputSize);
+        System.arraycopy(input, inputOffset, array, state.mFrames * channels, inputSize);
+        state.mFrames += inputSize / channels;
+        state.mInputFrames += inputSize / channels;
+        return process(state, output, outputOffset, outputCapacity / channels * channels);
+    }
+
+    private int flush(@NonNull State state, @NonNull float[] output, int outputOffset, int maxOutputSize) {
+        if (!state.mFlushing) {
+            // A window of silence is enough to center the last output samples
+            // on the last input samples.
+            state.mFlushing = true;
+            int paddingSize = state.mFilter.mTaps * state.mChannels;
+            float[] input = ensureInput(state, paddingSize);
+            int offset = state.mFrames * state.mChannels;
+            Arrays.fill(input, offset, offset + paddingSize, 0F);
+            state.mFrames += state.mFilter.mTaps;
+        }
+        long pendingFrames = getTotalOutputFrames(state) - state.mOutputFrames;
+        int maxOutputFrames = (int) Math.min(pendingFrames, maxOutputSize / state.mChannels);
+        int outputSize = process(state, output, outputOffset, maxOutputFrames * state.mChannels);
+        if (state.mOutputFrames >= getTotalOutputFrames(state)) {
+            mState = null;
+        }
+        return outputSize;
+    }
+
+    /**
+     * The output frames that match the input received so far: round(input * L / M).
+     */
+    private static long getTotalOutputFrames(@NonNull State state) {
+        Filter filter = state.mFilter;
+        return (2 * state.mInputFrames * filter.mUp + filter.mDown) / (2 * filter.mDown);
+    }
+
+    @NonNull
+    private State getState(int inputSampleRate, int outputSampleRate, int channels) {
+        State state = mState;
+        if (state == null || !state.matches(inputSampleRate, outputSampleRate, channels)) {
+            state = new State(getFilter(inputSampleRate, outputSampleRate),
+                    inputSampleRate, outputSampleRate, channels);
+            mState = state;
+        }
+        return state;
+    }
+
+    @NonNull
+    private static float[] ensureInput(@NonNull State state, int size) {
+        int required = state.mFrames * state.mChannels + size;
+        if (state.mInput.length < required) {
+            float[] input = new float[Math.max(required, state.mInput.length * 2)];
+            System.arraycopy(state.mInput, 0, input, 0, state.mFrames * state.mChannels);
+            state.mInput = input;
+        }
+        return state.mInput;
+    }
+
+    @NonNull
+    private static short[] ensureShorts(@NonNull State state, int size) {
+        if (state.mShorts.length < size) state.mShorts = new short[size];
+        return state.mShorts;
+    }
+
+    /**
+     * Computes as many output samples as the queued input and the output space allow,
+     * then discards the input that is not needed anymore.
+     */
+    private static int process(@NonNull State state, @NonNull float[] out, int outOffset, int maxOutputSize) {
+        Filter filter = state.mFilter;
+        int channels = state.mChannels;
+        int taps = filter.mTaps;
+        int maxOutputFrames = maxOutputSize / channels;
+        float[] in = state.mInput;
+        float[] coefficients = filter.mCoefficients;
+        int position = state.mPosition;
+        int fraction = state.mFraction;
+        int outputFrames = 0;
+        int outIndex = outOffset;
+        while (outputFrames < maxOutputFrames && position + taps <= state.mFrames) {
+            int phase = (int) ((long) fraction * filter.mPhases / filter.mUp);
+            int coefficientStart = phase * taps;
+            for (int channel = 0; channel < channels; channel++) {
+                float value = 0;
+                int index = position * channels + channel;
+                for (int tap = 0; tap < taps; tap++) {
+                    value += coefficients[coefficientStart + tap] * in[index];
+                    index += channels;
+                }
+                out[outIndex++] = value;
+            }
+            outputFrames++;
+            fraction += filter.mDown;
+            position += fraction / filter.mUp;
+            fraction %= filter.mUp;
+        }
+
+        int discard = Math.min(position, state.mFrames);
+        System.arraycopy(in, discard * channels, in, 0, (state.mFrames - discard) * channels);
+        state.mFrames -= discard;
+        state.mPosition = position - discard;
+        state.mFraction = fraction;
+        state.mOutputFrames += outputFrames;
+        return outputFrames * channels;
+    }
+
+    @NonNull
+    private static Filter getFilter(int inputSampleRate, int outputSampleRate) {
+        long key = ((long) inputSampleRate << 32) | outputSampleRate;
+        synchronized (FILTERS) {
+            Filter filter = FILTERS.get(key);
+            if (filter == null) {
+                filter = new Filter(inputSampleRate, outputSampleRate);
+                FILTERS.put(key, filter);
+            }
+            return filter;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.otaliastudios.transcoder.resample;
+
+import androidx.annotation.NonNull;
+
+/**
+ * An {@link AudioResampler} that keeps the state of a single stream. Each transcoding
+ * operation asks for its own instance through {@link #newInstance()}, so that the one
+ * passed to the options can be shared by concurrent operations.
+ */
+public interface StatefulAudioResampler extends AudioResampler {
+
+    /**
+     * Returns a new resampler with the same configuration and no state.
+     *
+     * @return a new resampler
+     */
+    @NonNull
+    AudioResampler newInstance();
+}
@@ -13,8 +13,9 @@ import java.nio.ByteBuffer;
 
 /**
  * A DataSink is an abstract representation of an encoded data collector.
- * Currently the only implementation is {@link DefaultDataSink} which collects
+ * The default implementation is {@link DefaultDataSink} which collects
  * data into a {@link java.io.File} using {@link android.media.MediaMuxer}.
+ * {@link FragmentedMp4DataSink} writes a fragmented MP4 file instead.
  *
  * However there might be other implementations in the future, for example to stream data
  * to a server.
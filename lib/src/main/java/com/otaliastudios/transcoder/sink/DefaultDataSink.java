@@ -11,12 +11,10 @@ import com.otaliastudios.transcoder.engine.TrackStatus;
 import com.otaliastudios.transcoder.engine.TrackType;
 import com.otaliastudios.transcoder.internal.TrackTypeMap;
 import com.otaliastudios.transcoder.internal.Logger;
+import com.otaliastudios.transcoder.sink.internal.SampleQueue;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.List;
 
 
 /**
@@ -27,35 +25,12 @@ import java.util.List;
  */
 public class DefaultDataSink implements DataSink {
 
-    /**
-     * A queued sample is a sample that we haven't written yet because
-     * the muxer is still being started (waiting for output formats).
-     */
-    private static class QueuedSample {
-        private final TrackType mType;
-        private final int mSize;
-        private final long mTimeUs;
-        private final int mFlags;
-
-        private QueuedSample(@NonNull TrackType type,
-                             @NonNull MediaCodec.BufferInfo bufferInfo) {
-            mType = type;
-            mSize = bufferInfo.size;
-            mTimeUs = bufferInfo.presentationTimeUs;
-            mFlags = bufferInfo.flags;
-        }
-    }
-
     private final static String TAG = DefaultDataSink.class.getSimpleName();
     private final static Logger LOG = new Logger(TAG);
 
-    // I have no idea whether this value is appropriate or not...
-    private final static int BUFFER_SIZE = 64 * 1024;
-
     private boolean mMuxerStarted = false;
     private final MediaMuxer mMuxer;
-    private final List<QueuedSample> mQueue = new ArrayList<>();
-    private ByteBuffer mQueueBuffer;
+    private final SampleQueue mQueue = new SampleQueue();
     private TrackTypeMap<TrackStatus> mStatus = new TrackTypeMap<>();
     private TrackTypeMap<MediaFormat> mLastFormat = new TrackTypeMap<>();
     private TrackTypeMap<Integer> mMuxerIndex = new TrackTypeMap<>();
@@ -138,8 +113,8 @@ public class DefaultDataSink implements DataSink {
     }
 
     /**
-     * Enqueues the given byffer by writing it into our own buffer and
-     * just storing its position and size.
+     * Enqueues the given buffer by copying it into our own queue, which
+     * grows as needed and can spill to a temporary file.
      *
      * @param type track type
      * @param buffer input buffer
@@ -148,13 +123,7 @@ public class DefaultDataSink implements DataSink {
     private void enqueue(@NonNull TrackType type,
                          @NonNull ByteBuffer buffer,
                          @NonNull MediaCodec.BufferInfo bufferInfo) {
-        if (mQueueBuffer == null) {
-            mQueueBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
-        }
-        buffer.limit(bufferInfo.offset + bufferInfo.size);
-        buffer.position(bufferInfo.offset);
-        mQueueBuffer.put(buffer);
-        mQueue.add(new QueuedSample(type, bufferInfo));
+        mQueue.add(type, buffer, bufferInfo);
     }
 
     /**
@@ -162,20 +131,47 @@ public class DefaultDataSink implements DataSink {
      * open and running.
      */
     private void drainQueue() {
-        if (mQueue.isEmpty()) return;
-        mQueueBuffer.flip();
+        if (mQueue.getSampleCount() == 0) return;
         LOG.i("Output format determined, writing pending data into the muxer. "
-                + "samples:" + mQueue.size() + " "
-                + "bytes:" + mQueueBuffer.limit());
-        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-        int offset = 0;
-        for (QueuedSample sample : mQueue) {
-            bufferInfo.set(offset, sample.mSize, sample.mTimeUs, sample.mFlags);
-            writeTrack(sample.mType, mQueueBuffer, bufferInfo);
-            offset += sample.mSize;
-        }
-        mQueue.clear();
-        mQueueBuffer = null;
+                + "samples:" + mQueue.getSampleCount() + " "
+                + "bytes:" + mQueue.getByteCount() + " "
+                + "spilled:" + mQueue.getSpilledByteCount());
+        mQueue.drain(new SampleQueue.Consumer() {
+            @Override
+            public void onSample(@NonNull TrackType type,
+                                 @NonNull ByteBuffer buffer,
+                                 @NonNull MediaCodec.BufferInfo bufferInfo) {
+                writeTrack(type, buffer, bufferInfo);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of samples that are queued, waiting for
+     * all output formats to be known.
+     * @return queued samples
+     */
+    public int getQueuedSampleCount() {
+        return mQueue.getSampleCount();
+    }
+
+    /**
+     * Returns the number of bytes that are queued, waiting for
+     * all output formats to be known.
+     * @return queued bytes
+     */
+    public long getQueuedBytes() {
+        return mQueue.getByteCount();
+    }
+
+    /**
+     * Returns the maximum number of bytes that were queued at the same time,
+     * waiting for all output formats to be known.
+     * @return peak queued bytes
+     */
+    @SuppressWarnings("unused")
+    public long getPeakQueuedBytes() {
+        return mQueue.getPeakByteCount();
     }
 
     @Override
@@ -185,6 +181,7 @@ public class DefaultDataSink implements DataSink {
 
     @Override
     public void release() {
+        mQueue.release();
         try {
             mMuxer.release();
         } catch (Exception e) {
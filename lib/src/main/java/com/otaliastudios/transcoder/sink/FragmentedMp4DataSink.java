@@ -0,0 +1,243 @@
+package com.otaliastudios.transcoder.sink;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.transcoder.engine.TrackStatus;
+import com.otaliastudios.transcoder.engine.TrackType;
+import com.otaliastudios.transcoder.internal.Logger;
+import com.otaliastudios.transcoder.internal.MediaFormatConstants;
+import com.otaliastudios.transcoder.internal.TrackTypeMap;
+import com.otaliastudios.transcoder.sink.internal.FragmentedMp4Writer;
+import com.otaliastudios.transcoder.sink.internal.SampleQueue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link DataSink} implementation that writes a fragmented MP4 file
+ * without using {@link android.media.MediaMuxer}.
+ *
+ * Samples are collected in memory and written as a new fragment (a moof and mdat pair)
+ * every few seconds, through gathering writes on a {@link FileChannel}.
+ * This means that:
+ *
+ * - Memory usage is bounded by the fragment duration, not by the output duration
+ * - The output file can be played while the transcoding is still running
+ *
+ * Supports AVC video and AAC audio.
+ */
+public class FragmentedMp4DataSink implements DataSink {
+
+    private final static String TAG = FragmentedMp4DataSink.class.getSimpleName();
+    private final static Logger LOG = new Logger(TAG);
+
+    @SuppressWarnings("WeakerAccess")
+    public final static long DEFAULT_FRAGMENT_DURATION_US = 2000000L;
+
+    private boolean mWriterStarted = false;
+    private final RandomAccessFile mFile;
+    private final FragmentedMp4Writer mWriter;
+    private final SampleQueue mQueue = new SampleQueue();
+    private TrackTypeMap<TrackStatus> mStatus = new TrackTypeMap<>();
+    private TrackTypeMap<MediaFormat> mLastFormat = new TrackTypeMap<>();
+    private TrackTypeMap<Integer> mWriterIndex = new TrackTypeMap<>();
+    private final DefaultDataSinkChecks mWriterChecks = new DefaultDataSinkChecks();
+    private int mOrientation;
+    private boolean mHasLocation;
+    private double mLatitude;
+    private double mLongitude;
+
+    public FragmentedMp4DataSink(@NonNull String outputFilePath) {
+        this(outputFilePath, DEFAULT_FRAGMENT_DURATION_US);
+    }
+
+    /**
+     * Creates a new sink.
+     *
+     * @param outputFilePath the output file path
+     * @param fragmentDurationUs the minimum duration of each fragment. Fragments are
+     *                           cut at video key frames, so they can be longer than this
+     */
+    @SuppressWarnings("WeakerAccess")
+    public FragmentedMp4DataSink(@NonNull String outputFilePath, long fragmentDurationUs) {
+        try {
+            mFile = new RandomAccessFile(outputFilePath, "rw");
+            mFile.setLength(0);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        mWriter = new FragmentedMp4Writer(mFile.getChannel(), fragmentDurationUs);
+    }
+
+    @Override
+    public void setOrientation(int orientation) {
+        mOrientation = orientation;
+    }
+
+    @Override
+    public void setLocation(double latitude, double longitude) {
+        mHasLocation = true;
+        mLatitude = latitude;
+        mLongitude = longitude;
+    }
+
+    @Override
+    public void setTrackStatus(@NonNull TrackType type, @NonNull TrackStatus status) {
+        mStatus.set(type, status);
+    }
+
+    @Override
+    public void setTrackFormat(@NonNull TrackType type, @NonNull MediaFormat format) {
+        boolean shouldValidate = mStatus.require(type) == TrackStatus.COMPRESSING;
+        if (shouldValidate) {
+            mWriterChecks.checkOutputFormat(type, format);
+        }
+        mLastFormat.set(type, format);
+        startIfNeeded();
+    }
+
+    private void startIfNeeded() {
+        if (mWriterStarted) return;
+        boolean isTranscodingVideo = mStatus.require(TrackType.VIDEO).isTranscoding();
+        boolean isTranscodingAudio = mStatus.require(TrackType.AUDIO).isTranscoding();
+        MediaFormat videoOutputFormat = mLastFormat.get(TrackType.VIDEO);
+        MediaFormat audioOutputFormat = mLastFormat.get(TrackType.AUDIO);
+        boolean isVideoReady = videoOutputFormat != null || !isTranscodingVideo;
+        boolean isAudioReady = audioOutputFormat != null || !isTranscodingAudio;
+        if (!isVideoReady || !isAudioReady) return;
+
+        if (isTranscodingVideo) {
+            int videoIndex = addVideoTrack(videoOutputFormat);
+            mWriterIndex.set(TrackType.VIDEO, videoIndex);
+            LOG.v("Added track #" + videoIndex + " with " + videoOutputFormat.getString(MediaFormat.KEY_MIME) + " to writer");
+        }
+        if (isTranscodingAudio) {
+            int audioIndex = addAudioTrack(audioOutputFormat);
+            mWriterIndex.set(TrackType.AUDIO, audioIndex);
+            LOG.v("Added track #" + audioIndex + " with " + audioOutputFormat.getString(MediaFormat.KEY_MIME) + " to writer");
+        }
+        mWriter.setRotation(mOrientation);
+        if (mHasLocation) mWriter.setLocation((float) mLatitude, (float) mLongitude);
+        try {
+            mWriter.start();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        mWriterStarted = true;
+        drainQueue();
+    }
+
+    private int addVideoTrack(@NonNull MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (!MediaFormatConstants.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            throw new InvalidOutputFormatException("Video codecs other than AVC are not supported by this sink, actual mime type: " + mime);
+        }
+        int frameRate = format.containsKey(MediaFormat.KEY_FRAME_RATE)
+                ? format.getInteger(MediaFormat.KEY_FRAME_RATE) : 0;
+        return mWriter.addAvcTrack(
+                format.getInteger(MediaFormat.KEY_WIDTH),
+                format.getInteger(MediaFormat.KEY_HEIGHT),
+                frameRate,
+                getBytes(format, MediaFormatConstants.KEY_AVC_SPS),
+                getBytes(format, MediaFormatConstants.KEY_AVC_PPS));
+    }
+
+    private int addAudioTrack(@NonNull MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (!MediaFormatConstants.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            throw new InvalidOutputFormatException("Audio codecs other than AAC are not supported by this sink, actual mime type: " + mime);
+        }
+        int bitRate = format.containsKey(MediaFormat.KEY_BIT_RATE)
+                ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+        return mWriter.addAacTrack(
+                format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                bitRate,
+                getBytes(format, "csd-0"));
+    }
+
+    @NonNull
+    private static byte[] getBytes(@NonNull MediaFormat format, @NonNull String key) {
+        ByteBuffer buffer = format.getByteBuffer(key);
+        if (buffer == null) {
+            throw new InvalidOutputFormatException("Output format has no " + key + " buffer.");
+        }
+        buffer = buffer.duplicate();
+        buffer.clear();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public void writeTrack(@NonNull TrackType type, @NonNull ByteBuffer byteBuffer, @NonNull MediaCodec.BufferInfo bufferInfo) {
+        // Transcoders signal the end of stream with an empty buffer. We have nothing to write.
+        if (bufferInfo.size == 0) return;
+        if (mWriterStarted) {
+            ByteBuffer data = byteBuffer.duplicate();
+            data.limit(bufferInfo.offset + bufferInfo.size);
+            data.position(bufferInfo.offset);
+            boolean sync = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+            try {
+                mWriter.writeSample(mWriterIndex.require(type), data, bufferInfo.presentationTimeUs, sync);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            enqueue(type, byteBuffer, bufferInfo);
+        }
+    }
+
+    private void enqueue(@NonNull TrackType type,
+                         @NonNull ByteBuffer buffer,
+                         @NonNull MediaCodec.BufferInfo bufferInfo) {
+        mQueue.add(type, buffer, bufferInfo);
+    }
+
+    private void drainQueue() {
+        if (mQueue.getSampleCount() == 0) return;
+        LOG.i("Output format determined, writing pending data into the writer. "
+                + "samples:" + mQueue.getSampleCount() + " "
+                + "bytes:" + mQueue.getByteCount());
+        mQueue.drain(new SampleQueue.Consumer() {
+            @Override
+            public void onSample(@NonNull TrackType type,
+                                 @NonNull ByteBuffer buffer,
+                                 @NonNull MediaCodec.BufferInfo bufferInfo) {
+                writeTrack(type, buffer, bufferInfo);
+            }
+        });
+    }
+
+    @Override
+    public void stop() {
+        // Like MediaMuxer, we can't stop if we were never started: the file has no header,
+        // and pending samples (if any) could never be written.
+        if (!mWriterStarted) {
+            throw new IllegalStateException("Can't stop: the writer was never started."
+                    + " Pending samples:" + mQueue.getSampleCount());
+        }
+        // If this fails, let's throw.
+        try {
+            mWriter.flush();
+            mFile.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void release() {
+        mQueue.release();
+        try {
+            mFile.close();
+        } catch (Exception e) {
+            LOG.w("Failed to release the file.", e);
+        }
+    }
+}
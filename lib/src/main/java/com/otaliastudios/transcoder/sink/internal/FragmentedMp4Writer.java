@@ -0,0 +1,504 @@
+package com.otaliastudios.transcoder.sink.internal;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes a fragmented MP4 file: an initial ftyp and moov, with empty sample tables,
+ * followed by a moof and mdat pair for each fragment. Only the samples of the current
+ * fragment are kept in memory, and the file is playable as soon as the first fragment
+ * has been written.
+ *
+ * Supports AVC video and AAC audio. This class has no Android dependencies.
+ */
+public class FragmentedMp4Writer {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int MAX_FRAGMENT_BYTES = 16 * 1024 * 1024;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static class Track {
+        private final int mId;
+        private final boolean mVideo;
+        private final int mTimescale;
+        private final byte[] mSampleEntry;
+        private final long mDefaultDurationUs;
+        private final int mWidth;
+        private final int mHeight;
+
+        private ByteBuffer mData = ByteBuffer.allocate(64 * 1024);
+        private int mCount;
+        private long[] mTimesUs = new long[64];
+        private int[] mSizes = new int[64];
+        private boolean[] mSync = new boolean[64];
+        private long mLastDurationTicks;
+
+        private Track(int id, boolean video, int timescale, @NonNull byte[] sampleEntry,
+                      long defaultDurationUs, int width, int height) {
+            mId = id;
+            mVideo = video;
+            mTimescale = timescale;
+            mSampleEntry = sampleEntry;
+            mDefaultDurationUs = defaultDurationUs;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        private long toTicks(long timeUs) {
+            return Math.max(0, timeUs) * mTimescale / 1000000L;
+        }
+    }
+
+    private final FileChannel mChannel;
+    private final long mFragmentDurationUs;
+    private final List<Track> mTracks = new ArrayList<>();
+    private int mRotation;
+    private String mLocation;
+    private boolean mStarted;
+    private boolean mHasVideo;
+    private int mSequence;
+    private long mFragmentStartUs = Long.MIN_VALUE;
+    private int mFragmentBytes;
+
+    public FragmentedMp4Writer(@NonNull FileChannel channel, long fragmentDurationUs) {
+        mChannel = channel;
+        mFragmentDurationUs = fragmentDurationUs;
+    }
+
+    public void setRotation(int rotation) {
+        mRotation = rotation;
+    }
+
+    public void setLocation(float latitude, float longitude) {
+        mLocation = String.format(Locale.US, "%+08.4f%+09.4f/", latitude, longitude);
+    }
+
+    /**
+     * Adds an AVC video track.
+     *
+     * @param width video width
+     * @param height video height
+     * @param frameRate frame rate, used for the last sample duration. Can be 0
+     * @param sps codec specific data containing the SPS, with start codes
+     * @param pps codec specific data containing the PPS, with start codes
+     * @return the track index
+     */
+    public int addAvcTrack(int width, int height, int frameRate,
+                           @NonNull byte[] sps, @NonNull byte[] pps) {
+        List<byte[]> spsUnits = splitNalUnits(sps);
+        List<byte[]> ppsUnits = splitNalUnits(pps);
+        if (spsUnits.isEmpty() || spsUnits.get(0).length < 4) {
+            throw new IllegalArgumentException("Invalid SPS.");
+        }
+        byte[] first = spsUnits.get(0);
+        ByteBuffer avcC = ByteBuffer.allocate(7 + sps.length + pps.length + 4 * (spsUnits.size() + ppsUnits.size()));
+        avcC.put((byte) 1).put(first[1]).put(first[2]).put(first[3]);
+        avcC.put((byte) 0xFF); // 4 bytes NAL unit length
+        avcC.put((byte) (0xE0 | spsUnits.size()));
+        for (byte[] unit : spsUnits) avcC.putShort((short) unit.length).put(unit);
+        avcC.put((byte) ppsUnits.size());
+        for (byte[] unit : ppsUnits) avcC.putShort((short) unit.length).put(unit);
+
+        ByteBuffer entry = ByteBuffer.allocate(78);
+        entry.put(new byte[6]).putShort((short) 1); // reserved, data reference index
+        entry.put(new byte[16]);
+        entry.putShort((short) width).putShort((short) height);
+        entry.putInt(0x00480000).putInt(0x00480000); // 72 dpi
+        entry.putInt(0).putShort((short) 1); // reserved, frame count
+        entry.put(new byte[32]); // compressor name
+        entry.putShort((short) 0x18).putShort((short) -1);
+        byte[] sampleEntry = box("avc1", entry.array(), box("avcC", toArray(avcC)));
+        long durationUs = 1000000L / (frameRate > 0 ? frameRate : 30);
+        mHasVideo = true;
+        return addTrack(new Track(mTracks.size() + 1, true, VIDEO_TIMESCALE, sampleEntry,
+                durationUs, width, height));
+    }
+
+    /**
+     * Adds an AAC audio track.
+     *
+     * @param sampleRate sample rate
+     * @param channelCount channel count
+     * @param bitRate average bit rate, or 0 if unknown
+     * @param audioSpecificConfig the codec specific data
+     * @return the track index
+     */
+    public int addAacTrack(int sampleRate, int channelCount, int bitRate,
+                           @NonNull byte[] audioSpecificConfig) {
+        ByteBuffer decoderConfig = ByteBuffer.allocate(13);
+        decoderConfig.put((byte) 0x40); // MPEG-4 audio
+        decoderConfig.put((byte) 0x15); // audio stream
+        decoderConfig.put(new byte[3]); // buffer size
+        decoderConfig.putInt(bitRate).putInt(bitRate);
+        byte[] esDescriptor = descriptor(0x03,
+                new byte[]{0, 0, 0}, // ES_ID, flags
+                descriptor(0x04, decoderConfig.array(), descriptor(0x05, audioSpecificConfig)),
+                descriptor(0x06, new byte[]{0x02}));
+
+        ByteBuffer entry = ByteBuffer.allocate(28);
+        entry.put(new byte[6]).putShort((short) 1); // reserved, data reference index
+        entry.put(new byte[8]);
+        entry.putShort((short) channelCount).putShort((short) 16);
+        entry.putInt(0);
+        entry.putInt(sampleRate <= 0xFFFF ? sampleRate << 16 : 0);
+        byte[] sampleEntry = box("mp4a", entry.array(), fullBox("esds", 0, 0, esDescriptor));
+        long durationUs = 1024 * 1000000L / sampleRate;
+        return addTrack(new Track(mTracks.size() + 1, false, sampleRate, sampleEntry,
+                durationUs, 0, 0));
+    }
+
+    private int addTrack(@NonNull Track track) {
+        if (mStarted) throw new IllegalStateException("Tracks must be added before start().");
+        mTracks.add(track);
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * Writes the file header. After this, samples can be written.
+     *
+     * @throws IOException if writing fails
+     */
+    public void start() throws IOException {
+        if (mTracks.isEmpty()) throw new IllegalStateException("No tracks.");
+        mStarted = true;
+        ByteBuffer ftyp = ByteBuffer.allocate(24);
+        ftyp.put(ascii("isom")).putInt(0x200);
+        ftyp.put(ascii("isom")).put(ascii("iso6")).put(ascii("avc1")).put(ascii("mp41"));
+        write(ByteBuffer.wrap(box("ftyp", ftyp.array())), ByteBuffer.wrap(createMoov()));
+    }
+
+    /**
+     * Writes a sample. Samples of the same track must be written in decode order.
+     * When needed, the current fragment is flushed before adding this sample.
+     *
+     * @param trackIndex the index returned when adding the track
+     * @param data sample data, between position and limit. AVC samples can either
+     *             use start codes or 4-bytes lengths.
+     * @param timeUs presentation time
+     * @param sync whether this is a sync sample
+     * @throws IOException if writing fails
+     */
+    public void writeSample(int trackIndex, @NonNull ByteBuffer data, long timeUs, boolean sync)
+            throws IOException {
+        if (!mStarted) throw new IllegalStateException("Not started.");
+        Track track = mTracks.get(trackIndex);
+        boolean canCut = !mHasVideo || (track.mVideo && sync);
+        if (mFragmentStartUs != Long.MIN_VALUE
+                && ((canCut && timeUs - mFragmentStartUs >= mFragmentDurationUs)
+                || mFragmentBytes >= MAX_FRAGMENT_BYTES)) {
+            flush();
+        }
+        if (mFragmentStartUs == Long.MIN_VALUE) mFragmentStartUs = timeUs;
+
+        int size = data.remaining();
+        // Length prefixes can be one byte longer than 3-bytes start codes.
+        int needed = size + size / 3 + 8;
+        if (track.mData.remaining() < needed) {
+            int capacity = Math.max(track.mData.capacity() * 2, track.mData.position() + needed);
+            ByteBuffer bigger = ByteBuffer.allocate(capacity);
+            track.mData.flip();
+            bigger.put(track.mData);
+            track.mData = bigger;
+        }
+        int start = track.mData.position();
+        if (track.mVideo) {
+            appendLengthPrefixed(data, track.mData);
+        } else {
+            track.mData.put(data);
+        }
+        size = track.mData.position() - start;
+        if (track.mCount == track.mSizes.length) {
+            int capacity = track.mCount * 2;
+            track.mTimesUs = Arrays.copyOf(track.mTimesUs, capacity);
+            track.mSizes = Arrays.copyOf(track.mSizes, capacity);
+            track.mSync = Arrays.copyOf(track.mSync, capacity);
+        }
+        track.mTimesUs[track.mCount] = timeUs;
+        track.mSizes[track.mCount] = size;
+        track.mSync[track.mCount] = sync || !track.mVideo;
+        track.mCount++;
+        mFragmentBytes += size;
+    }
+
+    /**
+     * Writes the pending samples, if any, as a new fragment.
+     *
+     * @throws IOException if writing fails
+     */
+    public void flush() throws IOException {
+        List<byte[]> trafs = new ArrayList<>();
+        List<Track> tracks = new ArrayList<>();
+        for (Track track : mTracks) {
+            if (track.mCount > 0) tracks.add(track);
+        }
+        if (tracks.isEmpty()) return;
+        mSequence++;
+
+        // The size of the moof does not depend on the data offsets,
+        // so we can compute it with an offset of 0, then write it again.
+        int moofSize = createMoof(tracks, 0).length;
+        byte[] moof = createMoof(tracks, moofSize + 8);
+        long mdatSize = 8;
+        for (Track track : tracks) mdatSize += track.mData.position();
+        ByteBuffer mdatHeader = ByteBuffer.allocate(8);
+        mdatHeader.putInt((int) mdatSize).put(ascii("mdat"));
+        mdatHeader.flip();
+        ByteBuffer[] buffers = new ByteBuffer[2 + tracks.size()];
+        buffers[0] = ByteBuffer.wrap(moof);
+        buffers[1] = mdatHeader;
+        for (int i = 0; i < tracks.size(); i++) {
+            ByteBuffer data = tracks.get(i).mData;
+            data.flip();
+            buffers[2 + i] = data;
+        }
+        write(buffers);
+        for (Track track : tracks) {
+            track.mData.clear();
+            track.mCount = 0;
+        }
+        mFragmentStartUs = Long.MIN_VALUE;
+        mFragmentBytes = 0;
+    }
+
+    private void write(@NonNull ByteBuffer... buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) remaining += buffer.remaining();
+        while (remaining > 0) {
+            remaining -= mChannel.write(buffers);
+        }
+    }
+
+    @NonNull
+    private byte[] createMoov() {
+        List<byte[]> children = new ArrayList<>();
+        ByteBuffer mvhd = ByteBuffer.allocate(96);
+        mvhd.putInt(0).putInt(0).putInt(MOVIE_TIMESCALE).putInt(0);
+        mvhd.putInt(0x00010000).putShort((short) 0x0100).put(new byte[10]);
+        putMatrix(mvhd, 0);
+        mvhd.put(new byte[24]);
+        mvhd.putInt(mTracks.size() + 1);
+        children.add(fullBox("mvhd", 0, 0, mvhd.array()));
+        List<byte[]> trexs = new ArrayList<>();
+        for (Track track : mTracks) {
+            children.add(createTrak(track));
+            ByteBuffer trex = ByteBuffer.allocate(20);
+            trex.putInt(track.mId).putInt(1).putInt(0).putInt(0).putInt(0);
+            trexs.add(fullBox("trex", 0, 0, trex.array()));
+        }
+        children.add(box("mvex", trexs.toArray(new byte[0][])));
+        if (mLocation != null) {
+            byte[] string = mLocation.getBytes(ASCII);
+            ByteBuffer xyz = ByteBuffer.allocate(4 + string.length);
+            xyz.putShort((short) string.length).putShort((short) 0x15C7).put(string);
+            children.add(box("udta", box(new byte[]{(byte) 0xA9, 'x', 'y', 'z'}, xyz.array())));
+        }
+        return box("moov", children.toArray(new byte[0][]));
+    }
+
+    @NonNull
+    private byte[] createTrak(@NonNull Track track) {
+        ByteBuffer tkhd = ByteBuffer.allocate(80);
+        tkhd.putInt(0).putInt(0).putInt(track.mId).putInt(0).putInt(0);
+        tkhd.put(new byte[8]).putShort((short) 0).putShort((short) 0);
+        tkhd.putShort((short) (track.mVideo ? 0 : 0x0100)).putShort((short) 0);
+        putMatrix(tkhd, track.mVideo ? mRotation : 0);
+        tkhd.putInt(track.mWidth << 16).putInt(track.mHeight << 16);
+
+        ByteBuffer mdhd = ByteBuffer.allocate(20);
+        mdhd.putInt(0).putInt(0).putInt(track.mTimescale).putInt(0);
+        mdhd.putShort((short) 0x55C4).putShort((short) 0); // "und"
+
+        ByteBuffer hdlr = ByteBuffer.allocate(21);
+        hdlr.putInt(0).put(ascii(track.mVideo ? "vide" : "soun")).put(new byte[12]).put((byte) 0);
+
+        byte[] mediaHeader = track.mVideo
+                ? fullBox("vmhd", 0, 1, new byte[8])
+                : fullBox("smhd", 0, 0, new byte[4]);
+        byte[] dinf = box("dinf", fullBox("dref", 0, 0, intBytes(1), fullBox("url ", 0, 1)));
+        byte[] stbl = box("stbl",
+                fullBox("stsd", 0, 0, intBytes(1), track.mSampleEntry),
+                fullBox("stts", 0, 0, intBytes(0)),
+                fullBox("stsc", 0, 0, intBytes(0)),
+                fullBox("stsz", 0, 0, intBytes(0), intBytes(0)),
+                fullBox("stco", 0, 0, intBytes(0)));
+        return box("trak",
+                fullBox("tkhd", 0, 7, tkhd.array()),
+                box("mdia",
+                        fullBox("mdhd", 0, 0, mdhd.array()),
+                        fullBox("hdlr", 0, 0, hdlr.array()),
+                        box("minf", mediaHeader, dinf, stbl)));
+    }
+
+    @NonNull
+    private byte[] createMoof(@NonNull List<Track> tracks, int dataOffset) {
+        byte[][] children = new byte[tracks.size() + 1][];
+        children[0] = fullBox("mfhd", 0, 0, intBytes(mSequence));
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            int count = track.mCount;
+            // Samples come in decode order: decode times are the sorted presentation times.
+            long[] presentation = new long[count];
+            for (int j = 0; j < count; j++) presentation[j] = track.toTicks(track.mTimesUs[j]);
+            long[] decode = Arrays.copyOf(presentation, count);
+            Arrays.sort(decode);
+
+            int flags = 0x000701; // data offset, duration, size, flags
+            if (track.mVideo) flags |= 0x000800; // composition time offset
+            ByteBuffer trun = ByteBuffer.allocate(8 + count * (track.mVideo ? 16 : 12));
+            trun.putInt(count).putInt(dataOffset);
+            for (int j = 0; j < count; j++) {
+                long duration;
+                if (j + 1 < count) {
+                    duration = decode[j + 1] - decode[j];
+                    track.mLastDurationTicks = duration;
+                } else if (track.mLastDurationTicks > 0) {
+                    duration = track.mLastDurationTicks;
+                } else {
+                    duration = track.toTicks(track.mDefaultDurationUs);
+                }
+                trun.putInt((int) duration);
+                trun.putInt(track.mSizes[j]);
+                trun.putInt(track.mSync[j] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+                if (track.mVideo) trun.putInt((int) (presentation[j] - decode[j]));
+            }
+            dataOffset += track.mData.position();
+
+            ByteBuffer tfdt = ByteBuffer.allocate(8);
+            tfdt.putLong(decode[0]);
+            children[i + 1] = box("traf",
+                    fullBox("tfhd", 0, 0x020000, intBytes(track.mId)), // default base is moof
+                    fullBox("tfdt", 1, 0, tfdt.array()),
+                    fullBox("trun", track.mVideo ? 1 : 0, flags, trun.array()));
+        }
+        return box("moof", children);
+    }
+
+    /**
+     * Converts NAL units separated by start codes to NAL units prefixed by their
+     * 4-bytes length. If the data has no start code, it is copied as is.
+     */
+    private static void appendLengthPrefixed(@NonNull ByteBuffer src, @NonNull ByteBuffer dst) {
+        int end = src.limit();
+        int start = findStartCode(src, src.position(), end);
+        if (start < 0) {
+            dst.put(src);
+            return;
+        }
+        int nalStart = start + 3;
+        while (nalStart < end) {
+            int next = findStartCode(src, nalStart, end);
+            int nalEnd = next < 0 ? end : next;
+            // Trailing zeros belong to the next (4-bytes) start code.
+            while (nalEnd > nalStart && src.get(nalEnd - 1) == 0) nalEnd--;
+            dst.putInt(nalEnd - nalStart);
+            ByteBuffer nal = src.duplicate();
+            nal.limit(nalEnd);
+            nal.position(nalStart);
+            dst.put(nal);
+            if (next < 0) break;
+            nalStart = next + 3;
+        }
+        src.position(end);
+    }
+
+    private static int findStartCode(@NonNull ByteBuffer buffer, int from, int to) {
+        for (int i = from; i + 2 < to; i++) {
+            if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) return i;
+        }
+        return -1;
+    }
+
+    @NonNull
+    private static List<byte[]> splitNalUnits(@NonNull byte[] data) {
+        List<byte[]> units = new ArrayList<>();
+        if (findStartCode(ByteBuffer.wrap(data), 0, data.length) < 0) {
+            units.add(data);
+            return units;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(data.length * 2 + 8);
+        appendLengthPrefixed(ByteBuffer.wrap(data), buffer);
+        buffer.flip();
+        while (buffer.remaining() >= 4) {
+            byte[] unit = new byte[buffer.getInt()];
+            buffer.get(unit);
+            units.add(unit);
+        }
+        return units;
+    }
+
+    private static void putMatrix(@NonNull ByteBuffer buffer, int rotation) {
+        int one = 0x00010000;
+        int a = one, b = 0, c = 0, d = one;
+        switch (rotation) {
+            case 90: a = 0; b = one; c = -one; d = 0; break;
+            case 180: a = -one; d = -one; break;
+            case 270: a = 0; b = -one; c = one; d = 0; break;
+        }
+        buffer.putInt(a).putInt(b).putInt(0);
+        buffer.putInt(c).putInt(d).putInt(0);
+        buffer.putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    @NonNull
+    private static byte[] descriptor(int tag, @NonNull byte[]... payloads) {
+        int size = 0;
+        for (byte[] payload : payloads) size += payload.length;
+        ByteBuffer buffer = ByteBuffer.allocate(5 + size);
+        buffer.put((byte) tag);
+        buffer.put((byte) (0x80 | ((size >> 21) & 0x7F)));
+        buffer.put((byte) (0x80 | ((size >> 14) & 0x7F)));
+        buffer.put((byte) (0x80 | ((size >> 7) & 0x7F)));
+        buffer.put((byte) (size & 0x7F));
+        for (byte[] payload : payloads) buffer.put(payload);
+        return buffer.array();
+    }
+
+    @NonNull
+    private static byte[] box(@NonNull String type, @NonNull byte[]... payloads) {
+        return box(ascii(type), payloads);
+    }
+
+    @NonNull
+    private static byte[] box(@NonNull byte[] type, @NonNull byte[]... payloads) {
+        int size = 8;
+        for (byte[] payload : payloads) size += payload.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(size).put(type);
+        for (byte[] payload : payloads) buffer.put(payload);
+        return buffer.array();
+    }
+
+    @NonNull
+    private static byte[] fullBox(@NonNull String type, int version, int flags, @NonNull byte[]... payloads) {
+        byte[][] all = new byte[payloads.length + 1][];
+        all[0] = intBytes((version << 24) | flags);
+        System.arraycopy(payloads, 0, all, 1, payloads.length);
+        return box(type, all);
+    }
+
+    @NonNull
+    private static byte[] intBytes(int value) {
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+
+    @NonNull
+    private static byte[] ascii(@NonNull String string) {
+        return string.getBytes(ASCII);
+    }
+
+    @NonNull
+    private static byte[] toArray(@NonNull ByteBuffer buffer) {
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+}
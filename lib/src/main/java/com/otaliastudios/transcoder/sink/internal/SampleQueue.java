@@ -0,0 +1,256 @@
+package com.otaliastudios.transcoder.sink.internal;
+
+import android.media.MediaCodec;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.otaliastudios.transcoder.engine.TrackType;
+import com.otaliastudios.transcoder.internal.BufferPool;
+import com.otaliastudios.transcoder.internal.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds encoded samples while a sink is waiting for the output formats of all tracks.
+ *
+ * Samples are copied into fixed-size direct chunks, which are taken on demand
+ * from the {@link BufferPool}. Once the amount of queued memory reaches a threshold,
+ * the following samples are spilled to a temporary file.
+ *
+ * When draining, samples are passed to the consumer as views over the chunks or
+ * over the memory-mapped file, without further copies.
+ */
+public class SampleQueue {
+
+    private final static String TAG = SampleQueue.class.getSimpleName();
+    private final static Logger LOG = new Logger(TAG);
+
+    private final static int CHUNK_SIZE = 256 * 1024;
+    private final static int MAX_MAPPED_REGION = 64 * 1024 * 1024;
+
+    @SuppressWarnings("WeakerAccess")
+    public final static long DEFAULT_MEMORY_LIMIT = 8 * 1024 * 1024;
+
+    /**
+     * Receives the queued samples in {@link #drain(Consumer)}.
+     */
+    public interface Consumer {
+
+        /**
+         * Called for each sample, in the order they were added.
+         * The buffer is only valid until this method returns.
+         *
+         * @param type the track type
+         * @param buffer the data
+         * @param bufferInfo the metadata
+         */
+        void onSample(@NonNull TrackType type,
+                      @NonNull ByteBuffer buffer,
+                      @NonNull MediaCodec.BufferInfo bufferInfo);
+    }
+
+    private static class Sample {
+        private final TrackType mType;
+        private final ByteBuffer mChunk; // null if spilled
+        private final long mPosition;
+        private final int mSize;
+        private final long mTimeUs;
+        private final int mFlags;
+
+        private Sample(@NonNull TrackType type, @Nullable ByteBuffer chunk, long position,
+                       @NonNull MediaCodec.BufferInfo bufferInfo) {
+            mType = type;
+            mChunk = chunk;
+            mPosition = position;
+            mSize = bufferInfo.size;
+            mTimeUs = bufferInfo.presentationTimeUs;
+            mFlags = bufferInfo.flags;
+        }
+    }
+
+    private final long mMemoryLimit;
+    private final List<Sample> mSamples = new ArrayList<>();
+    private final List<ByteBuffer> mChunks = new ArrayList<>();
+    private ByteBuffer mChunk;
+    private long mMemoryBytes;
+    private long mBytes;
+    private long mPeakBytes;
+    private long mSpilledBytes;
+    private File mSpillFile;
+    private RandomAccessFile mSpill;
+
+    public SampleQueue() {
+        this(DEFAULT_MEMORY_LIMIT);
+    }
+
+    /**
+     * Creates a new queue.
+     *
+     * @param memoryLimit the amount of bytes to be kept in memory before
+     *                    spilling samples to a temporary file
+     */
+    @SuppressWarnings("WeakerAccess")
+    public SampleQueue(long memoryLimit) {
+        mMemoryLimit = memoryLimit;
+    }
+
+    /**
+     * Copies the given sample into the queue.
+     *
+     * @param type the track type
+     * @param buffer the data, between bufferInfo offset and size
+     * @param bufferInfo the metadata
+     */
+    public void add(@NonNull TrackType type,
+                    @NonNull ByteBuffer buffer,
+                    @NonNull MediaCodec.BufferInfo bufferInfo) {
+        int size = bufferInfo.size;
+        ByteBuffer source = buffer.duplicate();
+        source.limit(bufferInfo.offset + size);
+        source.position(bufferInfo.offset);
+        if (mSpill == null && mMemoryBytes + size > mMemoryLimit && size > 0) {
+            openSpillFile();
+        }
+        if (mSpill != null) {
+            long position = mSpilledBytes;
+            try {
+                FileChannel channel = mSpill.getChannel();
+                while (source.hasRemaining()) {
+                    position += channel.write(source, position);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            mSamples.add(new Sample(type, null, mSpilledBytes, bufferInfo));
+            mSpilledBytes += size;
+        } else {
+            if (mChunk == null || mChunk.remaining() < size) {
+                mChunk = obtainChunk(size);
+                mChunks.add(mChunk);
+            }
+            int position = mChunk.position();
+            mChunk.put(source);
+            mSamples.add(new Sample(type, mChunk, position, bufferInfo));
+            mMemoryBytes += size;
+        }
+        mBytes += size;
+        mPeakBytes = Math.max(mPeakBytes, mBytes);
+    }
+
+    private void openSpillFile() {
+        try {
+            mSpillFile = File.createTempFile("transcoder", ".queue");
+            mSpill = new RandomAccessFile(mSpillFile, "rw");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        LOG.i("Queued " + mMemoryBytes + " bytes in memory, spilling to " + mSpillFile);
+    }
+
+    /**
+     * Passes all queued samples to the given consumer, then clears the queue.
+     *
+     * @param consumer the consumer
+     */
+    public void drain(@NonNull Consumer consumer) {
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        ByteBuffer region = null;
+        long regionStart = 0;
+        try {
+            for (Sample sample : mSamples) {
+                ByteBuffer buffer;
+                int offset;
+                if (sample.mChunk != null) {
+                    buffer = sample.mChunk;
+                    offset = (int) sample.mPosition;
+                } else {
+                    if (region == null
+                            || sample.mPosition < regionStart
+                            || sample.mPosition + sample.mSize > regionStart + region.capacity()) {
+                        regionStart = sample.mPosition;
+                        long size = Math.max(sample.mSize,
+                                Math.min(MAX_MAPPED_REGION, mSpilledBytes - regionStart));
+                        region = mSpill.getChannel().map(FileChannel.MapMode.READ_ONLY, regionStart, size);
+                    }
+                    buffer = region;
+                    offset = (int) (sample.mPosition - regionStart);
+                }
+                buffer.clear();
+                bufferInfo.set(offset, sample.mSize, sample.mTimeUs, sample.mFlags);
+                consumer.onSample(sample.mType, buffer, bufferInfo);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        release();
+    }
+
+    /**
+     * Clears the queue, recycling memory and deleting the temporary file if any.
+     */
+    public void release() {
+        mSamples.clear();
+        for (ByteBuffer chunk : mChunks) BufferPool.recycle(chunk);
+        mChunks.clear();
+        mChunk = null;
+        mMemoryBytes = 0;
+        mBytes = 0;
+        mSpilledBytes = 0;
+        if (mSpill != null) {
+            try {
+                mSpill.close();
+            } catch (IOException e) {
+                LOG.w("Failed to close the spill file.", e);
+            }
+            //noinspection ResultOfMethodCallIgnored
+            mSpillFile.delete();
+            mSpill = null;
+            mSpillFile = null;
+        }
+    }
+
+    /**
+     * Returns the number of queued samples.
+     * @return queued samples
+     */
+    public int getSampleCount() {
+        return mSamples.size();
+    }
+
+    /**
+     * Returns the number of queued bytes, both in memory and spilled to file.
+     * @return queued bytes
+     */
+    public long getByteCount() {
+        return mBytes;
+    }
+
+    /**
+     * Returns the number of queued bytes that were spilled to file.
+     * @return spilled bytes
+     */
+    public long getSpilledByteCount() {
+        return mSpilledBytes;
+    }
+
+    /**
+     * Returns the maximum number of bytes that were queued at the same time.
+     * This is not reset when the queue is drained.
+     * @return peak bytes
+     */
+    public long getPeakByteCount() {
+        return mPeakBytes;
+    }
+
+    @NonNull
+    private static ByteBuffer obtainChunk(int size) {
+        return BufferPool.obtain(Math.max(size, CHUNK_SIZE), TAG);
+    }
+}
@@ -6,9 +6,9 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.otaliastudios.transcoder.engine.TrackType;
+import com.otaliastudios.transcoder.internal.BufferPool;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 import static com.otaliastudios.transcoder.internal.MediaFormatConstants.MIMETYPE_AUDIO_RAW;
 
@@ -30,14 +30,13 @@ public class BlankAudioDataSource implements DataSource {
     private static final int PERIOD_SIZE = (int) (PERIOD_TIME_SECONDS * BIT_RATE / 8);
 
     private final long durationUs;
-    private final ByteBuffer byteBuffer;
+    private ByteBuffer byteBuffer;
     private final MediaFormat audioFormat;
 
     private long currentTimestampUs = 0L;
 
     public BlankAudioDataSource(long durationUs) {
         this.durationUs = durationUs;
-        this.byteBuffer = ByteBuffer.allocateDirect(PERIOD_SIZE).order(ByteOrder.nativeOrder());
         this.audioFormat = new MediaFormat();
         audioFormat.setString(MediaFormat.KEY_MIME, MIMETYPE_AUDIO_RAW);
         audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
@@ -86,7 +85,13 @@ public class BlankAudioDataSource implements DataSource {
 
     @Override
     public void readTrack(@NonNull Chunk chunk) {
+        if (byteBuffer == null) {
+            // Pooled buffers are not zeroed.
+            byteBuffer = BufferPool.obtain(PERIOD_SIZE, TAG);
+            while (byteBuffer.hasRemaining()) byteBuffer.put((byte) 0);
+        }
         byteBuffer.clear();
+        byteBuffer.limit(PERIOD_SIZE);
         chunk.buffer = byteBuffer;
         chunk.isKeyFrame = true;
         chunk.timestampUs = currentTimestampUs;
@@ -107,7 +112,10 @@ public class BlankAudioDataSource implements DataSource {
 
     @Override
     public void releaseTrack(@NonNull TrackType type) {
-        // Nothing to do
+        if (byteBuffer != null) {
+            BufferPool.recycle(byteBuffer);
+            byteBuffer = null;
+        }
     }
 
     @Override
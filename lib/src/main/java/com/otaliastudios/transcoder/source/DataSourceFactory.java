@@ -0,0 +1,21 @@
+package com.otaliastudios.transcoder.source;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Creates {@link DataSource}s for the same input.
+ * This is needed when the same input must be read by multiple components at the same time,
+ * for example by segmented transcoding, because each {@link DataSource} instance can only
+ * be used once.
+ */
+public interface DataSourceFactory {
+
+    /**
+     * Returns a new source for the input. Each call must return
+     * a different instance.
+     *
+     * @return a new source
+     */
+    @NonNull
+    DataSource create();
+}
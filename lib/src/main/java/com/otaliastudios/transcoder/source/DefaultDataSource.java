@@ -11,6 +11,7 @@ import androidx.annotation.Nullable;
 import com.otaliastudios.transcoder.engine.TrackType;
 import com.otaliastudios.transcoder.internal.ISO6709LocationParser;
 import com.otaliastudios.transcoder.internal.Logger;
+import com.otaliastudios.transcoder.internal.ProbeCache;
 import com.otaliastudios.transcoder.internal.TrackTypeMap;
 
 import java.io.IOException;
@@ -18,6 +19,10 @@ import java.util.HashSet;
 
 /**
  * A DataSource implementation that uses Android's Media APIs.
+ *
+ * Subclasses that can identify their file should override {@link #getIdentity()}.
+ * Metadata and probed format values are then stored in the {@link ProbeCache},
+ * so that other sources for the same file do not have to read them again.
  */
 public abstract class DefaultDataSource implements DataSource {
 
@@ -34,6 +39,9 @@ public abstract class DefaultDataSource implements DataSource {
     private final TrackTypeMap<Long> mLastTimestampUs
             = new TrackTypeMap<>(0L, 0L);
     private long mFirstTimestampUs = Long.MIN_VALUE;
+    private long mSeekBaseUs = Long.MIN_VALUE;
+    private String mIdentity;
+    private boolean mIdentityComputed;
 
     private void ensureMetadata() {
         if (!mMetadataApplied) {
@@ -58,6 +66,30 @@ public abstract class DefaultDataSource implements DataSource {
 
     protected abstract void applyRetriever(@NonNull MediaMetadataRetriever retriever);
 
+    /**
+     * Returns a string that identifies the file and changes when the file changes,
+     * for example its path, size and modification time. Sources returning a non-null
+     * value use the {@link ProbeCache}. Defaults to null.
+     *
+     * @return an identity or null
+     */
+    @Nullable
+    protected String getIdentity() {
+        return null;
+    }
+
+    @Nullable
+    private String getCacheKey() {
+        if (!mIdentityComputed) {
+            mIdentityComputed = true;
+            mIdentity = getIdentity();
+            if (mIdentity != null) {
+                mIdentity = getClass().getName() + ":" + mIdentity;
+            }
+        }
+        return mIdentity;
+    }
+
     @Override
     public void selectTrack(@NonNull TrackType type) {
         mSelectedTracks.add(type);
@@ -67,7 +99,13 @@ public abstract class DefaultDataSource implements DataSource {
     @Override
     public long seekTo(long desiredTimestampUs) {
         ensureExtractor();
-        long base = mFirstTimestampUs > 0 ? mFirstTimestampUs : mExtractor.getSampleTime();
+        // Seek targets are relative to the first timestamp of the file. Compute it once,
+        // so that seeking more than once (e.g. after reading) stays consistent.
+        if (mSeekBaseUs == Long.MIN_VALUE) {
+            mSeekBaseUs = mFirstTimestampUs != Long.MIN_VALUE
+                    ? mFirstTimestampUs : mExtractor.getSampleTime();
+        }
+        long base = mSeekBaseUs;
         boolean hasVideo = mSelectedTracks.contains(TrackType.VIDEO);
         boolean hasAudio = mSelectedTracks.contains(TrackType.AUDIO);
         LOG.i("Seeking to: " + ((base + desiredTimestampUs) / 1000) + " first: " + (base / 1000)
@@ -135,40 +173,67 @@ public abstract class DefaultDataSource implements DataSource {
     @Nullable
     @Override
     public double[] getLocation() {
+        String key = getCacheKey();
+        String cached = key == null ? null : ProbeCache.get(key, ProbeCache.KEY_LOCATION);
+        if (cached != null) {
+            if (cached.isEmpty()) return null;
+            String[] values = cached.split(",");
+            return new double[]{Double.parseDouble(values[0]), Double.parseDouble(values[1])};
+        }
+        double[] result = null;
         ensureMetadata();
         String string = mMetadata.extractMetadata(MediaMetadataRetriever.METADATA_KEY_LOCATION);
         if (string != null) {
             float[] location = new ISO6709LocationParser().parse(string);
             if (location != null) {
-                double[] result = new double[2];
+                result = new double[2];
                 result[0] = (double) location[0];
                 result[1] = (double) location[1];
-                return result;
             }
         }
-        return null;
+        if (key != null) {
+            ProbeCache.put(key, ProbeCache.KEY_LOCATION,
+                    result == null ? "" : result[0] + "," + result[1]);
+        }
+        return result;
     }
 
     @Override
     public int getOrientation() {
+        String key = getCacheKey();
+        String cached = key == null ? null : ProbeCache.get(key, ProbeCache.KEY_ORIENTATION);
+        if (cached != null) return Integer.parseInt(cached);
         ensureMetadata();
         String string = mMetadata.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
+        int orientation;
         try {
-            return Integer.parseInt(string);
+            orientation = Integer.parseInt(string);
         } catch (NumberFormatException ignore) {
-            return 0;
+            orientation = 0;
         }
+        if (key != null) {
+            ProbeCache.put(key, ProbeCache.KEY_ORIENTATION, String.valueOf(orientation));
+        }
+        return orientation;
     }
 
     @Override
     public long getDurationUs() {
+        String key = getCacheKey();
+        String cached = key == null ? null : ProbeCache.get(key, ProbeCache.KEY_DURATION);
+        if (cached != null) return Long.parseLong(cached);
         ensureMetadata();
+        long durationUs;
         try {
-            return Long.parseLong(mMetadata
+            durationUs = Long.parseLong(mMetadata
                     .extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)) * 1000;
         } catch (NumberFormatException e) {
             return -1;
         }
+        if (key != null) {
+            ProbeCache.put(key, ProbeCache.KEY_DURATION, String.valueOf(durationUs));
+        }
+        return durationUs;
     }
 
     @Nullable
@@ -181,14 +246,14 @@ public abstract class DefaultDataSource implements DataSource {
         for (int i = 0; i < trackCount; i++) {
             format = mExtractor.getTrackFormat(i);
             String mime = format.getString(MediaFormat.KEY_MIME);
-            if (type == TrackType.VIDEO && mime.startsWith("video/")) {
-                mIndex.set(TrackType.VIDEO, i);
-                mFormats.set(TrackType.VIDEO, format);
-                return format;
-            }
-            if (type == TrackType.AUDIO && mime.startsWith("audio/")) {
-                mIndex.set(TrackType.AUDIO, i);
-                mFormats.set(TrackType.AUDIO, format);
+            if ((type == TrackType.VIDEO && mime.startsWith("video/"))
+                    || (type == TrackType.AUDIO && mime.startsWith("audio/"))) {
+                mIndex.set(type, i);
+                mFormats.set(type, format);
+                String key = getCacheKey();
+                if (key != null) {
+                    ProbeCache.registerFormat(format, key, type);
+                }
                 return format;
             }
         }
@@ -220,6 +285,7 @@ public abstract class DefaultDataSource implements DataSource {
     public void rewind() {
         mSelectedTracks.clear();
         mFirstTimestampUs = Long.MIN_VALUE;
+        mSeekBaseUs = Long.MIN_VALUE;
         mLastTimestampUs.setAudio(0L);
         mLastTimestampUs.setVideo(0L);
         // Release the extractor and recreate.
@@ -2,11 +2,16 @@ package com.otaliastudios.transcoder.source;
 
 import android.media.MediaExtractor;
 import android.media.MediaMetadataRetriever;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 /**
  * A {@link DataSource} backed by a file descriptor.
@@ -29,4 +34,28 @@ public class FileDescriptorDataSource extends DefaultDataSource {
     protected void applyRetriever(@NonNull MediaMetadataRetriever retriever) {
         retriever.setDataSource(descriptor);
     }
+
+    @Nullable
+    @Override
+    protected String getIdentity() {
+        return getDescriptorIdentity(descriptor);
+    }
+
+    /**
+     * Identifies the file behind a descriptor by device, inode, size and
+     * modification time. This needs API 21.
+     *
+     * @param descriptor a file descriptor
+     * @return an identity or null
+     */
+    @Nullable
+    static String getDescriptorIdentity(@NonNull FileDescriptor descriptor) {
+        if (Build.VERSION.SDK_INT < 21) return null;
+        try {
+            StructStat stat = Os.fstat(descriptor);
+            return stat.st_dev + ":" + stat.st_ino + ":" + stat.st_size + ":" + stat.st_mtime;
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
 }
@@ -6,11 +6,13 @@ import android.media.MediaMetadataRetriever;
 import com.otaliastudios.transcoder.engine.TrackType;
 import com.otaliastudios.transcoder.internal.Logger;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 /**
  * A {@link DataSource} backed by a file absolute path.
@@ -57,6 +59,14 @@ public class FilePathDataSource extends DefaultDataSource {
         mDescriptorSource.applyRetriever(retriever);
     }
 
+    @Nullable
+    @Override
+    protected String getIdentity() {
+        File file = new File(mPath);
+        if (!file.isFile()) return null;
+        return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+    }
+
     @Override
     protected void release() {
         super.release();
@@ -0,0 +1,427 @@
+package com.otaliastudios.transcoder.source;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.otaliastudios.transcoder.engine.TrackType;
+import com.otaliastudios.transcoder.internal.ISO6709LocationParser;
+import com.otaliastudios.transcoder.internal.Logger;
+import com.otaliastudios.transcoder.internal.MediaFormatConstants;
+import com.otaliastudios.transcoder.internal.TrackTypeMap;
+import com.otaliastudios.transcoder.source.internal.MappedFile;
+import com.otaliastudios.transcoder.source.internal.Mp4Parser;
+import com.otaliastudios.transcoder.source.internal.Mp4Track;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+
+/**
+ * A {@link DataSource} that reads MP4 files (and other ISO base media files, like 3GP or M4A)
+ * without using {@link android.media.MediaExtractor} or
+ * {@link android.media.MediaMetadataRetriever}.
+ *
+ * The file is memory-mapped and the sample tables are parsed once, so that sample lookup
+ * and seeking take constant time and samples are copied straight from the mapped region
+ * into {@link Chunk#buffer}. As MediaExtractor does, AVC and HEVC samples are converted
+ * to the Annex B format (start codes instead of NAL unit lengths).
+ *
+ * Fragmented files and edit lists are not supported: in these cases,
+ * use {@link FilePathDataSource} or {@link FileDescriptorDataSource} instead.
+ */
+public class Mp4DataSource implements DataSource {
+
+    private static final String TAG = Mp4DataSource.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    private static final byte[] START_CODE = new byte[]{0, 0, 0, 1};
+
+    private final String mPath;
+    private final FileDescriptor mDescriptor;
+    private Mp4Parser mParser;
+    private MappedFile mFile;
+    private final TrackTypeMap<Mp4Track> mTracks = new TrackTypeMap<>();
+    private final TrackTypeMap<MediaFormat> mFormats = new TrackTypeMap<>();
+    private final TrackTypeMap<Integer> mNextSample = new TrackTypeMap<>(0, 0);
+    private final HashSet<TrackType> mSelectedTracks = new HashSet<>();
+    private final TrackTypeMap<Long> mLastTimestampUs = new TrackTypeMap<>(0L, 0L);
+    private long mFirstTimestampUs = Long.MIN_VALUE;
+    private long mSeekBaseUs = Long.MIN_VALUE;
+    private ByteBuffer mScratch;
+    private boolean mReleased;
+
+    // Metadata is kept when the mapping is dropped.
+    private boolean mMetadataRead;
+    private long mDurationUs;
+    private int mOrientation;
+    private String mLocation;
+
+    @SuppressWarnings("unused")
+    public Mp4DataSource(@NonNull String path) {
+        mPath = path;
+        mDescriptor = null;
+    }
+
+    @SuppressWarnings("unused")
+    public Mp4DataSource(@NonNull FileDescriptor descriptor) {
+        mPath = null;
+        mDescriptor = descriptor;
+    }
+
+    private void ensureParsed() {
+        if (mParser != null) return;
+        FileInputStream stream = null;
+        try {
+            stream = mPath != null ? new FileInputStream(mPath) : new FileInputStream(mDescriptor);
+            FileChannel channel = stream.getChannel();
+            mFile = new MappedFile(channel);
+            mParser = new Mp4Parser(mFile);
+            mParser.parse();
+        } catch (IOException e) {
+            mParser = null;
+            mFile = null;
+            LOG.e("Got IOException while trying to parse the file.", e);
+            throw new RuntimeException(e);
+        } finally {
+            // The mapping is still valid. When created from a descriptor, the stream
+            // does not own it, so closing the stream leaves it open.
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignore) { }
+            }
+        }
+        for (Mp4Track track : mParser.getTracks()) {
+            if (track.isVideo() && !mTracks.has(TrackType.VIDEO)) {
+                mTracks.set(TrackType.VIDEO, track);
+            } else if (track.isAudio() && !mTracks.has(TrackType.AUDIO)) {
+                mTracks.set(TrackType.AUDIO, track);
+            }
+        }
+        if (!mMetadataRead) {
+            mMetadataRead = true;
+            mDurationUs = mParser.getDurationUs();
+            mOrientation = mTracks.hasVideo() ? mTracks.requireVideo().rotation : 0;
+            mLocation = mParser.getLocation();
+        }
+    }
+
+    private void ensureMetadata() {
+        if (!mMetadataRead) ensureParsed();
+    }
+
+    /**
+     * Samples can not be read after the source was released, until {@link #rewind()}
+     * is called, which maps the file again.
+     */
+    private void ensureReadable() {
+        if (mReleased) {
+            throw new IllegalStateException("Source was released. Call rewind() to read again.");
+        }
+        ensureParsed();
+    }
+
+    @Override
+    public int getOrientation() {
+        ensureMetadata();
+        return mOrientation;
+    }
+
+    @Nullable
+    @Override
+    public double[] getLocation() {
+        ensureMetadata();
+        String string = mLocation;
+        if (string != null) {
+            float[] location = new ISO6709LocationParser().parse(string);
+            if (location != null) {
+                double[] result = new double[2];
+                result[0] = (double) location[0];
+                result[1] = (double) location[1];
+                return result;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public long getDurationUs() {
+        ensureMetadata();
+        return mDurationUs;
+    }
+
+    @Nullable
+    @Override
+    public MediaFormat getTrackFormat(@NonNull TrackType type) {
+        if (mFormats.has(type)) return mFormats.get(type);
+        ensureParsed();
+        if (!mTracks.has(type)) {
+            if (mReleased) dropMapping();
+            return null;
+        }
+        Mp4Track track = mTracks.require(type);
+        MediaFormat format = new MediaFormat();
+        format.setString(MediaFormat.KEY_MIME, track.mime);
+        format.setLong(MediaFormat.KEY_DURATION, track.durationUs);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, getMaxOutputSize(track));
+        if (track.bitRate > 0) format.setInteger(MediaFormat.KEY_BIT_RATE, track.bitRate);
+        if (track.language != null) format.setString(MediaFormat.KEY_LANGUAGE, track.language);
+        if (type == TrackType.VIDEO) {
+            format.setInteger(MediaFormat.KEY_WIDTH, track.width);
+            format.setInteger(MediaFormat.KEY_HEIGHT, track.height);
+            format.setInteger(MediaFormatConstants.KEY_ROTATION_DEGREES, track.rotation);
+            int frameRate = track.getFrameRate();
+            if (frameRate > 0) format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        } else {
+            format.setInteger(MediaFormat.KEY_SAMPLE_RATE, track.sampleRate);
+            format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, track.channelCount);
+        }
+        for (int i = 0; i < track.csd.size(); i++) {
+            format.setByteBuffer("csd-" + i, ByteBuffer.wrap(track.csd.get(i)));
+        }
+        mFormats.set(type, format);
+        if (mReleased) {
+            // Only parsed to read the format.
+            dropMapping();
+        }
+        return format;
+    }
+
+    /**
+     * Returns the maximum size of a sample after converting it to the Annex B format.
+     * Each NAL unit length prefix shorter than a start code grows by the difference,
+     * and a NAL unit takes at least its prefix plus a one byte header, which bounds
+     * the number of units in the largest sample.
+     */
+    private static int getMaxOutputSize(@NonNull Mp4Track track) {
+        int lengthSize = track.nalLengthSize;
+        if (lengthSize <= 0 || lengthSize >= START_CODE.length) return track.maxSampleSize;
+        int maxNalUnits = track.maxSampleSize / (lengthSize + 1);
+        return track.maxSampleSize + maxNalUnits * (START_CODE.length - lengthSize);
+    }
+
+    @Override
+    public void selectTrack(@NonNull TrackType type) {
+        ensureReadable();
+        if (!mTracks.has(type)) {
+            throw new IllegalArgumentException("No track for type " + type);
+        }
+        mSelectedTracks.add(type);
+    }
+
+    /**
+     * Returns the selected track that should be read next, choosing the one
+     * with the lowest decode time (and file offset, for ties), or null if drained.
+     */
+    @Nullable
+    private TrackType getNextTrack() {
+        TrackType result = null;
+        long resultTimeUs = 0;
+        long resultOffset = 0;
+        for (TrackType type : mSelectedTracks) {
+            Mp4Track track = mTracks.require(type);
+            int sample = mNextSample.require(type);
+            if (sample >= track.sampleCount) continue;
+            long timeUs = track.decodeTimesUs[sample];
+            long offset = track.offsets[sample];
+            if (result == null || timeUs < resultTimeUs
+                    || (timeUs == resultTimeUs && offset < resultOffset)) {
+                result = type;
+                resultTimeUs = timeUs;
+                resultOffset = offset;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long seekTo(long desiredTimestampUs) {
+        ensureReadable();
+        if (mSeekBaseUs == Long.MIN_VALUE) {
+            mSeekBaseUs = mFirstTimestampUs;
+            if (mSeekBaseUs == Long.MIN_VALUE) {
+                TrackType next = getNextTrack();
+                mSeekBaseUs = next == null ? 0 : mTracks.require(next)
+                        .presentationTimesUs[mNextSample.require(next)];
+            }
+        }
+        long base = mSeekBaseUs;
+        long targetUs = base + desiredTimestampUs;
+        boolean hasVideo = mSelectedTracks.contains(TrackType.VIDEO);
+        boolean hasAudio = mSelectedTracks.contains(TrackType.AUDIO);
+        long resultUs = targetUs;
+        if (hasVideo) {
+            // Video can only start at sync frames. Audio will follow.
+            Mp4Track video = mTracks.requireVideo();
+            int sample = video.getClosestSyncSample(targetUs);
+            mNextSample.setVideo(sample);
+            resultUs = video.presentationTimesUs[sample];
+        }
+        if (hasAudio) {
+            Mp4Track audio = mTracks.requireAudio();
+            int sample = audio.getSampleAtOrAfter(resultUs);
+            if (!hasVideo && sample > 0 && (sample == audio.sampleCount
+                    || resultUs - audio.decodeTimesUs[sample - 1]
+                    < audio.decodeTimesUs[sample] - resultUs)) {
+                sample--;
+            }
+            mNextSample.setAudio(sample);
+            if (!hasVideo && sample < audio.sampleCount) {
+                resultUs = audio.presentationTimesUs[sample];
+            }
+        }
+        LOG.i("Seeking to: " + (targetUs / 1000) + " first: " + (base / 1000)
+                + " result: " + (resultUs / 1000));
+        return resultUs - base;
+    }
+
+    @Override
+    public boolean canReadTrack(@NonNull TrackType type) {
+        ensureReadable();
+        return getNextTrack() == type;
+    }
+
+    @Override
+    public void readTrack(@NonNull Chunk chunk) {
+        ensureReadable();
+        TrackType type = getNextTrack();
+        if (type == null) {
+            throw new IllegalStateException("No samples to read.");
+        }
+        Mp4Track track = mTracks.require(type);
+        int sample = mNextSample.require(type);
+        long offset = track.offsets[sample];
+        int size = track.sizes[sample];
+        ByteBuffer buffer = chunk.buffer;
+        if (track.nalLengthSize == START_CODE.length) {
+            // Same size: copy and replace the lengths in place.
+            if (size > buffer.capacity()) {
+                throw new IllegalArgumentException("Buffer too small: " + buffer.capacity()
+                        + " < " + size);
+            }
+            buffer.clear();
+            mFile.read(offset, buffer, size);
+            int position = 0;
+            while (position + START_CODE.length <= size) {
+                // Lengths are big endian, while the buffer order might not be.
+                int length = ((buffer.get(position) & 0xFF) << 24)
+                        | ((buffer.get(position + 1) & 0xFF) << 16)
+                        | ((buffer.get(position + 2) & 0xFF) << 8)
+                        | (buffer.get(position + 3) & 0xFF);
+                for (int i = 0; i < START_CODE.length; i++) {
+                    buffer.put(position + i, START_CODE[i]);
+                }
+                position += START_CODE.length + length;
+            }
+        } else if (track.nalLengthSize > 0) {
+            size = readNalUnits(track.nalLengthSize, offset, size, buffer);
+        } else {
+            if (size > buffer.capacity()) {
+                throw new IllegalArgumentException("Buffer too small: " + buffer.capacity()
+                        + " < " + size);
+            }
+            buffer.clear();
+            mFile.read(offset, buffer, size);
+        }
+        buffer.position(0);
+        buffer.limit(size);
+        chunk.bytes = size;
+        chunk.isKeyFrame = track.isSync(sample);
+        chunk.timestampUs = track.presentationTimesUs[sample];
+        if (mFirstTimestampUs == Long.MIN_VALUE) {
+            mFirstTimestampUs = chunk.timestampUs;
+        }
+        mLastTimestampUs.set(type, chunk.timestampUs);
+        mNextSample.set(type, sample + 1);
+    }
+
+    /**
+     * Copies a sample whose NAL unit length prefix is not 4 bytes long, replacing
+     * each prefix with a start code. Returns the output size.
+     */
+    private int readNalUnits(int lengthSize, long offset, int size, @NonNull ByteBuffer buffer) {
+        if (mScratch == null || mScratch.capacity() < size) {
+            mScratch = ByteBuffer.allocate(size);
+        }
+        mScratch.clear();
+        mFile.read(offset, mScratch, size);
+        mScratch.flip();
+        buffer.clear();
+        while (mScratch.remaining() >= lengthSize) {
+            int length = 0;
+            for (int i = 0; i < lengthSize; i++) {
+                length = (length << 8) | (mScratch.get() & 0xFF);
+            }
+            length = Math.min(length, mScratch.remaining());
+            if (buffer.remaining() < START_CODE.length + length) {
+                throw new IllegalArgumentException("Buffer too small: " + buffer.capacity());
+            }
+            buffer.put(START_CODE);
+            ByteBuffer nal = mScratch.duplicate();
+            nal.limit(nal.position() + length);
+            buffer.put(nal);
+            mScratch.position(mScratch.position() + length);
+        }
+        return buffer.position();
+    }
+
+    @Override
+    public long getReadUs() {
+        if (mFirstTimestampUs == Long.MIN_VALUE) {
+            return 0;
+        }
+        // Return the fastest track, as DefaultDataSource does.
+        long last = Math.max(mLastTimestampUs.requireAudio(), mLastTimestampUs.requireVideo());
+        return last - mFirstTimestampUs;
+    }
+
+    @Override
+    public boolean isDrained() {
+        ensureReadable();
+        return getNextTrack() == null;
+    }
+
+    @Override
+    public void releaseTrack(@NonNull TrackType type) {
+        mSelectedTracks.remove(type);
+        if (mSelectedTracks.isEmpty()) {
+            release();
+        }
+    }
+
+    /**
+     * Drops the mapping, which will be released with the buffers.
+     * Metadata and formats can still be read, but samples can not until {@link #rewind()}.
+     */
+    private void release() {
+        dropMapping();
+        mReleased = true;
+    }
+
+    private void dropMapping() {
+        mParser = null;
+        mFile = null;
+        mScratch = null;
+        mTracks.clear();
+    }
+
+    @Override
+    public void rewind() {
+        if (mReleased) {
+            mReleased = false;
+            ensureParsed();
+        }
+        mSelectedTracks.clear();
+        mFirstTimestampUs = Long.MIN_VALUE;
+        mSeekBaseUs = Long.MIN_VALUE;
+        mLastTimestampUs.setAudio(0L);
+        mLastTimestampUs.setVideo(0L);
+        mNextSample.setAudio(0);
+        mNextSample.setVideo(0);
+    }
+}
@@ -0,0 +1,449 @@
+package com.otaliastudios.transcoder.source;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.otaliastudios.transcoder.engine.TrackType;
+import com.otaliastudios.transcoder.internal.BufferPool;
+import com.otaliastudios.transcoder.internal.Logger;
+import com.otaliastudios.transcoder.internal.TrackTypeMap;
+import com.otaliastudios.transcoder.internal.WorkSignal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A {@link DataSource} wrapper that reads the wrapped source on a separate thread,
+ * storing samples into bounded per-track queues.
+ *
+ * Sources like {@link DefaultDataSource} can only return the sample that comes next
+ * in the file, which means that a track transcoder often has to wait for the other one
+ * to consume its sample. With this wrapper, {@link #canReadTrack(TrackType)} and
+ * {@link #readTrack(Chunk)} are simple queue operations that depend on that track only,
+ * as long as the queues are not full. Samples are read straight into buffers that come
+ * from the shared {@link BufferPool}, and go back to it once they are consumed.
+ *
+ * The wrapped source should not be used by anyone else.
+ */
+@SuppressWarnings("unused")
+public class ReadAheadDataSource extends DataSourceWrapper {
+
+    private static final String TAG = ReadAheadDataSource.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    /**
+     * The default maximum amount of bytes to be queued for each track.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+
+    private static final int DEFAULT_MAX_INPUT_SIZE = 512 * 1024;
+    private static final int MAX_INPUT_SIZE_LIMIT = 64 * 1024 * 1024;
+    private static final long STALL_WAIT_MILLIS = 10;
+
+    private static class Sample {
+        private ByteBuffer buffer;
+        private int bytes;
+        private long timestampUs;
+        private boolean isKeyFrame;
+        private long readUs;
+    }
+
+    private final int mMaxQueuedBytes;
+    private final Object mLock = new Object();
+    // Guards the wrapped source, which is used by the reader thread and by us.
+    private final Object mSourceLock = new Object();
+
+    @GuardedBy("mLock") private final TrackTypeMap<ArrayDeque<Sample>> mQueues
+            = new TrackTypeMap<>(new ArrayDeque<Sample>(), new ArrayDeque<Sample>());
+    @GuardedBy("mLock") private final TrackTypeMap<Integer> mQueuedBytes = new TrackTypeMap<>(0, 0);
+    @GuardedBy("mLock") private final Set<TrackType> mSelectedTracks = new HashSet<>();
+    @GuardedBy("mLock") private final Set<TrackType> mKnownTracks = new HashSet<>();
+    @GuardedBy("mLock") private boolean mSourceDrained;
+    @GuardedBy("mLock") private RuntimeException mError;
+    @GuardedBy("mLock") private long mReadUs;
+    @GuardedBy("mLock") private Thread mThread;
+    @GuardedBy("mLock") private final TrackTypeMap<WorkSignal> mWorkSignals = new TrackTypeMap<>();
+    // The largest sample read for each track. Only used by the reader thread.
+    private final TrackTypeMap<Integer> mSampleCapacity = new TrackTypeMap<>(0, 0);
+
+    // The track that was last checked with canReadTrack() by each consumer thread.
+    private final ThreadLocal<TrackType> mCurrentTrack = new ThreadLocal<>();
+
+    public ReadAheadDataSource(@NonNull DataSource source) {
+        this(source, DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+    /**
+     * Creates a new source.
+     * @param source the source to read from
+     * @param maxQueuedBytes the maximum amount of bytes to be queued for each track.
+     *                       At least one sample is always queued.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public ReadAheadDataSource(@NonNull DataSource source, int maxQueuedBytes) {
+        super(source);
+        if (maxQueuedBytes <= 0) {
+            throw new IllegalArgumentException("maxQueuedBytes should be > 0.");
+        }
+        mMaxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Sets a signal to be notified when a sample of the given track is available,
+     * so that the consumer does not have to poll {@link #canReadTrack(TrackType)}.
+     * This is called by the engine.
+     *
+     * @param type the track type
+     * @param signal a signal or null
+     */
+    public void setWorkSignal(@NonNull TrackType type, @Nullable WorkSignal signal) {
+        synchronized (mLock) {
+            mWorkSignals.set(type, signal);
+        }
+    }
+
+    @Override
+    public int getOrientation() {
+        synchronized (mSourceLock) {
+            return super.getOrientation();
+        }
+    }
+
+    @Nullable
+    @Override
+    public double[] getLocation() {
+        synchronized (mSourceLock) {
+            return super.getLocation();
+        }
+    }
+
+    @Override
+    public long getDurationUs() {
+        synchronized (mSourceLock) {
+            return super.getDurationUs();
+        }
+    }
+
+    @Nullable
+    @Override
+    public MediaFormat getTrackFormat(@NonNull TrackType type) {
+        synchronized (mSourceLock) {
+            return super.getTrackFormat(type);
+        }
+    }
+
+    @Override
+    public void selectTrack(@NonNull TrackType type) {
+        synchronized (mSourceLock) {
+            super.selectTrack(type);
+        }
+        synchronized (mLock) {
+            mSelectedTracks.add(type);
+            mKnownTracks.add(type);
+        }
+    }
+
+    @Override
+    public long seekTo(long desiredTimestampUs) {
+        stopReader();
+        synchronized (mSourceLock) {
+            long result = super.seekTo(desiredTimestampUs);
+            synchronized (mLock) {
+                mReadUs = super.getReadUs();
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public boolean canReadTrack(@NonNull TrackType type) {
+        synchronized (mLock) {
+            ensureReaderLocked();
+            boolean result = !mQueues.require(type).isEmpty();
+            mCurrentTrack.set(result ? type : null);
+            return result;
+        }
+    }
+
+    @Override
+    public void readTrack(@NonNull Chunk chunk) {
+        TrackType type = mCurrentTrack.get();
+        if (type == null) {
+            throw new IllegalStateException("readTrack() called without a successful canReadTrack().");
+        }
+        mCurrentTrack.set(null);
+        synchronized (mLock) {
+            ensureReaderLocked();
+            Sample sample = mQueues.require(type).remove();
+            sample.buffer.position(0);
+            sample.buffer.limit(sample.bytes);
+            chunk.buffer.clear();
+            chunk.buffer.put(sample.buffer);
+            chunk.buffer.flip();
+            chunk.bytes = sample.bytes;
+            chunk.timestampUs = sample.timestampUs;
+            chunk.isKeyFrame = sample.isKeyFrame;
+            mReadUs = sample.readUs;
+            mQueuedBytes.set(type, mQueuedBytes.require(type) - sample.bytes);
+            BufferPool.recycle(sample.buffer);
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public long getReadUs() {
+        synchronized (mLock) {
+            return mReadUs;
+        }
+    }
+
+    @Override
+    public boolean isDrained() {
+        synchronized (mLock) {
+            ensureReaderLocked();
+            return mSourceDrained
+                    && mQueues.requireVideo().isEmpty()
+                    && mQueues.requireAudio().isEmpty();
+        }
+    }
+
+    @Override
+    public void releaseTrack(@NonNull TrackType type) {
+        boolean stop;
+        synchronized (mLock) {
+            mSelectedTracks.remove(type);
+            clearQueueLocked(type);
+            stop = mSelectedTracks.isEmpty();
+        }
+        if (stop) stopReader();
+        synchronized (mSourceLock) {
+            super.releaseTrack(type);
+        }
+    }
+
+    @Override
+    public void rewind() {
+        stopReader();
+        synchronized (mSourceLock) {
+            super.rewind();
+        }
+        synchronized (mLock) {
+            mSelectedTracks.clear();
+            mKnownTracks.clear();
+            mReadUs = 0;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void ensureReaderLocked() {
+        if (mError != null) throw mError;
+        if (mThread == null && !mSourceDrained && !mSelectedTracks.isEmpty()) {
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            }, TAG);
+            mThread.start();
+        }
+    }
+
+    /**
+     * Stops the reader thread, if any, and drops all queued samples.
+     * The reader will be restarted when needed.
+     */
+    private void stopReader() {
+        Thread thread;
+        synchronized (mLock) {
+            thread = mThread;
+            mThread = null;
+            mLock.notifyAll();
+        }
+        if (thread != null) {
+            thread.interrupt();
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        synchronized (mLock) {
+            clearQueueLocked(TrackType.VIDEO);
+            clearQueueLocked(TrackType.AUDIO);
+            mSourceDrained = false;
+            mError = null;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void clearQueueLocked(@NonNull TrackType type) {
+        ArrayDeque<Sample> queue = mQueues.require(type);
+        while (!queue.isEmpty()) {
+            BufferPool.recycle(queue.remove().buffer);
+        }
+        mQueuedBytes.set(type, 0);
+    }
+
+    private boolean isCurrentReader() {
+        synchronized (mLock) {
+            return mThread == Thread.currentThread();
+        }
+    }
+
+    /**
+     * The reader loop. Reads samples directly into pooled buffers, then adds them to the right
+     * track queue.
+     * Samples of tracks that are not selected anymore are dropped.
+     */
+    private void read() {
+        Chunk chunk = new Chunk();
+        try {
+            while (isCurrentReader()) {
+                TrackType type = null;
+                synchronized (mSourceLock) {
+                    // Check the source state.
+                    if (super.isDrained()) {
+                        synchronized (mLock) {
+                            mSourceDrained = true;
+                            mLock.notifyAll();
+                            signalLocked(TrackType.VIDEO);
+                            signalLocked(TrackType.AUDIO);
+                        }
+                        LOG.i("Source drained, stopping.");
+                        return;
+                    }
+                    Set<TrackType> tracks;
+                    synchronized (mLock) {
+                        tracks = new HashSet<>(mKnownTracks);
+                    }
+                    for (TrackType track : tracks) {
+                        if (super.canReadTrack(track)) {
+                            type = track;
+                            break;
+                        }
+                    }
+                }
+                if (type == null) {
+                    // Nothing to read at this point. Should not happen with the default
+                    // sources, but we should not spin.
+                    synchronized (mLock) {
+                        mLock.wait(STALL_WAIT_MILLIS);
+                    }
+                    continue;
+                }
+
+                // Pooled buffers are sized after the largest sample seen so far, so that reads
+                // rarely fail. Before the first sample, we can only trust the format.
+                int capacity = mSampleCapacity.require(type);
+                if (capacity == 0) capacity = getMaxInputSize(type);
+
+                // Wait for space, unless the track is not selected (we'll drop the sample).
+                synchronized (mLock) {
+                    while (mThread == Thread.currentThread()
+                            && mSelectedTracks.contains(type)
+                            && !mQueues.require(type).isEmpty()
+                            && mQueuedBytes.require(type) >= mMaxQueuedBytes) {
+                        mLock.wait();
+                    }
+                    if (mThread != Thread.currentThread()) return;
+                }
+
+                // The sample is owned by this thread until it is queued. If it is not,
+                // its buffer goes back to the pool.
+                Sample sample = new Sample();
+                sample.buffer = BufferPool.obtain(capacity, TAG);
+                try {
+                    readSample(type, sample, chunk);
+                    long readUs;
+                    synchronized (mSourceLock) {
+                        readUs = super.getReadUs();
+                    }
+
+                    // Enqueue.
+                    synchronized (mLock) {
+                        if (mThread != Thread.currentThread()) return;
+                        if (!mSelectedTracks.contains(type)) {
+                            mReadUs = Math.max(mReadUs, readUs);
+                            continue;
+                        }
+                        sample.bytes = chunk.bytes;
+                        sample.timestampUs = chunk.timestampUs;
+                        sample.isKeyFrame = chunk.isKeyFrame;
+                        sample.readUs = readUs;
+                        mQueues.require(type).add(sample);
+                        mQueuedBytes.set(type, mQueuedBytes.require(type) + chunk.bytes);
+                        mLock.notifyAll();
+                        signalLocked(type);
+                        sample = null;
+                    }
+                } finally {
+                    if (sample != null) BufferPool.recycle(sample.buffer);
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.v("Reader interrupted.");
+        } catch (RuntimeException e) {
+            LOG.e("Reader failed.", e);
+            synchronized (mLock) {
+                if (mThread == Thread.currentThread()) {
+                    mError = e;
+                    signalLocked(TrackType.VIDEO);
+                    signalLocked(TrackType.AUDIO);
+                }
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void signalLocked(@NonNull TrackType type) {
+        WorkSignal signal = mWorkSignals.get(type);
+        if (signal != null) signal.signal();
+    }
+
+    /**
+     * Reads the next sample of the given track into the sample buffer. If it is too small,
+     * it is passed back to the pool and a bigger one is obtained.
+     */
+    private void readSample(@NonNull TrackType type, @NonNull Sample sample, @NonNull Chunk chunk) {
+        while (true) {
+            sample.buffer.clear();
+            chunk.buffer = sample.buffer;
+            try {
+                synchronized (mSourceLock) {
+                    super.readTrack(chunk);
+                }
+                break;
+            } catch (IllegalArgumentException e) {
+                // Buffer too small.
+                int capacity = sample.buffer.capacity();
+                if (capacity >= MAX_INPUT_SIZE_LIMIT) throw e;
+                LOG.w("Sample buffer too small (" + capacity + "), growing.");
+                BufferPool.recycle(sample.buffer);
+                sample.buffer = BufferPool.obtain(capacity * 2, TAG);
+            }
+        }
+        mSampleCapacity.set(type, Math.max(mSampleCapacity.require(type), chunk.bytes));
+    }
+
+    private int getMaxInputSize(@NonNull TrackType type) {
+        int result = 0;
+        synchronized (mSourceLock) {
+            MediaFormat format = super.getTrackFormat(type);
+            if (format != null && format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                result = format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+            }
+        }
+        return result > 0 ? result : DEFAULT_MAX_INPUT_SIZE;
+    }
+}
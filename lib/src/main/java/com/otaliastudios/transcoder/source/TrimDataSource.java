@@ -1,22 +1,45 @@
 package com.otaliastudios.transcoder.source;
 
 
+import android.media.MediaFormat;
+
 import androidx.annotation.NonNull;
 
 import com.otaliastudios.transcoder.engine.TrackType;
 import com.otaliastudios.transcoder.internal.Logger;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * A {@link DataSource} that trims the inner source at both ends.
+ *
+ * By default, the start of the trimmed source is moved to the closest sync frame,
+ * so the actual trim start might be slightly before or after the requested one.
+ * When smart cut is enabled, the source moves to the previous sync frame instead and
+ * reports timestamps relative to the start of the inner source, so that the video frames
+ * before {@link #getCutStartUs()} can be decoded but not rendered, and the output
+ * starts exactly at the requested position. Audio samples before that position are
+ * dropped here.
  */
 public class TrimDataSource extends DataSourceWrapper {
     private static final String TAG = TrimDataSource.class.getSimpleName();
     private static final Logger LOG = new Logger(TAG);
 
+    private static final long SMART_CUT_STEP_US = 1000000L;
+    private static final int SMART_CUT_BUFFER_SIZE = 1024 * 1024;
+
     private long trimStartUs;
     private long trimDurationUs;
     private boolean trimDone = false;
 
+    private final boolean smartCut;
+    private final long cutStartUs;
+    private long timestampOffsetUs = Long.MIN_VALUE;
+    private long readUs = 0;
+    private final Chunk heldChunk = new Chunk();
+    private TrackType heldType = null;
+
     @SuppressWarnings("WeakerAccess")
     public TrimDataSource(@NonNull DataSource source, long trimStartUs) {
         this(source, trimStartUs, 0);
@@ -24,6 +47,22 @@ public class TrimDataSource extends DataSourceWrapper {
 
     @SuppressWarnings("WeakerAccess")
     public TrimDataSource(@NonNull DataSource source, long trimStartUs, long trimEndUs) {
+        this(source, trimStartUs, trimEndUs, false);
+    }
+
+    /**
+     * Creates a new trim source.
+     *
+     * @param source the inner source
+     * @param trimStartUs microseconds to be trimmed at the start
+     * @param trimEndUs microseconds to be trimmed at the end
+     * @param smartCut whether the output should start exactly at trimStartUs, instead of
+     *                 the closest sync frame. This is honored by the engine either by
+     *                 re-encoding the first GOP alone (when video is passed through) or
+     *                 by skipping the frames before the start (when video is compressed).
+     */
+    @SuppressWarnings("WeakerAccess")
+    public TrimDataSource(@NonNull DataSource source, long trimStartUs, long trimEndUs, boolean smartCut) {
         super(source);
         if (trimStartUs < 0 || trimEndUs < 0) {
             throw new IllegalArgumentException("Trim values cannot be negative.");
@@ -35,6 +74,27 @@ public class TrimDataSource extends DataSourceWrapper {
         }
         this.trimStartUs = trimStartUs;
         this.trimDurationUs = duration - trimStartUs - trimEndUs;
+        this.smartCut = smartCut;
+        this.cutStartUs = trimStartUs;
+    }
+
+    /**
+     * Whether this source was created in smart cut mode.
+     * @return true if smart cut is enabled
+     */
+    public boolean isSmartCut() {
+        return smartCut;
+    }
+
+    /**
+     * In smart cut mode, returns the timestamp, as returned in {@link Chunk#timestampUs},
+     * of the first sample that should be presented. Samples before this one are only
+     * needed to decode the following ones.
+     *
+     * @return the cut position in microseconds
+     */
+    public long getCutStartUs() {
+        return cutStartUs;
     }
 
     @Override
@@ -45,14 +105,58 @@ public class TrimDataSource extends DataSourceWrapper {
     @Override
     public boolean canReadTrack(@NonNull TrackType type) {
         if (!trimDone && trimStartUs > 0) {
-            trimStartUs = getSource().seekTo(trimStartUs);
+            trimStartUs = smartCut ? seekToPreviousSync(trimStartUs)
+                    : getSource().seekTo(trimStartUs);
             trimDone = true;
         }
-        return super.canReadTrack(type);
+        if (!smartCut) {
+            return super.canReadTrack(type);
+        }
+        while (heldType == null) {
+            if (!super.canReadTrack(type)) return false;
+            hold(type);
+            if (type == TrackType.AUDIO && heldChunk.timestampUs < cutStartUs) {
+                // Audio has no dependencies, we can just drop what comes before the cut.
+                heldType = null;
+            }
+        }
+        return heldType == type;
+    }
+
+    @Override
+    public void readTrack(@NonNull Chunk chunk) {
+        if (!smartCut) {
+            super.readTrack(chunk);
+            return;
+        }
+        if (heldType == null) {
+            throw new IllegalStateException("readTrack called without canReadTrack.");
+        }
+        ByteBuffer held = heldChunk.buffer;
+        held.position(0);
+        held.limit(heldChunk.bytes);
+        chunk.buffer.clear();
+        chunk.buffer.put(held);
+        chunk.buffer.position(0);
+        chunk.buffer.limit(heldChunk.bytes);
+        chunk.bytes = heldChunk.bytes;
+        chunk.isKeyFrame = heldChunk.isKeyFrame;
+        chunk.timestampUs = heldChunk.timestampUs;
+        readUs = Math.max(readUs, heldChunk.timestampUs - cutStartUs);
+        heldType = null;
+    }
+
+    @Override
+    public long getReadUs() {
+        if (!smartCut) return super.getReadUs();
+        return readUs;
     }
 
     @Override
     public boolean isDrained() {
+        if (smartCut && heldType != null) {
+            return getReadUs() >= getDurationUs();
+        }
         return super.isDrained() || getReadUs() >= getDurationUs();
     }
 
@@ -67,5 +171,48 @@ public class TrimDataSource extends DataSourceWrapper {
     public void rewind() {
         super.rewind();
         trimDone = false;
+        trimStartUs = cutStartUs;
+        timestampOffsetUs = Long.MIN_VALUE;
+        readUs = 0;
+        heldType = null;
+    }
+
+    /**
+     * Seeks to a sync frame that is at or before the desired position.
+     * The inner source seeks to the closest sync frame, so we keep moving
+     * the target backwards until the result is not after the desired position.
+     */
+    private long seekToPreviousSync(long desiredUs) {
+        long targetUs = desiredUs;
+        long stepUs = SMART_CUT_STEP_US;
+        long resultUs = getSource().seekTo(targetUs);
+        while (resultUs > desiredUs && targetUs > 0) {
+            targetUs = Math.max(0, targetUs - stepUs);
+            stepUs *= 2;
+            resultUs = getSource().seekTo(targetUs);
+        }
+        LOG.i("Smart cut: requested " + desiredUs + " got sync frame at " + resultUs);
+        return resultUs;
+    }
+
+    private void hold(@NonNull TrackType type) {
+        if (heldChunk.buffer == null) {
+            int size = SMART_CUT_BUFFER_SIZE;
+            for (TrackType track : TrackType.values()) {
+                MediaFormat format = getSource().getTrackFormat(track);
+                if (format != null && format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                    size = Math.max(size, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+                }
+            }
+            heldChunk.buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+        heldChunk.buffer.clear();
+        super.readTrack(heldChunk);
+        if (timestampOffsetUs == Long.MIN_VALUE) {
+            // Our first sample sits at trimStartUs, relative to the inner source start.
+            timestampOffsetUs = heldChunk.timestampUs - trimStartUs;
+        }
+        heldChunk.timestampUs -= timestampOffsetUs;
+        heldType = type;
     }
 }
@@ -4,10 +4,13 @@ import android.content.Context;
 import android.media.MediaExtractor;
 import android.media.MediaMetadataRetriever;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 
+import java.io.File;
 import java.io.IOException;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 /**
  * A {@link DataSource} backed by an Uri, possibly
@@ -32,4 +35,30 @@ public class UriDataSource extends DefaultDataSource {
     protected void applyRetriever(@NonNull MediaMetadataRetriever retriever) {
         retriever.setDataSource(context, uri);
     }
+
+    @Nullable
+    @Override
+    protected String getIdentity() {
+        if ("file".equals(uri.getScheme()) && uri.getPath() != null) {
+            File file = new File(uri.getPath());
+            if (!file.isFile()) return null;
+            return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+        }
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+            if (descriptor == null) return null;
+            String identity = FileDescriptorDataSource.getDescriptorIdentity(
+                    descriptor.getFileDescriptor());
+            return identity == null ? null : uri + ":" + identity;
+        } catch (Exception e) {
+            return null;
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException ignore) {}
+            }
+        }
+    }
 }
@@ -0,0 +1,40 @@
+package com.otaliastudios.transcoder.source.internal;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.transcoder.source.DataSource;
+
+/**
+ * Moves a source back after a checkpoint, so that reading resumes at or before a given sample.
+ *
+ * Sample timestamps, as returned in {@link DataSource.Chunk#timestampUs}, are in the file
+ * timebase, while {@link DataSource#seekTo(long)} positions are relative to the first sample
+ * that was read. The two differ when the first sample is not at 0, so the resume timestamp
+ * is moved to the seek timebase before comparing.
+ */
+public class CheckpointSeeker {
+
+    private CheckpointSeeker() {}
+
+    /**
+     * Seeks the source so that the next sample of each track is at or before the given
+     * timestamp. Sources can only seek to sync frames, so we might have to go back
+     * more than once.
+     *
+     * @param source the source
+     * @param firstUs the timestamp of the first sample read from the source
+     * @param resumeUs the timestamp of the first sample that should be read again
+     * @param stepUs how much to move back at each attempt
+     * @return the new source position, as returned by {@link DataSource#seekTo(long)}
+     */
+    public static long seek(@NonNull DataSource source, long firstUs, long resumeUs, long stepUs) {
+        long resumePositionUs = resumeUs - firstUs;
+        long targetUs = Math.max(0, Math.min(source.getReadUs(), resumePositionUs) - stepUs);
+        long actualUs = source.seekTo(targetUs);
+        while (actualUs > resumePositionUs && targetUs > 0) {
+            targetUs = Math.max(0, targetUs - stepUs);
+            actualUs = source.seekTo(targetUs);
+        }
+        return actualUs;
+    }
+}
@@ -0,0 +1,80 @@
+package com.otaliastudios.transcoder.source.internal;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only view of a file, memory-mapped through {@link FileChannel#map}.
+ * Files bigger than {@link #REGION_SIZE} are mapped in multiple regions and reads
+ * crossing the region boundaries are handled transparently.
+ *
+ * The mapping stays valid after the channel is closed.
+ */
+public class MappedFile {
+
+    private static final int REGION_SIZE = 1 << 30;
+
+    private final MappedByteBuffer[] mRegions;
+    private final long mSize;
+
+    public MappedFile(@NonNull FileChannel channel) throws IOException {
+        mSize = channel.size();
+        int count = (int) ((mSize + REGION_SIZE - 1) / REGION_SIZE);
+        mRegions = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long position = (long) i * REGION_SIZE;
+            long size = Math.min(REGION_SIZE, mSize - position);
+            mRegions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        }
+    }
+
+    public long size() {
+        return mSize;
+    }
+
+    /**
+     * Copies the given amount of bytes, starting at the given file position,
+     * into the destination buffer at its current position.
+     *
+     * @param position the file position
+     * @param dst the destination buffer
+     * @param length the amount of bytes to copy
+     */
+    public void read(long position, @NonNull ByteBuffer dst, int length) {
+        if (position < 0 || position + length > mSize) {
+            throw new IndexOutOfBoundsException("Reading outside of file bounds: "
+                    + position + "+" + length + ", size: " + mSize);
+        }
+        while (length > 0) {
+            int index = (int) (position / REGION_SIZE);
+            int offset = (int) (position % REGION_SIZE);
+            ByteBuffer region = mRegions[index].duplicate();
+            int count = Math.min(length, region.limit() - offset);
+            region.position(offset);
+            region.limit(offset + count);
+            dst.put(region);
+            position += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Returns a new heap buffer holding the given range of the file.
+     *
+     * @param position the file position
+     * @param length the amount of bytes
+     * @return a big endian buffer, ready to be read
+     */
+    @NonNull
+    public ByteBuffer read(long position, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.BIG_ENDIAN);
+        read(position, buffer, length);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,579 @@
+package com.otaliastudios.transcoder.source.internal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.otaliastudios.transcoder.internal.Logger;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the movie box of an ISO base media file (MP4, M4A, 3GP, MOV) and builds
+ * the sample tables of each track, so that samples can be read without MediaExtractor.
+ *
+ * Only the boxes that are needed for demuxing are parsed: mvhd, tkhd, mdhd, hdlr,
+ * stsd, stts, ctts, stss, stsz, stsc, stco and co64, plus the location (0xA9 "xyz" box).
+ * Fragmented files and edit lists are not supported.
+ */
+public class Mp4Parser {
+
+    private static final String TAG = Mp4Parser.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    private static final int MAX_MOOV_SIZE = 64 * 1024 * 1024;
+    private static final byte[] START_CODE = new byte[]{0, 0, 0, 1};
+    private static final int[] AAC_SAMPLE_RATES = new int[]{
+            96000, 88200, 64000, 48000, 44100, 32000, 24000,
+            22050, 16000, 12000, 11025, 8000, 7350};
+
+    private static final int TYPE_MOOV = fourcc("moov");
+    private static final int TYPE_MVHD = fourcc("mvhd");
+    private static final int TYPE_TRAK = fourcc("trak");
+    private static final int TYPE_TKHD = fourcc("tkhd");
+    private static final int TYPE_MDIA = fourcc("mdia");
+    private static final int TYPE_MDHD = fourcc("mdhd");
+    private static final int TYPE_HDLR = fourcc("hdlr");
+    private static final int TYPE_MINF = fourcc("minf");
+    private static final int TYPE_STBL = fourcc("stbl");
+    private static final int TYPE_STSD = fourcc("stsd");
+    private static final int TYPE_STTS = fourcc("stts");
+    private static final int TYPE_CTTS = fourcc("ctts");
+    private static final int TYPE_STSS = fourcc("stss");
+    private static final int TYPE_STSZ = fourcc("stsz");
+    private static final int TYPE_STSC = fourcc("stsc");
+    private static final int TYPE_STCO = fourcc("stco");
+    private static final int TYPE_CO64 = fourcc("co64");
+    private static final int TYPE_UDTA = fourcc("udta");
+    private static final int TYPE_XYZ = 0xA978797A; // 0xA9 "xyz"
+    private static final int TYPE_MVEX = fourcc("mvex");
+    private static final int TYPE_AVCC = fourcc("avcC");
+    private static final int TYPE_HVCC = fourcc("hvcC");
+    private static final int TYPE_ESDS = fourcc("esds");
+
+    private final MappedFile mFile;
+    private long mDurationUs;
+    private String mLocation;
+    private final List<Mp4Track> mTracks = new ArrayList<>();
+    private int mBoxType;
+
+    public Mp4Parser(@NonNull MappedFile file) {
+        mFile = file;
+    }
+
+    public long getDurationUs() {
+        return mDurationUs;
+    }
+
+    @Nullable
+    public String getLocation() {
+        return mLocation;
+    }
+
+    @NonNull
+    public List<Mp4Track> getTracks() {
+        return mTracks;
+    }
+
+    /**
+     * Finds the movie box and parses it. Box contents are not trusted: reading past
+     * the end of a box, or invalid values, are reported as {@link IOException}.
+     *
+     * @throws IOException if the file is not a valid, supported file
+     */
+    public void parse() throws IOException {
+        try {
+            parseBoxes();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Invalid file.", e);
+        }
+    }
+
+    private void parseBoxes() throws IOException {
+        long position = 0;
+        long size = mFile.size();
+        while (position + 8 <= size) {
+            ByteBuffer header = mFile.read(position, (int) Math.min(16, size - position));
+            long boxSize = header.getInt() & 0xFFFFFFFFL;
+            int type = header.getInt();
+            int headerSize = 8;
+            if (boxSize == 1) {
+                boxSize = header.getLong();
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = size - position;
+            }
+            if (boxSize < headerSize || position + boxSize > size) {
+                throw new IOException("Invalid box size: " + boxSize + " at " + position);
+            }
+            if (type == TYPE_MOOV) {
+                if (boxSize - headerSize > MAX_MOOV_SIZE) {
+                    throw new IOException("Movie box is too big: " + boxSize);
+                }
+                parseMoov(mFile.read(position + headerSize, (int) (boxSize - headerSize)));
+                if (mDurationUs <= 0) {
+                    for (Mp4Track track : mTracks) {
+                        mDurationUs = Math.max(mDurationUs, track.durationUs);
+                    }
+                }
+                return;
+            }
+            position += boxSize;
+        }
+        throw new IOException("Movie box not found.");
+    }
+
+    /**
+     * Returns the content of the next child box and stores its type in mBoxType,
+     * or null if there are no more boxes.
+     */
+    @Nullable
+    private ByteBuffer nextBox(@NonNull ByteBuffer parent) {
+        if (parent.remaining() < 8) return null;
+        int start = parent.position();
+        long size = parent.getInt() & 0xFFFFFFFFL;
+        mBoxType = parent.getInt();
+        int headerSize = 8;
+        if (size == 1) {
+            if (parent.remaining() < 8) return null;
+            size = parent.getLong();
+            headerSize = 16;
+        } else if (size == 0) {
+            size = parent.limit() - start;
+        }
+        if (size < headerSize || start + size > parent.limit()) {
+            LOG.w("Invalid box size: " + size + ". Skipping the rest of the parent.");
+            parent.position(parent.limit());
+            return null;
+        }
+        ByteBuffer content = parent.duplicate();
+        content.position(start + headerSize);
+        content.limit((int) (start + size));
+        parent.position((int) (start + size));
+        return content.slice();
+    }
+
+    private void parseMoov(@NonNull ByteBuffer moov) throws IOException {
+        ByteBuffer box;
+        while ((box = nextBox(moov)) != null) {
+            int type = mBoxType;
+            if (type == TYPE_MVHD) {
+                int version = box.getInt() >>> 24;
+                box.position(version == 1 ? 20 : 12);
+                long timescale = box.getInt() & 0xFFFFFFFFL;
+                long duration = version == 1 ? box.getLong() : box.getInt() & 0xFFFFFFFFL;
+                mDurationUs = scale(duration, timescale);
+            } else if (type == TYPE_TRAK) {
+                Mp4Track track = new Mp4Track();
+                parseTrak(box, track);
+                if (track.mime != null && track.sampleCount > 0) {
+                    mTracks.add(track);
+                } else {
+                    LOG.i("Skipping unsupported track " + track.id + " (" + track.handler + ")");
+                }
+            } else if (type == TYPE_UDTA) {
+                parseUdta(box);
+            } else if (type == TYPE_MVEX) {
+                throw new IOException("Fragmented files are not supported.");
+            }
+        }
+    }
+
+    private void parseUdta(@NonNull ByteBuffer udta) {
+        ByteBuffer box;
+        while ((box = nextBox(udta)) != null) {
+            if (mBoxType == TYPE_XYZ && box.remaining() > 4) {
+                int length = box.getShort() & 0xFFFF;
+                box.getShort(); // language
+                byte[] bytes = new byte[Math.min(length, box.remaining())];
+                box.get(bytes);
+                mLocation = new String(bytes, Charset.forName("UTF-8"));
+            }
+        }
+    }
+
+    private void parseTrak(@NonNull ByteBuffer trak, @NonNull Mp4Track track) throws IOException {
+        ByteBuffer box;
+        while ((box = nextBox(trak)) != null) {
+            int type = mBoxType;
+            if (type == TYPE_TKHD) {
+                parseTkhd(box, track);
+            } else if (type == TYPE_MDIA || type == TYPE_MINF) {
+                parseTrak(box, track); // containers
+            } else if (type == TYPE_MDHD) {
+                int version = box.getInt() >>> 24;
+                box.position(version == 1 ? 20 : 12);
+                track.timescale = box.getInt() & 0xFFFFFFFFL;
+                long duration = version == 1 ? box.getLong() : box.getInt() & 0xFFFFFFFFL;
+                track.durationUs = scale(duration, track.timescale);
+                int language = box.getShort() & 0x7FFF;
+                if (language != 0) {
+                    char[] chars = new char[3];
+                    chars[0] = (char) (((language >> 10) & 0x1F) + 0x60);
+                    chars[1] = (char) (((language >> 5) & 0x1F) + 0x60);
+                    chars[2] = (char) ((language & 0x1F) + 0x60);
+                    track.language = new String(chars);
+                }
+            } else if (type == TYPE_HDLR) {
+                box.position(8);
+                track.handler = fourccString(box.getInt());
+            } else if (type == TYPE_STBL) {
+                parseStbl(box, track);
+            }
+        }
+    }
+
+    private void parseTkhd(@NonNull ByteBuffer tkhd, @NonNull Mp4Track track) {
+        int version = tkhd.getInt() >>> 24;
+        tkhd.position(version == 1 ? 20 : 12);
+        track.id = tkhd.getInt();
+        // Skip reserved, duration, reserved, layer, alternate group, volume, reserved.
+        tkhd.position(tkhd.position() + 4 + (version == 1 ? 8 : 4) + 16);
+        int a = tkhd.getInt();
+        int b = tkhd.getInt();
+        tkhd.getInt();
+        int c = tkhd.getInt();
+        int d = tkhd.getInt();
+        int one = 0x10000;
+        if (a == 0 && b == one && c == -one && d == 0) {
+            track.rotation = 90;
+        } else if (a == -one && b == 0 && c == 0 && d == -one) {
+            track.rotation = 180;
+        } else if (a == 0 && b == -one && c == one && d == 0) {
+            track.rotation = 270;
+        }
+    }
+
+    private void parseStbl(@NonNull ByteBuffer stbl, @NonNull Mp4Track track) throws IOException {
+        long[] stts = null;
+        long[] ctts = null;
+        int[] stss = null;
+        int[] sizes = null;
+        int[] stsc = null;
+        long[] chunkOffsets = null;
+        ByteBuffer box;
+        while ((box = nextBox(stbl)) != null) {
+            int type = mBoxType;
+            if (type == TYPE_STSD) {
+                parseStsd(box, track);
+            } else if (type == TYPE_STTS || type == TYPE_CTTS) {
+                box.getInt();
+                int count = readEntryCount(box, 8);
+                long[] entries = new long[count * 2];
+                for (int i = 0; i < count * 2; i++) {
+                    // Offsets in ctts can be negative even in version 0.
+                    entries[i] = i % 2 == 0 ? box.getInt() & 0xFFFFFFFFL : box.getInt();
+                }
+                if (type == TYPE_STTS) {
+                    stts = entries;
+                } else {
+                    ctts = entries;
+                }
+            } else if (type == TYPE_STSS) {
+                box.getInt();
+                int count = readEntryCount(box, 4);
+                stss = new int[count];
+                for (int i = 0; i < count; i++) stss[i] = box.getInt() - 1;
+            } else if (type == TYPE_STSZ) {
+                box.getInt();
+                int fixedSize = box.getInt();
+                int count;
+                if (fixedSize == 0) {
+                    count = readEntryCount(box, 4);
+                } else {
+                    // No table, but each sample must still fit in the file.
+                    count = box.getInt();
+                    if (fixedSize < 0 || count < 0 || (long) count * fixedSize > mFile.size()) {
+                        throw new IOException("Invalid sample count: " + count + " of size " + fixedSize);
+                    }
+                }
+                sizes = new int[count];
+                for (int i = 0; i < count; i++) sizes[i] = fixedSize != 0 ? fixedSize : box.getInt();
+            } else if (type == TYPE_STSC) {
+                box.getInt();
+                int count = readEntryCount(box, 12);
+                stsc = new int[count * 2];
+                for (int i = 0; i < count; i++) {
+                    stsc[i * 2] = box.getInt() - 1; // first chunk
+                    stsc[i * 2 + 1] = box.getInt(); // samples per chunk
+                    box.getInt(); // sample description index
+                }
+            } else if (type == TYPE_STCO || type == TYPE_CO64) {
+                box.getInt();
+                int count = readEntryCount(box, type == TYPE_CO64 ? 8 : 4);
+                chunkOffsets = new long[count];
+                for (int i = 0; i < count; i++) {
+                    chunkOffsets[i] = type == TYPE_CO64 ? box.getLong() : box.getInt() & 0xFFFFFFFFL;
+                }
+            }
+        }
+        if (stts == null || sizes == null || stsc == null || chunkOffsets == null) {
+            LOG.w("Missing sample tables for track " + track.id);
+            return;
+        }
+        buildSamples(track, stts, ctts, stss, sizes, stsc, chunkOffsets);
+    }
+
+    /**
+     * Reads the entry count of a table and checks that the entries, of the given size,
+     * fit in the rest of the box, so that corrupted counts can not cause huge allocations.
+     */
+    private static int readEntryCount(@NonNull ByteBuffer box, int entrySize) throws IOException {
+        int count = box.getInt();
+        if (count < 0 || (long) count * entrySize > box.remaining()) {
+            throw new IOException("Invalid entry count: " + count + " with " + box.remaining() + " bytes left.");
+        }
+        return count;
+    }
+
+    private void buildSamples(@NonNull Mp4Track track,
+                              @NonNull long[] stts,
+                              @Nullable long[] ctts,
+                              @Nullable int[] stss,
+                              @NonNull int[] sizes,
+                              @NonNull int[] stsc,
+                              @NonNull long[] chunkOffsets) throws IOException {
+        int count = sizes.length;
+        track.sampleCount = count;
+        track.sizes = sizes;
+        track.syncSamples = stss;
+        track.offsets = new long[count];
+        track.decodeTimesUs = new long[count];
+        track.presentationTimesUs = new long[count];
+
+        // Offsets: walk the chunks, as described by the sample-to-chunk table.
+        int sample = 0;
+        int entries = stsc.length / 2;
+        for (int e = 0; e < entries && sample < count; e++) {
+            int firstChunk = stsc[e * 2];
+            int lastChunk = e + 1 < entries ? stsc[(e + 1) * 2] : chunkOffsets.length;
+            int perChunk = stsc[e * 2 + 1];
+            if (firstChunk < 0 || firstChunk > lastChunk || lastChunk > chunkOffsets.length) {
+                throw new IOException("Invalid chunk range: " + firstChunk + "-" + lastChunk);
+            }
+            for (int chunk = firstChunk; chunk < lastChunk && sample < count; chunk++) {
+                long offset = chunkOffsets[chunk];
+                for (int i = 0; i < perChunk && sample < count; i++) {
+                    if (offset < 0 || sizes[sample] < 0 || offset + sizes[sample] > mFile.size()) {
+                        throw new IOException("Sample " + sample + " is outside of the file.");
+                    }
+                    track.offsets[sample] = offset;
+                    offset += sizes[sample];
+                    sample++;
+                }
+            }
+        }
+        if (sample < count) {
+            LOG.w("Chunk tables only describe " + sample + " of " + count + " samples.");
+            track.sampleCount = count = sample;
+        }
+
+        // Timestamps.
+        long decodeTime = 0;
+        int sttsEntry = 0;
+        long sttsLeft = stts.length > 0 ? stts[0] : 0;
+        int cttsEntry = 0;
+        long cttsLeft = ctts != null && ctts.length > 0 ? ctts[0] : 0;
+        for (int i = 0; i < count; i++) {
+            long compositionOffset = 0;
+            if (ctts != null) {
+                while (cttsLeft == 0 && cttsEntry + 1 < ctts.length / 2) {
+                    cttsEntry++;
+                    cttsLeft = ctts[cttsEntry * 2];
+                }
+                compositionOffset = ctts[cttsEntry * 2 + 1];
+                cttsLeft--;
+            }
+            track.decodeTimesUs[i] = scale(decodeTime, track.timescale);
+            track.presentationTimesUs[i] = scale(decodeTime + compositionOffset, track.timescale);
+            track.maxSampleSize = Math.max(track.maxSampleSize, sizes[i]);
+            while (sttsLeft == 0 && sttsEntry + 1 < stts.length / 2) {
+                sttsEntry++;
+                sttsLeft = stts[sttsEntry * 2];
+            }
+            if (sttsLeft > 0) {
+                decodeTime += stts[sttsEntry * 2 + 1];
+                sttsLeft--;
+            }
+        }
+        if (track.durationUs <= 0) {
+            track.durationUs = scale(decodeTime, track.timescale);
+        }
+        if (track.bitRate == 0 && track.durationUs > 0) {
+            long bytes = 0;
+            for (int i = 0; i < count; i++) bytes += sizes[i];
+            track.bitRate = (int) (bytes * 8 * 1000000L / track.durationUs);
+        }
+    }
+
+    private void parseStsd(@NonNull ByteBuffer stsd, @NonNull Mp4Track track) {
+        stsd.getInt();
+        if (stsd.getInt() < 1) return;
+        // We only support the first sample description.
+        ByteBuffer entry = nextBox(stsd);
+        if (entry == null) return;
+        String format = fourccString(mBoxType);
+        entry.position(8); // reserved, data reference index
+        if (track.isVideo()) {
+            entry.position(entry.position() + 16);
+            track.width = entry.getShort() & 0xFFFF;
+            track.height = entry.getShort() & 0xFFFF;
+            entry.position(entry.position() + 50);
+            switch (format) {
+                case "avc1": case "avc3": track.mime = "video/avc"; break;
+                case "hvc1": case "hev1": track.mime = "video/hevc"; break;
+                case "mp4v": track.mime = "video/mp4v-es"; break;
+                case "s263": case "h263": track.mime = "video/3gpp"; break;
+                case "vp08": track.mime = "video/x-vnd.on2.vp8"; break;
+                case "vp09": track.mime = "video/x-vnd.on2.vp9"; break;
+                default: return;
+            }
+        } else if (track.isAudio()) {
+            int version = entry.getShort() & 0xFFFF; // QuickTime sound description version
+            entry.position(entry.position() + 6);
+            track.channelCount = entry.getShort() & 0xFFFF;
+            entry.position(entry.position() + 6);
+            track.sampleRate = (entry.getInt() >>> 16) & 0xFFFF;
+            if (version == 1) entry.position(entry.position() + 16);
+            if (version == 2) entry.position(entry.position() + 36);
+            switch (format) {
+                case "mp4a": track.mime = "audio/mp4a-latm"; break;
+                case "samr": track.mime = "audio/3gpp"; break;
+                case "sawb": track.mime = "audio/amr-wb"; break;
+                case "Opus": track.mime = "audio/opus"; break;
+                case "ac-3": track.mime = "audio/ac3"; break;
+                default: return;
+            }
+        } else {
+            return;
+        }
+        ByteBuffer box;
+        while ((box = nextBox(entry)) != null) {
+            int type = mBoxType;
+            if (type == TYPE_AVCC) {
+                parseAvcC(box, track);
+            } else if (type == TYPE_HVCC) {
+                parseHvcC(box, track);
+            } else if (type == TYPE_ESDS) {
+                parseEsds(box, track);
+            }
+        }
+    }
+
+    private void parseAvcC(@NonNull ByteBuffer avcC, @NonNull Mp4Track track) {
+        avcC.position(4);
+        track.nalLengthSize = (avcC.get() & 0x3) + 1;
+        int spsCount = avcC.get() & 0x1F;
+        track.csd.add(readNalUnits(avcC, spsCount));
+        int ppsCount = avcC.get() & 0xFF;
+        track.csd.add(readNalUnits(avcC, ppsCount));
+    }
+
+    private void parseHvcC(@NonNull ByteBuffer hvcC, @NonNull Mp4Track track) {
+        hvcC.position(21);
+        track.nalLengthSize = (hvcC.get() & 0x3) + 1;
+        int arrays = hvcC.get() & 0xFF;
+        ByteBuffer csd = ByteBuffer.allocate(hvcC.remaining() * 2);
+        for (int i = 0; i < arrays; i++) {
+            hvcC.get(); // NAL unit type
+            int count = hvcC.getShort() & 0xFFFF;
+            csd.put(readNalUnits(hvcC, count));
+        }
+        byte[] bytes = new byte[csd.position()];
+        csd.flip();
+        csd.get(bytes);
+        track.csd.add(bytes);
+    }
+
+    /**
+     * Reads count NAL units, each prefixed by a 16 bit size, and returns them
+     * prefixed by start codes.
+     */
+    @NonNull
+    private static byte[] readNalUnits(@NonNull ByteBuffer buffer, int count) {
+        ByteBuffer result = ByteBuffer.allocate(buffer.remaining() + count * START_CODE.length);
+        for (int i = 0; i < count; i++) {
+            int size = buffer.getShort() & 0xFFFF;
+            result.put(START_CODE);
+            byte[] nal = new byte[size];
+            buffer.get(nal);
+            result.put(nal);
+        }
+        byte[] bytes = new byte[result.position()];
+        result.flip();
+        result.get(bytes);
+        return bytes;
+    }
+
+    private void parseEsds(@NonNull ByteBuffer esds, @NonNull Mp4Track track) {
+        esds.getInt();
+        if (esds.get() != 0x03) return; // ES_Descriptor
+        readDescriptorSize(esds);
+        esds.getShort(); // ES_ID
+        int flags = esds.get() & 0xFF;
+        if ((flags & 0x80) != 0) esds.getShort();
+        if ((flags & 0x40) != 0) esds.position(esds.position() + (esds.get() & 0xFF));
+        if ((flags & 0x20) != 0) esds.getShort();
+        if (esds.get() != 0x04) return; // DecoderConfigDescriptor
+        readDescriptorSize(esds);
+        int objectType = esds.get() & 0xFF;
+        esds.position(esds.position() + 8); // stream type, buffer size, max bitrate
+        int averageBitRate = esds.getInt();
+        if (averageBitRate > 0) track.bitRate = averageBitRate;
+        if (objectType == 0x6B || objectType == 0x69) {
+            track.mime = "audio/mpeg";
+            return;
+        }
+        if (esds.remaining() < 2 || esds.get() != 0x05) return; // DecoderSpecificInfo
+        int size = readDescriptorSize(esds);
+        byte[] info = new byte[Math.min(size, esds.remaining())];
+        esds.get(info);
+        track.csd.add(info);
+        if (track.isAudio() && info.length >= 2) {
+            // AudioSpecificConfig: prefer these values over the sample entry ones.
+            int frequencyIndex = ((info[0] & 0x7) << 1) | ((info[1] >> 7) & 0x1);
+            int channelConfig = (info[1] >> 3) & 0xF;
+            if (frequencyIndex < AAC_SAMPLE_RATES.length) {
+                track.sampleRate = AAC_SAMPLE_RATES[frequencyIndex];
+            }
+            if (channelConfig > 0 && channelConfig < 7) {
+                track.channelCount = channelConfig;
+            } else if (channelConfig == 7) {
+                track.channelCount = 8;
+            }
+        }
+    }
+
+    private static int readDescriptorSize(@NonNull ByteBuffer buffer) {
+        int size = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = buffer.get() & 0xFF;
+            size = (size << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0) break;
+        }
+        return size;
+    }
+
+    private static long scale(long value, long timescale) {
+        if (timescale <= 0) return 0;
+        return (value / timescale) * 1000000L + (value % timescale) * 1000000L / timescale;
+    }
+
+    private static int fourcc(@NonNull String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    @NonNull
+    private static String fourccString(int type) {
+        char[] chars = new char[4];
+        chars[0] = (char) ((type >> 24) & 0xFF);
+        chars[1] = (char) ((type >> 16) & 0xFF);
+        chars[2] = (char) ((type >> 8) & 0xFF);
+        chars[3] = (char) (type & 0xFF);
+        return new String(chars);
+    }
+}
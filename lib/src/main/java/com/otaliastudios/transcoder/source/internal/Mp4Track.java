@@ -0,0 +1,134 @@
+package com.otaliastudios.transcoder.source.internal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A track parsed by {@link Mp4Parser}, holding the sample description and the
+ * sample tables. Samples are indexed in decode order and can be looked up in O(1).
+ */
+public class Mp4Track {
+
+    public static final String HANDLER_VIDEO = "vide";
+    public static final String HANDLER_AUDIO = "soun";
+
+    public int id;
+    public String handler;
+    public String mime;
+    public long timescale;
+    public long durationUs;
+    public String language;
+
+    // Video
+    public int width;
+    public int height;
+    public int rotation;
+
+    // Audio
+    public int sampleRate;
+    public int channelCount;
+
+    public int bitRate;
+
+    /**
+     * Codec specific data, in the format expected by MediaCodec:
+     * for AVC and HEVC, parameter sets are prefixed by start codes.
+     */
+    @NonNull
+    public final List<byte[]> csd = new ArrayList<>();
+
+    /**
+     * For AVC and HEVC, the size of the NAL unit length prefix in samples.
+     * These are replaced by start codes when reading. 0 for other formats.
+     */
+    public int nalLengthSize;
+
+    public int sampleCount;
+    public long[] offsets;
+    public int[] sizes;
+    public long[] decodeTimesUs;
+    public long[] presentationTimesUs;
+    public int maxSampleSize;
+
+    /**
+     * Sorted indices of sync samples, or null if all samples are sync samples.
+     */
+    @Nullable
+    public int[] syncSamples;
+
+    public boolean isVideo() {
+        return HANDLER_VIDEO.equals(handler);
+    }
+
+    public boolean isAudio() {
+        return HANDLER_AUDIO.equals(handler);
+    }
+
+    public boolean isSync(int sample) {
+        return syncSamples == null || Arrays.binarySearch(syncSamples, sample) >= 0;
+    }
+
+    /**
+     * Returns the frame rate, computed as the average sample rate over the track duration.
+     *
+     * @return frame rate or 0 if unknown
+     */
+    public int getFrameRate() {
+        if (durationUs <= 0 || sampleCount == 0) return 0;
+        return (int) Math.round(sampleCount * 1000000D / durationUs);
+    }
+
+    /**
+     * Returns the index of the first sample whose decode time is equal or greater
+     * than the given timestamp, or {@link #sampleCount} if there is none.
+     *
+     * @param timeUs timestamp
+     * @return sample index
+     */
+    public int getSampleAtOrAfter(long timeUs) {
+        int index = Arrays.binarySearch(decodeTimesUs, 0, sampleCount, timeUs);
+        if (index < 0) return -index - 1;
+        while (index > 0 && decodeTimesUs[index - 1] == timeUs) index--;
+        return index;
+    }
+
+    /**
+     * Returns the index of the sync sample whose presentation time is the closest
+     * to the given timestamp.
+     *
+     * @param timeUs timestamp
+     * @return sample index
+     */
+    public int getClosestSyncSample(long timeUs) {
+        if (sampleCount == 0) return 0;
+        if (syncSamples == null) {
+            int after = Math.min(getSampleAtOrAfter(timeUs), sampleCount - 1);
+            int before = Math.max(0, after - 1);
+            return Math.abs(presentationTimesUs[before] - timeUs)
+                    < Math.abs(presentationTimesUs[after] - timeUs) ? before : after;
+        }
+        int low = 0;
+        int high = syncSamples.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (presentationTimesUs[syncSamples[middle]] <= timeUs) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        int before = syncSamples[low];
+        if (low + 1 < syncSamples.length) {
+            int after = syncSamples[low + 1];
+            if (Math.abs(presentationTimesUs[after] - timeUs)
+                    < Math.abs(presentationTimesUs[before] - timeUs)) {
+                return after;
+            }
+        }
+        return before;
+    }
+}
@@ -4,7 +4,9 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 
 import com.otaliastudios.transcoder.engine.TrackStatus;
+import com.otaliastudios.transcoder.engine.TrackType;
 import com.otaliastudios.transcoder.internal.BitRates;
+import com.otaliastudios.transcoder.internal.FormatCompatibility;
 import com.otaliastudios.transcoder.internal.Logger;
 import com.otaliastudios.transcoder.internal.MediaFormatConstants;
 
@@ -37,6 +39,7 @@ public class DefaultAudioStrategy implements TrackStrategy {
         private int targetSampleRate;
         private long targetBitRate;
         private String targetMimeType;
+        private boolean passThrough;
     }
 
     /**
@@ -55,6 +58,7 @@ public class DefaultAudioStrategy implements TrackStrategy {
         private int targetSampleRate = SAMPLE_RATE_AS_INPUT;
         private long targetBitRate = BITRATE_UNKNOWN;
         private String targetMimeType = MediaFormatConstants.MIMETYPE_AUDIO_AAC;
+        private boolean passThrough = false;
 
         @SuppressWarnings({"unused", "WeakerAccess"})
         public Builder() { }
@@ -89,6 +93,26 @@ public class DefaultAudioStrategy implements TrackStrategy {
             return this;
         }
 
+        /**
+         * Whether the input samples can be copied into the output, without being decoded,
+         * when channels, sample rate and bit rate are left as input, the target mime type
+         * is the input one and all the inputs share the same codec configuration.
+         * This is the case, for example, when concatenating files from the same device.
+         *
+         * Since audio samples are not processed in this case, this should not be used with a
+         * {@link com.otaliastudios.transcoder.time.TimeInterpolator} that changes the speed.
+         * Defaults to false.
+         *
+         * @param passThrough whether to allow pass-through
+         * @return this for chaining
+         */
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder passThrough(boolean passThrough) {
+            this.passThrough = passThrough;
+            return this;
+        }
+
         @NonNull
         @SuppressWarnings("WeakerAccess")
         public DefaultAudioStrategy.Options options() {
@@ -97,6 +121,7 @@ public class DefaultAudioStrategy implements TrackStrategy {
             options.targetSampleRate = targetSampleRate;
             options.targetMimeType = targetMimeType;
             options.targetBitRate = targetBitRate;
+            options.passThrough = passThrough;
             return options;
         }
 
@@ -117,6 +142,15 @@ public class DefaultAudioStrategy implements TrackStrategy {
     @Override
     public TrackStatus createOutputFormat(@NonNull List<MediaFormat> inputFormats,
                                           @NonNull MediaFormat outputFormat) {
+        if (options.passThrough
+                && options.targetChannels == CHANNELS_AS_INPUT
+                && options.targetSampleRate == SAMPLE_RATE_AS_INPUT
+                && options.targetBitRate == BITRATE_UNKNOWN
+                && options.targetMimeType.equalsIgnoreCase(inputFormats.get(0).getString(MediaFormat.KEY_MIME))
+                && FormatCompatibility.canConcatenate(TrackType.AUDIO, inputFormats)) {
+            LOG.i("Inputs can be copied. Returning PASS_THROUGH.");
+            return TrackStatus.PASS_THROUGH;
+        }
         int outputChannels = (options.targetChannels == CHANNELS_AS_INPUT)
                 ? getInputChannelCount(inputFormats)
                 : options.targetChannels;
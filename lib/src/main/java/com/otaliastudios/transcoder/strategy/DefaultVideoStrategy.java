@@ -5,7 +5,9 @@ import android.media.MediaFormat;
 import android.os.Build;
 
 import com.otaliastudios.transcoder.engine.TrackStatus;
+import com.otaliastudios.transcoder.engine.TrackType;
 import com.otaliastudios.transcoder.internal.BitRates;
+import com.otaliastudios.transcoder.internal.FormatCompatibility;
 import com.otaliastudios.transcoder.strategy.size.AspectRatioResizer;
 import com.otaliastudios.transcoder.strategy.size.AtMostResizer;
 import com.otaliastudios.transcoder.strategy.size.ExactResizer;
@@ -260,10 +262,11 @@ public class DefaultVideoStrategy implements TrackStrategy {
         boolean frameIntervalDone = inputIFrameInterval >= options.targetKeyFrameInterval;
 
         // See if we should go on or if we're already compressed.
-        // If we have more than 1 input format, we can't go through this branch,
-        // or, for example, each part would be copied into output with its own size,
-        // breaking the muxer.
-        boolean canPassThrough = inputFormats.size() == 1;
+        // If we have more than 1 input format, we can only go through this branch if they
+        // share the codec configuration and size, or, for example, each part would be copied
+        // into output with its own size, breaking the muxer.
+        boolean canPassThrough = inputFormats.size() == 1
+                || FormatCompatibility.canConcatenate(TrackType.VIDEO, inputFormats);
         if (canPassThrough && typeDone && sizeDone && frameRateDone && frameIntervalDone) {
             LOG.i("Input minSize: " + inSize.getMinor() + ", desired minSize: " + outSize.getMinor() +
                     "\nInput frameRate: " + inputFrameRate + ", desired frameRate: " + outFrameRate +
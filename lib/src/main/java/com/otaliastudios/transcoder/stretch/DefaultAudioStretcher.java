@@ -7,17 +7,96 @@ import java.nio.ShortBuffer;
 /**
  * An {@link AudioStretcher} that delegates to appropriate classes
  * based on input and output size.
+ *
+ * Stretching is performed by a {@link WsolaAudioStretcher}. Once it has been used,
+ * it keeps receiving all buffers of the stream, since it holds some of the samples.
  */
-public class DefaultAudioStretcher implements AudioStretcher {
+public class DefaultAudioStretcher implements FloatAudioStretcher, DrainableAudioStretcher,
+        StatefulAudioStretcher {
+
+    private final WsolaAudioStretcher mWsola = new WsolaAudioStretcher();
+
+    @NonNull
+    @Override
+    public AudioStretcher newInstance() {
+        return new DefaultAudioStretcher();
+    }
+
+    /**
+     * Clears the state.
+     * See {@link WsolaAudioStretcher#reset()}.
+     */
+    public void reset() {
+        mWsola.reset();
+    }
+
+    /**
+     * Returns true if buffers must go through this stretcher
+     * even if they do not need stretching.
+     * See {@link WsolaAudioStretcher#isActive()}.
+     *
+     * @return true if active
+     */
+    @Override
+    public boolean isActive() {
+        return mWsola.isActive();
+    }
+
+    /**
+     * Writes the samples that are held at the end of the stream.
+     * See {@link WsolaAudioStretcher#drain(ShortBuffer)}.
+     *
+     * @param output the output buffer
+     */
+    @Override
+    public void drain(@NonNull ShortBuffer output) {
+        mWsola.drain(output);
+    }
+
+    /**
+     * Writes the float samples that are held at the end of the stream.
+     * See {@link WsolaAudioStretcher#drain(float[], int, int)}.
+     *
+     * @param output the output array
+     * @param outputOffset the offset of the first output sample
+     * @param outputCapacity the maximum number of output samples
+     * @return the number of output samples that were written
+     */
+    @Override
+    public int drain(@NonNull float[] output, int outputOffset, int outputCapacity) {
+        return mWsola.drain(output, outputOffset, outputCapacity);
+    }
 
     @Override
     public void stretch(@NonNull ShortBuffer input, @NonNull ShortBuffer output, int channels) {
-        if (input.remaining() < output.remaining()) {
-            INSERT.stretch(input, output, channels);
-        } else if (input.remaining() > output.remaining()) {
-            CUT.stretch(input, output, channels);
-        } else {
+        if (input.remaining() == output.remaining() && !mWsola.isActive()) {
             PASSTHROUGH.stretch(input, output, channels);
+        } else {
+            mWsola.stretch(input, output, channels);
+        }
+    }
+
+    /**
+     * Stretches float samples. See {@link WsolaAudioStretcher#stretch(float[], int, int, float[], int, int, int)}.
+     *
+     * @param input the input samples
+     * @param inputOffset the offset of the first input sample
+     * @param inputSize the number of input samples
+     * @param output the output array
+     * @param outputOffset the offset of the first output sample
+     * @param outputSize the number of output samples
+     * @param channels the number of channels
+     * @return the number of output samples that were written
+     */
+    @Override
+    public int stretch(@NonNull float[] input, int inputOffset, int inputSize,
+                        @NonNull float[] output, int outputOffset, int outputSize,
+                        int channels) {
+        if (inputSize == outputSize && !mWsola.isActive()) {
+            System.arraycopy(input, inputOffset, output, outputOffset, inputSize);
+            return inputSize;
+        } else {
+            return mWsola.stretch(input, inputOffset, inputSize, output, outputOffset, outputSize, channels);
         }
     }
 }
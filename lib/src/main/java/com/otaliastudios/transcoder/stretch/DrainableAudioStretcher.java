@@ -0,0 +1,47 @@
+package com.otaliastudios.transcoder.stretch;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ShortBuffer;
+
+/**
+ * An {@link AudioStretcher} that holds some samples between calls. When the stream ends,
+ * they should be written with one of the drain methods.
+ *
+ * Since the output depends on the following input, it can write less than requested,
+ * for example at the start of the stream. The output {@link java.nio.Buffer#position()}
+ * tells how many samples were written. Held samples are written by the next calls.
+ *
+ * While it is not active, buffers that do not need stretching can be copied
+ * without going through the stretcher.
+ */
+public interface DrainableAudioStretcher extends AudioStretcher {
+
+    /**
+     * Returns true if this stretcher holds samples. In this case, all of the following
+     * buffers should go through it, even if they do not need stretching,
+     * so that samples are not reordered.
+     *
+     * @return true if active
+     */
+    boolean isActive();
+
+    /**
+     * Writes the samples that are held at the end of the stream. If the output buffer
+     * is too small, this can be called again while {@link #isActive()} returns true.
+     *
+     * @param output the output buffer
+     */
+    void drain(@NonNull ShortBuffer output);
+
+    /**
+     * Writes the float samples that are held at the end of the stream.
+     * See {@link #drain(ShortBuffer)}.
+     *
+     * @param output the output array
+     * @param outputOffset the offset of the first output sample
+     * @param outputCapacity the maximum number of output samples
+     * @return the number of output samples that were written
+     */
+    int drain(@NonNull float[] output, int outputOffset, int outputCapacity);
+}
@@ -0,0 +1,27 @@
+package com.otaliastudios.transcoder.stretch;
+
+import androidx.annotation.NonNull;
+
+/**
+ * An {@link AudioStretcher} that can also work on float samples, so that the audio
+ * engine can skip the conversion to shorts when it is not needed.
+ */
+public interface FloatAudioStretcher extends AudioStretcher {
+
+    /**
+     * Stretches float samples. Exactly outputSize samples are written, unless this is
+     * a {@link DrainableAudioStretcher}: it can write less while it waits for more input.
+     *
+     * @param input the input samples
+     * @param inputOffset the offset of the first input sample
+     * @param inputSize the number of input samples
+     * @param output the output array
+     * @param outputOffset the offset of the first output sample
+     * @param outputSize the number of output samples
+     * @param channels the number of channels
+     * @return the number of output samples that were written
+     */
+    int stretch(@NonNull float[] input, int inputOffset, int inputSize,
+                 @NonNull float[] output, int outputOffset, int outputSize,
+                 int channels);
+}
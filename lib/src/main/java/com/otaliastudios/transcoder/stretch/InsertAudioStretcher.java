@@ -27,9 +27,6 @@ public class InsertAudioStretcher implements AudioStretcher {
         if (input.remaining() >= output.remaining()) {
             throw new IllegalArgumentException("Illegal use of AudioStretcher.INSERT");
         }
-        if (channels != 1 && channels != 2) {
-            throw new IllegalArgumentException("Illegal use of AudioStretcher.INSERT. Channels:" + channels);
-        }
         final int inputSamples = input.remaining() / channels;
         final int fakeSamples = (int) Math.floor((double) (output.remaining() - input.remaining()) / channels);
         int remainingInputSamples = inputSamples;
@@ -40,13 +37,11 @@ public class InsertAudioStretcher implements AudioStretcher {
             // Will this be an input sample or a fake sample?
             // Choose the one with the bigger ratio.
             if (remainingInputSamplesRatio >= remainingFakeSamplesRatio) {
-                output.put(input.get());
-                if (channels == 2) output.put(input.get());
+                for (int c = 0; c < channels; c++) output.put(input.get());
                 remainingInputSamples--;
                 remainingInputSamplesRatio = ratio(remainingInputSamples, inputSamples);
             } else {
-                output.put(noise());
-                if (channels == 2) output.put(noise());
+                for (int c = 0; c < channels; c++) output.put(noise());
                 remainingFakeSamples--;
                 remainingFakeSamplesRatio = ratio(remainingFakeSamples, inputSamples);
             }
@@ -3,11 +3,12 @@ package com.otaliastudios.transcoder.stretch;
 import androidx.annotation.NonNull;
 
 import java.nio.ShortBuffer;
+import java.util.Arrays;
 
 /**
  * A no-op {@link AudioStretcher} that copies input into output.
  */
-public class PassThroughAudioStretcher implements AudioStretcher {
+public class PassThroughAudioStretcher implements FloatAudioStretcher {
 
     @Override
     public void stretch(@NonNull ShortBuffer input, @NonNull ShortBuffer output, int channels) {
@@ -16,4 +17,16 @@ public class PassThroughAudioStretcher implements AudioStretcher {
         }
         output.put(input);
     }
+
+    @Override
+    public int stretch(@NonNull float[] input, int inputOffset, int inputSize,
+                        @NonNull float[] output, int outputOffset, int outputSize,
+                        int channels) {
+        if (inputSize > outputSize) {
+            throw new IllegalArgumentException("Illegal use of PassThroughAudioStretcher");
+        }
+        System.arraycopy(input, inputOffset, output, outputOffset, inputSize);
+        Arrays.fill(output, outputOffset + inputSize, outputOffset + outputSize, 0F);
+        return outputSize;
+    }
 }
@@ -0,0 +1,19 @@
+package com.otaliastudios.transcoder.stretch;
+
+import androidx.annotation.NonNull;
+
+/**
+ * An {@link AudioStretcher} that keeps the state of a single stream. Each transcoding
+ * operation asks for its own instance through {@link #newInstance()}, so that the one
+ * passed to the options can be shared by concurrent operations.
+ */
+public interface StatefulAudioStretcher extends AudioStretcher {
+
+    /**
+     * Returns a new stretcher with the same configuration and no state.
+     *
+     * @return a new stretcher
+     */
+    @NonNull
+    AudioStretcher newInstance();
+}
@@ -0,0 +1,418 @@
+package com.otaliastudios.transcoder.stretch;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * An {@link AudioStretcher} based on WSOLA (waveform similarity overlap-add).
+ * Input is cut into overlapping segments that are cross-faded into the output.
+ * Each segment is taken around its nominal position in the input, at the offset that best
+ * matches the waveform that is already being output. This changes the duration without
+ * changing the pitch and without inserting noise.
+ *
+ * Segments span across buffers, so this stretcher keeps some input and output samples
+ * between calls. Output is written as soon as it is available, instead of being delayed
+ * with silence: at the start of the stream, less output than requested is written, and the
+ * samples that are still held at the end of the stream should be written with
+ * {@link #drain(ShortBuffer)}.
+ * The state belongs to this instance, and each transcoding operation uses its own through
+ * {@link #newInstance()}. It should be cleared with {@link #reset()} when a new stream starts.
+ */
+public class WsolaAudioStretcher implements FloatAudioStretcher, DrainableAudioStretcher,
+        StatefulAudioStretcher {
+
+    private final static int OVERLAP = 512; // frames
+    private final static int TOLERANCE = 256; // frames
+
+    private final static float[] FADE_IN = new float[OVERLAP];
+    static {
+        for (int i = 0; i < OVERLAP; i++) {
+            FADE_IN[i] = (float) (0.5 - 0.5 * Math.cos(Math.PI * i / OVERLAP));
+        }
+    }
+
+    private static class State {
+        private final int mChannels;
+        private float[] mInput;
+        private int mInputFrames;
+        private float[] mOutput;
+        private int mOutputFrames;
+        private short[] mShorts = new short[0];
+        private final float[] mTail; // fading out part of the previous segment
+        private final float[] mTemplate = new float[OVERLAP];
+        private final float[] mCandidates = new float[OVERLAP + 2 * TOLERANCE];
+        private double mAnalysisPosition = TOLERANCE;
+        private double mAnalysisHop = OVERLAP;
+        private int mPreviousStart;
+        private boolean mStarted;
+        private boolean mDraining;
+
+        private State(int channels) {
+            mChannels = channels;
+            mInput = new float[4 * (OVERLAP + TOLERANCE) * channels];
+            mOutput = new float[2 * OVERLAP * channels];
+            mTail = new float[OVERLAP * channels];
+        }
+    }
+
+    private State mState;
+
+    @NonNull
+    @Override
+    public AudioStretcher newInstance() {
+        return new WsolaAudioStretcher();
+    }
+
+    /**
+     * Clears the state. This should be called before stretching a new stream,
+     * so that samples of the previous one are not used.
+     */
+    public void reset() {
+        mState = null;
+    }
+
+    /**
+     * Returns true if this stretcher holds samples.
+     * In this case, all of the following buffers should go through it,
+     * even if they do not need stretching, so that samples are not reordered.
+     *
+     * @return true if active
+     */
+    @Override
+    public boolean isActive() {
+        return mState != null;
+    }
+
+    /**
+     * Stretches the input. Only the output that is available is written, so the output
+     * position can be smaller than its limit. The rest will be written at the next calls,
+     * or by {@link #drain(ShortBuffer)}.
+     *
+     * @param input input buffer
+     * @param output output buffer
+     * @param channels audio channels
+     */
+    @Override
+    public void stretch(@NonNull ShortBuffer input, @NonNull ShortBuffer output, int channels) {
+        State state = getState(channels);
+        int inputSize = input.remaining() / channels * channels;
+        int outputSize = output.remaining() / channels * channels;
+
+        // Append the input.
+        short[] shorts = ensureShorts(state, Math.max(inputSize, outputSize));
+        input.get(shorts, 0, inputSize);
+        input.position(input.limit());
+        ensureInput(state, state.mInputFrames + inputSize / channels);
+        float[] array = state.mInput;
+        int offset = state.mInputFrames * channels;
+        for (int i = 0; i < inputSize; i++) {
+            array[offset + i] = shorts[i];
+        }
+        state.mInputFrames += inputSize / channels;
+
+        // Produce and write the output.
+        int available = process(state, inputSize / channels, outputSize / channels) * channels;
+        float[] out = state.mOutput;
+        for (int i = 0; i < available; i++) {
+            shorts[i] = clamp(out[i]);
+        }
+        output.put(shorts, 0, available);
+        consume(state, available / channels);
+    }
+
+    /**
+     * Stretches float samples, without any intermediate conversion.
+     * The same state is used as {@link #stretch(ShortBuffer, ShortBuffer, int)}.
+     * At most outputSize samples are written, depending on the available output.
+     *
+     * @param input the input samples
+     * @param inputOffset the offset of the first input sample
+     * @param inputSize the number of input samples
+     * @param output the output array
+     * @param outputOffset the offset of the first output sample
+     * @param outputSize the number of output samples
+     * @param channels the number of channels
+     * @return the number of output samples that were written
+     */
+    @Override
+    public int stretch(@NonNull float[] input, int inputOffset, int inputSize,
+                        @NonNull float[] output, int outputOffset, int outputSize,
+                        int channels) {
+        State state = getState(channels);
+        int inputFrames = inputSize / channels;
+        ensureInput(state, state.mInputFrames + inputFrames);
+        System.arraycopy(input, inputOffset, state.mInput, state.mInputFrames * channels,
+                inputFrames * channels);
+        state.mInputFrames += inputFrames;
+
+        int available = process(state, inputFrames, outputSize / channels) * channels;
+        System.arraycopy(state.mOutput, 0, output, outputOffset, available);
+        consume(state, available / channels);
+        return available;
+    }
+
+    /**
+     * Writes the samples that are still held at the end of the stream: the remaining
+     * input is stretched with the last factor, followed by silence, and the fading out
+     * part of the last segment is written at the end. If the output buffer is too small,
+     * this can be called again while {@link #isActive()} returns true. After that,
+     * the state is cleared.
+     *
+     * @param output the output buffer
+     */
+    @Override
+    public void drain(@NonNull ShortBuffer output) {
+        State state = mState;
+        if (state == null) return;
+        int channels = state.mChannels;
+        int available = prepareDrain(state, output.remaining() / channels) * channels;
+        short[] shorts = ensureShorts(state, available);
+        float[] out = state.mOutput;
+        for (int i = 0; i < available; i++) {
+            shorts[i] = clamp(out[i]);
+        }
+        output.put(shorts, 0, available);
+        finishDrain(state, available / channels);
+    }
+
+    /**
+     * Writes the float samples that are still held at the end of the stream.
+     * See {@link #drain(ShortBuffer)}.
+     *
+     * @param output the output array
+     * @param outputOffset the offset of the first output sample
+     * @param outputCapacity the maximum number of output samples
+     * @return the number of output samples that were written
+     */
+    @Override
+    public int drain(@NonNull float[] output, int outputOffset, int outputCapacity) {
+        State state = mState;
+        if (state == null) return 0;
+        int available = prepareDrain(state, outputCapacity / state.mChannels) * state.mChannels;
+        System.arraycopy(state.mOutput, 0, output, outputOffset, available);
+        finishDrain(state, available / state.mChannels);
+        return available;
+    }
+
+    /**
+     * On the first call, produces the segments for the remaining input and appends the
+     * tail to the output. Returns the number of output frames that can be written.
+     */
+    private static int prepareDrain(@NonNull State state, int outputFrames) {
+        if (!state.mDraining) {
+            state.mDraining = true;
+            int end = state.mInputFrames;
+            while (Math.round(state.mAnalysisPosition) - TOLERANCE < end) {
+                // Pad with silence so that the segment can be taken.
+                int required = (int) Math.round(state.mAnalysisPosition) + TOLERANCE + 2 * OVERLAP;
+                if (state.mInputFrames < required) {
+                    ensureInput(state, required);
+                    Arrays.fill(state.mInput, state.mInputFrames * state.mChannels,
+                            required * state.mChannels, 0F);
+                    state.mInputFrames = required;
+                }
+                if (!step(state, state.mAnalysisHop)) break;
+            }
+            if (state.mStarted) {
+                ensureOutput(state, state.mOutputFrames + OVERLAP);
+                System.arraycopy(state.mTail, 0, state.mOutput,
+                        state.mOutputFrames * state.mChannels, OVERLAP * state.mChannels);
+                state.mOutputFrames += OVERLAP;
+            }
+        }
+        return Math.min(state.mOutputFrames, outputFrames);
+    }
+
+    private void finishDrain(@NonNull State state, int frames) {
+        int channels = state.mChannels;
+        System.arraycopy(state.mOutput, frames * channels, state.mOutput, 0,
+                (state.mOutputFrames - frames) * channels);
+        state.mOutputFrames -= frames;
+        if (state.mOutputFrames == 0) mState = null;
+    }
+
+    @NonNull
+    private State getState(int channels) {
+        State state = mState;
+        if (state == null || state.mChannels != channels) {
+            state = new State(channels);
+            mState = state;
+        }
+        return state;
+    }
+
+    /**
+     * Produces segments until we have enough output or not enough input,
+     * and returns the number of output frames that can be written.
+     */
+    private static int process(@NonNull State state, int inputFrames, int outputFrames) {
+        if (outputFrames > 0) {
+            double analysisHop = (double) OVERLAP * inputFrames / outputFrames;
+            if (inputFrames > 0) state.mAnalysisHop = analysisHop;
+            while (state.mOutputFrames < outputFrames && step(state, analysisHop)) {
+                // Keep going.
+            }
+        }
+        return Math.min(state.mOutputFrames, outputFrames);
+    }
+
+    /**
+     * Removes the frames that were written from the output, then discards
+     * the input frames that can not be used anymore.
+     */
+    private static void consume(@NonNull State state, int frames) {
+        int channels = state.mChannels;
+        System.arraycopy(state.mOutput, frames * channels, state.mOutput, 0,
+                (state.mOutputFrames - frames) * channels);
+        state.mOutputFrames -= frames;
+        compact(state);
+    }
+
+    @NonNull
+    private static short[] ensureShorts(@NonNull State state, int size) {
+        if (state.mShorts.length < size) state.mShorts = new short[size];
+        return state.mShorts;
+    }
+
+    /**
+     * Outputs a new segment, if there is enough input.
+     */
+    private static boolean step(@NonNull State state, double analysisHop) {
+        int channels = state.mChannels;
+        int nominal = (int) Math.round(state.mAnalysisPosition);
+        int start;
+        if (!state.mStarted) {
+            if (nominal + TOLERANCE + 2 * OVERLAP > state.mInputFrames) return false;
+            start = nominal - TOLERANCE;
+        } else {
+            int natural = state.mPreviousStart + OVERLAP;
+            if (natural + OVERLAP > state.mInputFrames) return false;
+            if (nominal + TOLERANCE + 2 * OVERLAP > state.mInputFrames) return false;
+            start = nominal - TOLERANCE + findBestOffset(state, natural, nominal - TOLERANCE);
+        }
+
+        // Write the overlap region (cross-fade) and keep the second half as the new tail.
+        ensureOutput(state, state.mOutputFrames + OVERLAP);
+        float[] in = state.mInput;
+        float[] out = state.mOutput;
+        float[] tail = state.mTail;
+        boolean first = !state.mStarted;
+        int inIndex = start * channels;
+        int outIndex = state.mOutputFrames * channels;
+        for (int i = 0; i < OVERLAP; i++) {
+            float fadeIn = first ? 1F : FADE_IN[i];
+            for (int c = 0; c < channels; c++) {
+                int index = i * channels + c;
+                out[outIndex++] = tail[index] + in[inIndex++] * fadeIn;
+            }
+        }
+        for (int i = 0; i < OVERLAP; i++) {
+            float fadeOut = 1F - FADE_IN[i];
+            for (int c = 0; c < channels; c++) {
+                tail[i * channels + c] = in[inIndex++] * fadeOut;
+            }
+        }
+        state.mOutputFrames += OVERLAP;
+        state.mPreviousStart = start;
+        state.mStarted = true;
+        state.mAnalysisPosition += analysisHop;
+        return true;
+    }
+
+    /**
+     * Returns the offset, in [0, 2 * TOLERANCE], from searchStart that maximizes the
+     * normalized cross-correlation with the natural continuation of the previous segment.
+     * Correlation is computed on the sum of channels, first on every other sample
+     * and offset, then refined around the best result.
+     */
+    private static int findBestOffset(@NonNull State state, int natural, int searchStart) {
+        int channels = state.mChannels;
+        float[] in = state.mInput;
+        float[] template = state.mTemplate;
+        float[] candidates = state.mCandidates;
+        for (int i = 0; i < OVERLAP; i++) {
+            template[i] = mono(in, (natural + i) * channels, channels);
+        }
+        int length = OVERLAP + 2 * TOLERANCE;
+        for (int i = 0; i < length; i++) {
+            candidates[i] = mono(in, (searchStart + i) * channels, channels);
+        }
+        int best = TOLERANCE;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int offset = 0; offset <= 2 * TOLERANCE; offset += 2) {
+            double score = correlate(template, candidates, offset, 2);
+            if (score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+        }
+        int coarse = best;
+        bestScore = Double.NEGATIVE_INFINITY;
+        for (int offset = Math.max(0, coarse - 1); offset <= Math.min(2 * TOLERANCE, coarse + 1); offset++) {
+            double score = correlate(template, candidates, offset, 1);
+            if (score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+        }
+        return best;
+    }
+
+    private static double correlate(@NonNull float[] template, @NonNull float[] candidates, int offset, int step) {
+        double product = 0;
+        double energy = 1e-9;
+        for (int i = 0; i < OVERLAP; i += step) {
+            float candidate = candidates[offset + i];
+            product += template[i] * candidate;
+            energy += candidate * candidate;
+        }
+        return product / Math.sqrt(energy);
+    }
+
+    private static float mono(@NonNull float[] in, int index, int channels) {
+        float sum = 0;
+        for (int c = 0; c < channels; c++) sum += in[index + c];
+        return sum;
+    }
+
+    private static short clamp(float value) {
+        int sample = Math.round(value);
+        if (sample > Short.MAX_VALUE) return Short.MAX_VALUE;
+        if (sample < Short.MIN_VALUE) return Short.MIN_VALUE;
+        return (short) sample;
+    }
+
+    /**
+     * Discards the input frames that can not be used anymore.
+     */
+    private static void compact(@NonNull State state) {
+        int keep = (int) Math.round(state.mAnalysisPosition) - TOLERANCE;
+        if (state.mStarted) keep = Math.min(keep, state.mPreviousStart + OVERLAP);
+        int discard = Math.max(0, Math.min(keep, state.mInputFrames));
+        if (discard == 0) return;
+        int channels = state.mChannels;
+        System.arraycopy(state.mInput, discard * channels, state.mInput, 0,
+                (state.mInputFrames - discard) * channels);
+        state.mInputFrames -= discard;
+        state.mAnalysisPosition -= discard;
+        state.mPreviousStart -= discard;
+    }
+
+    private static void ensureInput(@NonNull State state, int frames) {
+        if (state.mInput.length < frames * state.mChannels) {
+            float[] input = new float[Math.max(frames * state.mChannels, state.mInput.length * 2)];
+            System.arraycopy(state.mInput, 0, input, 0, state.mInputFrames * state.mChannels);
+            state.mInput = input;
+        }
+    }
+
+    private static void ensureOutput(@NonNull State state, int frames) {
+        if (state.mOutput.length < frames * state.mChannels) {
+            float[] output = new float[Math.max(frames * state.mChannels, state.mOutput.length * 2)];
+            System.arraycopy(state.mOutput, 0, output, 0, state.mOutputFrames * state.mChannels);
+            state.mOutput = output;
+        }
+    }
+}
@@ -57,7 +57,9 @@ public class SpeedTimeInterpolator implements TimeInterpolator {
             data.lastRealTime = time;
             data.lastCorrectedTime += correctedDelta;
         }
-        LOG.i("Track:" + type + " inputTime:" + time + " outputTime:" + data.lastCorrectedTime);
+        if (LOG.isEnabled(Logger.LEVEL_INFO)) {
+            LOG.i("Track:" + type + " inputTime:" + time + " outputTime:" + data.lastCorrectedTime);
+        }
         return data.lastCorrectedTime;
     }
 
@@ -3,11 +3,13 @@ package com.otaliastudios.transcoder.transcode;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Build;
 
 import androidx.annotation.NonNull;
 
 import com.otaliastudios.transcoder.engine.TrackType;
 import com.otaliastudios.transcoder.internal.MediaCodecBuffers;
+import com.otaliastudios.transcoder.internal.MediaFormatConstants;
 import com.otaliastudios.transcoder.resample.AudioResampler;
 import com.otaliastudios.transcoder.sink.DataSink;
 import com.otaliastudios.transcoder.source.DataSource;
@@ -25,6 +27,7 @@ public class AudioTrackTranscoder extends BaseTrackTranscoder {
     private AudioEngine mAudioEngine;
     private MediaCodec mEncoder; // to create the channel
     private MediaFormat mEncoderOutputFormat; // to create the channel
+    private boolean mFloatDecoding;
 
     public AudioTrackTranscoder(@NonNull DataSource dataSource,
                                 @NonNull DataSink dataSink,
@@ -37,6 +40,56 @@ public class AudioTrackTranscoder extends BaseTrackTranscoder {
         mAudioResampler = audioResampler;
     }
 
+    /**
+     * Requests the decoder to output float samples instead of 16-bit ones.
+     * This must be called before {@link #setUp(MediaFormat)} and has no effect
+     * on API levels where it is not supported. The {@link AudioEngine} reads
+     * the actual encoding from the decoder output format.
+     *
+     * @param floatDecoding true to decode as floats
+     */
+    public void setFloatDecoding(boolean floatDecoding) {
+        mFloatDecoding = floatDecoding;
+    }
+
+    @Override
+    protected void onConfigureDecoder(@NonNull MediaFormat format, @NonNull MediaCodec decoder) {
+        if (mFloatDecoding && Build.VERSION.SDK_INT >= 24) {
+            format.setInteger(MediaFormatConstants.KEY_PCM_ENCODING, MediaFormatConstants.ENCODING_PCM_FLOAT);
+        }
+        super.onConfigureDecoder(format, decoder);
+    }
+
+    @Override
+    public void setEncoderHandOff(boolean handOff) {
+        super.setEncoderHandOff(handOff);
+        if (mAudioEngine != null) {
+            mAudioEngine.setSignalEndOfStream(!handOff);
+        }
+    }
+
+    @Override
+    protected boolean canFlushDecoder() {
+        return true;
+    }
+
+    @NonNull
+    @Override
+    protected String getDecoderConfiguration(@NonNull MediaFormat inputFormat) {
+        boolean floatDecoding = mFloatDecoding && Build.VERSION.SDK_INT >= 24;
+        return super.getDecoderConfiguration(inputFormat) + (floatDecoding ? "float" : "short");
+    }
+
+    @Override
+    protected boolean hasPendingDecoderOutput() {
+        return mAudioEngine != null && mAudioEngine.hasPendingBuffers();
+    }
+
+    @Override
+    protected boolean isEncoderInputDone() {
+        return mAudioEngine == null || mAudioEngine.isEndOfStreamConsumed();
+    }
+
     @Override
     protected void onCodecsStarted(@NonNull MediaFormat inputFormat, @NonNull MediaFormat outputFormat, @NonNull MediaCodec decoder, @NonNull MediaCodec encoder) {
         super.onCodecsStarted(inputFormat, outputFormat, decoder, encoder);
@@ -53,11 +106,19 @@ public class AudioTrackTranscoder extends BaseTrackTranscoder {
     @Override
     protected void onDecoderOutputFormatChanged(@NonNull MediaCodec decoder, @NonNull MediaFormat format) {
         super.onDecoderOutputFormatChanged(decoder, format);
+        // A flushed decoder might notify the format again, after we passed it in setUp.
+        if (mAudioEngine != null) return;
         mAudioEngine = new AudioEngine(decoder, format,
                 mEncoder, mEncoderOutputFormat,
                 mTimeInterpolator,
                 mAudioStretcher,
                 mAudioResampler);
+        if (getMetrics() != null) {
+            mAudioEngine.setMetrics(getMetrics());
+        }
+        if (isEncoderHandOff()) {
+            mAudioEngine.setSignalEndOfStream(false);
+        }
         mEncoder = null;
         mEncoderOutputFormat = null;
         mTimeInterpolator = null;
@@ -3,14 +3,23 @@ package com.otaliastudios.transcoder.transcode;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Build;
 
 import androidx.annotation.CallSuper;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.otaliastudios.transcoder.engine.TrackType;
+import com.otaliastudios.transcoder.internal.AsyncMediaCodecQueue;
+import com.otaliastudios.transcoder.internal.CodecPool;
 import com.otaliastudios.transcoder.internal.MediaCodecBuffers;
+import com.otaliastudios.transcoder.internal.MediaCodecQueue;
+import com.otaliastudios.transcoder.internal.MetricsCollector;
+import com.otaliastudios.transcoder.internal.SyncMediaCodecQueue;
+import com.otaliastudios.transcoder.internal.WorkSignal;
 import com.otaliastudios.transcoder.sink.DataSink;
 import com.otaliastudios.transcoder.source.DataSource;
+import com.otaliastudios.transcoder.transcode.internal.VideoEncoderInput;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -18,13 +27,77 @@ import java.nio.ByteBuffer;
 /**
  * A base implementation of {@link TrackTranscoder} that reads
  * from {@link MediaExtractor} and does feeding and draining job.
+ *
+ * By default, codecs are polled at each {@link #transcode(boolean)} call.
+ * If {@link #setAsynchronous(WorkSignal)} is called before {@link #setUp(MediaFormat)},
+ * codecs will run in asynchronous mode instead, and buffer indices will be collected
+ * through {@link MediaCodec.Callback} by {@link AsyncMediaCodecQueue}.
+ * In synchronous mode, codecs can not notify new buffers, so this transcoder is a
+ * {@link WorkSignal.Waitable}: when it could not step, the caller can block on the
+ * codec that is expected to output something next.
+ *
+ * If {@link #setCodecPool(CodecPool)} is called, codecs are taken from the pool
+ * and returned to it on {@link #release()}, instead of being created and released.
+ *
+ * When transcoders are used one after the other to encode the same track, the encoder
+ * can be kept running from one to the next, see {@link #setEncoderHandOff(boolean)}.
  */
-public abstract class BaseTrackTranscoder implements TrackTranscoder {
+public abstract class BaseTrackTranscoder implements TrackTranscoder, WorkSignal.Waitable {
 
     private static final int DRAIN_STATE_NONE = 0;
     private static final int DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY = 1;
     private static final int DRAIN_STATE_CONSUMED = 2;
 
+    /**
+     * A running encoder, detached from a finished transcoder with {@link #detachEncoder()}
+     * so that it can be attached to the next one with {@link #attachEncoder(ActiveEncoder)}.
+     */
+    public static class ActiveEncoder {
+        private final MediaCodec mCodec;
+        private final String mMime;
+        private final MediaCodecQueue mQueue;
+        private final MediaCodecBuffers mBuffers;
+        private final MediaFormat mActualOutputFormat;
+        private final boolean mAsynchronous;
+        private final CodecPool mCodecPool;
+        // Set by VideoTrackTranscoder.
+        VideoEncoderInput mInputSurface;
+
+        private ActiveEncoder(@NonNull MediaCodec codec,
+                              @NonNull String mime,
+                              @NonNull MediaCodecQueue queue,
+                              @NonNull MediaCodecBuffers buffers,
+                              @Nullable MediaFormat actualOutputFormat,
+                              boolean asynchronous,
+                              @Nullable CodecPool codecPool) {
+            mCodec = codec;
+            mMime = mime;
+            mQueue = queue;
+            mBuffers = buffers;
+            mActualOutputFormat = actualOutputFormat;
+            mAsynchronous = asynchronous;
+            mCodecPool = codecPool;
+        }
+
+        /**
+         * Releases the encoder, or returns it to its pool.
+         * This should be called if the encoder is not attached to another transcoder.
+         */
+        public void release() {
+            if (mInputSurface != null) {
+                mInputSurface.release();
+                mInputSurface = null;
+            }
+            if (mCodecPool != null) {
+                mCodecPool.recycle(mCodec, mMime, true, mAsynchronous, true);
+            } else {
+                mCodec.stop();
+                mCodec.release();
+            }
+            mQueue.release();
+        }
+    }
+
     private final DataSource mDataSource;
     private final DataSource.Chunk mDataChunk;
     private final DataSink mDataSink;
@@ -35,6 +108,23 @@ public abstract class BaseTrackTranscoder implements TrackTranscoder {
     private MediaCodec mEncoder;
     private MediaCodecBuffers mDecoderBuffers;
     private MediaCodecBuffers mEncoderBuffers;
+    private MediaCodecQueue mDecoderQueue;
+    private MediaCodecQueue mEncoderQueue;
+    private WorkSignal mWorkSignal;
+    private boolean mAsynchronous;
+    private MetricsCollector mMetrics;
+    private CodecPool mCodecPool;
+    private String mDecoderMime;
+    private String mEncoderMime;
+    private String mDecoderConfiguration;
+    private boolean mEncoderHandOff;
+    private ActiveEncoder mAttachedEncoder;
+    private boolean mEncoderSetUpFailed;
+    private boolean mDecoderSetUpFailed;
+    private long mFirstInputUs = Long.MIN_VALUE;
+    private long mMaxInputUs = Long.MIN_VALUE;
+    private long mSkipInputUntilUs = Long.MIN_VALUE;
+    private int mHeldInputIndex = -1;
     private boolean mDecoderStarted;
     private boolean mEncoderStarted;
     private MediaFormat mActualOutputFormat;
@@ -42,6 +132,8 @@ public abstract class BaseTrackTranscoder implements TrackTranscoder {
     private boolean mIsDecoderEOS;
     private boolean mIsEncoderEOS;
     private boolean mIsExtractorEOS;
+    private int mDecoderInputCount; // input buffers that the decoder did not output yet
+    private boolean mWaitingForSource;
 
     @SuppressWarnings("WeakerAccess")
     protected BaseTrackTranscoder(@NonNull DataSource dataSource,
@@ -53,28 +145,295 @@ public abstract class BaseTrackTranscoder implements TrackTranscoder {
         mDataChunk = new DataSource.Chunk();
     }
 
+    /**
+     * Requests the codecs to be run in asynchronous mode. This must be called
+     * before {@link #setUp(MediaFormat)} and has no effect on API levels
+     * where it is not supported.
+     *
+     * @param workSignal a signal to be notified when codecs have new buffers
+     */
+    public void setAsynchronous(@NonNull WorkSignal workSignal) {
+        mAsynchronous = AsyncMediaCodecQueue.isSupported();
+        mWorkSignal = workSignal;
+    }
+
+    /**
+     * Sets a collector for this transcoder metrics. This must be called
+     * before {@link #setUp(MediaFormat)}.
+     *
+     * @param metrics a collector
+     */
+    public void setMetrics(@NonNull MetricsCollector metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Returns the metrics collector, if any.
+     * @return a collector or null
+     */
+    @Nullable
+    protected MetricsCollector getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Sets a pool to take codecs from, and to return them to when released.
+     * This must be called before {@link #setUp(MediaFormat)}.
+     *
+     * @param codecPool a pool
+     */
+    public void setCodecPool(@NonNull CodecPool codecPool) {
+        mCodecPool = codecPool;
+    }
+
+    /**
+     * Returns the codec pool, if any.
+     * @return a pool or null
+     */
+    @Nullable
+    protected CodecPool getCodecPool() {
+        return mCodecPool;
+    }
+
+    /**
+     * If true, the end of stream is not passed to the encoder. Instead, this transcoder is
+     * finished when all the input was passed to the encoder, and the encoder can be passed
+     * to the next transcoder with {@link #detachEncoder()}. The next transcoder will
+     * also drain the output of this one.
+     *
+     * @param handOff true to hand off the encoder
+     */
+    public void setEncoderHandOff(boolean handOff) {
+        mEncoderHandOff = handOff;
+    }
+
+    /**
+     * Returns true if the encoder will be passed to the next transcoder.
+     * @return true if handing off the encoder
+     */
+    protected boolean isEncoderHandOff() {
+        return mEncoderHandOff;
+    }
+
+    /**
+     * Detaches the running encoder of a finished transcoder, which was set up with
+     * {@link #setEncoderHandOff(boolean)}. The encoder is not released by {@link #release()}.
+     *
+     * @return the encoder
+     */
+    @NonNull
+    public ActiveEncoder detachEncoder() {
+        if (!mEncoderHandOff || !isFinished() || mEncoder == null) {
+            throw new IllegalStateException("The encoder can not be detached.");
+        }
+        ActiveEncoder encoder = new ActiveEncoder(mEncoder, mEncoderMime,
+                mEncoderQueue, mEncoderBuffers, mActualOutputFormat,
+                isAsynchronous(), mCodecPool);
+        onDetachEncoder(encoder);
+        mEncoder = null;
+        mEncoderQueue = null;
+        mEncoderBuffers = null;
+        mEncoderStarted = false;
+        return encoder;
+    }
+
+    /**
+     * Sets an encoder detached from a previous transcoder, to be used instead
+     * of creating a new one. This must be called before {@link #setUp(MediaFormat)}.
+     *
+     * @param encoder the encoder
+     */
+    public void attachEncoder(@NonNull ActiveEncoder encoder) {
+        mAttachedEncoder = encoder;
+    }
+
+    /**
+     * Sets the timestamp where this transcoder should start, because the input before it
+     * was already transcoded by a previous transcoder of the same source.
+     * By default, input samples before this timestamp are skipped. This must be called
+     * before {@link #setUp(MediaFormat)}.
+     *
+     * @param timestampUs the first timestamp to be transcoded, in the source timebase
+     */
+    public void setResumeTimestampUs(long timestampUs) {
+        mSkipInputUntilUs = timestampUs;
+    }
+
+    /**
+     * Returns the timestamp passed to {@link #setResumeTimestampUs(long)}.
+     * @return a timestamp in the source timebase, or {@link Long#MIN_VALUE}
+     */
+    public long getResumeTimestampUs() {
+        return mSkipInputUntilUs;
+    }
+
+    /**
+     * Returns the timestamp of the first sample that was read from the source,
+     * including samples that were skipped, see {@link #setResumeTimestampUs(long)}.
+     * @return a timestamp in the source timebase, or {@link Long#MIN_VALUE}
+     */
+    public long getFirstInputTimestampUs() {
+        return mFirstInputUs;
+    }
+
+    /**
+     * Returns the greatest timestamp among the samples that were passed to the decoder.
+     * @return a timestamp in the source timebase, or {@link Long#MIN_VALUE}
+     */
+    public long getMaxInputTimestampUs() {
+        return mMaxInputUs;
+    }
+
+    private boolean isAsynchronous() {
+        return mAsynchronous && Build.VERSION.SDK_INT >= 23;
+    }
+
+    @NonNull
+    private MediaCodecQueue createQueue(@NonNull MediaCodec codec, @NonNull String name) {
+        if (isAsynchronous()) {
+            AsyncMediaCodecQueue queue = new AsyncMediaCodecQueue(mWorkSignal);
+            queue.attach(codec, name);
+            return queue;
+        }
+        return new SyncMediaCodecQueue(codec);
+    }
+
     @Override
     public final void setUp(@NonNull MediaFormat desiredOutputFormat) {
-        try {
-            mEncoder = MediaCodec.createEncoderByType(desiredOutputFormat.getString(MediaFormat.KEY_MIME));
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+        if (mAttachedEncoder != null) {
+            ActiveEncoder encoder = mAttachedEncoder;
+            mAttachedEncoder = null;
+            mEncoder = encoder.mCodec;
+            mEncoderMime = encoder.mMime;
+            mEncoderQueue = encoder.mQueue;
+            mEncoderBuffers = encoder.mBuffers;
+            mEncoderStarted = true;
+            mActualOutputFormat = encoder.mActualOutputFormat;
+            onAttachEncoder(encoder);
+        } else {
+            mEncoderMime = desiredOutputFormat.getString(MediaFormat.KEY_MIME);
+            mEncoderSetUpFailed = true;
+            try {
+                mEncoder = mCodecPool != null
+                        ? mCodecPool.obtainEncoder(mEncoderMime, isAsynchronous())
+                        : MediaCodec.createEncoderByType(mEncoderMime);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            mEncoderQueue = createQueue(mEncoder, mTrackType + "Encoder");
+            onConfigureEncoder(desiredOutputFormat, mEncoder);
+            onStartEncoder(desiredOutputFormat, mEncoder);
+            mEncoderSetUpFailed = false;
         }
-        onConfigureEncoder(desiredOutputFormat, mEncoder);
-        onStartEncoder(desiredOutputFormat, mEncoder);
 
         final MediaFormat inputFormat = mDataSource.getTrackFormat(mTrackType);
         if (inputFormat == null) {
             throw new IllegalArgumentException("Input format is null!");
         }
-        try {
-            mDecoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+        mDecoderMime = inputFormat.getString(MediaFormat.KEY_MIME);
+        mDecoderConfiguration = mCodecPool != null && canFlushDecoder()
+                ? getDecoderConfiguration(inputFormat) : null;
+        MediaCodec flushed = mDecoderConfiguration != null && !isAsynchronous()
+                ? mCodecPool.obtainFlushedDecoder(mDecoderConfiguration) : null;
+        if (flushed != null) {
+            mDecoder = flushed;
+            mDecoderQueue = createQueue(mDecoder, mTrackType + "Decoder");
+            mDecoderStarted = true;
+            mDecoderBuffers = new MediaCodecBuffers(mDecoder, mDecoderQueue);
+        } else {
+            mDecoderSetUpFailed = true;
+            try {
+                mDecoder = mCodecPool != null
+                        ? mCodecPool.obtainDecoder(mDecoderMime, isAsynchronous())
+                        : MediaCodec.createDecoderByType(mDecoderMime);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            mDecoderQueue = createQueue(mDecoder, mTrackType + "Decoder");
+            onConfigureDecoder(inputFormat, mDecoder);
+            onStartDecoder(inputFormat, mDecoder);
+            mDecoderSetUpFailed = false;
         }
-        onConfigureDecoder(inputFormat, mDecoder);
-        onStartDecoder(inputFormat, mDecoder);
         onCodecsStarted(inputFormat, desiredOutputFormat, mDecoder, mEncoder);
+        if (flushed != null) {
+            // A flushed decoder does not necessarily notify its output format again.
+            onDecoderOutputFormatChanged(mDecoder, mDecoder.getOutputFormat());
+        }
+    }
+
+    /**
+     * Returns true if {@link #setUp(MediaFormat)} failed while creating,
+     * configuring or starting the encoder.
+     * @return true if the encoder failed
+     */
+    public boolean hasEncoderSetUpFailed() {
+        return mEncoderSetUpFailed;
+    }
+
+    /**
+     * Returns true if {@link #setUp(MediaFormat)} failed while creating,
+     * configuring or starting the decoder.
+     * @return true if the decoder failed
+     */
+    public boolean hasDecoderSetUpFailed() {
+        return mDecoderSetUpFailed;
+    }
+
+    /**
+     * Returns true if the decoder can be returned to the pool with its configuration,
+     * and flushed for the next transcoder with the same input configuration.
+     * This is not the case for decoders that render to a surface owned by the transcoder.
+     *
+     * @return true if the decoder can be flushed
+     */
+    protected boolean canFlushDecoder() {
+        return false;
+    }
+
+    /**
+     * Returns the configuration of the decoder for the given input format,
+     * see {@link CodecPool#getConfiguration(MediaFormat)}. Subclasses should add
+     * anything that changes how the decoder is configured.
+     *
+     * @param inputFormat the input format
+     * @return the decoder configuration
+     */
+    @NonNull
+    protected String getDecoderConfiguration(@NonNull MediaFormat inputFormat) {
+        return CodecPool.getConfiguration(inputFormat);
+    }
+
+    /**
+     * Called when the encoder is detached, so that subclasses can
+     * pass along their own encoder state.
+     * @param encoder the detached encoder
+     */
+    protected void onDetachEncoder(@NonNull ActiveEncoder encoder) {}
+
+    /**
+     * Called during {@link #setUp(MediaFormat)} when an encoder was attached,
+     * instead of {@link #onConfigureEncoder(MediaFormat, MediaCodec)} and
+     * {@link #onStartEncoder(MediaFormat, MediaCodec)}.
+     * @param encoder the attached encoder
+     */
+    protected void onAttachEncoder(@NonNull ActiveEncoder encoder) {}
+
+    /**
+     * Returns true if some decoder output is held, waiting for the encoder to accept it.
+     * In this case, we wait for the encoder rather than the decoder.
+     * @return true if decoder output is held
+     */
+    protected boolean hasPendingDecoderOutput() {
+        return false;
+    }
+
+    /**
+     * When handing off the encoder, returns true if all the decoded data was passed
+     * to the encoder, after the decoder reached the end of stream.
+     * @return true if done
+     */
+    protected boolean isEncoderInputDone() {
+        return true;
     }
 
     /**
@@ -95,7 +454,7 @@ public abstract class BaseTrackTranscoder implements TrackTranscoder {
     protected void onStartEncoder(@NonNull MediaFormat format, @NonNull MediaCodec encoder) {
         encoder.start();
         mEncoderStarted = true;
-        mEncoderBuffers = new MediaCodecBuffers(encoder);
+        mEncoderBuffers = new MediaCodecBuffers(encoder, mEncoderQueue);
     }
 
     /**
@@ -117,7 +476,7 @@ public abstract class BaseTrackTranscoder implements TrackTranscoder {
     protected void onStartDecoder(@NonNull MediaFormat format, @NonNull MediaCodec decoder) {
         decoder.start();
         mDecoderStarted = true;
-        mDecoderBuffers = new MediaCodecBuffers(decoder);
+        mDecoderBuffers = new MediaCodecBuffers(decoder, mDecoderQueue);
     }
 
     /**
@@ -133,42 +492,91 @@ public abstract class BaseTrackTranscoder implements TrackTranscoder {
 
     @Override
     public final boolean isFinished() {
-        return mIsEncoderEOS;
+        return mIsEncoderEOS || (mEncoderHandOff && mIsDecoderEOS && isEncoderInputDone());
+    }
+
+    @Override
+    public boolean canAwaitWork() {
+        return getAwaitedQueue() != null;
+    }
+
+    @Override
+    public boolean awaitWork(long timeoutMillis) {
+        SyncMediaCodecQueue queue = getAwaitedQueue();
+        return queue != null && queue.awaitOutputBuffer(timeoutMillis * 1000);
+    }
+
+    /**
+     * Returns the synchronous codec queue that should have output next, if any:
+     * the decoder while it has input to process, then the encoder. If we are waiting
+     * for the source, it is up to the source to signal.
+     */
+    @Nullable
+    private SyncMediaCodecQueue getAwaitedQueue() {
+        if (!mIsDecoderEOS && mDecoderInputCount > 0 && !hasPendingDecoderOutput()
+                && mDecoderQueue instanceof SyncMediaCodecQueue) {
+            return (SyncMediaCodecQueue) mDecoderQueue;
+        }
+        if (mWaitingForSource) return null;
+        if (mEncoderStarted && !mIsEncoderEOS && mEncoderQueue instanceof SyncMediaCodecQueue) {
+            return (SyncMediaCodecQueue) mEncoderQueue;
+        }
+        return null;
     }
 
     @Override
     public void release() {
         if (mDecoder != null) {
-            if (mDecoderStarted) {
-                mDecoder.stop();
-                mDecoderStarted = false;
+            if (mCodecPool != null && mDecoderConfiguration != null && mDecoderStarted) {
+                mCodecPool.recycleConfigured(mDecoder, mDecoderMime, isAsynchronous(), mDecoderConfiguration);
+            } else if (mCodecPool != null) {
+                mCodecPool.recycle(mDecoder, mDecoderMime, false, isAsynchronous(), mDecoderStarted);
+            } else {
+                if (mDecoderStarted) mDecoder.stop();
+                mDecoder.release();
             }
-            mDecoder.release();
+            mDecoderStarted = false;
             mDecoder = null;
         }
+        if (mDecoderQueue != null) {
+            mDecoderQueue.release();
+            mDecoderQueue = null;
+        }
         if (mEncoder != null) {
-            if (mEncoderStarted) {
-                mEncoder.stop();
-                mEncoderStarted = false;
+            if (mCodecPool != null) {
+                mCodecPool.recycle(mEncoder, mEncoderMime, true, isAsynchronous(), mEncoderStarted);
+            } else {
+                if (mEncoderStarted) mEncoder.stop();
+                mEncoder.release();
             }
-            mEncoder.release();
+            mEncoderStarted = false;
             mEncoder = null;
         }
+        if (mEncoderQueue != null) {
+            mEncoderQueue.release();
+            mEncoderQueue = null;
+        }
     }
 
     @Override
     public final boolean transcode(boolean forceInputEos) {
+        MetricsCollector metrics = mMetrics;
+        long time = metrics != null ? MetricsCollector.now() : 0;
         boolean busy = false;
         int status;
         while (drainEncoder(0) != DRAIN_STATE_NONE) busy = true;
+        if (metrics != null) time = metrics.addStageTime(mTrackType, MetricsCollector.STAGE_DRAIN_ENCODER, time);
         do {
             status = drainDecoder(0);
             if (status != DRAIN_STATE_NONE) busy = true;
             // NOTE: not repeating to keep from deadlock when encoder is full.
         } while (status == DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY);
+        if (metrics != null) time = metrics.addStageTime(mTrackType, MetricsCollector.STAGE_DRAIN_DECODER, time);
 
         while (feedEncoder(0)) busy = true;
+        if (metrics != null) time = metrics.addStageTime(mTrackType, MetricsCollector.STAGE_FEED_ENCODER, time);
         while (feedDecoder(0, forceInputEos) != DRAIN_STATE_NONE) busy = true;
+        if (metrics != null) metrics.addStageTime(mTrackType, MetricsCollector.STAGE_FEED_DECODER, time);
         return busy;
     }
 
@@ -195,32 +603,52 @@ public abstract class BaseTrackTranscoder implements TrackTranscoder {
 
     @SuppressWarnings("SameParameterValue")
     private int feedDecoder(long timeoutUs, boolean forceInputEos) {
+        mWaitingForSource = false;
         if (mIsExtractorEOS) {
             return DRAIN_STATE_NONE;
         }
 
         if (mDataSource.isDrained() || forceInputEos) {
-            int result = mDecoder.dequeueInputBuffer(timeoutUs);
+            int result = mHeldInputIndex >= 0
+                    ? mHeldInputIndex
+                    : mDecoderBuffers.dequeueInputBuffer(timeoutUs);
             if (result < 0) return DRAIN_STATE_NONE;
+            mHeldInputIndex = -1;
             mIsExtractorEOS = true;
             mDecoder.queueInputBuffer(result, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mDecoderInputCount++;
             return DRAIN_STATE_NONE;
         }
 
         if (!mDataSource.canReadTrack(mTrackType)) {
+            mWaitingForSource = true;
             return DRAIN_STATE_NONE;
         }
 
-        final int result = mDecoder.dequeueInputBuffer(timeoutUs);
-        if (result < 0) return DRAIN_STATE_NONE;
+        final int result = mHeldInputIndex >= 0
+                ? mHeldInputIndex
+                : mDecoderBuffers.dequeueInputBuffer(timeoutUs);
+        if (result < 0) {
+            if (mMetrics != null) mMetrics.addDecoderStall(mTrackType);
+            return DRAIN_STATE_NONE;
+        }
 
         mDataChunk.buffer = mDecoderBuffers.getInputBuffer(result);
         mDataSource.readTrack(mDataChunk);
+        if (mFirstInputUs == Long.MIN_VALUE) mFirstInputUs = mDataChunk.timestampUs;
+        if (mDataChunk.timestampUs < mSkipInputUntilUs) {
+            // Keep the input buffer for the next sample.
+            mHeldInputIndex = result;
+            return DRAIN_STATE_CONSUMED;
+        }
+        mHeldInputIndex = -1;
+        if (mDataChunk.timestampUs > mMaxInputUs) mMaxInputUs = mDataChunk.timestampUs;
         mDecoder.queueInputBuffer(result,
                 0,
                 mDataChunk.bytes,
                 mDataChunk.timestampUs,
-                mDataChunk.isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+                mDataChunk.isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        mDecoderInputCount++;
         return DRAIN_STATE_CONSUMED;
     }
 
@@ -232,12 +660,12 @@ public abstract class BaseTrackTranscoder implements TrackTranscoder {
     @SuppressWarnings("SameParameterValue")
     private int drainDecoder(long timeoutUs) {
         if (mIsDecoderEOS) return DRAIN_STATE_NONE;
-        int result = mDecoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        int result = mDecoderQueue.dequeueOutputBuffer(mBufferInfo, timeoutUs);
         switch (result) {
             case MediaCodec.INFO_TRY_AGAIN_LATER:
                 return DRAIN_STATE_NONE;
             case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                onDecoderOutputFormatChanged(mDecoder, mDecoder.getOutputFormat());
+                onDecoderOutputFormatChanged(mDecoder, mDecoderQueue.getOutputFormat());
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
             case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
@@ -246,6 +674,9 @@ public abstract class BaseTrackTranscoder implements TrackTranscoder {
         boolean isEos = (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
         boolean hasSize = mBufferInfo.size > 0;
         if (isEos) mIsDecoderEOS = true;
+        // Decoders might drop some input, so this is only an estimate.
+        if (mDecoderInputCount > 0) mDecoderInputCount--;
+        if (hasSize && mMetrics != null) mMetrics.addDecodedFrame(mTrackType);
         if (isEos || hasSize) {
             onDrainDecoder(mDecoder,
                     result,
@@ -260,12 +691,12 @@ public abstract class BaseTrackTranscoder implements TrackTranscoder {
     private int drainEncoder(long timeoutUs) {
         if (mIsEncoderEOS) return DRAIN_STATE_NONE;
 
-        int result = mEncoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        int result = mEncoderQueue.dequeueOutputBuffer(mBufferInfo, timeoutUs);
         switch (result) {
             case MediaCodec.INFO_TRY_AGAIN_LATER:
                 return DRAIN_STATE_NONE;
             case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                onEncoderOutputFormatChanged(mEncoder, mEncoder.getOutputFormat());
+                onEncoderOutputFormatChanged(mEncoder, mEncoderQueue.getOutputFormat());
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
             case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
                 mEncoderBuffers.onOutputBuffersChanged();
@@ -21,18 +21,21 @@ import android.media.MediaFormat;
 import androidx.annotation.NonNull;
 
 import com.otaliastudios.transcoder.engine.TrackType;
+import com.otaliastudios.transcoder.internal.BufferPool;
 import com.otaliastudios.transcoder.sink.DataSink;
 import com.otaliastudios.transcoder.source.DataSource;
 import com.otaliastudios.transcoder.time.TimeInterpolator;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 public class PassThroughTrackTranscoder implements TrackTranscoder {
 
+    private static final String TAG = PassThroughTrackTranscoder.class.getSimpleName();
+
     private final DataSource mDataSource;
     private final DataSink mDataSink;
     private final DataSource.Chunk mDataChunk;
+    private ByteBuffer mBuffer; // sources might replace the chunk buffer
     private final TrackType mTrackType;
     private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
     private boolean mIsEOS;
@@ -53,7 +56,8 @@ public class PassThroughTrackTranscoder implements TrackTranscoder {
         }
         int bufferSize = mOutputFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
         mDataChunk = new DataSource.Chunk();
-        mDataChunk.buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.nativeOrder());
+        mBuffer = BufferPool.obtain(bufferSize, TAG);
+        mDataChunk.buffer = mBuffer;
         mTimeInterpolator = timeInterpolator;
     }
 
@@ -81,7 +85,7 @@ public class PassThroughTrackTranscoder implements TrackTranscoder {
         mDataChunk.buffer.clear();
         mDataSource.readTrack(mDataChunk);
         long timestampUs = mTimeInterpolator.interpolate(mTrackType, mDataChunk.timestampUs);
-        int flags = mDataChunk.isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+        int flags = mDataChunk.isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
         mBufferInfo.set(0, mDataChunk.bytes, timestampUs, flags);
         mDataSink.writeTrack(mTrackType, mDataChunk.buffer, mBufferInfo);
         return true;
@@ -94,5 +98,10 @@ public class PassThroughTrackTranscoder implements TrackTranscoder {
 
     @Override
     public void release() {
+        if (mBuffer != null) {
+            BufferPool.recycle(mBuffer);
+            mBuffer = null;
+            mDataChunk.buffer = null;
+        }
     }
 }
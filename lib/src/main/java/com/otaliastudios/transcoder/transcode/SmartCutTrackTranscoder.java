@@ -0,0 +1,373 @@
+package com.otaliastudios.transcoder.transcode;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.otaliastudios.transcoder.engine.TrackStatus;
+import com.otaliastudios.transcoder.engine.TrackType;
+import com.otaliastudios.transcoder.internal.AvcCsdUtils;
+import com.otaliastudios.transcoder.internal.AvcSpsUtils;
+import com.otaliastudios.transcoder.internal.BitRates;
+import com.otaliastudios.transcoder.internal.CodecPool;
+import com.otaliastudios.transcoder.internal.FormatCompatibility;
+import com.otaliastudios.transcoder.internal.Logger;
+import com.otaliastudios.transcoder.internal.MediaFormatConstants;
+import com.otaliastudios.transcoder.internal.MetricsCollector;
+import com.otaliastudios.transcoder.internal.WorkSignal;
+import com.otaliastudios.transcoder.sink.DataSink;
+import com.otaliastudios.transcoder.source.DataSource;
+import com.otaliastudios.transcoder.source.DataSourceWrapper;
+import com.otaliastudios.transcoder.time.TimeInterpolator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A video {@link TrackTranscoder} for smart cut trimming. The source is expected to be
+ * positioned at a sync frame before the cut, as done by
+ * {@link com.otaliastudios.transcoder.source.TrimDataSource} in smart cut mode.
+ *
+ * The first, partial GOP is decoded and re-encoded starting from the cut position,
+ * while all the following samples, starting from the first sync frame after the cut,
+ * are copied as they are. For this to work, the encoder must produce the same parameter
+ * sets (SPS and PPS for AVC) as the source, byte by byte, since the copied samples depend
+ * on them. Matching the profile, level and size is not enough.
+ *
+ * In practice, this only happens when the source was encoded by the same encoder with the
+ * same settings, for example when trimming a video recorded on the same device. With other
+ * sources, the parameter sets will not match: the head is then kept, since it was already
+ * written, and the rest of the track is re-encoded from the first sync frame after the cut.
+ *
+ * The end of the track is cut at the sample level, like
+ * {@link PassThroughTrackTranscoder} does.
+ */
+public class SmartCutTrackTranscoder implements TrackTranscoder {
+
+    private static final String TAG = SmartCutTrackTranscoder.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    private static final int DEFAULT_FRAME_RATE = 30;
+    // Raw YUV 4:2:0 frame size per pixel, in half bytes. Encoded frames are smaller.
+    private static final int RAW_FRAME_HALF_BYTES_PER_PIXEL = 3;
+
+    private final GopDataSource mDataSource;
+    private final DataSink mDataSink;
+    private final HeadDataSink mHeadDataSink;
+    private final TimeInterpolator mTimeInterpolator;
+    private final MediaFormat mInputFormat;
+    private final int mRotation;
+    private final long mCutStartUs;
+    private MediaFormat mEncoderFormat;
+    private VideoTrackTranscoder mHead;
+    private TrackTranscoder mTail;
+    private WorkSignal mWorkSignal;
+    private MetricsCollector mMetrics;
+    private CodecPool mCodecPool;
+
+    public SmartCutTrackTranscoder(@NonNull DataSource dataSource,
+                                   @NonNull DataSink dataSink,
+                                   @NonNull TimeInterpolator timeInterpolator,
+                                   long cutStartUs) {
+        mInputFormat = dataSource.getTrackFormat(TrackType.VIDEO);
+        if (mInputFormat == null) {
+            throw new IllegalArgumentException("Input format is null!");
+        }
+        mDataSource = new GopDataSource(dataSource, mInputFormat, cutStartUs);
+        mDataSink = dataSink;
+        mHeadDataSink = new HeadDataSink(dataSink);
+        mTimeInterpolator = timeInterpolator;
+        mCutStartUs = cutStartUs;
+        // Undo the source rotation, so that encoded frames match the copied ones.
+        mRotation = (360 - dataSource.getOrientation()) % 360;
+    }
+
+    /**
+     * Requests the codecs to be run in asynchronous mode,
+     * see {@link BaseTrackTranscoder#setAsynchronous(WorkSignal)}.
+     *
+     * @param workSignal a signal to be notified when codecs have new buffers
+     */
+    public void setAsynchronous(@NonNull WorkSignal workSignal) {
+        mWorkSignal = workSignal;
+    }
+
+    /**
+     * Sets a collector for the metrics of the codecs,
+     * see {@link BaseTrackTranscoder#setMetrics(MetricsCollector)}.
+     *
+     * @param metrics a collector
+     */
+    public void setMetrics(@NonNull MetricsCollector metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Sets a pool to take codecs from, and to return them to when released,
+     * see {@link BaseTrackTranscoder#setCodecPool(CodecPool)}.
+     *
+     * @param codecPool a pool
+     */
+    public void setCodecPool(@NonNull CodecPool codecPool) {
+        mCodecPool = codecPool;
+    }
+
+    @Override
+    public void setUp(@NonNull MediaFormat desiredOutputFormat) {
+        // Ignore the desired format: the encoded frames must match the input.
+        mEncoderFormat = createEncoderFormat(mInputFormat, mRotation);
+    }
+
+    @Override
+    public boolean transcode(boolean forceInputEos) {
+        if (mTail != null) {
+            return mTail.transcode(forceInputEos);
+        }
+        if (mHead == null) {
+            // Look at the first sample: if it is a sync frame at the cut position,
+            // there's nothing to encode and we can copy everything.
+            if (!forceInputEos
+                    && !mDataSource.isDrained()
+                    && !mDataSource.canReadTrack(TrackType.VIDEO)) {
+                return false;
+            }
+            if (forceInputEos || mDataSource.isHeadComplete() || mDataSource.isDrained()) {
+                LOG.i("Nothing to encode, copying all samples.");
+                startTail(true);
+            } else {
+                LOG.i("Encoding the first GOP after " + mCutStartUs);
+                mHead = createVideoTranscoder(mHeadDataSink);
+                mHead.setRenderStartUs(mCutStartUs);
+                mHead.setUp(mEncoderFormat);
+            }
+            return true;
+        }
+        boolean result = mHead.transcode(forceInputEos);
+        if (mHead.isFinished()) {
+            mHead.release();
+            mHead = null;
+            MediaFormat headFormat = mHeadDataSink.getFormat();
+            boolean compatible = headFormat == null
+                    || FormatCompatibility.hasSameCodecConfig(mInputFormat, headFormat);
+            if (!compatible) {
+                LOG.w("Encoder parameter sets do not match the input. Encoding the rest of the track.");
+            }
+            startTail(compatible);
+            return true;
+        }
+        return result;
+    }
+
+    private void startTail(boolean passThrough) {
+        mDataSource.startTail();
+        if (passThrough) {
+            mTail = new PassThroughTrackTranscoder(mDataSource, mDataSink,
+                    TrackType.VIDEO, mTimeInterpolator);
+            mTail.setUp(new MediaFormat());
+        } else {
+            VideoTrackTranscoder tail = createVideoTranscoder(mDataSink);
+            tail.setUp(createEncoderFormat(mInputFormat, mRotation));
+            mTail = tail;
+        }
+    }
+
+    @NonNull
+    private VideoTrackTranscoder createVideoTranscoder(@NonNull DataSink sink) {
+        VideoTrackTranscoder transcoder = new VideoTrackTranscoder(mDataSource, sink,
+                mTimeInterpolator, mRotation);
+        if (mWorkSignal != null) transcoder.setAsynchronous(mWorkSignal);
+        if (mMetrics != null) transcoder.setMetrics(mMetrics);
+        if (mCodecPool != null) transcoder.setCodecPool(mCodecPool);
+        return transcoder;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return mTail != null && mTail.isFinished();
+    }
+
+    @Override
+    public void release() {
+        if (mHead != null) {
+            mHead.release();
+            mHead = null;
+        }
+        if (mTail != null) {
+            mTail.release();
+            mTail = null;
+        }
+    }
+
+    @NonNull
+    private MediaFormat createEncoderFormat(@NonNull MediaFormat input, int rotation) {
+        // VideoTrackTranscoder flips the size according to the rotation, so flip it here too.
+        int width = input.getInteger(MediaFormat.KEY_WIDTH);
+        int height = input.getInteger(MediaFormat.KEY_HEIGHT);
+        boolean flip = (rotation % 180) != 0;
+        int frameRate = input.containsKey(MediaFormat.KEY_FRAME_RATE)
+                ? input.getInteger(MediaFormat.KEY_FRAME_RATE) : DEFAULT_FRAME_RATE;
+        MediaFormat format = new MediaFormat();
+        format.setString(MediaFormat.KEY_MIME, input.getString(MediaFormat.KEY_MIME));
+        format.setInteger(MediaFormat.KEY_WIDTH, flip ? height : width);
+        format.setInteger(MediaFormat.KEY_HEIGHT, flip ? width : height);
+        format.setInteger(MediaFormatConstants.KEY_ROTATION_DEGREES, 0);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, input.containsKey(MediaFormat.KEY_BIT_RATE)
+                ? input.getInteger(MediaFormat.KEY_BIT_RATE)
+                : (int) BitRates.estimateVideoBitRate(width, height, frameRate));
+        // Ask for the input profile, so that we have a chance to produce the same SPS.
+        if (Build.VERSION.SDK_INT >= 21 && input.containsKey(MediaFormatConstants.KEY_AVC_SPS)
+                && MediaFormatConstants.MIMETYPE_VIDEO_AVC.equals(input.getString(MediaFormat.KEY_MIME))) {
+            int profile = getAvcProfile(AvcSpsUtils.getProfileIdc(AvcCsdUtils.getSpsBuffer(input)));
+            if (profile > 0) format.setInteger(MediaFormatConstants.KEY_PROFILE, profile);
+        }
+        return format;
+    }
+
+    private static int getAvcProfile(byte profileIdc) {
+        switch (profileIdc) {
+            case AvcSpsUtils.PROFILE_IDC_BASELINE: return MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline;
+            case AvcSpsUtils.PROFILE_IDC_EXTENDED: return MediaCodecInfo.CodecProfileLevel.AVCProfileExtended;
+            case AvcSpsUtils.PROFILE_IDC_MAIN: return MediaCodecInfo.CodecProfileLevel.AVCProfileMain;
+            case AvcSpsUtils.PROFILE_IDC_HIGH: return MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+            default: return 0;
+        }
+    }
+
+    /**
+     * Wraps the source and, during the head phase, reports it as drained as soon as
+     * the first sync frame after the cut is found. That sample is held until the tail
+     * phase starts, so that it can be copied instead of being encoded.
+     */
+    private static class GopDataSource extends DataSourceWrapper {
+
+        private final long mCutStartUs;
+        private final Chunk mHeldChunk = new Chunk();
+        private boolean mHasHeld;
+        private boolean mHeadComplete;
+        private boolean mTail;
+
+        GopDataSource(@NonNull DataSource source, @NonNull MediaFormat format, long cutStartUs) {
+            super(source);
+            mCutStartUs = cutStartUs;
+            int size;
+            if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                size = format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+            } else {
+                int pixels = format.getInteger(MediaFormat.KEY_WIDTH)
+                        * format.getInteger(MediaFormat.KEY_HEIGHT);
+                size = pixels * RAW_FRAME_HALF_BYTES_PER_PIXEL / 2;
+            }
+            mHeldChunk.buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+
+        boolean isHeadComplete() {
+            return mHeadComplete;
+        }
+
+        void startTail() {
+            mTail = true;
+        }
+
+        @Override
+        public boolean canReadTrack(@NonNull TrackType type) {
+            if (!mHasHeld) {
+                if (!super.canReadTrack(type)) return false;
+                mHeldChunk.buffer.clear();
+                super.readTrack(mHeldChunk);
+                mHasHeld = true;
+                if (!mTail && mHeldChunk.isKeyFrame && mHeldChunk.timestampUs >= mCutStartUs) {
+                    mHeadComplete = true;
+                }
+            }
+            return mTail || !mHeadComplete;
+        }
+
+        @Override
+        public void readTrack(@NonNull Chunk chunk) {
+            ByteBuffer held = mHeldChunk.buffer;
+            held.position(0);
+            held.limit(mHeldChunk.bytes);
+            chunk.buffer.clear();
+            chunk.buffer.put(held);
+            chunk.buffer.position(0);
+            chunk.buffer.limit(mHeldChunk.bytes);
+            chunk.bytes = mHeldChunk.bytes;
+            chunk.isKeyFrame = mHeldChunk.isKeyFrame;
+            chunk.timestampUs = mHeldChunk.timestampUs;
+            mHasHeld = false;
+        }
+
+        @Override
+        public boolean isDrained() {
+            if (!mTail && mHeadComplete) return true;
+            return !mHasHeld && super.isDrained();
+        }
+    }
+
+    /**
+     * Wraps the sink during the head phase. The encoder end of stream is not forwarded,
+     * since more samples will follow, and the output format is recorded so that we can
+     * check it against the input format.
+     */
+    private static class HeadDataSink implements DataSink {
+
+        private final DataSink mSink;
+        private MediaFormat mFormat;
+
+        HeadDataSink(@NonNull DataSink sink) {
+            mSink = sink;
+        }
+
+        @Nullable
+        MediaFormat getFormat() {
+            return mFormat;
+        }
+
+        @Override
+        public void setOrientation(int orientation) {
+            mSink.setOrientation(orientation);
+        }
+
+        @Override
+        public void setLocation(double latitude, double longitude) {
+            mSink.setLocation(latitude, longitude);
+        }
+
+        @Override
+        public void setTrackStatus(@NonNull TrackType type, @NonNull TrackStatus status) {
+            mSink.setTrackStatus(type, status);
+        }
+
+        @Override
+        public void setTrackFormat(@NonNull TrackType type, @NonNull MediaFormat format) {
+            mFormat = format;
+            mSink.setTrackFormat(type, format);
+        }
+
+        @Override
+        public void writeTrack(@NonNull TrackType type,
+                               @NonNull ByteBuffer byteBuffer,
+                               @NonNull MediaCodec.BufferInfo bufferInfo) {
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) return;
+            mSink.writeTrack(type, byteBuffer, bufferInfo);
+        }
+
+        @Override
+        public void stop() {
+            mSink.stop();
+        }
+
+        @Override
+        public void release() {
+            mSink.release();
+        }
+    }
+}
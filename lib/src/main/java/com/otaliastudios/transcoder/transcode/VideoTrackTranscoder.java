@@ -21,6 +21,8 @@ import android.media.MediaFormat;
 
 import androidx.annotation.NonNull;
 
+import com.otaliastudios.opengl.core.EglCore;
+
 import com.otaliastudios.transcoder.engine.TrackType;
 import com.otaliastudios.transcoder.internal.MediaCodecBuffers;
 import com.otaliastudios.transcoder.sink.DataSink;
@@ -30,6 +32,7 @@ import com.otaliastudios.transcoder.transcode.internal.VideoDecoderOutput;
 import com.otaliastudios.transcoder.transcode.internal.VideoEncoderInput;
 import com.otaliastudios.transcoder.internal.Logger;
 import com.otaliastudios.transcoder.internal.MediaFormatConstants;
+import com.otaliastudios.transcoder.internal.MetricsCollector;
 import com.otaliastudios.transcoder.transcode.internal.VideoFrameDropper;
 
 import java.nio.ByteBuffer;
@@ -48,6 +51,8 @@ public class VideoTrackTranscoder extends BaseTrackTranscoder {
     private final TimeInterpolator mTimeInterpolator;
     private final int mSourceRotation;
     private final int mExtraRotation;
+    private long mRenderStartUs = Long.MIN_VALUE;
+    private long mResumeUs = Long.MIN_VALUE;
 
     public VideoTrackTranscoder(
             @NonNull DataSource dataSource,
@@ -60,6 +65,18 @@ public class VideoTrackTranscoder extends BaseTrackTranscoder {
         mExtraRotation = rotation;
     }
 
+    /**
+     * Frames whose presentation time is before this value are decoded, because
+     * the following frames might depend on them, but are not rendered into the encoder.
+     * This is used for frame-accurate trimming, see
+     * {@link com.otaliastudios.transcoder.source.TrimDataSource#getCutStartUs()}.
+     *
+     * @param renderStartUs the first timestamp to be rendered
+     */
+    public void setRenderStartUs(long renderStartUs) {
+        mRenderStartUs = renderStartUs;
+    }
+
     @Override
     protected void onConfigureEncoder(@NonNull MediaFormat format, @NonNull MediaCodec encoder) {
         // Flip the width and height as needed. This means rotating the VideoStrategy rotation
@@ -76,10 +93,45 @@ public class VideoTrackTranscoder extends BaseTrackTranscoder {
 
     @Override
     protected void onStartEncoder(@NonNull MediaFormat format, @NonNull MediaCodec encoder) {
-        mEncoderInputSurface = new VideoEncoderInput(encoder.createInputSurface());
+        // When codecs are pooled, the EGL context can also be reused.
+        EglCore eglCore = getCodecPool() != null ? getCodecPool().obtainEglCore() : null;
+        mEncoderInputSurface = eglCore != null
+                ? new VideoEncoderInput(eglCore, encoder.createInputSurface())
+                : new VideoEncoderInput(encoder.createInputSurface());
         super.onStartEncoder(format, encoder);
     }
 
+    /**
+     * Video samples before the resume timestamp can not be skipped, because they might
+     * be needed to decode the next ones. Instead, they are decoded and not rendered.
+     * @param timestampUs the first timestamp to be transcoded, in the source timebase
+     */
+    @Override
+    public void setResumeTimestampUs(long timestampUs) {
+        mResumeUs = timestampUs;
+        mRenderStartUs = Math.max(mRenderStartUs, timestampUs);
+    }
+
+    @Override
+    public long getResumeTimestampUs() {
+        return mResumeUs;
+    }
+
+    @Override
+    protected void onDetachEncoder(@NonNull ActiveEncoder encoder) {
+        super.onDetachEncoder(encoder);
+        encoder.mInputSurface = mEncoderInputSurface;
+        mEncoderInputSurface = null;
+    }
+
+    @Override
+    protected void onAttachEncoder(@NonNull ActiveEncoder encoder) {
+        super.onAttachEncoder(encoder);
+        // The EGL surface is still current, so the decoder output can be created.
+        mEncoderInputSurface = encoder.mInputSurface;
+        encoder.mInputSurface = null;
+    }
+
     @Override
     protected void onConfigureDecoder(@NonNull MediaFormat format, @NonNull MediaCodec decoder) {
         // Just a sanity check that the rotation coming from DataSource is not different from
@@ -156,16 +208,22 @@ public class VideoTrackTranscoder extends BaseTrackTranscoder {
     @Override
     protected void onDrainDecoder(@NonNull MediaCodec decoder, int bufferIndex, @NonNull ByteBuffer bufferData, long presentationTimeUs, boolean endOfStream) {
         if (endOfStream) {
-            mEncoder.signalEndOfInputStream();
+            // When handing off, the next transcoder keeps feeding the encoder.
+            if (!isEncoderHandOff()) mEncoder.signalEndOfInputStream();
+            decoder.releaseOutputBuffer(bufferIndex, false);
+        } else if (presentationTimeUs < mRenderStartUs) {
             decoder.releaseOutputBuffer(bufferIndex, false);
         } else {
             long interpolatedTimeUs = mTimeInterpolator.interpolate(TrackType.VIDEO, presentationTimeUs);
+            MetricsCollector metrics = getMetrics();
             if (mFrameDropper.shouldRenderFrame(interpolatedTimeUs)) {
                 decoder.releaseOutputBuffer(bufferIndex, true);
                 mDecoderOutputSurface.drawFrame();
                 mEncoderInputSurface.onFrame(interpolatedTimeUs);
+                if (metrics != null) metrics.addRenderedVideoFrame();
             } else {
                 decoder.releaseOutputBuffer(bufferIndex, false);
+                if (metrics != null) metrics.addDroppedVideoFrame();
             }
         }
     }
@@ -1,10 +1,12 @@
 package com.otaliastudios.transcoder.transcode.internal;
 
+import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
 
 class AudioBuffer {
     int decoderBufferIndex = -1;
     long decoderTimestampUs = 0;
     ShortBuffer decoderData = null;
+    FloatBuffer decoderFloatData = null;
     boolean isEndOfStream = false;
 }
@@ -24,6 +24,10 @@ class AudioConversions {
         return (int) Math.ceil((double) us * byteRate / MICROSECONDS_PER_SECOND);
     }
 
+    static long samplesToUs(int samples, int sampleRate, int channels) {
+        return MICROSECONDS_PER_SECOND * samples / ((long) sampleRate * channels);
+    }
+
     static long shortsToUs(int shorts, int sampleRate, int channels) {
         return bytesToUs(shorts * BYTES_PER_SHORT, sampleRate, channels);
     }
@@ -8,15 +8,24 @@ import androidx.annotation.NonNull;
 import com.otaliastudios.transcoder.engine.TrackType;
 import com.otaliastudios.transcoder.internal.Logger;
 import com.otaliastudios.transcoder.internal.MediaCodecBuffers;
+import com.otaliastudios.transcoder.internal.MediaFormatConstants;
+import com.otaliastudios.transcoder.internal.MetricsCollector;
 import com.otaliastudios.transcoder.remix.AudioRemixer;
+import com.otaliastudios.transcoder.remix.MatrixAudioRemixer;
 import com.otaliastudios.transcoder.resample.AudioResampler;
-import com.otaliastudios.transcoder.resample.DefaultAudioResampler;
+import com.otaliastudios.transcoder.resample.FloatAudioResampler;
+import com.otaliastudios.transcoder.resample.FlushableAudioResampler;
+import com.otaliastudios.transcoder.resample.StatefulAudioResampler;
 import com.otaliastudios.transcoder.stretch.AudioStretcher;
+import com.otaliastudios.transcoder.stretch.DrainableAudioStretcher;
+import com.otaliastudios.transcoder.stretch.FloatAudioStretcher;
+import com.otaliastudios.transcoder.stretch.PassThroughAudioStretcher;
+import com.otaliastudios.transcoder.stretch.StatefulAudioStretcher;
 import com.otaliastudios.transcoder.time.TimeInterpolator;
 
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
 import java.util.ArrayDeque;
 import java.util.Queue;
@@ -25,12 +34,21 @@ import java.util.Queue;
  * Channel of raw audio from decoder to encoder.
  * Performs the necessary conversion between different input & output audio formats.
  *
- * We currently support upmixing from mono to stereo & downmixing from stereo to mono.
- * Sample rate conversion is not supported yet.
+ * Channels are remixed between any count from 1 to 8: mono and stereo are converted with
+ * {@link AudioRemixer#UPMIX} and {@link AudioRemixer#DOWNMIX}, other counts with a
+ * {@link MatrixAudioRemixer}. Sample rate conversion is performed by the {@link AudioResampler}.
+ *
+ * Decoders can output float samples (see {@link MediaFormatConstants#KEY_PCM_ENCODING}).
+ * In this case, if the stretcher and resampler support it, the whole chain works on floats
+ * and samples are only converted to 16-bit once, when they are written to the encoder.
+ * Otherwise, they are converted when they are read from the decoder.
  */
 public class AudioEngine {
 
     private static final int BYTES_PER_SHORT = 2;
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int VIEW_CACHE_SIZE = 32;
+    private static final int MAX_CHANNELS = 8;
 
     private static final String TAG = AudioEngine.class.getSimpleName();
     private static final Logger LOG = new Logger(TAG);
@@ -42,15 +60,37 @@ public class AudioEngine {
     private final int mDecoderSampleRate;
     private final int mEncoderSampleRate;
     private final int mDecoderChannels;
-    @SuppressWarnings("FieldCanBeLocal") private final int mEncoderChannels;
+    private final int mEncoderChannels;
     private final AudioRemixer mRemixer;
+    private final boolean mDecoderFloat;
+    private final boolean mFloatChain;
+    private final MatrixAudioRemixer mFloatRemixer;
     private final AudioResampler mResampler;
     private final AudioStretcher mStretcher;
+    private final FloatAudioResampler mFloatResampler;
+    private final FlushableAudioResampler mFlushableResampler;
+    private final FloatAudioStretcher mFloatStretcher;
+    private final DrainableAudioStretcher mDrainableStretcher;
+    private final boolean mSkipsEqualStretch;
     private final TimeInterpolator mTimeInterpolator;
+    private MetricsCollector mMetrics;
+    private boolean mSignalEndOfStream = true;
+    private boolean mEndOfStreamConsumed;
     private long mLastDecoderUs = Long.MIN_VALUE;
     private long mLastEncoderUs = Long.MIN_VALUE;
-    private ShortBuffer mTempBuffer1;
-    private ShortBuffer mTempBuffer2;
+    private long mNextEncoderUs;
+    private int mHeldSamples; // stretched samples that the stretcher did not write yet
+    private final WorkBuffer mInputBuffer = new WorkBuffer();
+    private final WorkBuffer mStretchBuffer = new WorkBuffer();
+    private final WorkBuffer mRemixBuffer = new WorkBuffer();
+    private final FloatWorkBuffer mFloatInputBuffer = new FloatWorkBuffer();
+    private final FloatWorkBuffer mFloatStretchBuffer = new FloatWorkBuffer();
+    private final FloatWorkBuffer mFloatRemixBuffer = new FloatWorkBuffer();
+    private final FloatWorkBuffer mFloatOutputBuffer = new FloatWorkBuffer();
+    private short[] mOutputShorts = new short[0];
+    private final ByteBuffer[] mViewSources = new ByteBuffer[VIEW_CACHE_SIZE];
+    private final Buffer[] mViews = new Buffer[VIEW_CACHE_SIZE];
+    private int mNextView;
 
     /**
      * The AudioEngine should be created when we know the actual decoded format,
@@ -79,30 +119,92 @@ public class AudioEngine {
         // Check channel count.
         mEncoderChannels = encoderOutputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
         mDecoderChannels = decoderOutputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-        if (mEncoderChannels != 1 && mEncoderChannels != 2) {
+        if (mEncoderChannels < 1 || mEncoderChannels > MAX_CHANNELS) {
             throw new UnsupportedOperationException("Output channel count (" + mEncoderChannels + ") not supported.");
         }
-        if (mDecoderChannels != 1 && mDecoderChannels != 2) {
+        if (mDecoderChannels < 1 || mDecoderChannels > MAX_CHANNELS) {
             throw new UnsupportedOperationException("Input channel count (" + mDecoderChannels + ") not supported.");
         }
 
         // Create remixer, stretcher and resampler.
-        if (mDecoderChannels > mEncoderChannels) {
+        if (mDecoderChannels == mEncoderChannels) {
+            mRemixer = AudioRemixer.PASSTHROUGH;
+        } else if (mDecoderChannels == 2 && mEncoderChannels == 1) {
             mRemixer = AudioRemixer.DOWNMIX;
-        } else if (mDecoderChannels < mEncoderChannels) {
+        } else if (mDecoderChannels == 1 && mEncoderChannels == 2) {
             mRemixer = AudioRemixer.UPMIX;
         } else {
-            mRemixer = AudioRemixer.PASSTHROUGH;
+            mRemixer = new MatrixAudioRemixer(mDecoderChannels, mEncoderChannels);
         }
-        mStretcher = audioStretcher;
-        mResampler = audioResampler;
+        // Stateful stretchers and resamplers get an instance for this stream only,
+        // so that they do not share samples with other streams.
+        mStretcher = audioStretcher instanceof StatefulAudioStretcher
+                ? ((StatefulAudioStretcher) audioStretcher).newInstance()
+                : audioStretcher;
+        mResampler = audioResampler instanceof StatefulAudioResampler
+                ? ((StatefulAudioResampler) audioResampler).newInstance()
+                : audioResampler;
+        mFloatStretcher = mStretcher instanceof FloatAudioStretcher
+                ? (FloatAudioStretcher) mStretcher : null;
+        mDrainableStretcher = mStretcher instanceof DrainableAudioStretcher
+                ? (DrainableAudioStretcher) mStretcher : null;
+        mFloatResampler = mResampler instanceof FloatAudioResampler
+                ? (FloatAudioResampler) mResampler : null;
+        mFlushableResampler = mResampler instanceof FlushableAudioResampler
+                ? (FlushableAudioResampler) mResampler : null;
+        mSkipsEqualStretch = mDrainableStretcher != null
+                || mStretcher instanceof PassThroughAudioStretcher;
+
+        // Check sample encoding. If floats can go through the whole chain, the remixer
+        // is applied with a matrix, since the standard ones only work on shorts.
+        mDecoderFloat = decoderOutputFormat.containsKey(MediaFormatConstants.KEY_PCM_ENCODING)
+                && decoderOutputFormat.getInteger(MediaFormatConstants.KEY_PCM_ENCODING)
+                == MediaFormatConstants.ENCODING_PCM_FLOAT;
+        mFloatChain = mDecoderFloat && mFloatStretcher != null && mFloatResampler != null;
+        if (!mFloatChain || mDecoderChannels == mEncoderChannels) {
+            mFloatRemixer = null;
+        } else if (mDecoderChannels == 1 && mEncoderChannels == 2) {
+            mFloatRemixer = new MatrixAudioRemixer(1, 2, new float[]{1F, 1F});
+        } else {
+            mFloatRemixer = new MatrixAudioRemixer(mDecoderChannels, mEncoderChannels);
+        }
+        LOG.info("Decoder output is %s, processing as %s.",
+                mDecoderFloat ? "float" : "16-bit",
+                mFloatChain ? "float" : "16-bit");
+    }
+
+    /**
+     * Sets a collector for stalls and overflows.
+     * @param metrics a collector
+     */
+    public void setMetrics(@NonNull MetricsCollector metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Whether the end of stream should be passed to the encoder. If false, the end of stream
+     * is consumed without using an encoder buffer, see {@link #isEndOfStreamConsumed()}.
+     * Defaults to true.
+     * @param signal true to signal the end of stream
+     */
+    public void setSignalEndOfStream(boolean signal) {
+        mSignalEndOfStream = signal;
+    }
+
+    /**
+     * Returns true if all buffers were processed and the end of stream was
+     * consumed without passing it to the encoder.
+     * @return true if consumed
+     */
+    public boolean isEndOfStreamConsumed() {
+        return mEndOfStreamConsumed;
     }
 
     /**
      * Returns true if we have raw buffers to be processed.
      * @return true if we have
      */
-    private boolean hasPendingBuffers() {
+    public boolean hasPendingBuffers() {
         return !mPendingBuffers.isEmpty();
     }
 
@@ -125,7 +227,8 @@ public class AudioEngine {
         if (buffer == null) buffer = new AudioBuffer();
         buffer.decoderBufferIndex = bufferIndex;
         buffer.decoderTimestampUs = endOfStream ? 0 : presentationTimeUs;
-        buffer.decoderData = endOfStream ? null : bufferData.asShortBuffer();
+        buffer.decoderData = endOfStream || mDecoderFloat ? null : asShortBuffer(bufferData);
+        buffer.decoderFloatData = endOfStream || !mDecoderFloat ? null : asFloatBuffer(bufferData);
         buffer.isEndOfStream = endOfStream;
         mPendingBuffers.add(buffer);
     }
@@ -141,19 +244,35 @@ public class AudioEngine {
     public boolean feedEncoder(@NonNull MediaCodecBuffers encoderBuffers, long timeoutUs) {
         if (!hasPendingBuffers()) return false;
 
+        // If the encoder will be used by someone else, do not waste an encoder buffer on EOS.
+        // Samples that are still held by the stretcher or resampler must be written first, though.
+        //noinspection ConstantConditions
+        if (!mSignalEndOfStream && mPendingBuffers.peek().isEndOfStream && !hasPendingSamples()) {
+            mEmptyBuffers.add(mPendingBuffers.remove());
+            mEndOfStreamConsumed = true;
+            return false;
+        }
+
         // First of all, see if encoder has buffers that we can write into.
         // If we don't have an output buffer, there's nothing we can do.
-        final int encoderBufferIndex = mEncoder.dequeueInputBuffer(timeoutUs);
-        if (encoderBufferIndex < 0) return false;
-        ShortBuffer encoderBuffer = encoderBuffers.getInputBuffer(encoderBufferIndex).asShortBuffer();
+        final int encoderBufferIndex = encoderBuffers.dequeueInputBuffer(timeoutUs);
+        if (encoderBufferIndex < 0) {
+            if (mMetrics != null) mMetrics.addEncoderStall(TrackType.AUDIO);
+            return false;
+        }
+        ShortBuffer encoderBuffer = asShortBuffer(encoderBuffers.getInputBuffer(encoderBufferIndex));
         encoderBuffer.clear();
 
         // Get the latest raw buffer to be processed.
         AudioBuffer buffer = mPendingBuffers.peek();
 
-        // When endOfStream, just signal EOS and return false.
+        // When endOfStream, write the pending samples, if any. Then signal EOS and return false.
         //noinspection ConstantConditions
         if (buffer.isEndOfStream) {
+            if (hasPendingSamples()) {
+                drainPendingSamples(encoderBuffer, encoderBufferIndex);
+                return true;
+            }
             mEncoder.queueInputBuffer(encoderBufferIndex,
                     0,
                     0,
@@ -208,7 +327,8 @@ public class AudioEngine {
     private boolean process(@NonNull AudioBuffer buffer, @NonNull ShortBuffer encoderBuffer, int encoderBufferIndex) {
         // Only process the amount of data that can fill in the encoderBuffer.
         final int outputSize = encoderBuffer.remaining();
-        final int totalInputSize = buffer.decoderData.remaining();
+        final Buffer decoderData = mDecoderFloat ? buffer.decoderFloatData : buffer.decoderData;
+        final int totalInputSize = decoderData.remaining();
         int processedTotalInputSize = totalInputSize;
 
         // 1. Perform TimeInterpolator computation
@@ -222,11 +342,11 @@ public class AudioEngine {
         long encoderDurationUs = encoderUs - mLastEncoderUs;
         mLastDecoderUs = buffer.decoderTimestampUs;
         mLastEncoderUs = encoderUs;
-        double stretchFactor = (double) encoderDurationUs / decoderDurationUs;
-        LOG.i("process - time stretching -" +
-                " decoderDurationUs:" + decoderDurationUs +
-                " encoderDeltaUs:" + encoderDurationUs +
-                " stretchFactor:" + stretchFactor);
+        // The first buffer has no duration to compare with. Do not stretch it, or we would
+        // get a NaN factor and switch to the stretcher for the whole stream.
+        double stretchFactor = decoderDurationUs > 0
+                ? (double) encoderDurationUs / decoderDurationUs
+                : 1D;
         processedTotalInputSize = (int) Math.ceil(processedTotalInputSize * stretchFactor);
 
         // 2. Ask remixers how much space they need for the given input
@@ -245,72 +365,328 @@ public class AudioEngine {
             // Compute the input size that matches this output size.
             double ratio = (double) processedTotalInputSize / totalInputSize; // > 1
             overflowReduction = totalInputSize - (int) Math.floor((double) outputSize / ratio);
-            LOG.w("process - overflowing! Reduction:" + overflowReduction);
-            buffer.decoderData.limit(buffer.decoderData.limit() - overflowReduction);
+            if (LOG.isEnabled(Logger.LEVEL_VERBOSE)) {
+                LOG.v("process - overflowing! Reduction:" + overflowReduction);
+            }
+            if (mMetrics != null) mMetrics.addAudioOverflow();
+            decoderData.limit(decoderData.limit() - overflowReduction);
+        }
+        final int inputSize = decoderData.remaining();
+
+        // The stretcher writes the samples it was holding first, so they take the place of
+        // the ones it is holding now. Move the timestamp back by that amount.
+        long presentationUs = encoderUs - AudioConversions.samplesToUs(mHeldSamples,
+                mDecoderSampleRate, mDecoderChannels);
+
+        // 5. Copy the input into our working set. This is the only copy: the following
+        // stages work on heap buffers backed by arrays, and are skipped if they do nothing.
+        // Float input is converted here, unless the whole chain can work on floats.
+        int stretchedSize = (int) Math.ceil(inputSize * stretchFactor);
+        if (mFloatChain) {
+            float[] input = mFloatInputBuffer.prepare(inputSize);
+            buffer.decoderFloatData.get(input, 0, inputSize);
+            processFloats(input, inputSize, stretchedSize, encoderBuffer);
+        } else {
+            ShortBuffer input = mInputBuffer.prepare(inputSize);
+            if (mDecoderFloat) {
+                float[] floats = mFloatInputBuffer.prepare(inputSize);
+                buffer.decoderFloatData.get(floats, 0, inputSize);
+                short[] shorts = input.array();
+                for (int i = 0; i < inputSize; i++) {
+                    shorts[i] = toShort(floats[i]);
+                }
+            } else {
+                buffer.decoderData.get(input.array(), 0, inputSize);
+            }
+            processShorts(input, inputSize, stretchedSize, encoderBuffer);
         }
-        final int inputSize = buffer.decoderData.remaining();
-        LOG.i("process - totalInputSize:" + totalInputSize +
-                " processedTotalInputSize:" + processedTotalInputSize +
-                " outputSize:" + outputSize +
-                " inputSize:" + inputSize);
-
-        // 5. Do the stretching. We need a bridge buffer for its output.
-        ensureTempBuffer1((int) Math.ceil(inputSize * stretchFactor));
-        mStretcher.stretch(buffer.decoderData, mTempBuffer1, mDecoderChannels);
-        mTempBuffer1.rewind();
-
-        // 6. Do the actual remixing.
-        ensureTempBuffer2(mRemixer.getRemixedSize((int) Math.ceil(inputSize * stretchFactor)));
-        mRemixer.remix(mTempBuffer1, mTempBuffer2);
-        mTempBuffer2.rewind();
-
-        // 7. Do the actual resampling.
-        mResampler.resample(mTempBuffer2, mDecoderSampleRate, encoderBuffer, mEncoderSampleRate,
-                mDecoderChannels);
-
-        // 8. Add the bytes we have processed to the decoderTimestampUs, and restore the limit.
+
+        // 9. Add the bytes we have processed to the decoderTimestampUs, and restore the limit.
         // We need an updated timestamp for the next cycle, since we will cycle on the same input
         // buffer that has overflown.
         if (overflow) {
-            buffer.decoderTimestampUs += AudioConversions.shortsToUs(inputSize, mDecoderSampleRate,
+            buffer.decoderTimestampUs += AudioConversions.samplesToUs(inputSize, mDecoderSampleRate,
                     mDecoderChannels);
-            buffer.decoderData.limit(buffer.decoderData.limit() + overflowReduction);
+            decoderData.limit(decoderData.limit() + overflowReduction);
         }
 
-        // 9. Write the buffer.
+        // 10. Write the buffer.
         // This is the encoder buffer: we have likely written it all, but let's use
         // encoderBuffer.position() to know how much anyway.
         mEncoder.queueInputBuffer(encoderBufferIndex,
                 0,
                 encoderBuffer.position() * BYTES_PER_SHORT,
-                encoderUs,
+                presentationUs,
                 0
         );
+        mNextEncoderUs = presentationUs + AudioConversions.samplesToUs(encoderBuffer.position(),
+                mEncoderSampleRate, mEncoderChannels);
 
         return overflow;
     }
 
-    private void ensureTempBuffer1(int desiredSize) {
-        LOG.w("ensureTempBuffer1 - desiredSize:" + desiredSize);
-        if (mTempBuffer1 == null || mTempBuffer1.capacity() < desiredSize) {
-            LOG.w("ensureTempBuffer1 - creating new buffer.");
-            mTempBuffer1 = ByteBuffer.allocateDirect(desiredSize * BYTES_PER_SHORT)
-                    .order(ByteOrder.nativeOrder())
-                    .asShortBuffer();
+    /**
+     * Whether the stretcher or the resampler hold samples that were not written yet.
+     * This happens at the end of stream, since both need input samples after the
+     * ones that they output.
+     */
+    private boolean hasPendingSamples() {
+        return isStretcherActive()
+                || (mFlushableResampler != null && mFlushableResampler.hasPendingSamples());
+    }
+
+    private boolean isStretcherActive() {
+        return mDrainableStretcher != null && mDrainableStretcher.isActive();
+    }
+
+    /**
+     * Writes the samples that are still held by the stretcher or the resampler into
+     * the encoder buffer, right after the last samples, then releases it.
+     * The stretcher is drained first: its samples still go through the remixer and
+     * the resampler, which is flushed when the stretcher is done.
+     *
+     * @param encoderBuffer coming from encoder. At this point this is in a cleared state
+     * @param encoderBufferIndex the index of encoderBuffer so we can release it
+     */
+    private void drainPendingSamples(@NonNull ShortBuffer encoderBuffer, int encoderBufferIndex) {
+        if (isStretcherActive()) {
+            // Only take what fits into the encoder buffer after resampling.
+            long frames = (long) (encoderBuffer.remaining() / mEncoderChannels)
+                    * mDecoderSampleRate / mEncoderSampleRate;
+            int size = (int) frames * mDecoderChannels;
+            if (mFloatChain) {
+                float[] stretched = mFloatStretchBuffer.prepare(size);
+                int stretchedSize = mDrainableStretcher.drain(stretched, 0, size);
+                remixAndResampleFloats(stretched, stretchedSize, encoderBuffer);
+            } else {
+                ShortBuffer stretched = mStretchBuffer.prepare(size);
+                mDrainableStretcher.drain(stretched);
+                stretched.flip();
+                remixAndResampleShorts(stretched, stretched.remaining(), encoderBuffer);
+            }
+        } else if (mFloatChain) {
+            int capacity = encoderBuffer.remaining() / mEncoderChannels * mEncoderChannels;
+            float[] output = mFloatOutputBuffer.prepare(capacity);
+            int outputSize = mFlushableResampler.flush(output, 0, capacity);
+            putFloats(output, outputSize, encoderBuffer);
+        } else {
+            mFlushableResampler.flush(encoderBuffer);
+        }
+        mEncoder.queueInputBuffer(encoderBufferIndex,
+                0,
+                encoderBuffer.position() * BYTES_PER_SHORT,
+                mNextEncoderUs,
+                0
+        );
+        mNextEncoderUs += AudioConversions.samplesToUs(encoderBuffer.position(),
+                mEncoderSampleRate, mEncoderChannels);
+    }
+
+    /**
+     * Performs steps 6, 7 and 8 of {@link #process(AudioBuffer, ShortBuffer, int)} on shorts.
+     */
+    private void processShorts(@NonNull ShortBuffer input, int inputSize, int stretchedSize,
+                               @NonNull ShortBuffer encoderBuffer) {
+        // 6. Do the stretching.
+        ShortBuffer stretched;
+        if (stretchedSize == inputSize && canSkipStretcher()) {
+            stretched = input;
+        } else {
+            stretched = mStretchBuffer.prepare(stretchedSize);
+            mStretcher.stretch(input, stretched, mDecoderChannels);
+            stretched.flip();
+            mHeldSamples += stretchedSize - stretched.remaining();
+        }
+        remixAndResampleShorts(stretched, stretched.remaining(), encoderBuffer);
+    }
+
+    /**
+     * Performs steps 7 and 8 of {@link #process(AudioBuffer, ShortBuffer, int)} on shorts.
+     */
+    private void remixAndResampleShorts(@NonNull ShortBuffer stretched, int stretchedSize,
+                                        @NonNull ShortBuffer encoderBuffer) {
+        // 7. Do the actual remixing.
+        ShortBuffer remixed;
+        if (mRemixer == AudioRemixer.PASSTHROUGH) {
+            remixed = stretched;
+        } else {
+            remixed = mRemixBuffer.prepare(mRemixer.getRemixedSize(stretchedSize));
+            mRemixer.remix(stretched, remixed);
+            remixed.rewind();
+        }
+
+        // 8. Do the actual resampling. After remixing, we have the encoder channels.
+        mResampler.resample(remixed, mDecoderSampleRate, encoderBuffer, mEncoderSampleRate,
+                mEncoderChannels);
+    }
+
+    /**
+     * Performs steps 6, 7 and 8 of {@link #process(AudioBuffer, ShortBuffer, int)} on floats.
+     * Samples are converted to shorts only at the end, when writing into the encoder buffer.
+     */
+    private void processFloats(@NonNull float[] input, int inputSize, int stretchedSize,
+                               @NonNull ShortBuffer encoderBuffer) {
+        // 6. Do the stretching.
+        float[] stretched;
+        if (stretchedSize == inputSize && canSkipStretcher()) {
+            stretched = input;
+        } else {
+            stretched = mFloatStretchBuffer.prepare(stretchedSize);
+            int written = mFloatStretcher.stretch(input, 0, inputSize,
+                    stretched, 0, stretchedSize, mDecoderChannels);
+            mHeldSamples += stretchedSize - written;
+            stretchedSize = written;
         }
-        mTempBuffer1.clear();
-        mTempBuffer1.limit(desiredSize);
+        remixAndResampleFloats(stretched, stretchedSize, encoderBuffer);
     }
 
-    private void ensureTempBuffer2(int desiredSize) {
-        LOG.w("ensureTempBuffer2 - desiredSize:" + desiredSize);
-        if (mTempBuffer2 == null || mTempBuffer2.capacity() < desiredSize) {
-            LOG.w("ensureTempBuffer2 - creating new buffer.");
-            mTempBuffer2 = ByteBuffer.allocateDirect(desiredSize * BYTES_PER_SHORT)
-                    .order(ByteOrder.nativeOrder())
-                    .asShortBuffer();
+    /**
+     * Performs steps 7 and 8 of {@link #process(AudioBuffer, ShortBuffer, int)} on floats.
+     */
+    private void remixAndResampleFloats(@NonNull float[] stretched, int stretchedSize,
+                                        @NonNull ShortBuffer encoderBuffer) {
+        // 7. Do the actual remixing.
+        float[] remixed;
+        int remixedSize;
+        if (mFloatRemixer == null) {
+            remixed = stretched;
+            remixedSize = stretchedSize;
+        } else {
+            remixedSize = mFloatRemixer.getRemixedSize(stretchedSize);
+            remixed = mFloatRemixBuffer.prepare(remixedSize);
+            mFloatRemixer.remix(stretched, 0, stretchedSize, remixed, 0);
+        }
+
+        // 8. Do the actual resampling, then convert and write into the encoder buffer.
+        int capacity = encoderBuffer.remaining() / mEncoderChannels * mEncoderChannels;
+        float[] output = mFloatOutputBuffer.prepare(capacity);
+        int outputSize = mFloatResampler.resample(remixed, 0, remixedSize,
+                mDecoderSampleRate, output, 0, capacity, mEncoderSampleRate, mEncoderChannels);
+        putFloats(output, outputSize, encoderBuffer);
+    }
+
+    /**
+     * Converts float samples to shorts and writes them into the encoder buffer.
+     */
+    private void putFloats(@NonNull float[] output, int outputSize, @NonNull ShortBuffer encoderBuffer) {
+        if (mOutputShorts.length < outputSize) {
+            mOutputShorts = new short[outputSize];
+        }
+        short[] shorts = mOutputShorts;
+        for (int i = 0; i < outputSize; i++) {
+            shorts[i] = toShort(output[i]);
+        }
+        encoderBuffer.put(shorts, 0, outputSize);
+    }
+
+    private static short toShort(float sample) {
+        int value = Math.round(sample * Short.MAX_VALUE);
+        if (value > Short.MAX_VALUE) return Short.MAX_VALUE;
+        if (value < Short.MIN_VALUE) return Short.MIN_VALUE;
+        return (short) value;
+    }
+
+    /**
+     * Whether a buffer that needs no stretching can skip the stretcher. Stretchers that
+     * hold samples must receive all buffers while they are active.
+     */
+    private boolean canSkipStretcher() {
+        return mSkipsEqualStretch && !isStretcherActive();
+    }
+
+    /**
+     * Returns a short view of the given codec buffer, between its position and limit.
+     * Codecs reuse the same buffer objects, so views are cached instead of being
+     * created for each buffer.
+     *
+     * @param buffer a codec buffer
+     * @return a short view
+     */
+    @NonNull
+    private ShortBuffer asShortBuffer(@NonNull ByteBuffer buffer) {
+        Buffer view = findView(buffer);
+        if (!(view instanceof ShortBuffer)) {
+            ByteBuffer whole = buffer.duplicate().order(buffer.order());
+            whole.clear();
+            view = whole.asShortBuffer();
+            addView(buffer, view);
+        }
+        view.limit(buffer.limit() / BYTES_PER_SHORT);
+        view.position(buffer.position() / BYTES_PER_SHORT);
+        return (ShortBuffer) view;
+    }
+
+    /**
+     * Returns a float view of the given codec buffer, between its position and limit.
+     * See {@link #asShortBuffer(ByteBuffer)}.
+     *
+     * @param buffer a codec buffer
+     * @return a float view
+     */
+    @NonNull
+    private FloatBuffer asFloatBuffer(@NonNull ByteBuffer buffer) {
+        Buffer view = findView(buffer);
+        if (!(view instanceof FloatBuffer)) {
+            ByteBuffer whole = buffer.duplicate().order(buffer.order());
+            whole.clear();
+            view = whole.asFloatBuffer();
+            addView(buffer, view);
+        }
+        view.limit(buffer.limit() / BYTES_PER_FLOAT);
+        view.position(buffer.position() / BYTES_PER_FLOAT);
+        return (FloatBuffer) view;
+    }
+
+    private Buffer findView(@NonNull ByteBuffer buffer) {
+        for (int i = 0; i < VIEW_CACHE_SIZE; i++) {
+            if (mViewSources[i] == buffer) return mViews[i];
+        }
+        return null;
+    }
+
+    private void addView(@NonNull ByteBuffer buffer, @NonNull Buffer view) {
+        for (int i = 0; i < VIEW_CACHE_SIZE; i++) {
+            if (mViewSources[i] == buffer) {
+                mViews[i] = view;
+                return;
+            }
+        }
+        mViewSources[mNextView] = buffer;
+        mViews[mNextView] = view;
+        mNextView = (mNextView + 1) % VIEW_CACHE_SIZE;
+    }
+
+    /**
+     * A heap buffer backed by an array, which is only reallocated when it needs to grow.
+     */
+    private static class WorkBuffer {
+        private ShortBuffer mBuffer;
+
+        @NonNull
+        private ShortBuffer prepare(int size) {
+            if (mBuffer == null || mBuffer.capacity() < size) {
+                LOG.verbose("WorkBuffer - allocating %d shorts.", size);
+                mBuffer = ShortBuffer.wrap(new short[size]);
+            }
+            mBuffer.clear();
+            mBuffer.limit(size);
+            return mBuffer;
+        }
+    }
+
+    /**
+     * A float array which is only reallocated when it needs to grow.
+     */
+    private static class FloatWorkBuffer {
+        private float[] mArray = new float[0];
+
+        @NonNull
+        private float[] prepare(int size) {
+            if (mArray.length < size) {
+                LOG.verbose("FloatWorkBuffer - allocating %d floats.", size);
+                mArray = new float[size];
+            }
+            return mArray;
         }
-        mTempBuffer2.clear();
-        mTempBuffer2.limit(desiredSize);
     }
 }
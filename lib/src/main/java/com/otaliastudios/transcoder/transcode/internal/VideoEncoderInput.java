@@ -25,6 +25,7 @@ public class VideoEncoderInput {
 
     private EglCore mEglCore;
     private EglWindowSurface mEglSurface;
+    private boolean mOwnsEglCore;
 
     /**
      * Creates an VideoEncoderInput from a Surface.
@@ -32,7 +33,19 @@ public class VideoEncoderInput {
      * @param surface the surface
      */
     public VideoEncoderInput(@NonNull Surface surface) {
-        mEglCore = new EglCore(EGL14.EGL_NO_CONTEXT, EglCore.FLAG_RECORDABLE);
+        this(new EglCore(EGL14.EGL_NO_CONTEXT, EglCore.FLAG_RECORDABLE), surface);
+        mOwnsEglCore = true;
+    }
+
+    /**
+     * Creates an VideoEncoderInput from a Surface, using an existing EGL context
+     * which is not released by {@link #release()}.
+     * Makes the EGL surface current immediately.
+     * @param eglCore the EGL context
+     * @param surface the surface
+     */
+    public VideoEncoderInput(@NonNull EglCore eglCore, @NonNull Surface surface) {
+        mEglCore = eglCore;
         mEglSurface = new EglWindowSurface(mEglCore, surface, true);
         mEglSurface.makeCurrent();
     }
@@ -46,6 +59,6 @@ public class VideoEncoderInput {
         // NOTE: Original code calls android.view.Surface.release()
         // after the egl core releasing. This should not be an issue.
         mEglSurface.release();
-        mEglCore.release();
+        if (mOwnsEglCore) mEglCore.release();
     }
 }
@@ -42,14 +42,20 @@ public abstract class VideoFrameDropper {
         public boolean shouldRenderFrame(long presentationTimeUs) {
             mFrameRateReciprocalSum += mInFrameRateReciprocal;
             if (mFrameCount++ == 0) {
-                LOG.v("RENDERING (first frame) - frameRateReciprocalSum:" + mFrameRateReciprocalSum);
+                if (LOG.isEnabled(Logger.LEVEL_VERBOSE)) {
+                    LOG.v("RENDERING (first frame) - frameRateReciprocalSum:" + mFrameRateReciprocalSum);
+                }
                 return true;
             } else if (mFrameRateReciprocalSum > mOutFrameRateReciprocal) {
                 mFrameRateReciprocalSum -= mOutFrameRateReciprocal;
-                LOG.v("RENDERING - frameRateReciprocalSum:" + mFrameRateReciprocalSum);
+                if (LOG.isEnabled(Logger.LEVEL_VERBOSE)) {
+                    LOG.v("RENDERING - frameRateReciprocalSum:" + mFrameRateReciprocalSum);
+                }
                 return true;
             } else {
-                LOG.v("DROPPING - frameRateReciprocalSum:" + mFrameRateReciprocalSum);
+                if (LOG.isEnabled(Logger.LEVEL_VERBOSE)) {
+                    LOG.v("DROPPING - frameRateReciprocalSum:" + mFrameRateReciprocalSum);
+                }
                 return false;
             }
         }
@@ -87,7 +93,9 @@ public abstract class VideoFrameDropper {
             if (mRenderedSteps > 0 && mAvgStep < mTargetAvgStep) {
                 // We are rendering too much. Drop this frame.
                 // Always render first 2 frames, we need them to compute the avg.
-                LOG.v("DROPPING - avg:" + mAvgStep + " target:" + mTargetAvgStep);
+                if (LOG.isEnabled(Logger.LEVEL_VERBOSE)) {
+                    LOG.v("DROPPING - avg:" + mAvgStep + " target:" + mTargetAvgStep);
+                }
                 long newLastStep = presentationTimeUs - mLastRenderedUs;
                 float allSteps = (mAvgStep * mRenderedSteps) - mLastStep + newLastStep;
                 mAvgStep = allSteps / mRenderedSteps; // we didn't add a step, just increased the last
@@ -95,7 +103,9 @@ public abstract class VideoFrameDropper {
                 return false;
             } else {
                 // Render this frame, since our average step is too long or exact.
-                LOG.v("RENDERING - avg:" + mAvgStep + " target:" + mTargetAvgStep + " newStepCount:" + (mRenderedSteps + 1));
+                if (LOG.isEnabled(Logger.LEVEL_VERBOSE)) {
+                    LOG.v("RENDERING - avg:" + mAvgStep + " target:" + mTargetAvgStep + " newStepCount:" + (mRenderedSteps + 1));
+                }
                 if (mRenderedSteps >= 0) {
                     // Update the average value, since now we have mLastRenderedUs.
                     long step = presentationTimeUs - mLastRenderedUs;
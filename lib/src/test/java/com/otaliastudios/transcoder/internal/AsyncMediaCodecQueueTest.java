@@ -0,0 +1,171 @@
+package com.otaliastudios.transcoder.internal;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncMediaCodecQueueTest {
+
+    @Test
+    public void testInputIndices() {
+        AsyncMediaCodecQueue queue = new AsyncMediaCodecQueue(null);
+        assertEquals(MediaCodec.INFO_TRY_AGAIN_LATER, queue.dequeueInputBuffer(0));
+        queue.onInputBufferAvailable(3);
+        queue.onInputBufferAvailable(1);
+        assertEquals(3, queue.dequeueInputBuffer(0));
+        assertEquals(1, queue.dequeueInputBuffer(0));
+        assertEquals(MediaCodec.INFO_TRY_AGAIN_LATER, queue.dequeueInputBuffer(0));
+    }
+
+    @Test
+    public void testOutputInfo() {
+        AsyncMediaCodecQueue queue = new AsyncMediaCodecQueue(null);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        assertEquals(MediaCodec.INFO_TRY_AGAIN_LATER, queue.dequeueOutputBuffer(info, 0));
+        MediaCodec.BufferInfo callbackInfo = new MediaCodec.BufferInfo();
+        callbackInfo.set(10, 200, 3000L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        queue.onOutputBufferAvailable(5, callbackInfo);
+        // The codec reuses its info object, so values must be copied.
+        callbackInfo.set(0, 0, 0, 0);
+        assertEquals(5, queue.dequeueOutputBuffer(info, 0));
+        assertEquals(10, info.offset);
+        assertEquals(200, info.size);
+        assertEquals(3000L, info.presentationTimeUs);
+        assertEquals(MediaCodec.BUFFER_FLAG_END_OF_STREAM, info.flags);
+    }
+
+    @Test
+    public void testOutputFormatChangedIsOrdered() {
+        AsyncMediaCodecQueue queue = new AsyncMediaCodecQueue(null);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, 100, 0, 0);
+        MediaFormat first = new MediaFormat();
+        MediaFormat second = new MediaFormat();
+        queue.onOutputFormatChanged(first);
+        queue.onOutputBufferAvailable(0, info);
+        queue.onOutputFormatChanged(second);
+        queue.onOutputBufferAvailable(1, info);
+        assertEquals(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED, queue.dequeueOutputBuffer(info, 0));
+        assertSame(first, queue.getOutputFormat());
+        assertEquals(0, queue.dequeueOutputBuffer(info, 0));
+        assertSame(first, queue.getOutputFormat());
+        assertEquals(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED, queue.dequeueOutputBuffer(info, 0));
+        assertSame(second, queue.getOutputFormat());
+        assertEquals(1, queue.dequeueOutputBuffer(info, 0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testOutputFormatNotAvailable() {
+        new AsyncMediaCodecQueue(null).getOutputFormat();
+    }
+
+    @Test
+    public void testTimeout() {
+        AsyncMediaCodecQueue queue = new AsyncMediaCodecQueue(null);
+        long start = System.nanoTime();
+        assertEquals(MediaCodec.INFO_TRY_AGAIN_LATER, queue.dequeueInputBuffer(20000));
+        assertTrue(System.nanoTime() - start >= 15000000L);
+    }
+
+    @Test
+    public void testCallbackWakesUpWaiter() throws Exception {
+        final AsyncMediaCodecQueue queue = new AsyncMediaCodecQueue(null);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sleep(50);
+                queue.onInputBufferAvailable(7);
+            }
+        });
+        thread.start();
+        long start = System.nanoTime();
+        assertEquals(7, queue.dequeueInputBuffer(-1));
+        assertTrue(System.nanoTime() - start < 5000000000L);
+        thread.join();
+    }
+
+    @Test
+    public void testErrorIsThrown() throws Exception {
+        final AsyncMediaCodecQueue queue = new AsyncMediaCodecQueue(null);
+        final RuntimeException error = new MediaCodec.CodecException("Codec failed.");
+        final AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queue.dequeueOutputBuffer(new MediaCodec.BufferInfo(), -1);
+                } catch (Throwable e) {
+                    thrown.set(e);
+                }
+            }
+        });
+        thread.start();
+        sleep(50);
+        queue.onError(error);
+        thread.join(5000);
+        assertSame(error, thrown.get());
+        // Following calls fail too, even if indices are available.
+        queue.onInputBufferAvailable(0);
+        try {
+            queue.dequeueInputBuffer(0);
+            fail("Expected an error.");
+        } catch (RuntimeException e) {
+            assertSame(error, e);
+        }
+    }
+
+    @Test
+    public void testSignal() throws Exception {
+        WorkSignal signal = new WorkSignal();
+        AsyncMediaCodecQueue queue = new AsyncMediaCodecQueue(signal);
+        assertFalse(signal.await(0));
+        queue.onInputBufferAvailable(0);
+        assertTrue(signal.await(0));
+        queue.onOutputBufferAvailable(0, new MediaCodec.BufferInfo());
+        assertTrue(signal.await(0));
+        queue.onOutputFormatChanged(new MediaFormat());
+        assertTrue(signal.await(0));
+        queue.onError(new IllegalStateException());
+        assertTrue(signal.await(0));
+    }
+
+    @Test
+    public void testRelease() {
+        AsyncMediaCodecQueue queue = new AsyncMediaCodecQueue(null);
+        queue.onInputBufferAvailable(0);
+        queue.onOutputBufferAvailable(0, new MediaCodec.BufferInfo());
+        queue.release();
+        assertEquals(MediaCodec.INFO_TRY_AGAIN_LATER, queue.dequeueInputBuffer(0));
+        assertEquals(MediaCodec.INFO_TRY_AGAIN_LATER,
+                queue.dequeueOutputBuffer(new MediaCodec.BufferInfo(), 0));
+    }
+
+    @Test
+    public void testBuffers() {
+        FakeMediaCodec codec = new FakeMediaCodec(2, 16);
+        AsyncMediaCodecQueue queue = new AsyncMediaCodecQueue(null);
+        MediaCodecBuffers buffers = new MediaCodecBuffers(codec, queue);
+        // Indices come from the queue, not from the codec.
+        assertEquals(MediaCodec.INFO_TRY_AGAIN_LATER, buffers.dequeueInputBuffer(0));
+        queue.onInputBufferAvailable(1);
+        assertEquals(1, buffers.dequeueInputBuffer(0));
+        ByteBuffer buffer = buffers.getInputBuffer(1);
+        assertSame(codec.getInputBuffer(1), buffer);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ignore) {}
+    }
+}
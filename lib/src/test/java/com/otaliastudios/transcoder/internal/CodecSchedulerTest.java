@@ -0,0 +1,210 @@
+package com.otaliastudios.transcoder.internal;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The scheduler state is static, so each test uses its own mime types.
+ */
+public class CodecSchedulerTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final long BLOCKED_MILLIS = 100;
+
+    @Test
+    public void testPriorityOrder() throws Exception {
+        CodecScheduler.Resource encoder = encoder("video/priority", 1);
+        CodecScheduler.Ticket first = CodecScheduler.acquire(list(encoder), 0);
+        Acquirer low = new Acquirer(list(encoder), 0);
+        low.start();
+        assertTrue(low.awaitWaiting());
+        Acquirer high = new Acquirer(list(encoder), 10);
+        high.start();
+        assertTrue(high.awaitWaiting());
+        // The high priority operation is admitted first, even if it arrived later.
+        CodecScheduler.release(first);
+        assertTrue(high.awaitAdmitted(TIMEOUT_MILLIS));
+        assertFalse(low.awaitAdmitted(BLOCKED_MILLIS));
+        CodecScheduler.release(high.mTicket);
+        assertTrue(low.awaitAdmitted(TIMEOUT_MILLIS));
+        CodecScheduler.release(low.mTicket);
+    }
+
+    @Test
+    public void testBlocksUntilRelease() throws Exception {
+        CodecScheduler.Resource encoder = encoder("video/capacity", 2);
+        CodecScheduler.Resource decoder = resource("video/capacity", false, 0, 0);
+        CodecScheduler.Ticket first = CodecScheduler.acquire(list(encoder), 0);
+        CodecScheduler.Ticket second = CodecScheduler.acquire(list(encoder), 0);
+        Acquirer third = new Acquirer(list(encoder), 0);
+        third.start();
+        assertTrue(third.awaitWaiting());
+        assertFalse(third.awaitAdmitted(BLOCKED_MILLIS));
+        // Operations that need other codecs are not blocked.
+        CodecScheduler.Ticket other = CodecScheduler.acquire(list(decoder), 0);
+        CodecScheduler.release(other);
+        CodecScheduler.release(first);
+        assertTrue(third.awaitAdmitted(TIMEOUT_MILLIS));
+        CodecScheduler.release(second);
+        CodecScheduler.release(third.mTicket);
+    }
+
+    @Test
+    public void testFailureLowersOnlyFailedCodec() throws Exception {
+        CodecScheduler.Resource encoder = resource("video/failure", true, 1280, 720);
+        CodecScheduler.Resource decoder = resource("video/failure", false, 1280, 720);
+        CodecScheduler.Resource smallEncoder = resource("video/failure", true, 640, 480);
+        CodecScheduler.Ticket first = CodecScheduler.acquire(list(encoder, decoder), 0);
+        CodecScheduler.Ticket second = CodecScheduler.acquire(list(encoder, decoder), 0);
+        // Errors that are not related to capacity are ignored.
+        CodecScheduler.reportFailure(second, encoder, new IllegalArgumentException());
+        CodecScheduler.reportFailure(second, encoder, new RuntimeException(new IOException()));
+        CodecScheduler.release(second);
+
+        // The encoder limit is now 1, but the decoder and other resolutions are not affected.
+        CodecScheduler.Ticket decoderOnly = CodecScheduler.acquire(list(decoder), 0);
+        CodecScheduler.Ticket small = CodecScheduler.acquire(list(smallEncoder), 0);
+        Acquirer encoderOnly = new Acquirer(list(encoder), 0);
+        encoderOnly.start();
+        assertTrue(encoderOnly.awaitWaiting());
+        assertFalse(encoderOnly.awaitAdmitted(BLOCKED_MILLIS));
+        CodecScheduler.release(first);
+        assertTrue(encoderOnly.awaitAdmitted(TIMEOUT_MILLIS));
+        CodecScheduler.release(encoderOnly.mTicket);
+        CodecScheduler.release(decoderOnly);
+        CodecScheduler.release(small);
+    }
+
+    @Test
+    public void testSuspendAndResume() throws Exception {
+        CodecScheduler.Resource encoder = resource("video/suspend", true, 0, 0);
+        CodecScheduler.Resource decoder = decoder("video/suspend", 1);
+        final CodecScheduler.Ticket paused = CodecScheduler.acquire(list(encoder, decoder), 0);
+        CodecScheduler.suspend(paused, list(decoder));
+
+        // The decoder can be used by others while suspended.
+        CodecScheduler.Ticket other = CodecScheduler.acquire(list(decoder), 0);
+        Waiter resume = new Waiter() {
+            @Override
+            protected void block() throws InterruptedException {
+                CodecScheduler.resume(paused);
+            }
+        };
+        resume.start();
+        assertTrue(resume.awaitWaiting());
+        assertFalse(resume.awaitAdmitted(BLOCKED_MILLIS));
+        CodecScheduler.release(other);
+        assertTrue(resume.awaitAdmitted(TIMEOUT_MILLIS));
+
+        // After resuming, the decoder is taken again.
+        Acquirer next = new Acquirer(list(decoder), 0);
+        next.start();
+        assertTrue(next.awaitWaiting());
+        assertFalse(next.awaitAdmitted(BLOCKED_MILLIS));
+        CodecScheduler.release(paused);
+        assertTrue(next.awaitAdmitted(TIMEOUT_MILLIS));
+        CodecScheduler.release(next.mTicket);
+    }
+
+    @NonNull
+    private static CodecScheduler.Resource encoder(@NonNull String mime, int maxInstances) {
+        MediaCodecList.addCodecInfo(new MediaCodecInfo(mime + ".encoder", true,
+                new String[]{mime}, maxInstances));
+        return resource(mime, true, 0, 0);
+    }
+
+    @NonNull
+    private static CodecScheduler.Resource decoder(@NonNull String mime, int maxInstances) {
+        MediaCodecList.addCodecInfo(new MediaCodecInfo(mime + ".decoder", false,
+                new String[]{mime}, maxInstances));
+        return resource(mime, false, 0, 0);
+    }
+
+    @NonNull
+    private static CodecScheduler.Resource resource(@NonNull String mime, boolean encoder,
+                                                    int width, int height) {
+        MediaFormat format = new MediaFormat();
+        format.setString(MediaFormat.KEY_MIME, mime);
+        if (width > 0 && height > 0) {
+            format.setInteger(MediaFormat.KEY_WIDTH, width);
+            format.setInteger(MediaFormat.KEY_HEIGHT, height);
+        }
+        return CodecScheduler.createResource(format, encoder);
+    }
+
+    @NonNull
+    private static List<CodecScheduler.Resource> list(@NonNull CodecScheduler.Resource... resources) {
+        return Arrays.asList(resources);
+    }
+
+    /**
+     * Runs a blocking scheduler call on a new thread, and records whether
+     * it had to wait and whether it returned.
+     */
+    private abstract static class Waiter extends Thread implements CodecScheduler.WaitListener {
+
+        private final CountDownLatch mWaiting = new CountDownLatch(1);
+        private final CountDownLatch mAdmitted = new CountDownLatch(1);
+
+        protected abstract void block() throws InterruptedException;
+
+        @Override
+        public final void run() {
+            CodecScheduler.setWaitListener(this);
+            try {
+                block();
+                mAdmitted.countDown();
+            } catch (InterruptedException ignore) {
+            } finally {
+                CodecScheduler.setWaitListener(null);
+            }
+        }
+
+        @Override
+        public void onWaitStarted() {
+            mWaiting.countDown();
+        }
+
+        @Override
+        public void onWaitEnded() {}
+
+        boolean awaitWaiting() throws InterruptedException {
+            return mWaiting.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        boolean awaitAdmitted(long millis) throws InterruptedException {
+            return mAdmitted.await(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static class Acquirer extends Waiter {
+
+        private final List<CodecScheduler.Resource> mResources;
+        private final int mPriority;
+        private volatile CodecScheduler.Ticket mTicket;
+
+        Acquirer(@NonNull List<CodecScheduler.Resource> resources, int priority) {
+            mResources = resources;
+            mPriority = priority;
+        }
+
+        @Override
+        protected void block() throws InterruptedException {
+            mTicket = CodecScheduler.acquire(mResources, mPriority);
+        }
+    }
+}
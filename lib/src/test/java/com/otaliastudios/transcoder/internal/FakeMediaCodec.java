@@ -0,0 +1,156 @@
+package com.otaliastudios.transcoder.internal;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link MediaCodec} that does no processing. Input buffers are handed out in order and
+ * everything that is queued into them is recorded. Output buffers are provided by the test
+ * through {@link #addOutput(byte[], long, int)}, and released indices are recorded.
+ * Recording can be turned off with {@link #record}, so that the codec allocates nothing.
+ */
+public class FakeMediaCodec extends MediaCodec {
+
+    /**
+     * A buffer that was queued into the codec.
+     */
+    public static class Input {
+        public final int index;
+        public final byte[] data;
+        public final long timeUs;
+        public final int flags;
+
+        private Input(int index, byte[] data, long timeUs, int flags) {
+            this.index = index;
+            this.data = data;
+            this.timeUs = timeUs;
+            this.flags = flags;
+        }
+    }
+
+    private final ByteBuffer[] mInputBuffers;
+    private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<>();
+    private final List<ByteBuffer> mOutputBuffers = new ArrayList<>();
+    private final ArrayDeque<MediaCodec.BufferInfo> mPendingOutputs = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mPendingOutputIndices = new ArrayDeque<>();
+    private MediaFormat mOutputFormat;
+    public final List<Input> inputs = new ArrayList<>();
+    public final List<Integer> releasedOutputs = new ArrayList<>();
+    public int starts;
+    public int stops;
+    public int flushes;
+    public int releases;
+    public boolean record = true;
+
+    public FakeMediaCodec() {
+        this(4, 4096);
+    }
+
+    public FakeMediaCodec(int inputBuffers, int inputBufferSize) {
+        mInputBuffers = new ByteBuffer[inputBuffers];
+        for (int i = 0; i < inputBuffers; i++) {
+            mInputBuffers[i] = ByteBuffer.allocateDirect(inputBufferSize).order(ByteOrder.nativeOrder());
+            mFreeInputs.add(i);
+        }
+    }
+
+    /**
+     * Makes an output buffer available, and returns its index.
+     */
+    public int addOutput(@NonNull byte[] data, long timeUs, int flags) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(1, data.length)).order(ByteOrder.nativeOrder());
+        buffer.put(data);
+        buffer.flip();
+        mOutputBuffers.add(buffer);
+        int index = mOutputBuffers.size() - 1;
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, data.length, timeUs, flags);
+        mPendingOutputs.add(info);
+        mPendingOutputIndices.add(index);
+        return index;
+    }
+
+    public void setOutputFormat(@NonNull MediaFormat format) {
+        mOutputFormat = format;
+    }
+
+    @Override
+    public void start() {
+        starts++;
+    }
+
+    @Override
+    public void stop() {
+        stops++;
+    }
+
+    @Override
+    public void flush() {
+        flushes++;
+    }
+
+    @Override
+    public void release() {
+        releases++;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        Integer index = mFreeInputs.poll();
+        return index == null ? INFO_TRY_AGAIN_LATER : index;
+    }
+
+    @Override
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        MediaCodec.BufferInfo pending = mPendingOutputs.poll();
+        if (pending == null) return INFO_TRY_AGAIN_LATER;
+        info.set(pending.offset, pending.size, pending.presentationTimeUs, pending.flags);
+        //noinspection ConstantConditions
+        return mPendingOutputIndices.poll();
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mInputBuffers[index];
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mOutputBuffers.get(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        if (!record) {
+            mInputBuffers[index].clear();
+            mFreeInputs.add(index);
+            return;
+        }
+        ByteBuffer buffer = mInputBuffers[index].duplicate();
+        buffer.position(offset);
+        buffer.limit(offset + size);
+        byte[] data = new byte[size];
+        buffer.get(data);
+        inputs.add(new Input(index, data, presentationTimeUs, flags));
+        mInputBuffers[index].clear();
+        mFreeInputs.add(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        if (record) releasedOutputs.add(index);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mOutputFormat;
+    }
+}
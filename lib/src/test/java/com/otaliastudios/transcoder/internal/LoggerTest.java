@@ -0,0 +1,163 @@
+package com.otaliastudios.transcoder.internal;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.transcoder.resample.DefaultAudioResampler;
+import com.otaliastudios.transcoder.stretch.DefaultAudioStretcher;
+import com.otaliastudios.transcoder.time.DefaultTimeInterpolator;
+import com.otaliastudios.transcoder.time.SpeedTimeInterpolator;
+import com.otaliastudios.transcoder.time.TimeInterpolator;
+import com.otaliastudios.transcoder.transcode.internal.AudioEngine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LoggerTest {
+
+    private static final Logger LOG = new Logger("LoggerTest");
+    private static final int CALLS = 100000;
+    // Anything allocated per call would be at least CALLS * 16 bytes.
+    private static final long MAX_ALLOCATED_BYTES = 4096;
+
+    private com.sun.management.ThreadMXBean mBean;
+
+    @Before
+    public void setUp() {
+        mBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assertTrue(mBean.isThreadAllocatedMemorySupported());
+        mBean.setThreadAllocatedMemoryEnabled(true);
+        Logger.setLogLevel(Logger.LEVEL_ERROR);
+    }
+
+    @After
+    public void tearDown() {
+        Logger.setLogLevel(Logger.LEVEL_VERBOSE);
+    }
+
+    @Test
+    public void testIsEnabled() {
+        assertFalse(LOG.isEnabled(Logger.LEVEL_VERBOSE));
+        assertFalse(LOG.isEnabled(Logger.LEVEL_WARNING));
+        assertTrue(LOG.isEnabled(Logger.LEVEL_ERROR));
+    }
+
+    @Test
+    public void testDisabledMessage() {
+        long bytes = measure(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < CALLS; i++) {
+                    LOG.v("message");
+                    LOG.i("message");
+                    LOG.w("message");
+                }
+            }
+        });
+        assertTrue("Allocated " + bytes + " bytes.", bytes < MAX_ALLOCATED_BYTES);
+    }
+
+    @Test
+    public void testDisabledFormat() {
+        final Object value = 2000;
+        long bytes = measure(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < CALLS; i++) {
+                    LOG.verbose("value:%s", value);
+                    LOG.info("value:%s, %s", value, value);
+                    LOG.warning("value:%s", value);
+                }
+            }
+        });
+        assertTrue("Allocated " + bytes + " bytes.", bytes < MAX_ALLOCATED_BYTES);
+    }
+
+    @Test
+    public void testGuardedMessage() {
+        final int value = 2000;
+        long bytes = measure(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < CALLS; i++) {
+                    if (LOG.isEnabled(Logger.LEVEL_VERBOSE)) {
+                        LOG.v("value:" + value + i);
+                    }
+                }
+            }
+        });
+        assertTrue("Allocated " + bytes + " bytes.", bytes < MAX_ALLOCATED_BYTES);
+    }
+
+    @Test
+    public void testThrowableFormatArgument() {
+        // Must compile to the format overload, not to the one taking an error.
+        Logger.setLogLevel(Logger.LEVEL_VERBOSE);
+        LOG.verbose("error:%s", new RuntimeException("message"));
+    }
+
+    @Test
+    public void testAudioEngine() {
+        checkAudioEngine(new DefaultTimeInterpolator());
+    }
+
+    @Test
+    public void testAudioEngineStretching() {
+        checkAudioEngine(new SpeedTimeInterpolator(0.5F));
+    }
+
+    /**
+     * Passes buffers through the audio engine with logging disabled, and checks that
+     * once its buffers are allocated, processing a buffer allocates nothing.
+     */
+    private void checkAudioEngine(@NonNull TimeInterpolator interpolator) {
+        final int frames = 1024;
+        final int sampleRate = 44100;
+        MediaFormat format = new MediaFormat();
+        format.setInteger(MediaFormat.KEY_SAMPLE_RATE, sampleRate);
+        format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 2);
+        FakeMediaCodec decoder = new FakeMediaCodec();
+        FakeMediaCodec encoder = new FakeMediaCodec(4, 8 * frames);
+        decoder.record = false;
+        encoder.record = false;
+        final AudioEngine engine = new AudioEngine(decoder, format, encoder, format, interpolator,
+                new DefaultAudioStretcher(), new DefaultAudioResampler());
+        final MediaCodecBuffers encoderBuffers = new MediaCodecBuffers(encoder);
+        final int index = decoder.addOutput(new byte[frames * 4], 0, 0);
+        final ByteBuffer data = decoder.getOutputBuffer(index);
+        final long[] timeUs = new long[1];
+        Runnable buffers = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < CALLS / 100; i++) {
+                    data.clear();
+                    engine.drainDecoder(index, data, timeUs[0], false);
+                    //noinspection StatementWithEmptyBody
+                    while (engine.feedEncoder(encoderBuffers, 0)) {}
+                    timeUs[0] += frames * 1000000L / sampleRate;
+                }
+            }
+        };
+        buffers.run(); // Warm up
+        long bytes = measure(buffers);
+        assertEquals("Allocated " + bytes + " bytes.", 0, bytes / (CALLS / 100));
+    }
+
+    private long measure(Runnable runnable) {
+        long id = Thread.currentThread().getId();
+        // Warm up the bean itself, so that its own allocations are not counted.
+        mBean.getThreadAllocatedBytes(id);
+        long before = mBean.getThreadAllocatedBytes(id);
+        runnable.run();
+        return mBean.getThreadAllocatedBytes(id) - before;
+    }
+}
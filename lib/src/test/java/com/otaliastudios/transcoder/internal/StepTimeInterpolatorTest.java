@@ -0,0 +1,49 @@
+package com.otaliastudios.transcoder.internal;
+
+import com.otaliastudios.transcoder.engine.TrackType;
+import com.otaliastudios.transcoder.time.DefaultTimeInterpolator;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class StepTimeInterpolatorTest {
+
+    // Presentation times of an IPBB stream with 1 ms frames, in decode order.
+    private static final long[] DECODE_ORDER = {0, 3000, 1000, 2000, 6000, 4000, 5000};
+
+    @Test
+    public void testConcatenateOutOfOrder() {
+        StepTimeInterpolator first = new StepTimeInterpolator(new DefaultTimeInterpolator(), null);
+        long[] output = new long[DECODE_ORDER.length * 2];
+        for (int i = 0; i < DECODE_ORDER.length; i++) {
+            output[i] = first.interpolate(TrackType.VIDEO, DECODE_ORDER[i]);
+        }
+        // The second source starts at a different time, like a trimmed file.
+        StepTimeInterpolator second = new StepTimeInterpolator(new DefaultTimeInterpolator(), first);
+        for (int i = 0; i < DECODE_ORDER.length; i++) {
+            output[DECODE_ORDER.length + i] = second.interpolate(TrackType.VIDEO, 50000 + DECODE_ORDER[i]);
+        }
+        // In presentation order, the two steps are joined with no overlap and no gap.
+        long[] sorted = output.clone();
+        Arrays.sort(sorted);
+        long[] expected = new long[sorted.length];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = sorted[0] + i * 1000L;
+        }
+        assertArrayEquals(expected, sorted);
+        // The first frame of the second step comes after all frames of the first.
+        assertEquals(sorted[DECODE_ORDER.length], output[DECODE_ORDER.length]);
+    }
+
+    @Test
+    public void testNextTimeBaseWithoutSamples() {
+        StepTimeInterpolator first = new StepTimeInterpolator(new DefaultTimeInterpolator(), null);
+        StepTimeInterpolator second = new StepTimeInterpolator(new DefaultTimeInterpolator(), first);
+        assertEquals(first.getNextTimeBase(), second.getNextTimeBase());
+        assertEquals(second.getNextTimeBase(), second.interpolate(TrackType.AUDIO, 1234));
+    }
+}
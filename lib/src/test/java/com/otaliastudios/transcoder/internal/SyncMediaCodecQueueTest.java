@@ -0,0 +1,79 @@
+package com.otaliastudios.transcoder.internal;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SyncMediaCodecQueueTest {
+
+    @Test
+    public void testInputIndices() {
+        FakeMediaCodec codec = new FakeMediaCodec(2, 16);
+        SyncMediaCodecQueue queue = new SyncMediaCodecQueue(codec);
+        assertEquals(0, queue.dequeueInputBuffer(0));
+        assertEquals(1, queue.dequeueInputBuffer(0));
+        assertEquals(MediaCodec.INFO_TRY_AGAIN_LATER, queue.dequeueInputBuffer(0));
+        codec.queueInputBuffer(1, 0, 0, 0, 0);
+        assertEquals(1, queue.dequeueInputBuffer(0));
+    }
+
+    @Test
+    public void testOutput() {
+        FakeMediaCodec codec = new FakeMediaCodec();
+        SyncMediaCodecQueue queue = new SyncMediaCodecQueue(codec);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        assertEquals(MediaCodec.INFO_TRY_AGAIN_LATER, queue.dequeueOutputBuffer(info, 0));
+        int index = codec.addOutput(new byte[]{1, 2, 3}, 1000L, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        assertEquals(index, queue.dequeueOutputBuffer(info, 0));
+        assertEquals(3, info.size);
+        assertEquals(1000L, info.presentationTimeUs);
+        assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, info.flags);
+    }
+
+    @Test
+    public void testAwaitOutput() {
+        FakeMediaCodec codec = new FakeMediaCodec();
+        SyncMediaCodecQueue queue = new SyncMediaCodecQueue(codec);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        assertFalse(queue.awaitOutputBuffer(0));
+        int index = codec.addOutput(new byte[]{1, 2, 3}, 1000L, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        assertTrue(queue.awaitOutputBuffer(0));
+        // The awaited buffer is kept until dequeued.
+        assertTrue(queue.awaitOutputBuffer(0));
+        assertEquals(index, queue.dequeueOutputBuffer(info, 0));
+        assertEquals(3, info.size);
+        assertEquals(1000L, info.presentationTimeUs);
+        assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, info.flags);
+        assertEquals(MediaCodec.INFO_TRY_AGAIN_LATER, queue.dequeueOutputBuffer(info, 0));
+        assertFalse(queue.awaitOutputBuffer(0));
+    }
+
+    @Test
+    public void testOutputFormat() {
+        FakeMediaCodec codec = new FakeMediaCodec();
+        MediaFormat format = new MediaFormat();
+        codec.setOutputFormat(format);
+        assertSame(format, new SyncMediaCodecQueue(codec).getOutputFormat());
+    }
+
+    @Test
+    public void testBuffers() {
+        FakeMediaCodec codec = new FakeMediaCodec(1, 16);
+        MediaCodecBuffers buffers = new MediaCodecBuffers(codec);
+        int index = buffers.dequeueInputBuffer(0);
+        assertEquals(0, index);
+        buffers.getInputBuffer(index).put((byte) 5);
+        codec.queueInputBuffer(index, 0, 1, 10L, 0);
+        assertEquals(1, codec.inputs.size());
+        assertEquals(5, codec.inputs.get(0).data[0]);
+        assertEquals(10L, codec.inputs.get(0).timeUs);
+        int output = codec.addOutput(new byte[]{9}, 0, 0);
+        assertEquals(9, buffers.getOutputBuffer(output).get(0));
+    }
+}
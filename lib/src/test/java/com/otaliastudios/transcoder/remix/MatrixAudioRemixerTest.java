@@ -0,0 +1,141 @@
+package com.otaliastudios.transcoder.remix;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MatrixAudioRemixerTest {
+
+    private static final short FULL = Short.MAX_VALUE;
+
+    @Test
+    public void testMonoToStereo() {
+        MatrixAudioRemixer remixer = new MatrixAudioRemixer(1, 2);
+        assertArrayEquals(new short[]{7071, 7071}, remix(remixer, 10000));
+    }
+
+    @Test
+    public void testStereoToMono() {
+        MatrixAudioRemixer remixer = new MatrixAudioRemixer(2, 1);
+        // Both channels are mixed at -3dB, then normalized so that the sum is 1.
+        assertArrayEquals(new short[]{5000}, remix(remixer, 10000, 0));
+        assertArrayEquals(new short[]{5000}, remix(remixer, 0, 10000));
+        assertArrayEquals(new short[]{FULL}, remix(remixer, FULL, FULL));
+    }
+
+    @Test
+    public void testSurroundToStereo() {
+        // FL FR FC LFE BL BR
+        MatrixAudioRemixer remixer = new MatrixAudioRemixer(6, 2);
+        short[] left = remix(remixer, 10000, 0, 0, 0, 0, 0);
+        assertTrue(left[0] > 0);
+        assertEquals(0, left[1]);
+        short[] right = remix(remixer, 0, 0, 0, 0, 0, 10000);
+        assertEquals(0, right[0]);
+        assertTrue(right[1] > 0);
+        // Center goes to both sides with the same gain.
+        short[] center = remix(remixer, 0, 0, 10000, 0, 0, 0);
+        assertTrue(center[0] > 0);
+        assertEquals(center[0], center[1]);
+        // Surround channels are quieter than the front ones.
+        short[] back = remix(remixer, 0, 0, 0, 0, 10000, 0);
+        assertTrue(back[0] < left[0]);
+        assertEquals(0, back[1]);
+        // LFE is dropped.
+        assertArrayEquals(new short[]{0, 0}, remix(remixer, 0, 0, 0, 10000, 0, 0));
+    }
+
+    @Test
+    public void testNormalization() {
+        // With all inputs at full scale, no output channel can clip.
+        for (int in = 1; in <= 8; in++) {
+            for (int out = 1; out <= 8; out++) {
+                MatrixAudioRemixer remixer = new MatrixAudioRemixer(in, out);
+                short[] input = new short[in];
+                Arrays.fill(input, FULL);
+                float[] output = new float[out];
+                remixer.remix(toFloats(input), 0, in, output, 0);
+                for (int o = 0; o < out; o++) {
+                    assertTrue("in:" + in + " out:" + out + " channel:" + o,
+                            output[o] <= 1.0001F);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFloatsMatchShorts() {
+        MatrixAudioRemixer remixer = new MatrixAudioRemixer(6, 2);
+        short[] input = new short[]{1000, -2000, 3000, 4000, -5000, 6000};
+        short[] shorts = remix(remixer, input);
+        float[] floats = new float[2];
+        remixer.remix(toFloats(input), 0, input.length, floats, 0);
+        for (int i = 0; i < shorts.length; i++) {
+            assertEquals(shorts[i], floats[i] * FULL, 1);
+        }
+    }
+
+    @Test
+    public void testCustomMatrix() {
+        // Swap the channels.
+        MatrixAudioRemixer remixer = new MatrixAudioRemixer(2, 2, new float[]{0, 1, 1, 0});
+        assertArrayEquals(new short[]{200, 100}, remix(remixer, 100, 200));
+        assertEquals(6, remixer.getRemixedSize(6));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCustomMatrixSize() {
+        new MatrixAudioRemixer(2, 2, new float[3]);
+    }
+
+    /**
+     * Remixes a single frame, through both array and direct buffers,
+     * and checks that they give the same result.
+     */
+    @NonNull
+    private static short[] remix(@NonNull MatrixAudioRemixer remixer, int... frame) {
+        short[] input = new short[frame.length];
+        for (int i = 0; i < frame.length; i++) input[i] = (short) frame[i];
+        return remix(remixer, input);
+    }
+
+    @NonNull
+    private static short[] remix(@NonNull MatrixAudioRemixer remixer, @NonNull short[] input) {
+        int size = remixer.getRemixedSize(input.length);
+        ShortBuffer output = ShortBuffer.allocate(size);
+        remixer.remix(ShortBuffer.wrap(input), output);
+        assertEquals(size, output.position());
+
+        ShortBuffer directInput = direct(input.length);
+        directInput.put(input);
+        directInput.flip();
+        ShortBuffer directOutput = direct(size);
+        remixer.remix(directInput, directOutput);
+        assertEquals(size, directOutput.position());
+        for (int i = 0; i < size; i++) {
+            assertEquals(output.get(i), directOutput.get(i));
+        }
+        return output.array();
+    }
+
+    @NonNull
+    private static ShortBuffer direct(int size) {
+        return ByteBuffer.allocateDirect(size * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+    }
+
+    @NonNull
+    private static float[] toFloats(@NonNull short[] input) {
+        float[] floats = new float[input.length];
+        for (int i = 0; i < input.length; i++) floats[i] = (float) input[i] / FULL;
+        return floats;
+    }
+}
@@ -0,0 +1,160 @@
+package com.otaliastudios.transcoder.resample;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PolyphaseAudioResamplerTest {
+
+    private static final int CHUNK_FRAMES = 1024;
+
+    @Test
+    public void testOutputCount() {
+        int[][] rates = new int[][]{
+                {44100, 48000}, {48000, 44100}, {8000, 48000}, {48000, 8000}, {22050, 32000}
+        };
+        int[] inputFrames = new int[]{1, 100, 4410, 44100, 44101};
+        for (int[] rate : rates) {
+            for (int frames : inputFrames) {
+                for (int channels = 1; channels <= 2; channels++) {
+                    int expected = (int) Math.round((double) frames * rate[1] / rate[0]);
+                    assertEquals("in:" + rate[0] + " out:" + rate[1] + " frames:" + frames,
+                            expected, resampleShorts(frames, rate[0], rate[1], channels));
+                    assertEquals("in:" + rate[0] + " out:" + rate[1] + " frames:" + frames,
+                            expected, resampleFloats(frames, rate[0], rate[1], channels));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFlushWithSmallOutput() {
+        PolyphaseAudioResampler resampler = new PolyphaseAudioResampler();
+        int frames = 4410;
+        ShortBuffer input = ShortBuffer.wrap(new short[frames]);
+        ShortBuffer output = ShortBuffer.allocate(frames * 2);
+        resampler.resample(input, 44100, output, 48000, 1);
+        assertTrue(resampler.hasPendingSamples());
+        int outputFrames = output.position();
+        int flushes = 0;
+        while (resampler.hasPendingSamples()) {
+            ShortBuffer small = ShortBuffer.allocate(3);
+            resampler.flush(small);
+            outputFrames += small.position();
+            flushes++;
+        }
+        assertEquals(4800, outputFrames);
+        assertTrue(flushes > 1);
+    }
+
+    @Test
+    public void testFlushTail() {
+        // A constant signal should keep its level until the very last sample.
+        PolyphaseAudioResampler resampler = new PolyphaseAudioResampler();
+        short[] samples = new short[4410];
+        Arrays.fill(samples, (short) 1000);
+        ShortBuffer output = ShortBuffer.allocate(6000);
+        resampler.resample(ShortBuffer.wrap(samples), 44100, output, 48000, 1);
+        resampler.flush(output);
+        assertFalse(resampler.hasPendingSamples());
+        assertEquals(4800, output.position());
+        // The filter ramps down over the last half window, centered on the end of input.
+        assertEquals(1000, output.get(4800 / 2), 2);
+        assertTrue(output.get(4799) > 0);
+    }
+
+    @Test
+    public void testPitch() {
+        // A sine wave should keep its frequency after resampling.
+        int[][] rates = new int[][]{{44100, 48000}, {48000, 44100}, {22050, 48000}};
+        double frequency = 440;
+        for (int[] rate : rates) {
+            PolyphaseAudioResampler resampler = new PolyphaseAudioResampler();
+            short[] samples = new short[rate[0]];
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = (short) (10000 * Math.sin(2 * Math.PI * frequency * i / rate[0]));
+            }
+            ShortBuffer output = ShortBuffer.allocate(rate[1] + 64);
+            resampler.resample(ShortBuffer.wrap(samples), rate[0], output, rate[1], 1);
+            resampler.flush(output);
+            // Look at the middle of the output, away from the edges.
+            int length = output.position() / 2;
+            assertEquals("in:" + rate[0] + " out:" + rate[1], frequency,
+                    frequency(output.array(), length / 2, length, rate[1]), frequency * 0.01);
+        }
+    }
+
+    @Test
+    public void testSameRates() {
+        PolyphaseAudioResampler resampler = new PolyphaseAudioResampler();
+        ShortBuffer output = ShortBuffer.allocate(100);
+        resampler.resample(ShortBuffer.wrap(new short[100]), 44100, output, 44100, 1);
+        assertEquals(100, output.position());
+        assertFalse(resampler.hasPendingSamples());
+    }
+
+    private static int resampleShorts(int frames, int inputSampleRate, int outputSampleRate, int channels) {
+        PolyphaseAudioResampler resampler = new PolyphaseAudioResampler();
+        ShortBuffer output = ShortBuffer.allocate(outputCapacity(frames, inputSampleRate, outputSampleRate, channels));
+        int remaining = frames;
+        while (remaining > 0) {
+            int chunk = Math.min(remaining, CHUNK_FRAMES);
+            ShortBuffer input = ShortBuffer.wrap(signal(chunk * channels));
+            resampler.resample(input, inputSampleRate, output, outputSampleRate, channels);
+            remaining -= chunk;
+        }
+        resampler.flush(output);
+        assertFalse(resampler.hasPendingSamples());
+        return output.position() / channels;
+    }
+
+    private static int resampleFloats(int frames, int inputSampleRate, int outputSampleRate, int channels) {
+        PolyphaseAudioResampler resampler = new PolyphaseAudioResampler();
+        float[] output = new float[outputCapacity(frames, inputSampleRate, outputSampleRate, channels)];
+        int outputSize = 0;
+        int remaining = frames;
+        while (remaining > 0) {
+            int chunk = Math.min(remaining, CHUNK_FRAMES);
+            float[] input = new float[chunk * channels];
+            outputSize += resampler.resample(input, 0, input.length, inputSampleRate,
+                    output, outputSize, output.length - outputSize, outputSampleRate, channels);
+            remaining -= chunk;
+        }
+        outputSize += resampler.flush(output, outputSize, output.length - outputSize);
+        assertFalse(resampler.hasPendingSamples());
+        return outputSize / channels;
+    }
+
+    private static int outputCapacity(int frames, int inputSampleRate, int outputSampleRate, int channels) {
+        return ((int) ((long) frames * outputSampleRate / inputSampleRate) + 64) * channels;
+    }
+
+    /**
+     * Estimates the frequency of a mono signal by counting upward zero crossings.
+     */
+    private static double frequency(@NonNull short[] samples, int start, int length, int sampleRate) {
+        int first = -1, last = -1, crossings = 0;
+        for (int i = start + 1; i < start + length; i++) {
+            if (samples[i - 1] < 0 && samples[i] >= 0) {
+                if (first < 0) first = i;
+                last = i;
+                crossings++;
+            }
+        }
+        return (double) (crossings - 1) * sampleRate / (last - first);
+    }
+
+    @NonNull
+    private static short[] signal(int size) {
+        short[] samples = new short[size];
+        for (int i = 0; i < size; i++) samples[i] = (short) ((i * 37) % 2000 - 1000);
+        return samples;
+    }
+}
@@ -0,0 +1,230 @@
+package com.otaliastudios.transcoder.sink.internal;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FragmentedMp4WriterTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] SPS = new byte[]{0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1E, (byte) 0xAB, 0x40};
+    private static final byte[] PPS = new byte[]{0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] AUDIO_SPECIFIC_CONFIG = new byte[]{0x12, 0x10};
+    private static final long FRAGMENT_DURATION_US = 1000000L;
+    private static final long SAMPLE_DURATION_US = 100000L;
+    private static final int SAMPLES = 15;
+
+    private File mFile;
+    private RandomAccessFile mOutput;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("fragmented", ".mp4");
+        mOutput = new RandomAccessFile(mFile, "rw");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mOutput.close();
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @Test
+    public void testBoxes() throws Exception {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(mOutput.getChannel(), FRAGMENT_DURATION_US);
+        int video = writer.addAvcTrack(320, 240, 10, SPS, PPS);
+        int audio = writer.addAacTrack(44100, 2, 128000, AUDIO_SPECIFIC_CONFIG);
+        writer.start();
+        for (int i = 0; i < SAMPLES; i++) {
+            long timeUs = i * SAMPLE_DURATION_US;
+            writer.writeSample(video, ByteBuffer.wrap(videoSample(i)), timeUs, i % 10 == 0);
+            writer.writeSample(audio, ByteBuffer.wrap(audioSample(i)), timeUs, true);
+        }
+        writer.flush();
+
+        byte[] file = read();
+        List<Box> boxes = Box.parse(file, 0, file.length);
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat"), types(boxes));
+        Box last = boxes.get(boxes.size() - 1);
+        assertEquals(file.length, last.offset + last.size);
+
+        Box ftyp = boxes.get(0);
+        assertEquals(32, ftyp.size);
+        assertEquals("isom", ascii(file, ftyp.offset + 8));
+
+        Box moov = boxes.get(1);
+        List<Box> moovChildren = moov.children(file);
+        assertEquals(Arrays.asList("mvhd", "trak", "trak", "mvex"), types(moovChildren));
+        assertEquals(108, moovChildren.get(0).size);
+        assertEquals(3, readInt(file, moovChildren.get(0).offset + 8 + 4 + 96 - 4)); // next track id
+        assertEquals(8 + 2 * 32, moovChildren.get(3).size);
+
+        checkFragment(file, boxes.get(2), boxes.get(3), 1, 0, 10);
+        checkFragment(file, boxes.get(4), boxes.get(5), 2, 10, SAMPLES);
+    }
+
+    private void checkFragment(@NonNull byte[] file, @NonNull Box moof, @NonNull Box mdat,
+                               int sequence, int from, int to) {
+        int count = to - from;
+        int trafVideo = 8 + 16 + 20 + (8 + 4 + 8 + count * 16);
+        int trafAudio = 8 + 16 + 20 + (8 + 4 + 8 + count * 12);
+        assertEquals(8 + 16 + trafVideo + trafAudio, moof.size);
+        assertEquals(moof.offset + moof.size, mdat.offset);
+
+        List<Box> children = moof.children(file);
+        assertEquals(Arrays.asList("mfhd", "traf", "traf"), types(children));
+        assertEquals(sequence, readInt(file, children.get(0).offset + 12));
+
+        int videoBytes = 0;
+        int audioBytes = 0;
+        for (int i = from; i < to; i++) {
+            videoBytes += lengthPrefixed(i).length;
+            audioBytes += audioSample(i).length;
+        }
+        assertEquals(8 + videoBytes + audioBytes, mdat.size);
+
+        // Video comes first in the mdat, then audio. Offsets are relative to the moof.
+        int videoOffset = checkTraf(file, moof, children.get(1), 1, from, to, 90000, true);
+        int audioOffset = checkTraf(file, moof, children.get(2), 2, from, to, 44100, false);
+        assertEquals(mdat.offset + 8, moof.offset + videoOffset);
+        assertEquals(videoOffset + videoBytes, audioOffset);
+    }
+
+    private int checkTraf(@NonNull byte[] file, @NonNull Box moof, @NonNull Box traf,
+                          int trackId, int from, int to, int timescale, boolean video) {
+        List<Box> children = traf.children(file);
+        assertEquals(Arrays.asList("tfhd", "tfdt", "trun"), types(children));
+        Box tfhd = children.get(0);
+        assertEquals(0x020000, readInt(file, tfhd.offset + 8)); // default base is moof
+        assertEquals(trackId, readInt(file, tfhd.offset + 12));
+        Box tfdt = children.get(1);
+        assertEquals(1 << 24, readInt(file, tfdt.offset + 8)); // version 1
+        assertEquals(from * SAMPLE_DURATION_US * timescale / 1000000L,
+                ByteBuffer.wrap(file, tfdt.offset + 12, 8).getLong());
+
+        Box trun = children.get(2);
+        int position = trun.offset + 12;
+        int count = readInt(file, position);
+        int dataOffset = readInt(file, position + 4);
+        assertEquals(to - from, count);
+        position += 8;
+        int sampleOffset = moof.offset + dataOffset;
+        long duration = SAMPLE_DURATION_US * timescale / 1000000L;
+        for (int i = from; i < to; i++) {
+            byte[] expected = video ? lengthPrefixed(i) : audioSample(i);
+            assertEquals(duration, readInt(file, position));
+            assertEquals(expected.length, readInt(file, position + 4));
+            int flags = video && i % 10 != 0 ? 0x01010000 : 0x02000000;
+            assertEquals(flags, readInt(file, position + 8));
+            assertArrayEquals(expected, Arrays.copyOfRange(file, sampleOffset, sampleOffset + expected.length));
+            position += video ? 16 : 12;
+            sampleOffset += expected.length;
+        }
+        assertEquals(trun.offset + trun.size, position);
+        return dataOffset;
+    }
+
+    /**
+     * Video samples alternate between 4-bytes and 3-bytes start codes.
+     */
+    @NonNull
+    private static byte[] videoSample(int index) {
+        byte[] payload = videoPayload(index);
+        int prefix = index % 2 == 0 ? 4 : 3;
+        byte[] sample = new byte[prefix + payload.length];
+        sample[prefix - 1] = 1;
+        System.arraycopy(payload, 0, sample, prefix, payload.length);
+        return sample;
+    }
+
+    @NonNull
+    private static byte[] videoPayload(int index) {
+        byte[] payload = new byte[10 + index];
+        Arrays.fill(payload, (byte) (0x10 + index));
+        payload[0] = index % 10 == 0 ? (byte) 0x65 : (byte) 0x41;
+        return payload;
+    }
+
+    @NonNull
+    private static byte[] lengthPrefixed(int index) {
+        byte[] payload = videoPayload(index);
+        return ByteBuffer.allocate(4 + payload.length).putInt(payload.length).put(payload).array();
+    }
+
+    @NonNull
+    private static byte[] audioSample(int index) {
+        byte[] sample = new byte[20 + index];
+        Arrays.fill(sample, (byte) (0x70 + index));
+        return sample;
+    }
+
+    @NonNull
+    private byte[] read() throws Exception {
+        byte[] bytes = new byte[(int) mOutput.length()];
+        mOutput.seek(0);
+        mOutput.readFully(bytes);
+        return bytes;
+    }
+
+    private static int readInt(@NonNull byte[] data, int offset) {
+        return ByteBuffer.wrap(data, offset, 4).getInt();
+    }
+
+    @NonNull
+    private static String ascii(@NonNull byte[] data, int offset) {
+        return new String(data, offset, 4, ASCII);
+    }
+
+    @NonNull
+    private static List<String> types(@NonNull List<Box> boxes) {
+        List<String> types = new ArrayList<>();
+        for (Box box : boxes) types.add(box.type);
+        return types;
+    }
+
+    private static class Box {
+        private final String type;
+        private final int offset;
+        private final int size;
+
+        private Box(@NonNull String type, int offset, int size) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @NonNull
+        private List<Box> children(@NonNull byte[] data) {
+            return parse(data, offset + 8, offset + size);
+        }
+
+        @NonNull
+        private static List<Box> parse(@NonNull byte[] data, int from, int to) {
+            List<Box> boxes = new ArrayList<>();
+            int offset = from;
+            while (offset < to) {
+                int size = readInt(data, offset);
+                if (size < 8 || offset + size > to) {
+                    throw new AssertionError("Invalid box size " + size + " at " + offset);
+                }
+                boxes.add(new Box(ascii(data, offset + 4), offset, size));
+                offset += size;
+            }
+            return boxes;
+        }
+    }
+}
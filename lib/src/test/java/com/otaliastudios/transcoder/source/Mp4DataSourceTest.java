@@ -0,0 +1,256 @@
+package com.otaliastudios.transcoder.source;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.transcoder.engine.TrackType;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Mp4DataSourceTest {
+
+    private static final byte[] START_CODE = new byte[]{0, 0, 0, 1};
+
+    @Test
+    public void testFormats() throws Exception {
+        Mp4DataSource source = new Mp4DataSource(new Mp4Fixture().write().getAbsolutePath());
+        MediaFormat video = source.getTrackFormat(TrackType.VIDEO);
+        assertNotNull(video);
+        assertEquals("video/avc", video.getString(MediaFormat.KEY_MIME));
+        assertEquals(320, video.getInteger(MediaFormat.KEY_WIDTH));
+        assertEquals(240, video.getInteger(MediaFormat.KEY_HEIGHT));
+        assertEquals(30, video.getInteger(MediaFormat.KEY_FRAME_RATE));
+        assertArrayEquals(concat(START_CODE, Mp4Fixture.SPS), bytes(video.getByteBuffer("csd-0")));
+        assertArrayEquals(concat(START_CODE, Mp4Fixture.PPS), bytes(video.getByteBuffer("csd-1")));
+        MediaFormat audio = source.getTrackFormat(TrackType.AUDIO);
+        assertNotNull(audio);
+        assertEquals("audio/mp4a-latm", audio.getString(MediaFormat.KEY_MIME));
+        assertEquals(44100, audio.getInteger(MediaFormat.KEY_SAMPLE_RATE));
+        assertEquals(2, audio.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+        assertArrayEquals(Mp4Fixture.AUDIO_SPECIFIC_CONFIG, bytes(audio.getByteBuffer("csd-0")));
+        assertEquals(Mp4Fixture.videoTimeUs(6), source.getDurationUs());
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        Mp4Fixture fixture = new Mp4Fixture();
+        Mp4DataSource source = new Mp4DataSource(fixture.write().getAbsolutePath());
+        source.selectTrack(TrackType.VIDEO);
+        source.selectTrack(TrackType.AUDIO);
+        List<DataSource.Chunk> video = new ArrayList<>();
+        List<DataSource.Chunk> audio = new ArrayList<>();
+        readAll(source, video, audio);
+        assertEquals(fixture.videoSamples, video.size());
+        assertEquals(fixture.audioSamples, audio.size());
+        for (int i = 0; i < video.size(); i++) {
+            DataSource.Chunk chunk = video.get(i);
+            assertArrayEquals(concat(START_CODE, Mp4Fixture.videoPayload(i)), bytes(chunk.buffer));
+            assertEquals(Mp4Fixture.videoTimeUs(i), chunk.timestampUs);
+            assertEquals(i == 0 || i == 3, chunk.isKeyFrame);
+        }
+        for (int i = 0; i < audio.size(); i++) {
+            assertArrayEquals(Mp4Fixture.audioSample(i), bytes(audio.get(i).buffer));
+            assertEquals(Mp4Fixture.audioTimeUs(i), audio.get(i).timestampUs);
+        }
+        assertTrue(source.isDrained());
+    }
+
+    @Test
+    public void testMetadataAfterRelease() throws Exception {
+        Mp4Fixture fixture = new Mp4Fixture();
+        fixture.rotation = 90;
+        fixture.location = "+35.6586+139.7454/";
+        Mp4DataSource source = new Mp4DataSource(fixture.write().getAbsolutePath());
+        long durationUs = source.getDurationUs();
+        source.selectTrack(TrackType.VIDEO);
+        source.selectTrack(TrackType.AUDIO);
+        readAll(source, new ArrayList<DataSource.Chunk>(), new ArrayList<DataSource.Chunk>());
+        source.releaseTrack(TrackType.VIDEO);
+        source.releaseTrack(TrackType.AUDIO);
+        assertEquals(90, source.getOrientation());
+        assertEquals(durationUs, source.getDurationUs());
+        double[] location = source.getLocation();
+        assertNotNull(location);
+        assertEquals(35.6586, location[0], 0.0001);
+        assertEquals(139.7454, location[1], 0.0001);
+        assertNotNull(source.getTrackFormat(TrackType.VIDEO));
+    }
+
+    @Test
+    public void testRewindAfterRelease() throws Exception {
+        Mp4Fixture fixture = new Mp4Fixture();
+        Mp4DataSource source = new Mp4DataSource(fixture.write().getAbsolutePath());
+        for (int round = 0; round < 3; round++) {
+            source.selectTrack(TrackType.VIDEO);
+            source.selectTrack(TrackType.AUDIO);
+            assertFalse(source.isDrained());
+            assertEquals(0, source.getReadUs());
+            List<DataSource.Chunk> video = new ArrayList<>();
+            List<DataSource.Chunk> audio = new ArrayList<>();
+            readAll(source, video, audio);
+            assertEquals(fixture.videoSamples, video.size());
+            assertEquals(fixture.audioSamples, audio.size());
+            assertArrayEquals(concat(START_CODE, Mp4Fixture.videoPayload(0)), bytes(video.get(0).buffer));
+            source.releaseTrack(TrackType.VIDEO);
+            source.releaseTrack(TrackType.AUDIO);
+            source.rewind();
+        }
+    }
+
+    @Test
+    public void testSeekAfterRewind() throws Exception {
+        Mp4Fixture fixture = new Mp4Fixture();
+        Mp4DataSource source = new Mp4DataSource(fixture.write().getAbsolutePath());
+        source.selectTrack(TrackType.VIDEO);
+        source.releaseTrack(TrackType.VIDEO);
+        source.rewind();
+        source.selectTrack(TrackType.VIDEO);
+        source.selectTrack(TrackType.AUDIO);
+        // Closest sync frame is the fourth sample.
+        long resultUs = source.seekTo(Mp4Fixture.videoTimeUs(3) - 1000);
+        assertEquals(Mp4Fixture.videoTimeUs(3), resultUs);
+        List<DataSource.Chunk> video = new ArrayList<>();
+        List<DataSource.Chunk> audio = new ArrayList<>();
+        readAll(source, video, audio);
+        assertEquals(fixture.videoSamples - 3, video.size());
+        assertTrue(video.get(0).isKeyFrame);
+        assertEquals(Mp4Fixture.videoTimeUs(3), video.get(0).timestampUs);
+        assertTrue(audio.get(0).timestampUs >= Mp4Fixture.videoTimeUs(3));
+    }
+
+    @Test
+    public void testShortNalLengths() throws Exception {
+        Mp4Fixture fixture = new Mp4Fixture();
+        fixture.nalLengthSize = 2;
+        Mp4DataSource source = new Mp4DataSource(fixture.write().getAbsolutePath());
+        MediaFormat format = source.getTrackFormat(TrackType.VIDEO);
+        assertNotNull(format);
+        int maxInputSize = format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+        source.selectTrack(TrackType.VIDEO);
+        for (int i = 0; i < fixture.videoSamples; i++) {
+            DataSource.Chunk chunk = new DataSource.Chunk();
+            chunk.buffer = ByteBuffer.allocate(maxInputSize);
+            assertTrue(source.canReadTrack(TrackType.VIDEO));
+            source.readTrack(chunk);
+            assertArrayEquals(concat(START_CODE, Mp4Fixture.videoPayload(i)), bytes(chunk.buffer));
+        }
+    }
+
+    @Test
+    public void testReadAfterRelease() throws Exception {
+        Mp4DataSource source = new Mp4DataSource(new Mp4Fixture().write().getAbsolutePath());
+        source.selectTrack(TrackType.VIDEO);
+        source.releaseTrack(TrackType.VIDEO);
+        try {
+            source.isDrained();
+            fail();
+        } catch (IllegalStateException ignore) {}
+        try {
+            source.canReadTrack(TrackType.VIDEO);
+            fail();
+        } catch (IllegalStateException ignore) {}
+        try {
+            source.seekTo(0);
+            fail();
+        } catch (IllegalStateException ignore) {}
+        assertNotNull(source.getTrackFormat(TrackType.AUDIO));
+        source.rewind();
+        source.selectTrack(TrackType.VIDEO);
+        assertTrue(source.canReadTrack(TrackType.VIDEO));
+    }
+
+    @Test
+    public void testMissingTrack() throws Exception {
+        Mp4Fixture fixture = new Mp4Fixture();
+        fixture.audioSamples = 0;
+        Mp4DataSource source = new Mp4DataSource(fixture.write().getAbsolutePath());
+        assertNull(source.getTrackFormat(TrackType.AUDIO));
+        assertNotNull(source.getTrackFormat(TrackType.VIDEO));
+    }
+
+    @Test
+    public void testInvalidTables() throws Exception {
+        // Entry counts that do not fit in their box.
+        assertInvalid("stts", 4, Integer.MAX_VALUE);
+        assertInvalid("stts", 4, -1);
+        assertInvalid("stsz", 8, 0x10000000);
+        assertInvalid("stsc", 4, 0x7FFFFFF0);
+        assertInvalid("stco", 4, 1000);
+        // Tables pointing outside of the file.
+        assertInvalid("stsc", 8, 5);
+        assertInvalid("stco", 8, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes the given value at the given offset of the content of the first box of the
+     * given type, then checks that the file is rejected as invalid.
+     */
+    private static void assertInvalid(@NonNull String type, int offset, int value) throws Exception {
+        File file = new Mp4Fixture().write();
+        byte[] bytes;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            int position = new String(bytes, "ISO-8859-1").indexOf(type);
+            assertTrue(position > 0);
+            raf.seek(position + 4 + offset);
+            raf.writeInt(value);
+        }
+        try {
+            new Mp4DataSource(file.getAbsolutePath()).getTrackFormat(TrackType.VIDEO);
+            fail("Expected " + type + " with " + value + " to be rejected.");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    private static void readAll(@NonNull DataSource source,
+                                @NonNull List<DataSource.Chunk> video,
+                                @NonNull List<DataSource.Chunk> audio) {
+        while (!source.isDrained()) {
+            DataSource.Chunk chunk = new DataSource.Chunk();
+            chunk.buffer = ByteBuffer.allocate(1024);
+            if (source.canReadTrack(TrackType.VIDEO)) {
+                source.readTrack(chunk);
+                video.add(chunk);
+            } else if (source.canReadTrack(TrackType.AUDIO)) {
+                source.readTrack(chunk);
+                audio.add(chunk);
+            } else {
+                throw new IllegalStateException("Can not read any track.");
+            }
+        }
+    }
+
+    @NonNull
+    private static byte[] bytes(@NonNull ByteBuffer buffer) {
+        ByteBuffer copy = buffer.duplicate();
+        byte[] bytes = new byte[copy.remaining()];
+        copy.get(bytes);
+        return bytes;
+    }
+
+    @NonNull
+    private static byte[] concat(@NonNull byte[] first, @NonNull byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
@@ -0,0 +1,286 @@
+package com.otaliastudios.transcoder.source;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Writes small, non fragmented MP4 files with an AVC video track and an AAC audio track.
+ * Samples are filled with a marker byte, so that tests can check what was read.
+ * All video samples come first in the media data box, followed by all audio samples.
+ */
+public class Mp4Fixture {
+
+    public static final int VIDEO_TIMESCALE = 30000;
+    public static final int VIDEO_DELTA = 1000; // 30 fps
+    public static final int AUDIO_TIMESCALE = 44100;
+    public static final int AUDIO_DELTA = 1024;
+    public static final byte[] SPS = new byte[]{0x67, 0x42, 0x00, 0x1E};
+    public static final byte[] PPS = new byte[]{0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    public static final byte[] AUDIO_SPECIFIC_CONFIG = new byte[]{0x12, 0x10}; // AAC LC, 44100, stereo
+
+    public int videoSamples = 6;
+    public int[] videoSyncSamples = new int[]{0, 3};
+    public int audioSamples = 10;
+    public int nalLengthSize = 4;
+    public int videoCompositionOffset = 0; // in the video timescale
+    public int rotation = 0;
+    public String location = null;
+
+    public static long videoTimeUs(int sample) {
+        return sample * VIDEO_DELTA * 1000000L / VIDEO_TIMESCALE;
+    }
+
+    /**
+     * The presentation time of the given video sample, including the composition offset.
+     */
+    public long videoPresentationTimeUs(int sample) {
+        return (sample * VIDEO_DELTA + videoCompositionOffset) * 1000000L / VIDEO_TIMESCALE;
+    }
+
+    public static long audioTimeUs(int sample) {
+        return sample * AUDIO_DELTA * 1000000L / AUDIO_TIMESCALE;
+    }
+
+    /**
+     * The payload of the single NAL unit of the given video sample.
+     */
+    @NonNull
+    public static byte[] videoPayload(int sample) {
+        byte[] payload = new byte[10 + sample];
+        payload[0] = 0x65;
+        for (int i = 1; i < payload.length; i++) payload[i] = (byte) (0x10 + sample);
+        return payload;
+    }
+
+    @NonNull
+    public static byte[] audioSample(int sample) {
+        byte[] data = new byte[20 + sample];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (0x70 + sample);
+        return data;
+    }
+
+    @NonNull
+    public File write() throws IOException {
+        File file = File.createTempFile("fixture", ".mp4");
+        file.deleteOnExit();
+
+        ByteArrayOutputStream media = new ByteArrayOutputStream();
+        int[] videoSizes = new int[videoSamples];
+        for (int i = 0; i < videoSamples; i++) {
+            byte[] payload = videoPayload(i);
+            Box sample = new Box();
+            sample.length(nalLengthSize, payload.length);
+            sample.bytes(payload);
+            byte[] bytes = sample.toByteArray();
+            videoSizes[i] = bytes.length;
+            media.write(bytes);
+        }
+        int[] audioSizes = new int[audioSamples];
+        for (int i = 0; i < audioSamples; i++) {
+            byte[] data = audioSample(i);
+            audioSizes[i] = data.length;
+            media.write(data);
+        }
+
+        Box ftyp = new Box();
+        ftyp.fourcc("isom").int32(512).fourcc("isom").fourcc("avc1");
+        byte[] ftypBytes = ftyp.box("ftyp");
+        long videoOffset = ftypBytes.length + 8;
+        long audioOffset = videoOffset;
+        for (int size : videoSizes) audioOffset += size;
+
+        Box moov = new Box();
+        long videoDuration = (long) videoSamples * VIDEO_DELTA;
+        moov.child(mvhd(videoDuration * 1000 / VIDEO_TIMESCALE));
+        moov.child(videoTrak(videoSizes, videoOffset, videoDuration));
+        moov.child(audioTrak(audioSizes, audioOffset, (long) audioSamples * AUDIO_DELTA));
+        if (location != null) {
+            Box xyz = new Box();
+            byte[] string = location.getBytes(Charset.forName("UTF-8"));
+            xyz.int16(string.length).int16(0x15C7).bytes(string);
+            Box udta = new Box();
+            udta.child(xyz.box(0xA978797A));
+            moov.child(udta.box("udta"));
+        }
+
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(ftypBytes);
+            Box mdat = new Box();
+            mdat.bytes(media.toByteArray());
+            stream.write(mdat.box("mdat"));
+            stream.write(moov.box("moov"));
+        } finally {
+            stream.close();
+        }
+        return file;
+    }
+
+    @NonNull
+    private static byte[] mvhd(long durationMs) throws IOException {
+        Box box = new Box();
+        box.int32(0).int32(0).int32(0).int32(1000).int32((int) durationMs);
+        box.int32(0x10000).int16(0x100).zeros(10);
+        box.matrix(0x10000, 0, 0, 0x10000);
+        box.zeros(24).int32(3);
+        return box.box("mvhd");
+    }
+
+    @NonNull
+    private byte[] videoTrak(@NonNull int[] sizes, long offset, long duration) throws IOException {
+        Box tkhd = new Box();
+        tkhd.int32(0x7).int32(0).int32(0).int32(1).int32(0).int32((int) duration);
+        tkhd.zeros(8).int16(0).int16(0).int16(0).int16(0);
+        int one = 0x10000;
+        switch (rotation) {
+            case 90: tkhd.matrix(0, one, -one, 0); break;
+            case 180: tkhd.matrix(-one, 0, 0, -one); break;
+            case 270: tkhd.matrix(0, -one, one, 0); break;
+            default: tkhd.matrix(one, 0, 0, one); break;
+        }
+        tkhd.int32(320 << 16).int32(240 << 16);
+
+        Box avcC = new Box();
+        avcC.int8(1).int8(0x42).int8(0).int8(0x1E).int8(0xFC | (nalLengthSize - 1));
+        avcC.int8(0xE1).int16(SPS.length).bytes(SPS);
+        avcC.int8(1).int16(PPS.length).bytes(PPS);
+        Box avc1 = new Box();
+        avc1.zeros(6).int16(1).zeros(16).int16(320).int16(240);
+        avc1.int32(0x480000).int32(0x480000).int32(0).int16(1).zeros(32).int16(0x18).int16(-1);
+        avc1.child(avcC.box("avcC"));
+
+        Box stss = new Box();
+        stss.int32(0).int32(videoSyncSamples.length);
+        for (int sample : videoSyncSamples) stss.int32(sample + 1);
+
+        Box stbl = sampleTables(avc1.box("avc1"), sizes, offset, VIDEO_DELTA, videoCompositionOffset);
+        stbl.child(stss.box("stss"));
+        return trak(tkhd, VIDEO_TIMESCALE, duration, "vide", stbl);
+    }
+
+    @NonNull
+    private static byte[] audioTrak(@NonNull int[] sizes, long offset, long duration) throws IOException {
+        Box tkhd = new Box();
+        tkhd.int32(0x7).int32(0).int32(0).int32(2).int32(0).int32((int) duration);
+        tkhd.zeros(8).int16(0).int16(1).int16(0x100).int16(0);
+        tkhd.matrix(0x10000, 0, 0, 0x10000);
+        tkhd.int32(0).int32(0);
+
+        Box esds = new Box();
+        esds.int32(0);
+        esds.int8(0x03).int8(3 + 2 + 13 + 2 + AUDIO_SPECIFIC_CONFIG.length).int16(0).int8(0);
+        esds.int8(0x04).int8(13 + 2 + AUDIO_SPECIFIC_CONFIG.length).int8(0x40).int8(0x15).zeros(3);
+        esds.int32(128000).int32(128000);
+        esds.int8(0x05).int8(AUDIO_SPECIFIC_CONFIG.length).bytes(AUDIO_SPECIFIC_CONFIG);
+        Box mp4a = new Box();
+        mp4a.zeros(6).int16(1).int16(0).int16(0).int32(0);
+        mp4a.int16(2).int16(16).int16(0).int16(0).int32(AUDIO_TIMESCALE << 16);
+        mp4a.child(esds.box("esds"));
+
+        Box stbl = sampleTables(mp4a.box("mp4a"), sizes, offset, AUDIO_DELTA, 0);
+        return trak(tkhd, AUDIO_TIMESCALE, duration, "soun", stbl);
+    }
+
+    @NonNull
+    private static Box sampleTables(@NonNull byte[] sampleEntry, @NonNull int[] sizes,
+                                    long offset, int delta, int compositionOffset) throws IOException {
+        Box stsd = new Box();
+        stsd.int32(0).int32(1).bytes(sampleEntry);
+        Box stts = new Box();
+        stts.int32(0).int32(1).int32(sizes.length).int32(delta);
+        Box stsz = new Box();
+        stsz.int32(0).int32(0).int32(sizes.length);
+        for (int size : sizes) stsz.int32(size);
+        Box stsc = new Box();
+        stsc.int32(0).int32(1).int32(1).int32(sizes.length).int32(1);
+        Box stco = new Box();
+        stco.int32(0).int32(1).int32((int) offset);
+        Box stbl = new Box();
+        stbl.child(stsd.box("stsd"));
+        stbl.child(stts.box("stts"));
+        stbl.child(stsz.box("stsz"));
+        stbl.child(stsc.box("stsc"));
+        stbl.child(stco.box("stco"));
+        if (compositionOffset != 0) {
+            Box ctts = new Box();
+            ctts.int32(0).int32(1).int32(sizes.length).int32(compositionOffset);
+            stbl.child(ctts.box("ctts"));
+        }
+        return stbl;
+    }
+
+    @NonNull
+    private static byte[] trak(@NonNull Box tkhd, int timescale, long duration,
+                               @NonNull String handler, @NonNull Box stbl) throws IOException {
+        Box mdhd = new Box();
+        mdhd.int32(0).int32(0).int32(0).int32(timescale).int32((int) duration).int16(0x15C7).int16(0);
+        Box hdlr = new Box();
+        hdlr.int32(0).int32(0).fourcc(handler).zeros(12).int8(0);
+        Box minf = new Box();
+        minf.child(stbl.box("stbl"));
+        Box mdia = new Box();
+        mdia.child(mdhd.box("mdhd"));
+        mdia.child(hdlr.box("hdlr"));
+        mdia.child(minf.box("minf"));
+        Box trak = new Box();
+        trak.child(tkhd.box("tkhd"));
+        trak.child(mdia.box("mdia"));
+        return trak.box("trak");
+    }
+
+    /**
+     * Collects the content of a box, big endian.
+     */
+    private static class Box {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private final DataOutputStream mStream = new DataOutputStream(mBytes);
+
+        Box int8(int value) throws IOException { mStream.writeByte(value); return this; }
+        Box int16(int value) throws IOException { mStream.writeShort(value); return this; }
+        Box int32(int value) throws IOException { mStream.writeInt(value); return this; }
+        Box zeros(int count) throws IOException { mStream.write(new byte[count]); return this; }
+        Box bytes(@NonNull byte[] bytes) throws IOException { mStream.write(bytes); return this; }
+        Box child(@NonNull byte[] box) throws IOException { return bytes(box); }
+
+        Box length(int size, int value) throws IOException {
+            for (int i = size - 1; i >= 0; i--) int8(value >> (8 * i));
+            return this;
+        }
+
+        Box fourcc(@NonNull String type) throws IOException {
+            mStream.writeBytes(type);
+            return this;
+        }
+
+        Box matrix(int a, int b, int c, int d) throws IOException {
+            return int32(a).int32(b).int32(0).int32(c).int32(d).int32(0).int32(0).int32(0).int32(0x40000000);
+        }
+
+        @NonNull
+        byte[] toByteArray() {
+            return mBytes.toByteArray();
+        }
+
+        @NonNull
+        byte[] box(@NonNull String type) throws IOException {
+            return box((type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3));
+        }
+
+        @NonNull
+        byte[] box(int type) throws IOException {
+            byte[] content = mBytes.toByteArray();
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            DataOutputStream stream = new DataOutputStream(result);
+            stream.writeInt(content.length + 8);
+            stream.writeInt(type);
+            stream.write(content);
+            return result.toByteArray();
+        }
+    }
+}
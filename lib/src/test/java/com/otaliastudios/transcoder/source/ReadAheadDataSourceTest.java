@@ -0,0 +1,86 @@
+package com.otaliastudios.transcoder.source;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.transcoder.engine.TrackType;
+import com.otaliastudios.transcoder.internal.BufferPool;
+import com.otaliastudios.transcoder.internal.WorkSignal;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReadAheadDataSourceTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Test
+    public void testRead() throws Exception {
+        Mp4Fixture fixture = new Mp4Fixture();
+        fixture.videoSamples = 30;
+        fixture.videoSyncSamples = new int[]{0, 10, 20};
+        fixture.audioSamples = 40;
+        long outstandingBytes = BufferPool.getOutstandingBytes();
+        long hits = BufferPool.getHitCount();
+        // A tiny queue, so that the reader has to wait for each sample to be consumed.
+        ReadAheadDataSource source = new ReadAheadDataSource(
+                new Mp4DataSource(fixture.write().getAbsolutePath()), 1);
+        source.selectTrack(TrackType.VIDEO);
+        source.selectTrack(TrackType.AUDIO);
+        WorkSignal signal = new WorkSignal();
+        source.setWorkSignal(TrackType.VIDEO, signal);
+        source.setWorkSignal(TrackType.AUDIO, signal);
+        List<DataSource.Chunk> video = new ArrayList<>();
+        List<DataSource.Chunk> audio = new ArrayList<>();
+        while (!source.isDrained()) {
+            boolean read = false;
+            for (TrackType type : TrackType.values()) {
+                if (source.canReadTrack(type)) {
+                    DataSource.Chunk chunk = read(source);
+                    (type == TrackType.VIDEO ? video : audio).add(chunk);
+                    read = true;
+                }
+            }
+            // Every sample and the end of the source are signaled.
+            if (!read) assertTrue(signal.await(TIMEOUT_MILLIS));
+        }
+        assertEquals(fixture.videoSamples, video.size());
+        assertEquals(fixture.audioSamples, audio.size());
+        for (int i = 0; i < video.size(); i++) {
+            assertEquals(Mp4Fixture.videoTimeUs(i), video.get(i).timestampUs);
+            assertEquals(i % 10 == 0, video.get(i).isKeyFrame);
+        }
+        for (int i = 0; i < audio.size(); i++) {
+            assertArrayEquals(Mp4Fixture.audioSample(i), bytes(audio.get(i)));
+            assertEquals(Mp4Fixture.audioTimeUs(i), audio.get(i).timestampUs);
+        }
+        source.releaseTrack(TrackType.VIDEO);
+        source.releaseTrack(TrackType.AUDIO);
+        // Sample buffers are reused through the shared pool, and all of them are given back.
+        assertTrue(BufferPool.getHitCount() > hits);
+        assertEquals(outstandingBytes, BufferPool.getOutstandingBytes());
+    }
+
+    @NonNull
+    private static DataSource.Chunk read(@NonNull DataSource source) {
+        DataSource.Chunk chunk = new DataSource.Chunk();
+        chunk.buffer = ByteBuffer.allocate(4096);
+        source.readTrack(chunk);
+        return chunk;
+    }
+
+    @NonNull
+    private static byte[] bytes(@NonNull DataSource.Chunk chunk) {
+        byte[] bytes = new byte[chunk.bytes];
+        ByteBuffer buffer = chunk.buffer.duplicate();
+        buffer.position(0);
+        buffer.get(bytes);
+        return bytes;
+    }
+}
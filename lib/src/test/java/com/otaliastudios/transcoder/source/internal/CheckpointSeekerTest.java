@@ -0,0 +1,116 @@
+package com.otaliastudios.transcoder.source.internal;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.transcoder.engine.TrackType;
+import com.otaliastudios.transcoder.internal.TrackTypeMap;
+import com.otaliastudios.transcoder.source.DataSource;
+import com.otaliastudios.transcoder.source.Mp4DataSource;
+import com.otaliastudios.transcoder.source.Mp4Fixture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CheckpointSeekerTest {
+
+    private static final long STEP_US = Mp4Fixture.videoTimeUs(1);
+
+    @NonNull
+    private static Mp4Fixture createFixture() {
+        Mp4Fixture fixture = new Mp4Fixture();
+        fixture.videoSamples = 30;
+        fixture.videoSyncSamples = new int[]{0, 5, 10, 15, 20, 25};
+        fixture.audioSamples = 30;
+        return fixture;
+    }
+
+    @Test
+    public void testFirstTimestampAtZero() throws Exception {
+        checkResume(createFixture());
+    }
+
+    @Test
+    public void testFirstTimestampNotAtZero() throws Exception {
+        // The first video sample is presented at 10 frames, as in files with B-frames
+        // and no edit list. Audio starts at 0 but is read after it.
+        Mp4Fixture fixture = createFixture();
+        fixture.videoCompositionOffset = 10 * Mp4Fixture.VIDEO_DELTA;
+        checkResume(fixture);
+    }
+
+    /**
+     * Reads part of the file, then seeks back as the engine does on checkpoints,
+     * and checks that reading again from there does not skip any sample.
+     * Samples that come before the seek origin can not be reached by any seek, because audio
+     * follows the video sync frame, so they are not checked.
+     */
+    private static void checkResume(@NonNull Mp4Fixture fixture) throws Exception {
+        for (int readCount = 1; readCount < fixture.videoSamples + fixture.audioSamples; readCount++) {
+            DataSource source = new Mp4DataSource(fixture.write().getAbsolutePath());
+            source.selectTrack(TrackType.VIDEO);
+            source.selectTrack(TrackType.AUDIO);
+            TrackTypeMap<Long> firstUs = new TrackTypeMap<>(Long.MIN_VALUE, Long.MIN_VALUE);
+            TrackTypeMap<Long> maxUs = new TrackTypeMap<>(Long.MIN_VALUE, Long.MIN_VALUE);
+            for (int i = 0; i < readCount; i++) {
+                TrackType type = source.canReadTrack(TrackType.VIDEO) ? TrackType.VIDEO : TrackType.AUDIO;
+                long timestampUs = read(source, type);
+                if (firstUs.require(type) == Long.MIN_VALUE) firstUs.set(type, timestampUs);
+                maxUs.set(type, Math.max(maxUs.require(type), timestampUs));
+            }
+            long resumeUs = Long.MAX_VALUE;
+            for (TrackType type : TrackType.values()) {
+                if (maxUs.require(type) != Long.MIN_VALUE) {
+                    resumeUs = Math.min(resumeUs, maxUs.require(type) + 1);
+                }
+            }
+            long sourceFirstUs = Math.max(firstUs.requireVideo(), firstUs.requireAudio());
+            CheckpointSeeker.seek(source, sourceFirstUs, resumeUs, STEP_US);
+            TrackTypeMap<Long> nextUs = new TrackTypeMap<>(Long.MIN_VALUE, Long.MIN_VALUE);
+            while (!source.isDrained() && (nextUs.requireVideo() == Long.MIN_VALUE
+                    || nextUs.requireAudio() == Long.MIN_VALUE)) {
+                TrackType type = source.canReadTrack(TrackType.VIDEO) ? TrackType.VIDEO : TrackType.AUDIO;
+                long timestampUs = read(source, type);
+                if (nextUs.require(type) == Long.MIN_VALUE) nextUs.set(type, timestampUs);
+            }
+            for (TrackType type : TrackType.values()) {
+                if (maxUs.require(type) == Long.MIN_VALUE) continue;
+                if (maxUs.require(type) < sourceFirstUs) continue;
+                assertTrue("read:" + readCount + " type:" + type + " next:" + nextUs.require(type)
+                        + " resume:" + (maxUs.require(type) + 1),
+                        nextUs.require(type) <= maxUs.require(type) + 1);
+            }
+            source.releaseTrack(TrackType.VIDEO);
+            source.releaseTrack(TrackType.AUDIO);
+        }
+    }
+
+    private static long read(@NonNull DataSource source, @NonNull TrackType type) {
+        assertTrue(source.canReadTrack(type));
+        DataSource.Chunk chunk = new DataSource.Chunk();
+        chunk.buffer = ByteBuffer.allocate(1024);
+        source.readTrack(chunk);
+        return chunk.timestampUs;
+    }
+
+    @Test
+    public void testPosition() throws Exception {
+        Mp4Fixture fixture = createFixture();
+        fixture.videoCompositionOffset = 10 * Mp4Fixture.VIDEO_DELTA;
+        DataSource source = new Mp4DataSource(fixture.write().getAbsolutePath());
+        source.selectTrack(TrackType.VIDEO);
+        long firstUs = read(source, TrackType.VIDEO);
+        assertEquals(fixture.videoPresentationTimeUs(0), firstUs);
+        for (int i = 1; i <= 12; i++) read(source, TrackType.VIDEO);
+        // Resume at sample 12: the previous sync frame is sample 10,
+        // which is 10 frames after the first sample.
+        long positionUs = CheckpointSeeker.seek(source, firstUs,
+                fixture.videoPresentationTimeUs(12), STEP_US);
+        assertEquals(Mp4Fixture.videoTimeUs(10), positionUs);
+        assertEquals(fixture.videoPresentationTimeUs(10), read(source, TrackType.VIDEO));
+        source.releaseTrack(TrackType.VIDEO);
+    }
+}
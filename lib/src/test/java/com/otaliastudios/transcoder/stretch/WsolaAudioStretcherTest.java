@@ -0,0 +1,126 @@
+package com.otaliastudios.transcoder.stretch;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WsolaAudioStretcherTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHUNK_FRAMES = 1024;
+    private static final double FREQUENCY = 440;
+
+    @Test
+    public void testOutputLength() {
+        float[] factors = new float[]{0.5F, 0.8F, 1.25F, 2F};
+        for (float factor : factors) {
+            for (int channels = 1; channels <= 2; channels++) {
+                int frames = SAMPLE_RATE * 2;
+                short[] output = stretch(sine(frames, channels, 0), channels, factor);
+                int expected = (int) (frames / factor);
+                // Chunks are rounded, and the last segment fades out.
+                assertEquals("factor:" + factor + " channels:" + channels,
+                        expected, output.length / channels, 1024);
+            }
+        }
+    }
+
+    @Test
+    public void testPitch() {
+        float[] factors = new float[]{0.5F, 2F};
+        for (float factor : factors) {
+            short[] output = stretch(sine(SAMPLE_RATE * 2, 1, 0), 1, factor);
+            // Look at the middle of the output, away from the edges.
+            int length = output.length / 2;
+            double frequency = frequency(output, output.length / 4, length);
+            assertEquals("factor:" + factor, FREQUENCY, frequency, FREQUENCY * 0.02);
+        }
+    }
+
+    @Test
+    public void testAlignment() {
+        // The output should not be delayed by the samples held at the start.
+        int silence = SAMPLE_RATE / 5;
+        float[] factors = new float[]{0.5F, 1F, 2F};
+        for (float factor : factors) {
+            short[] output = stretch(sine(SAMPLE_RATE, 1, silence), 1, factor);
+            int onset = 0;
+            while (Math.abs(output[onset]) < 1000) onset++;
+            // Segments are taken around their nominal position, so the onset can move
+            // by up to one segment.
+            assertEquals("factor:" + factor, silence / factor, onset, 1024);
+        }
+    }
+
+    @Test
+    public void testDrainWithSmallOutput() {
+        WsolaAudioStretcher stretcher = new WsolaAudioStretcher();
+        short[] input = sine(CHUNK_FRAMES * 4, 1, 0);
+        ShortBuffer output = ShortBuffer.allocate(input.length);
+        stretcher.stretch(ShortBuffer.wrap(input), output, 1);
+        assertTrue(stretcher.isActive());
+        int drains = 0;
+        while (stretcher.isActive()) {
+            stretcher.drain(ShortBuffer.allocate(100));
+            drains++;
+        }
+        assertTrue(drains > 1);
+        assertFalse(stretcher.isActive());
+    }
+
+    @NonNull
+    private static short[] stretch(@NonNull short[] input, int channels, float factor) {
+        WsolaAudioStretcher stretcher = new WsolaAudioStretcher();
+        int frames = input.length / channels;
+        ShortBuffer output = ShortBuffer.allocate((int) (frames / factor + 4 * CHUNK_FRAMES) * channels);
+        for (int start = 0; start < frames; start += CHUNK_FRAMES) {
+            int chunk = Math.min(CHUNK_FRAMES, frames - start);
+            ShortBuffer in = ShortBuffer.wrap(input, start * channels, chunk * channels);
+            ShortBuffer out = output.slice();
+            out.limit(Math.round(chunk / factor) * channels);
+            stretcher.stretch(in, out, channels);
+            output.position(output.position() + out.position());
+        }
+        while (stretcher.isActive()) {
+            stretcher.drain(output);
+        }
+        short[] result = new short[output.position()];
+        output.flip();
+        output.get(result);
+        return result;
+    }
+
+    /**
+     * Returns a sine wave, the same on all channels, starting after the given frames of silence.
+     */
+    @NonNull
+    private static short[] sine(int frames, int channels, int silence) {
+        short[] samples = new short[(silence + frames) * channels];
+        for (int i = 0; i < frames; i++) {
+            short value = (short) (10000 * Math.sin(2 * Math.PI * FREQUENCY * i / SAMPLE_RATE));
+            for (int c = 0; c < channels; c++) samples[(silence + i) * channels + c] = value;
+        }
+        return samples;
+    }
+
+    /**
+     * Estimates the frequency of a mono signal by counting upward zero crossings.
+     */
+    private static double frequency(@NonNull short[] samples, int start, int length) {
+        int first = -1, last = -1, crossings = 0;
+        for (int i = start + 1; i < start + length; i++) {
+            if (samples[i - 1] < 0 && samples[i] >= 0) {
+                if (first < 0) first = i;
+                last = i;
+                crossings++;
+            }
+        }
+        return (double) (crossings - 1) * SAMPLE_RATE / (last - first);
+    }
+}
@@ -0,0 +1,248 @@
+package com.otaliastudios.transcoder.transcode.internal;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.transcoder.internal.FakeMediaCodec;
+import com.otaliastudios.transcoder.internal.MediaCodecBuffers;
+import com.otaliastudios.transcoder.internal.MediaFormatConstants;
+import com.otaliastudios.transcoder.resample.DefaultAudioResampler;
+import com.otaliastudios.transcoder.stretch.DefaultAudioStretcher;
+import com.otaliastudios.transcoder.time.DefaultTimeInterpolator;
+import com.otaliastudios.transcoder.time.SpeedTimeInterpolator;
+import com.otaliastudios.transcoder.time.TimeInterpolator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AudioEngineTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final int FRAMES = 1024;
+
+    private FakeMediaCodec mDecoder;
+    private FakeMediaCodec mEncoder;
+    private DefaultAudioStretcher mStretcher;
+    private DefaultAudioResampler mResampler;
+
+    @Before
+    public void setUp() {
+        mDecoder = new FakeMediaCodec();
+        mEncoder = new FakeMediaCodec(4, 8192);
+        mStretcher = new DefaultAudioStretcher();
+        mResampler = new DefaultAudioResampler();
+    }
+
+    @Test
+    public void testPassThrough() {
+        AudioEngine engine = createEngine(new DefaultTimeInterpolator());
+        int buffers = 20;
+        short[] input = signal(buffers * FRAMES * CHANNELS);
+        feed(engine, input, buffers);
+
+        List<FakeMediaCodec.Input> inputs = mEncoder.inputs;
+        assertEquals(buffers + 1, inputs.size());
+        for (int i = 0; i < buffers; i++) {
+            assertEquals(timeUs(i), inputs.get(i).timeUs);
+            assertEquals(0, inputs.get(i).flags);
+        }
+        assertEquals(MediaCodec.BUFFER_FLAG_END_OF_STREAM, inputs.get(buffers).flags);
+        assertArrayEquals(input, collect(inputs));
+        assertFalse(mStretcher.isActive());
+    }
+
+    @Test
+    public void testStretchedTail() {
+        checkStretchedTail(false);
+    }
+
+    @Test
+    public void testStretchedTailFloat() {
+        checkStretchedTail(true);
+    }
+
+    /**
+     * Slows down a stream that is silent except for its last buffer. The stretcher holds
+     * more than a buffer of samples, so the tone only reaches the encoder if the stretcher
+     * is drained at the end of stream.
+     */
+    private void checkStretchedTail(boolean floats) {
+        AudioEngine engine = createEngine(new SpeedTimeInterpolator(0.5F), floats);
+        int buffers = 20;
+        short[] input = new short[buffers * FRAMES * CHANNELS];
+        short[] tone = signal(FRAMES * CHANNELS);
+        System.arraycopy(tone, 0, input, input.length - tone.length, tone.length);
+        feed(engine, input, buffers, floats);
+
+        List<FakeMediaCodec.Input> inputs = mEncoder.inputs;
+        FakeMediaCodec.Input last = inputs.get(inputs.size() - 1);
+        assertEquals(MediaCodec.BUFFER_FLAG_END_OF_STREAM, last.flags);
+        for (int i = 1; i < inputs.size() - 1; i++) {
+            assertTrue(inputs.get(i).timeUs > inputs.get(i - 1).timeUs);
+        }
+        // Twice the duration, same amplitude.
+        double ratio = energy(collect(inputs)) / (2 * energy(tone));
+        assertTrue("Energy ratio: " + ratio, ratio > 0.8 && ratio < 1.2);
+        assertFalse(mStretcher.isActive());
+    }
+
+    /**
+     * Slows down the same stream with two engines that share the stretcher and resampler,
+     * alternating buffers on the same thread. Each engine should output what it would
+     * output alone.
+     */
+    @Test
+    public void testSharedStretcher() {
+        int buffers = 20;
+        short[] input = signal(buffers * FRAMES * CHANNELS);
+        feed(createEngine(new SpeedTimeInterpolator(0.5F)), input, buffers);
+        short[] expected = collect(mEncoder.inputs);
+
+        FakeMediaCodec[] decoders = new FakeMediaCodec[2];
+        FakeMediaCodec[] encoders = new FakeMediaCodec[2];
+        AudioEngine[] engines = new AudioEngine[2];
+        MediaCodecBuffers[] encoderBuffers = new MediaCodecBuffers[2];
+        for (int i = 0; i < 2; i++) {
+            decoders[i] = new FakeMediaCodec();
+            encoders[i] = new FakeMediaCodec(4, 8192);
+            engines[i] = createEngine(decoders[i], encoders[i],
+                    new SpeedTimeInterpolator(0.5F), false);
+            encoderBuffers[i] = new MediaCodecBuffers(encoders[i]);
+        }
+        for (int buffer = 0; buffer < buffers; buffer++) {
+            for (int i = 0; i < 2; i++) {
+                push(engines[i], decoders[i], encoderBuffers[i], input, buffers, buffer, false);
+            }
+        }
+        for (int i = 0; i < 2; i++) {
+            pushEndOfStream(engines[i], decoders[i], encoderBuffers[i]);
+            assertArrayEquals(expected, collect(encoders[i].inputs));
+        }
+        assertFalse(mStretcher.isActive());
+    }
+
+    @NonNull
+    private AudioEngine createEngine(@NonNull TimeInterpolator interpolator) {
+        return createEngine(interpolator, false);
+    }
+
+    @NonNull
+    private AudioEngine createEngine(@NonNull TimeInterpolator interpolator, boolean floats) {
+        return createEngine(mDecoder, mEncoder, interpolator, floats);
+    }
+
+    @NonNull
+    private AudioEngine createEngine(@NonNull MediaCodec decoder,
+                                     @NonNull MediaCodec encoder,
+                                     @NonNull TimeInterpolator interpolator,
+                                     boolean floats) {
+        MediaFormat format = new MediaFormat();
+        format.setInteger(MediaFormat.KEY_SAMPLE_RATE, SAMPLE_RATE);
+        format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, CHANNELS);
+        MediaFormat decoderFormat = new MediaFormat();
+        decoderFormat.setInteger(MediaFormat.KEY_SAMPLE_RATE, SAMPLE_RATE);
+        decoderFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, CHANNELS);
+        if (floats) {
+            decoderFormat.setInteger(MediaFormatConstants.KEY_PCM_ENCODING,
+                    MediaFormatConstants.ENCODING_PCM_FLOAT);
+        }
+        return new AudioEngine(decoder, decoderFormat, encoder, format, interpolator,
+                mStretcher, mResampler);
+    }
+
+    /**
+     * Passes the input to the engine in buffers of the same size, then the end of stream,
+     * feeding the encoder after each of them.
+     */
+    private void feed(@NonNull AudioEngine engine, @NonNull short[] input, int buffers) {
+        feed(engine, input, buffers, false);
+    }
+
+    private void feed(@NonNull AudioEngine engine, @NonNull short[] input, int buffers, boolean floats) {
+        MediaCodecBuffers encoderBuffers = new MediaCodecBuffers(mEncoder);
+        for (int i = 0; i < buffers; i++) {
+            push(engine, mDecoder, encoderBuffers, input, buffers, i, floats);
+        }
+        pushEndOfStream(engine, mDecoder, encoderBuffers);
+        assertEquals(buffers, mDecoder.releasedOutputs.size());
+    }
+
+    /**
+     * Passes the given buffer of the input to the engine, then feeds the encoder.
+     */
+    private static void push(@NonNull AudioEngine engine,
+                             @NonNull FakeMediaCodec decoder,
+                             @NonNull MediaCodecBuffers encoderBuffers,
+                             @NonNull short[] input, int buffers, int buffer, boolean floats) {
+        int size = input.length / buffers;
+        ByteBuffer bytes = ByteBuffer.allocate(size * (floats ? 4 : 2)).order(ByteOrder.nativeOrder());
+        if (floats) {
+            FloatBuffer view = bytes.asFloatBuffer();
+            for (int j = 0; j < size; j++) view.put(input[buffer * size + j] / (float) Short.MAX_VALUE);
+        } else {
+            bytes.asShortBuffer().put(input, buffer * size, size);
+        }
+        int index = decoder.addOutput(bytes.array(), timeUs(buffer), 0);
+        engine.drainDecoder(index, decoder.getOutputBuffer(index), timeUs(buffer), false);
+        //noinspection StatementWithEmptyBody
+        while (engine.feedEncoder(encoderBuffers, 0)) {}
+    }
+
+    private static void pushEndOfStream(@NonNull AudioEngine engine,
+                                        @NonNull FakeMediaCodec decoder,
+                                        @NonNull MediaCodecBuffers encoderBuffers) {
+        int index = decoder.addOutput(new byte[0], 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        engine.drainDecoder(index, decoder.getOutputBuffer(index), 0, true);
+        //noinspection StatementWithEmptyBody
+        while (engine.feedEncoder(encoderBuffers, 0)) {}
+    }
+
+    /**
+     * Concatenates the samples written to the encoder.
+     */
+    @NonNull
+    private static short[] collect(@NonNull List<FakeMediaCodec.Input> inputs) {
+        int size = 0;
+        for (FakeMediaCodec.Input input : inputs) size += input.data.length / 2;
+        short[] samples = new short[size];
+        int position = 0;
+        for (FakeMediaCodec.Input input : inputs) {
+            ByteBuffer.wrap(input.data).order(ByteOrder.nativeOrder()).asShortBuffer()
+                    .get(samples, position, input.data.length / 2);
+            position += input.data.length / 2;
+        }
+        return samples;
+    }
+
+    private static double energy(@NonNull short[] samples) {
+        double energy = 0;
+        for (short sample : samples) energy += (double) sample * sample;
+        return energy;
+    }
+
+    private static long timeUs(int buffer) {
+        return (long) buffer * FRAMES * 1000000L / SAMPLE_RATE;
+    }
+
+    @NonNull
+    private static short[] signal(int size) {
+        short[] samples = new short[size];
+        for (int i = 0; i < size; i++) {
+            samples[i] = (short) (8000 * Math.sin(2 * Math.PI * 440 * (i / CHANNELS) / SAMPLE_RATE));
+        }
+        return samples;
+    }
+}